@@ -0,0 +1,141 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the meshes generated by the MeshBuilder, without an OpenGL context.
+ * The test lives in the unnamed package like the MeshBuilder, so it can call it directly.
+ */
+class MeshBuilderTest {
+
+    private static final float EPSILON = 1e-5f;
+
+    @Test
+    void boxHasFourVerticesAndTwoTrianglesPerFace() {
+        Mesh mesh = MeshBuilder.box(0.8f, 0.5f, 0.4f);
+        assertEquals(6 * 4, mesh.getVertexCount());
+        assertEquals(6 * 6, mesh.getIndexCount());
+        assertValid(mesh);
+
+        // every vertex lies on the surface of the box, its normal points along one axis
+        FloatBuffer vertices = mesh.getVertices();
+        float[] halfExtent = {0.4f, 0.25f, 0.2f};
+        for (int vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            int offset = vertex * Mesh.FLOATS_PER_VERTEX;
+            for (int axis = 0; axis < 3; axis++)
+                assertEquals(halfExtent[axis], Math.abs(vertices.get(offset + axis)), EPSILON);
+            int axes = 0;
+            for (int axis = 0; axis < 3; axis++)
+                if (vertices.get(offset + 3 + axis) != 0f)
+                    axes++;
+            assertEquals(1, axes);
+        }
+    }
+
+    @Test
+    void sphereHasOneRingPerStack() {
+        int slices = 12;
+        int stacks = 8;
+        Mesh mesh = MeshBuilder.sphere(0.3f, slices, stacks);
+        assertEquals((stacks + 1) * (slices + 1), mesh.getVertexCount());
+        assertEquals(stacks * slices * 6, mesh.getIndexCount());
+        assertValid(mesh);
+
+        // the vertices lie on the sphere and the normals point away from the center
+        FloatBuffer vertices = mesh.getVertices();
+        for (int vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            int offset = vertex * Mesh.FLOATS_PER_VERTEX;
+            for (int axis = 0; axis < 3; axis++)
+                assertEquals(0.3f * vertices.get(offset + 3 + axis), vertices.get(offset + axis), EPSILON);
+        }
+    }
+
+    @Test
+    void cylinderIsOpen() {
+        int slices = 12;
+        int stacks = 3;
+        Mesh mesh = MeshBuilder.cylinder(0.1f, 0.1f, 0.8f, slices, stacks);
+        assertEquals((stacks + 1) * (slices + 1), mesh.getVertexCount());
+        assertEquals(stacks * slices * 6, mesh.getIndexCount());
+        assertValid(mesh);
+
+        // the normals of a straight barrel are perpendicular to the z-axis
+        FloatBuffer vertices = mesh.getVertices();
+        for (int vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            int offset = vertex * Mesh.FLOATS_PER_VERTEX;
+            assertEquals(0f, vertices.get(offset + 5), EPSILON);
+            assertTrue(vertices.get(offset + 2) >= -EPSILON && vertices.get(offset + 2) <= 0.8f + EPSILON);
+        }
+    }
+
+    @Test
+    void coneIsClosedByOneDisc() {
+        int slices = 12;
+        int stacks = 2;
+        Mesh mesh = MeshBuilder.cone(0.4f, 0.6f, slices, stacks);
+        // barrel and the disc at the base, the apex (radius 0) needs no disc
+        assertEquals((stacks + 1) * (slices + 1) + slices + 2, mesh.getVertexCount());
+        assertEquals((stacks * slices * 2 + slices) * 3, mesh.getIndexCount());
+        assertValid(mesh);
+
+        // the normals of the barrel are tilted upwards by the slope
+        FloatBuffer vertices = mesh.getVertices();
+        float nz = 0.4f / 0.6f / (float) Math.sqrt(1 + (0.4f / 0.6f) * (0.4f / 0.6f));
+        assertEquals(nz, vertices.get(5), EPSILON);
+    }
+
+    @Test
+    void frustumIsClosedByTwoDiscs() {
+        int slices = 12;
+        Mesh mesh = MeshBuilder.frustum(0.5f, 0.25f, 1f, slices, 1);
+        assertEquals(2 * (slices + 1) + 2 * (slices + 2), mesh.getVertexCount());
+        assertEquals((slices * 2 + 2 * slices) * 3, mesh.getIndexCount());
+        assertValid(mesh);
+    }
+
+    @Test
+    void barrelsRejectNonPositiveHeight() {
+        // the slope of the barrel and thus its normals are undefined without a height
+        assertThrows(IllegalArgumentException.class, () -> MeshBuilder.cylinder(0.1f, 0.1f, 0f, 12, 1));
+        assertThrows(IllegalArgumentException.class, () -> MeshBuilder.frustum(0.5f, 0.25f, -1f, 12, 1));
+        assertThrows(IllegalArgumentException.class, () -> MeshBuilder.cone(0.4f, Float.NaN, 12, 1));
+    }
+
+    @Test
+    void optimizedMeshesStayValid() {
+        assertValid(MeshOptimizer.optimize(MeshBuilder.sphere(0.3f, 12, 12)));
+        assertValid(MeshOptimizer.optimize(MeshBuilder.cone(0.4f, 0.6f, 12, 1)));
+    }
+
+    /**
+     * Checks that the mesh is an indexed triangle list with normals of unit length
+     * and indices referring to its own vertices only.
+     */
+    private static void assertValid(Mesh mesh) {
+        assertFalse(mesh.isStrip());
+        assertEquals(0, mesh.getIndexCount() % 3);
+        assertEquals(mesh.getIndexCount() / 3, mesh.getTriangleCount());
+
+        FloatBuffer vertices = mesh.getVertices();
+        assertEquals(0, vertices.limit() % Mesh.FLOATS_PER_VERTEX);
+        for (int vertex = 0; vertex < mesh.getVertexCount(); vertex++) {
+            int offset = vertex * Mesh.FLOATS_PER_VERTEX + 3;
+            float nx = vertices.get(offset);
+            float ny = vertices.get(offset + 1);
+            float nz = vertices.get(offset + 2);
+            assertEquals(1f, (float) Math.sqrt(nx * nx + ny * ny + nz * nz), EPSILON, "normal of vertex " + vertex);
+        }
+
+        IntBuffer indices = mesh.getIndices();
+        for (int i = 0; i < mesh.getIndexCount(); i++) {
+            int index = indices.get(i);
+            assertTrue(index >= 0 && index < mesh.getVertexCount(), "index " + index + " at " + i);
+        }
+    }
+}
@@ -0,0 +1,121 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the MeshOptimizer on the generated meshes, without an OpenGL context.
+ * Triangles are compared by the positions and normals of their corners, so the tests do not depend on
+ * the vertex numbering the optimizer chooses.
+ */
+class MeshOptimizerTest {
+
+    private static final float EPSILON = 1e-5f;
+    private static final int[] TREE_SLICES = {12, 24, 48};
+
+    @Test
+    void weldingKeepsEveryTriangle() {
+        for (Mesh mesh : testMeshes()) {
+            Mesh welded = MeshOptimizer.weld(mesh, MeshOptimizer.DEFAULT_EPSILON);
+            assertTrue(welded.getVertexCount() <= mesh.getVertexCount());
+            // only the degenerate triangles at poles and apexes may be dropped
+            assertSameTriangles(triangles(mesh, true), triangles(welded, false));
+        }
+    }
+
+    @Test
+    void vertexCacheOrderIsPermutationOfTriangles() {
+        for (Mesh mesh : testMeshes()) {
+            Mesh welded = MeshOptimizer.weld(mesh, MeshOptimizer.DEFAULT_EPSILON);
+            Mesh ordered = MeshOptimizer.optimizeVertexCache(welded);
+            assertEquals(welded.getIndexCount(), ordered.getIndexCount());
+            assertEquals(welded.getVertexCount(), ordered.getVertexCount());
+            assertSameTriangles(triangles(welded, false), triangles(ordered, false));
+        }
+    }
+
+    @Test
+    void optimizationDoesNotIncreaseAcmrOfTreeMeshes() {
+        for (int slices : TREE_SLICES) {
+            Mesh[] meshes = {ShapesRenderer.createTrunkMesh(slices, 1),
+                    ShapesRenderer.createConiferCrownMesh(slices, 1),
+                    ShapesRenderer.createBroadleavedCrownMesh(slices, slices)};
+            for (Mesh mesh : meshes) {
+                float generated = MeshOptimizer.acmr(mesh, MeshOptimizer.DEFAULT_CACHE_SIZE);
+                float optimized = MeshOptimizer.acmr(MeshOptimizer.optimize(mesh), MeshOptimizer.DEFAULT_CACHE_SIZE);
+                assertTrue(optimized <= generated, "ACMR " + optimized + " > " + generated + " at " + slices);
+            }
+        }
+    }
+
+    private static Mesh[] testMeshes() {
+        return new Mesh[] {MeshBuilder.sphere(0.3f, 12, 12), MeshBuilder.cone(0.4f, 0.6f, 12, 2),
+                MeshBuilder.frustum(0.5f, 0.25f, 1f, 12, 3), ShapesRenderer.createTrunkMesh(24, 1)};
+    }
+
+    /**
+     * Collects the corners of the triangles, 18 floats per triangle (position and normal of each corner).
+     * @param skipDegenerate True for leaving out the triangles with two corners at the same position
+     */
+    private static List<float[]> triangles(Mesh mesh, boolean skipDegenerate) {
+        FloatBuffer vertices = mesh.getVertices();
+        IntBuffer indices = mesh.getIndices();
+        List<float[]> triangles = new ArrayList<>();
+        for (int i = 0; i < mesh.getIndexCount(); i += 3) {
+            float[] corners = new float[3 * Mesh.FLOATS_PER_VERTEX];
+            for (int corner = 0; corner < 3; corner++)
+                for (int k = 0; k < Mesh.FLOATS_PER_VERTEX; k++)
+                    corners[corner * Mesh.FLOATS_PER_VERTEX + k] =
+                            vertices.get(indices.get(i + corner) * Mesh.FLOATS_PER_VERTEX + k);
+            if (skipDegenerate && (samePosition(corners, 0, 1) || samePosition(corners, 1, 2)
+                    || samePosition(corners, 0, 2)))
+                continue;
+            triangles.add(corners);
+        }
+        return triangles;
+    }
+
+    private static boolean samePosition(float[] corners, int a, int b) {
+        for (int k = 0; k < 3; k++)
+            if (Math.abs(corners[a * Mesh.FLOATS_PER_VERTEX + k] - corners[b * Mesh.FLOATS_PER_VERTEX + k]) > EPSILON)
+                return false;
+        return true;
+    }
+
+    /**
+     * Checks that both lists hold the same triangles with the same winding, each exactly once,
+     * in any order and starting at any corner.
+     */
+    private static void assertSameTriangles(List<float[]> expected, List<float[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        boolean[] matched = new boolean[actual.size()];
+        for (float[] triangle : expected) {
+            int match = -1;
+            for (int t = 0; t < actual.size() && match < 0; t++)
+                if (!matched[t] && sameTriangle(triangle, actual.get(t)))
+                    match = t;
+            assertTrue(match >= 0, "triangle missing");
+            matched[match] = true;
+        }
+    }
+
+    private static boolean sameTriangle(float[] a, float[] b) {
+        for (int rotation = 0; rotation < 3; rotation++) {
+            boolean same = true;
+            for (int corner = 0; corner < 3 && same; corner++) {
+                int offsetA = corner * Mesh.FLOATS_PER_VERTEX;
+                int offsetB = (corner + rotation) % 3 * Mesh.FLOATS_PER_VERTEX;
+                for (int k = 0; k < Mesh.FLOATS_PER_VERTEX && same; k++)
+                    same = Math.abs(a[offsetA + k] - b[offsetB + k]) <= EPSILON;
+            }
+            if (same)
+                return true;
+        }
+        return false;
+    }
+}
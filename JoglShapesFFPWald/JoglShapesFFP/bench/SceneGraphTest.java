@@ -0,0 +1,113 @@
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests of the dirty flags of the SceneGraph: update() recomputes the changed subtrees only.
+ */
+class SceneGraphTest {
+
+    private static final float EPSILON = 1e-5f;
+    private static final float BOUNDS_CENTER_Z = 0.7f;
+    private static final float BOUNDS_RADIUS = 0.8f;
+
+    private final SceneGraph graph = new SceneGraph(6, BOUNDS_CENTER_Z, BOUNDS_RADIUS);
+    // group a with a nested group a1, group b next to it
+    private final int a = graph.addGroup(graph.getRoot(), 10f, 0f, 0f, 1f);
+    private final int a1 = graph.addGroup(a, 0f, 5f, 0f, 2f);
+    private final int[] aTrees = {
+            graph.addTree(a, 1f, 0f, 0f, 1f, InstanceStore.SPECIES_CONIFER, InstanceStore.MATERIAL_LEAF_GREEN),
+            graph.addTree(a1, 1f, 0f, 0f, 1f, InstanceStore.SPECIES_BROADLEAVED, InstanceStore.MATERIAL_LEAF_GREEN),
+            graph.addTree(a1, 0f, 1f, 0f, 0.5f, InstanceStore.SPECIES_CONIFER, InstanceStore.MATERIAL_LEAF_GREEN)};
+    private final int b = graph.addGroup(graph.getRoot(), -10f, 0f, 0f, 1f);
+    private final int[] bTrees = {
+            graph.addTree(b, 0f, 0f, 0f, 1f, InstanceStore.SPECIES_CONIFER, InstanceStore.MATERIAL_LEAF_GREEN),
+            graph.addTree(b, 2f, 0f, 0f, 1f, InstanceStore.SPECIES_BROADLEAVED, InstanceStore.MATERIAL_LEAF_GREEN),
+            graph.addTree(b, 0f, 2f, 0f, 1f, InstanceStore.SPECIES_CONIFER, InstanceStore.MATERIAL_LEAF_GREEN)};
+
+    @Test
+    void firstUpdateWritesEveryTree() {
+        assertTrue(graph.isDirty());
+        assertEquals(6, graph.update());
+        assertFalse(graph.isDirty());
+        // static scene: nothing to do
+        assertEquals(0, graph.update());
+
+        // world transform of the nested tree: a + scale(a) * (a1 + scale(a1) * tree)
+        int tree = aTrees[1];
+        assertEquals(12f, graph.getWorldX(tree), EPSILON);
+        assertEquals(5f, graph.getWorldY(tree), EPSILON);
+        assertEquals(2f, graph.getWorldScale(tree), EPSILON);
+        assertInstance(tree);
+    }
+
+    @Test
+    void movingParentUpdatesItsSubtreeOnly() {
+        graph.update();
+        float[] bWorldX = worldX(bTrees);
+        float[] aWorldX = worldX(aTrees);
+
+        graph.setTranslation(a, 20f, 0f, 0f);
+        assertTrue(graph.isDirty());
+        assertEquals(aTrees.length, graph.update());
+        assertFalse(graph.isDirty());
+
+        for (int k = 0; k < aTrees.length; k++) {
+            assertEquals(aWorldX[k] + 10f, graph.getWorldX(aTrees[k]), EPSILON);
+            assertInstance(aTrees[k]);
+        }
+        for (int k = 0; k < bTrees.length; k++)
+            assertEquals(bWorldX[k], graph.getWorldX(bTrees[k]), EPSILON);
+
+        // the bounds of the root are refitted around the moved subtree
+        float right = graph.getBoundsX(graph.getRoot()) + graph.getBoundsRadius(graph.getRoot());
+        assertTrue(right >= graph.getBoundsX(a) + graph.getBoundsRadius(a) - EPSILON);
+    }
+
+    @Test
+    void scalingNestedGroupUpdatesItsTreesOnly() {
+        graph.update();
+        graph.setScale(a1, 1f);
+        assertEquals(2, graph.update());
+        assertFalse(graph.isDirty());
+        assertEquals(11f, graph.getWorldX(aTrees[1]), EPSILON);
+        assertEquals(1f, graph.getWorldScale(aTrees[1]), EPSILON);
+        assertEquals(BOUNDS_RADIUS, graph.getBoundsRadius(aTrees[1]), EPSILON);
+        assertInstance(aTrees[1]);
+        assertInstance(aTrees[2]);
+    }
+
+    @Test
+    void changeListenerIsInformedOncePerUpdate() {
+        graph.update();
+        int[] calls = new int[1];
+        graph.setChangeListener(() -> calls[0]++);
+        graph.setTranslation(bTrees[0], 1f, 1f, 0f);
+        graph.setScale(a, 2f);
+        assertEquals(1, calls[0]);
+        assertEquals(aTrees.length + 1, graph.update());
+        graph.setTranslation(b, 0f, 0f, 0f);
+        assertEquals(2, calls[0]);
+    }
+
+    private float[] worldX(int[] trees) {
+        float[] x = new float[trees.length];
+        for (int k = 0; k < trees.length; k++)
+            x[k] = graph.getWorldX(trees[k]);
+        return x;
+    }
+
+    /**
+     * Checks that the instance of a tree node holds its world transform.
+     */
+    private void assertInstance(int tree) {
+        InstanceStore instances = graph.getInstances();
+        int index = graph.getInstance(tree);
+        assertEquals(graph.getWorldX(tree), instances.getX(index), EPSILON);
+        assertEquals(graph.getWorldY(tree), instances.getY(index), EPSILON);
+        assertEquals(graph.getWorldZ(tree), instances.getZ(index), EPSILON);
+        assertEquals(graph.getWorldScale(tree), instances.getScale(index), EPSILON);
+    }
+}
@@ -0,0 +1,84 @@
+import org.junit.jupiter.api.Test;
+
+import java.nio.IntBuffer;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+/**
+ * Tests of the fill rule of the SoftwareRasterizer: triangles sharing an edge cover every pixel exactly once.
+ */
+class SoftwareRasterizerTest {
+
+    // two tiles in each direction, so the quad crosses the borders of the tiles
+    private static final int WIDTH = 2 * SoftwareRasterizer.TILE_SIZE;
+    private static final int HEIGHT = 2 * SoftwareRasterizer.TILE_SIZE;
+    private static final int BACKGROUND = 0xffffff;
+
+    // corners of a square in pixels; the diagonal from the top left corner runs through pixel centers,
+    // the sides between them
+    private static final float LEFT = 20.25f;
+    private static final float TOP = 18.25f;
+    private static final float SIZE = 24f;
+    private static final float[] CORNERS = {LEFT, TOP, LEFT + SIZE, TOP, LEFT + SIZE, TOP + SIZE, LEFT, TOP + SIZE};
+
+    private final ForkJoinPool pool = new ForkJoinPool(2);
+    private final SoftwareRasterizer rasterizer = new SoftwareRasterizer(WIDTH, HEIGHT, pool);
+
+    @Test
+    void trianglesOfQuadCoverEveryPixelOnce() {
+        try {
+            // split along either diagonal
+            assertCoveredOnce(new int[] {0, 1, 2}, new int[] {0, 2, 3});
+            assertCoveredOnce(new int[] {0, 1, 3}, new int[] {1, 2, 3});
+            // the same with the second triangle wound the other way
+            assertCoveredOnce(new int[] {0, 1, 2}, new int[] {0, 3, 2});
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Draws the two triangles of the quad separately and checks that their pixels are disjoint
+     * and together are the pixels whose centers lie inside the square.
+     */
+    private void assertCoveredOnce(int[] first, int[] second) {
+        boolean[] firstPixels = draw(first);
+        boolean[] secondPixels = draw(second);
+        for (int y = 0; y < HEIGHT; y++) {
+            for (int x = 0; x < WIDTH; x++) {
+                int pixel = y * WIDTH + x;
+                float centerX = x + 0.5f;
+                float centerY = y + 0.5f;
+                boolean inside = centerX > LEFT && centerX < LEFT + SIZE && centerY > TOP && centerY < TOP + SIZE;
+                assertFalse(firstPixels[pixel] && secondPixels[pixel], "pixel " + x + ", " + y + " drawn twice");
+                assertEquals(inside, firstPixels[pixel] || secondPixels[pixel], "pixel " + x + ", " + y);
+            }
+        }
+    }
+
+    /**
+     * Draws one triangle of corners of the square.
+     * @return True for each pixel covered by the triangle
+     */
+    private boolean[] draw(int[] triangle) {
+        float[] clip = new float[4 * 4];
+        float[] colors = new float[4 * 3];
+        for (int corner = 0; corner < 4; corner++) {
+            // window coordinates (rows from top to bottom) to clip coordinates with w = 1
+            clip[corner * 4] = CORNERS[corner * 2] / WIDTH * 2f - 1f;
+            clip[corner * 4 + 1] = 1f - CORNERS[corner * 2 + 1] / HEIGHT * 2f;
+            clip[corner * 4 + 3] = 1f;
+        }
+        rasterizer.beginFrame(1);
+        rasterizer.getBatch(0).addTriangle(clip, colors, triangle[0], triangle[1], triangle[2]);
+        rasterizer.endFrame();
+
+        IntBuffer pixels = rasterizer.getPixels();
+        boolean[] covered = new boolean[WIDTH * HEIGHT];
+        for (int pixel = 0; pixel < covered.length; pixel++)
+            covered[pixel] = pixels.get(pixel) != BACKGROUND;
+        return covered;
+    }
+}
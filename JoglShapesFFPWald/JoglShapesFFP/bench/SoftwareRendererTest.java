@@ -0,0 +1,45 @@
+import org.junit.jupiter.api.Test;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Tests that the frames of the SoftwareRenderer do not depend on the number of threads.
+ */
+class SoftwareRendererTest {
+
+    private static final int WIDTH = 160;
+    private static final int HEIGHT = 120;
+
+    @Test
+    void imageIsIndependentOfThreadCount() {
+        int[] single = render(1);
+        int[] parallel = render(4);
+        assertArrayEquals(single, parallel);
+
+        // the frame shows trees, not only the background
+        int background = 0;
+        for (int pixel : single)
+            if (pixel == 0xffffff)
+                background++;
+        assertTrue(background < single.length);
+    }
+
+    private static int[] render(int threads) {
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            SoftwareRenderer renderer = new SoftwareRenderer(WIDTH, HEIGHT, pool);
+            renderer.setTreeCount(400);
+            renderer.setCamera(new CameraState(30f, 0f, 0f, -60f, 20f));
+            renderer.init();
+            BufferedImage image = renderer.render();
+            return ((DataBufferInt) image.getRaster().getDataBuffer()).getData().clone();
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Compares the frustum queries of the UniformGridIndex with testing every bounding sphere of a generated forest.
+ */
+class UniformGridIndexTest {
+
+    private static final float CENTER_OFFSET_Z = 0.7f;
+    private static final float RADIUS = 0.8f;
+    // camera distance, x and y translation, rotation around the x- and y-axis (see ViewTransform.update())
+    private static final float[][] CAMERAS = {
+            {10f, 0f, 0f, 0f, 0f}, {30f, 5f, -3f, -60f, 0f}, {5f, 20f, 10f, -80f, 30f},
+            {60f, 0f, 0f, -45f, 90f}, {150f, -10f, 0f, 0f, 0f}};
+
+    private final ForestGenerator generator = new ForestGenerator();
+    private final InstanceStore forest = generator.generate(2000);
+    private final UniformGridIndex index = new UniformGridIndex();
+    private final Frustum frustum = new Frustum();
+
+    @Test
+    void queryMatchesBruteForce() {
+        index.build(forest, CENTER_OFFSET_Z, RADIUS);
+        assertEquals(forest.size(), index.size());
+        assertQueriesMatchBruteForce(RADIUS);
+    }
+
+    @Test
+    void queryMatchesBruteForceWithSpheresLargerThanCells() {
+        // a radius beyond the cell size (at most height / (rows - 1)) lets every sphere straddle its cell border
+        index.build(forest, CENTER_OFFSET_Z, RADIUS);
+        float minY = Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < forest.size(); i++) {
+            minY = Math.min(minY, forest.getY(i));
+            maxY = Math.max(maxY, forest.getY(i));
+        }
+        assertTrue(index.getRowCount() > 1);
+        float radius = 1.5f * (maxY - minY) / (index.getRowCount() - 1) / generator.getMinScale();
+        index.build(forest, CENTER_OFFSET_Z, radius);
+        assertQueriesMatchBruteForce(radius);
+    }
+
+    /**
+     * Checks the query of the whole grid and the queries of single rows against the brute force test
+     * for every camera.
+     */
+    private void assertQueriesMatchBruteForce(float radius) {
+        ViewTransform view = new ViewTransform();
+        view.setPerspective(45f, 4f / 3f, 0.1f, 100f, 600);
+        int[] result = new int[forest.size()];
+        int[] rowResult = new int[forest.size()];
+        boolean partial = false;
+        for (float[] camera : CAMERAS) {
+            view.update(camera[0], camera[1], camera[2], camera[3], camera[4]);
+            frustum.update(view);
+            int[] expected = bruteForce(radius);
+            partial |= expected.length > 0 && expected.length < forest.size();
+
+            int count = index.query(frustum, result);
+            assertArrayEquals(expected, sorted(result, count), "camera " + Arrays.toString(camera));
+
+            // the rows queried one by one, as by the parallel frame pipeline
+            int rowCount = 0;
+            for (int row = 0; row < index.getRowCount(); row++)
+                rowCount += index.query(frustum, row, row + 1, rowResult, rowCount);
+            assertArrayEquals(expected, sorted(rowResult, rowCount), "rows, camera " + Arrays.toString(camera));
+        }
+        // some of the cameras see a part of the forest only, so the cells are culled and split
+        assertTrue(partial);
+    }
+
+    private int[] bruteForce(float radius) {
+        int[] visible = new int[forest.size()];
+        int count = 0;
+        for (int i = 0; i < forest.size(); i++) {
+            float scale = forest.getScale(i);
+            if (frustum.intersectsSphere(forest.getX(i), forest.getY(i), forest.getZ(i) + CENTER_OFFSET_Z * scale,
+                    radius * scale))
+                visible[count++] = i;
+        }
+        return Arrays.copyOf(visible, count);
+    }
+
+    private static int[] sorted(int[] result, int count) {
+        int[] copy = Arrays.copyOf(result, count);
+        Arrays.sort(copy);
+        return copy;
+    }
+}
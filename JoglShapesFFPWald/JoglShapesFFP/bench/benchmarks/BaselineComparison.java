@@ -0,0 +1,114 @@
+package benchmarks;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Compares JMH results (CSV format, "-rf csv") against a stored baseline.
+ * Benchmarks are matched by name and parameters. All benchmarks of this suite measure the
+ * average time per operation, so a higher score is slower; for throughput scores it is the other way round.
+ *
+ * Prints one line per benchmark and exits with status 1 if any benchmark is slower than the baseline
+ * by more than the threshold, so the comparison can fail a build.
+ */
+public class BaselineComparison {
+
+    /**
+     * @param args Baseline CSV file, current CSV file, optionally the threshold in percent (default 10)
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: BaselineComparison baseline.csv current.csv [thresholdPercent]");
+            System.exit(2);
+        }
+        if (!Files.isRegularFile(Paths.get(args[0]))) {
+            System.err.println("No baseline " + args[0] + ", see pom.xml for creating it from a benchmark run");
+            System.exit(2);
+        }
+        double threshold = args.length > 2 ? Double.parseDouble(args[2]) : 10.0;
+        Map<String, String[]> baseline = read(args[0]);
+        Map<String, String[]> current = read(args[1]);
+
+        int regressions = 0;
+        for (Map.Entry<String, String[]> entry : current.entrySet()) {
+            String[] now = entry.getValue();
+            String[] before = baseline.get(entry.getKey());
+            if (before == null) {
+                System.out.printf(Locale.ROOT, "%-70s %12s %s  (no baseline)%n", entry.getKey(), now[4], now[6]);
+                continue;
+            }
+            double beforeScore = Double.parseDouble(before[4]);
+            double nowScore = Double.parseDouble(now[4]);
+            boolean throughput = now[1].equals("thrpt");
+            // positive change = slower
+            double change = 100.0 * (throughput ? beforeScore / nowScore - 1 : nowScore / beforeScore - 1);
+            boolean regression = change > threshold;
+            if (regression)
+                regressions++;
+            System.out.printf(Locale.ROOT, "%-70s %12.3f -> %12.3f %s  %+6.1f%%%s%n", entry.getKey(),
+                    beforeScore, nowScore, now[6], change, regression ? "  REGRESSION" : "");
+        }
+        System.out.printf(Locale.ROOT, "%d of %d benchmarks slower than the baseline by more than %.1f%%%n",
+                regressions, current.size(), threshold);
+        System.exit(regressions > 0 ? 1 : 0);
+    }
+
+    /**
+     * Reads a JMH CSV file. The columns are: Benchmark, Mode, Threads, Samples, Score, Score Error, Unit,
+     * followed by one column per parameter.
+     * @return The rows by benchmark name and parameter values
+     */
+    private static Map<String, String[]> read(String file) throws IOException {
+        List<String> lines = Files.readAllLines(Paths.get(file), StandardCharsets.UTF_8);
+        Map<String, String[]> rows = new LinkedHashMap<>();
+        if (lines.isEmpty())
+            return rows;
+        String[] header = split(lines.get(0));
+        for (String line : lines.subList(1, lines.size())) {
+            if (line.isEmpty())
+                continue;
+            String[] row = split(line);
+            StringBuilder key = new StringBuilder(row[0]);
+            for (int column = 7; column < row.length; column++) {
+                if (!row[column].isEmpty())
+                    key.append(' ').append(header[column].replace("Param: ", "")).append('=').append(row[column]);
+            }
+            rows.put(key.toString(), row);
+        }
+        return rows;
+    }
+
+    /**
+     * Splits a CSV line, fields may be quoted.
+     */
+    private static String[] split(String line) {
+        List<String> fields = new ArrayList<>();
+        StringBuilder field = new StringBuilder();
+        boolean quoted = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                if (quoted && i + 1 < line.length() && line.charAt(i + 1) == '"') {
+                    field.append('"');
+                    i++;
+                } else {
+                    quoted = !quoted;
+                }
+            } else if (c == ',' && !quoted) {
+                fields.add(field.toString());
+                field.setLength(0);
+            } else {
+                field.append(c);
+            }
+        }
+        fields.add(field.toString());
+        return fields.toArray(new String[0]);
+    }
+}
@@ -0,0 +1,103 @@
+package benchmarks;
+
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLCapabilities;
+import com.jogamp.opengl.GLDrawableFactory;
+import com.jogamp.opengl.GLEventListener;
+import com.jogamp.opengl.GLOffscreenAutoDrawable;
+import com.jogamp.opengl.GLProfile;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Complete frames of the ShapesRenderer (display()) drawn into an offscreen framebuffer of 640 x 480 pixels,
+ * like HeadlessRenderer does. Every frame ends with glFinish(), so the score includes the GPU work.
+ * The core profile backend always draws instanced, so it has one variant next to the two of the fixed function
+ * pipeline.
+ * Needs an OpenGL implementation (e.g. Mesa under Xvfb); without one the setup fails.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+@State(Scope.Thread)
+public class DisplayBenchmark {
+
+    @Param({"1000", "10000", "100000"})
+    public int trees;
+
+    // fixed function pipeline, fixed function pipeline with instanced rendering or core profile (always instanced)
+    @Param({"fixed", "fixed-instanced", "core"})
+    public String backend;
+
+    private GLOffscreenAutoDrawable drawable;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        boolean instanced = backend.equals("fixed-instanced");
+        String profileName = instanced ? "fixed" : backend;
+        Object selected = SceneClasses.SELECT_PROFILE.invokeExact((Object) profileName);
+        GLProfile profile = (GLProfile) selected;
+        GLCapabilities capabilities = new GLCapabilities(profile);
+        Object renderer = SceneClasses.create(SceneClasses.SHAPES_RENDERER,
+                new Class<?>[] {GLCapabilities.class}, capabilities);
+        SceneClasses.SET_TREE_COUNT.invokeExact(renderer, trees);
+        SceneClasses.SET_INSTANCED_RENDERING.invokeExact(renderer, instanced);
+
+        capabilities.setOnscreen(false);
+        capabilities.setFBO(true);
+        capabilities.setDepthBits(24);
+        drawable = GLDrawableFactory.getFactory(profile).createOffscreenAutoDrawable(null, capabilities, null, 640, 480);
+        drawable.addGLEventListener((GLEventListener) renderer);
+        drawable.addGLEventListener(new FinishListener());
+        // the first frame initializes the renderer (forest generation, tessellation)
+        drawable.display();
+    }
+
+    @Benchmark
+    public void frame() {
+        drawable.display();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (drawable != null)
+            drawable.destroy();
+    }
+
+    /**
+     * Waits for the GPU at the end of every frame.
+     */
+    private static class FinishListener implements GLEventListener {
+        @Override
+        public void init(GLAutoDrawable drawable) {
+        }
+
+        @Override
+        public void display(GLAutoDrawable drawable) {
+            drawable.getGL().glFinish();
+        }
+
+        @Override
+        public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+        }
+
+        @Override
+        public void dispose(GLAutoDrawable drawable) {
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Generation of the forest (ForestGenerator), building the spatial index, frustum culling,
+ * updating the scene graph, preparing the command list of a frame (FramePipeline, serial and in chunks)
+ * and mapping a scene file (SceneFile), with the same bounding spheres, tiles and camera setup as the renderer.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ForestBenchmark {
+
+    // Bounding sphere of a tree of scale 1, see ShapesRenderer
+    private static final float TREE_BOUNDS_CENTER_Z = 0.7f;
+    private static final float TREE_BOUNDS_RADIUS = 0.72f;
+
+    @Param({"1000", "10000", "100000"})
+    public int trees;
+
+    private Object generator;
+    private Object store;
+    private Object index;
+    private Object view;
+    private Object frustum;
+    private int[] visible;
+    private Object sceneGraph;
+    private float tileOffset;
+    private Object serialPipeline;
+    private Object parallelPipeline;
+    private File sceneFile;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Throwable {
+        generator = SceneClasses.create(SceneClasses.FOREST_GENERATOR);
+        store = SceneClasses.create(SceneClasses.INSTANCE_STORE, new Class<?>[] {int.class}, trees);
+        int count = (int) SceneClasses.GENERATE.invokeExact(generator, store, trees);
+        index = SceneClasses.create(SceneClasses.UNIFORM_GRID_INDEX);
+        SceneClasses.BUILD_INDEX.invokeExact(index, store, TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+        visible = new int[count];
+
+        // camera of the window (640 x 480), moved back and tilted to look across the forest
+        view = SceneClasses.create(SceneClasses.VIEW_TRANSFORM);
+        SceneClasses.SET_PERSPECTIVE.invokeExact(view, 45f, 640f / 480f, 0.1f, 100f, 480);
+        SceneClasses.UPDATE_VIEW.invokeExact(view, 40f, 0f, 0f, -60f, 0f);
+        frustum = SceneClasses.create(SceneClasses.FRUSTUM);
+
+        // root (node 0) with the tile groups of the renderer, the first tile group is node 1
+        sceneGraph = SceneClasses.create(SceneClasses.SCENE_GRAPH, new Class<?>[] {int.class, float.class, float.class},
+                count, TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+        SceneClasses.ADD_TREES.invokeExact(sceneGraph, 0, store, 16f);
+        // the first update flattens all trees
+        int flattened = (int) SceneClasses.UPDATE_SCENE.invokeExact(sceneGraph);
+
+        // the serial pipeline never splits the trees into chunks
+        serialPipeline = createPipeline(Integer.MAX_VALUE);
+        parallelPipeline = createPipeline(0);
+
+        sceneFile = File.createTempFile("forest", ".scene");
+        SceneClasses.WRITE_SCENE.invokeExact(store, (Object) sceneFile);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if (!sceneFile.delete())
+            sceneFile.deleteOnExit();
+    }
+
+    private Object createPipeline(int parallelThreshold) throws Throwable {
+        Object pipeline = SceneClasses.create(SceneClasses.FRAME_PIPELINE, new Class<?>[] {float.class, float.class},
+                TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+        SceneClasses.SET_PARALLEL_THRESHOLD.invokeExact(pipeline, parallelThreshold);
+        SceneClasses.INIT_PIPELINE.invokeExact(pipeline, store, index, SceneClasses.create(SceneClasses.LOD_SELECTOR));
+        return pipeline;
+    }
+
+    @Benchmark
+    public int generate() throws Throwable {
+        return (int) SceneClasses.GENERATE.invokeExact(generator, store, trees);
+    }
+
+    @Benchmark
+    public Object buildIndex() throws Throwable {
+        SceneClasses.BUILD_INDEX.invokeExact(index, store, TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+        return index;
+    }
+
+    @Benchmark
+    public int cull() throws Throwable {
+        SceneClasses.UPDATE_FRUSTUM.invokeExact(frustum, view);
+        return (int) SceneClasses.QUERY.invokeExact(index, frustum, (Object) visible);
+    }
+
+    @Benchmark
+    public int updateStaticScene() throws Throwable {
+        return (int) SceneClasses.UPDATE_SCENE.invokeExact(sceneGraph);
+    }
+
+    @Benchmark
+    public int moveTile() throws Throwable {
+        // moves the first tile group (about 40 trees) back and forth between two positions
+        tileOffset = 1f - tileOffset;
+        SceneClasses.SET_TRANSLATION.invokeExact(sceneGraph, 1, tileOffset, 0f, 0f);
+        return (int) SceneClasses.UPDATE_SCENE.invokeExact(sceneGraph);
+    }
+
+    @Benchmark
+    public int scaleScene() throws Throwable {
+        tileOffset = 1f - tileOffset;
+        SceneClasses.SET_SCALE.invokeExact(sceneGraph, 0, 1f + tileOffset * 0.01f);
+        return (int) SceneClasses.UPDATE_SCENE.invokeExact(sceneGraph);
+    }
+
+    @Benchmark
+    public Object mapScene() throws Throwable {
+        // the file is in the page cache after the first iteration, so this measures the mapping and the id check
+        return (Object) SceneClasses.MAP_SCENE.invokeExact((Object) sceneFile);
+    }
+
+    @Benchmark
+    public Object prepareFrameSerial() throws Throwable {
+        return (Object) SceneClasses.PREPARE_FRAME.invokeExact(serialPipeline, view, true);
+    }
+
+    @Benchmark
+    public Object prepareFrameParallel() throws Throwable {
+        return (Object) SceneClasses.PREPARE_FRAME.invokeExact(parallelPipeline, view, true);
+    }
+}
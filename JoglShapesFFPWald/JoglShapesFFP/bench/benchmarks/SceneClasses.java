@@ -0,0 +1,139 @@
+package benchmarks;
+
+import com.jogamp.opengl.GLProfile;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+
+/**
+ * Access to the classes of the application, which live in the unnamed (default) package.
+ * JMH requires benchmarks in a named package, and Java code in a named package cannot refer to
+ * classes of the unnamed package, so they are bound once by name as method handles.
+ * Handles held in static final fields are constants for the JIT compiler and get inlined,
+ * so calling through them costs the same as a direct call.
+ *
+ * The handles are typed with Object in place of the application classes.
+ */
+final class SceneClasses {
+
+    private static final MethodHandles.Lookup LOOKUP = MethodHandles.publicLookup();
+
+    static final Class<?> MESH = load("Mesh");
+    static final Class<?> INSTANCE_STORE = load("InstanceStore");
+    static final Class<?> FOREST_GENERATOR = load("ForestGenerator");
+    static final Class<?> UNIFORM_GRID_INDEX = load("UniformGridIndex");
+    static final Class<?> VIEW_TRANSFORM = load("ViewTransform");
+    static final Class<?> FRUSTUM = load("Frustum");
+    static final Class<?> SHAPES_RENDERER = load("ShapesRenderer");
+    static final Class<?> SCENE_GRAPH = load("SceneGraph");
+    static final Class<?> LOD_SELECTOR = load("LodSelector");
+    static final Class<?> FRAME_PIPELINE = load("FramePipeline");
+
+    // MeshBuilder: (float radius, int slices, int stacks) -> Mesh
+    static final MethodHandle SPHERE = findStatic("MeshBuilder", "sphere", MESH, float.class, int.class, int.class);
+    // MeshBuilder: (float base, float top, float height, int slices, int stacks) -> Mesh
+    static final MethodHandle CYLINDER = findStatic("MeshBuilder", "cylinder", MESH,
+            float.class, float.class, float.class, int.class, int.class);
+
+    // MeshBuilder: (float width, float height, float depth) -> Mesh
+    static final MethodHandle BOX = findStatic("MeshBuilder", "box", MESH, float.class, float.class, float.class);
+    // MeshBuilder: (float base, float top, float height, int slices, int stacks) -> Mesh
+    static final MethodHandle FRUSTUM_MESH = findStatic("MeshBuilder", "frustum", MESH,
+            float.class, float.class, float.class, int.class, int.class);
+    // MeshBuilder: (float radius, int slices) -> Mesh
+    static final MethodHandle FAN = findStatic("MeshBuilder", "fan", MESH, float.class, int.class);
+    // MeshOptimizer: (Mesh) -> Mesh
+    static final MethodHandle OPTIMIZE = findStatic("MeshOptimizer", "optimize", MESH, MESH);
+    static final MethodHandle STRIPIFY = findStatic("MeshOptimizer", "stripify", MESH, MESH);
+
+    // ForestGenerator: (generator, store, count) -> generated count
+    static final MethodHandle GENERATE = findVirtual(FOREST_GENERATOR, "generate", int.class,
+            INSTANCE_STORE, int.class);
+    // UniformGridIndex: (index, store, centerOffsetZ, boundingRadius)
+    static final MethodHandle BUILD_INDEX = findVirtual(UNIFORM_GRID_INDEX, "build", void.class,
+            INSTANCE_STORE, float.class, float.class);
+    // UniformGridIndex: (index, frustum, result) -> visible count
+    static final MethodHandle QUERY = findVirtual(UNIFORM_GRID_INDEX, "query", int.class, FRUSTUM, int[].class);
+    // ViewTransform: (view, fovy, aspect, zNear, zFar, viewportHeight)
+    static final MethodHandle SET_PERSPECTIVE = findVirtual(VIEW_TRANSFORM, "setPerspective", void.class,
+            float.class, float.class, float.class, float.class, int.class);
+    // ViewTransform: (view, eyeZ, xPosition, yPosition, angleXaxis, angleYaxis)
+    static final MethodHandle UPDATE_VIEW = findVirtual(VIEW_TRANSFORM, "update", void.class,
+            float.class, float.class, float.class, float.class, float.class);
+    // Frustum: (frustum, view)
+    static final MethodHandle UPDATE_FRUSTUM = findVirtual(FRUSTUM, "update", void.class, VIEW_TRANSFORM);
+    // SceneGraph: (graph, parent, store, tileSize), (graph) -> updated instances,
+    // (graph, node, x, y, z) and (graph, node, scale)
+    static final MethodHandle ADD_TREES = findVirtual(SCENE_GRAPH, "addTrees", void.class,
+            int.class, INSTANCE_STORE, float.class);
+    static final MethodHandle UPDATE_SCENE = findVirtual(SCENE_GRAPH, "update", int.class);
+    static final MethodHandle SET_TRANSLATION = findVirtual(SCENE_GRAPH, "setTranslation", void.class,
+            int.class, float.class, float.class, float.class);
+    static final MethodHandle SET_SCALE = findVirtual(SCENE_GRAPH, "setScale", void.class, int.class, float.class);
+    // FramePipeline: (pipeline, store, index, lodSelector), (pipeline, view, frustumCulling) -> FrameCommands
+    // and (pipeline, parallelThreshold)
+    static final MethodHandle INIT_PIPELINE = findVirtual(FRAME_PIPELINE, "init", void.class,
+            INSTANCE_STORE, UNIFORM_GRID_INDEX, LOD_SELECTOR);
+    static final MethodHandle PREPARE_FRAME = findVirtual(FRAME_PIPELINE, "prepare", load("FrameCommands"),
+            VIEW_TRANSFORM, boolean.class);
+    static final MethodHandle SET_PARALLEL_THRESHOLD = findVirtual(FRAME_PIPELINE, "setParallelThreshold",
+            void.class, int.class);
+    // SceneFile: (store, file) and (file) -> store
+    static final MethodHandle WRITE_SCENE = findStatic("SceneFile", "write", void.class, INSTANCE_STORE, File.class);
+    static final MethodHandle MAP_SCENE = findStatic("SceneFile", "map", INSTANCE_STORE, File.class);
+    // ShapesRenderer: (renderer, treeCount) and (renderer, instancedRendering)
+    static final MethodHandle SET_TREE_COUNT = findVirtual(SHAPES_RENDERER, "setTreeCount", void.class, int.class);
+    static final MethodHandle SET_INSTANCED_RENDERING = findVirtual(SHAPES_RENDERER, "setInstancedRendering",
+            void.class, boolean.class);
+    // RenderBackend: (backend name) -> GLProfile
+    static final MethodHandle SELECT_PROFILE = findStatic("RenderBackend", "selectProfile",
+            GLProfile.class, String.class);
+
+    private SceneClasses() {
+    }
+
+    /**
+     * Creates an object of an application class with a public constructor.
+     */
+    static Object create(Class<?> type, Class<?>[] parameterTypes, Object... arguments) {
+        try {
+            return type.getConstructor(parameterTypes).newInstance(arguments);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot create " + type.getName(), e);
+        }
+    }
+
+    static Object create(Class<?> type) {
+        return create(type, new Class<?>[0]);
+    }
+
+    private static Class<?> load(String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("Application class " + name + " not found", e);
+        }
+    }
+
+    private static MethodHandle findStatic(String className, String name, Class<?> returnType,
+                                           Class<?>... parameterTypes) {
+        try {
+            MethodHandle handle = LOOKUP.findStatic(load(className), name, MethodType.methodType(returnType, parameterTypes));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Method " + className + "." + name + " not found", e);
+        }
+    }
+
+    private static MethodHandle findVirtual(Class<?> type, String name, Class<?> returnType,
+                                            Class<?>... parameterTypes) {
+        try {
+            MethodHandle handle = LOOKUP.findVirtual(type, name, MethodType.methodType(returnType, parameterTypes));
+            return handle.asType(handle.type().erase());
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Method " + type.getName() + "." + name + " not found", e);
+        }
+    }
+}
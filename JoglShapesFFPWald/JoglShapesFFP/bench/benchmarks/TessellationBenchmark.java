@@ -0,0 +1,83 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tessellation of the shapes on the CPU (MeshBuilder), without OpenGL.
+ * The box has a fixed tessellation and does not depend on the number of slices.
+ * The optimization (MeshOptimizer) runs once per mesh when the geometry is created.
+ * The tree shapes use 12 slices; larger counts show how the cost grows with the tessellation.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TessellationBenchmark {
+
+    @Param({"12", "48", "192"})
+    public int slices;
+
+    // input of the mesh optimization, generated once per parameter value
+    private Object sphereMesh;
+    private Object optimizedSphereMesh;
+
+    @Setup
+    public void setUp() throws Throwable {
+        sphereMesh = (Object) SceneClasses.SPHERE.invokeExact(0.3f, slices, slices);
+        optimizedSphereMesh = (Object) SceneClasses.OPTIMIZE.invokeExact(sphereMesh);
+    }
+
+    @Benchmark
+    public Object box() throws Throwable {
+        return (Object) SceneClasses.BOX.invokeExact(0.8f, 0.5f, 0.4f);
+    }
+
+    @Benchmark
+    public Object sphere() throws Throwable {
+        return (Object) SceneClasses.SPHERE.invokeExact(0.3f, slices, slices);
+    }
+
+    @Benchmark
+    public Object cylinder() throws Throwable {
+        return (Object) SceneClasses.CYLINDER.invokeExact(0.1f, 0.1f, 0.8f, slices, 1);
+    }
+
+    @Benchmark
+    public Object cone() throws Throwable {
+        return (Object) SceneClasses.CYLINDER.invokeExact(0.4f, 0.01f, 0.6f, slices, 1);
+    }
+
+    @Benchmark
+    public Object frustum() throws Throwable {
+        return (Object) SceneClasses.FRUSTUM_MESH.invokeExact(0.05f, 0.15f, 0.2f, slices, 4);
+    }
+
+    @Benchmark
+    public Object fan() throws Throwable {
+        return (Object) SceneClasses.FAN.invokeExact(0.1f, slices);
+    }
+
+    @Benchmark
+    public Object optimizeSphere() throws Throwable {
+        return (Object) SceneClasses.OPTIMIZE.invokeExact(sphereMesh);
+    }
+
+    @Benchmark
+    public Object stripifySphere() throws Throwable {
+        return (Object) SceneClasses.STRIPIFY.invokeExact(optimizedSphereMesh);
+    }
+}
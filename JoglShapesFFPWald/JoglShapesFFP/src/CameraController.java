@@ -0,0 +1,197 @@
+/**
+ * Moves the camera of an InteractionHandler over the real time between frames, called once per frame
+ * from display(). The navigation therefore feels the same at any frame rate and with any pacing.
+ *  - Held keys set a target velocity; the velocity follows it smoothly (exponential smoothing), so the
+ *    camera accelerates and stops without jumps. The increments of the handler count per key repeat event
+ *    of a typical system (KEY_REPEAT_RATE), which keeps the speed of the former event driven navigation.
+ *  - The mouse motion of a frame is added to the camera over a short smoothing time instead of at once,
+ *    which hides the irregular arrival of the mouse events.
+ *  - The returned camera is predicted to the time the frame will be displayed (the given number of frame
+ *    times ahead), only for drawing; the camera of the handler is not changed by the prediction.
+ *
+ * Only used on the thread owning the OpenGL context. No objects are allocated except the camera snapshots.
+ */
+public class CameraController {
+
+    // Key repeat events per second the increments of the interaction handler refer to
+    private static final float KEY_REPEAT_RATE = 30f;
+    // Longest frame time integrated at once, e.g. after a pause of the rendering
+    private static final float MAX_FRAME_TIME = 0.25f;
+    // Velocities and pending motions below this size are set to zero, so the camera comes to rest
+    private static final float REST = 1e-4f;
+
+    // Components of the camera: eye distance, translation x and y, rotation about the x- and y-axis
+    private static final int EYE_Z = 0;
+    private static final int X_POSITION = 1;
+    private static final int Y_POSITION = 2;
+    private static final int ANGLE_X_AXIS = 3;
+    private static final int ANGLE_Y_AXIS = 4;
+    private static final int COMPONENTS = 5;
+
+    private float velocitySmoothingTime = 0.08f;
+    private float pointerSmoothingTime = 0.03f;
+    private float predictionFrames = 1f;
+
+    private long lastTime = -1;
+    // Average time between two frames in seconds, basis of the prediction
+    private float frameTime = 1f / 60f;
+    private final float[] velocity = new float[COMPONENTS];
+    private final float[] targetVelocity = new float[COMPONENTS];
+    // Mouse motion not yet added to the camera
+    private final float[] pendingMotion = new float[COMPONENTS];
+    private final float[] delta = new float[COMPONENTS];
+    private volatile boolean moving;
+
+    /**
+     * Moves the camera of the handler by the input since the last call.
+     * @param interactionHandler Source of the input and owner of the camera
+     * @param nanoTime Current time (System.nanoTime())
+     * @return The camera predicted to the display time of the frame
+     */
+    public CameraState update(InteractionHandler interactionHandler, long nanoTime) {
+        float dt = lastTime < 0 ? 0f : Math.min((nanoTime - lastTime) * 1e-9f, MAX_FRAME_TIME);
+        lastTime = nanoTime;
+        if (moving)
+            frameTime += (dt - frameTime) * 0.1f;
+        else
+            // frames may have been skipped while the camera rested, the motion starts now
+            dt = Math.min(dt, frameTime);
+
+        setTargetVelocity(interactionHandler);
+        CameraState motion = interactionHandler.drainPointerMotion();
+        pendingMotion[EYE_Z] += motion.getEyeZ();
+        pendingMotion[X_POSITION] += motion.getxPosition();
+        pendingMotion[Y_POSITION] += motion.getyPosition();
+        pendingMotion[ANGLE_X_AXIS] += motion.getAngleXaxis();
+        pendingMotion[ANGLE_Y_AXIS] += motion.getAngleYaxis();
+
+        float velocityBlend = blend(dt, velocitySmoothingTime);
+        float pointerBlend = blend(dt, pointerSmoothingTime);
+        for (int i = 0; i < COMPONENTS; i++) {
+            velocity[i] += (targetVelocity[i] - velocity[i]) * velocityBlend;
+            if (targetVelocity[i] == 0f && Math.abs(velocity[i]) < REST)
+                velocity[i] = 0f;
+            float pointerStep = pendingMotion[i] * pointerBlend;
+            if (Math.abs(pendingMotion[i] - pointerStep) < REST)
+                pointerStep = pendingMotion[i];
+            pendingMotion[i] -= pointerStep;
+            delta[i] = velocity[i] * dt + pointerStep;
+        }
+        moving = !isZero(velocity) || !isZero(pendingMotion);
+        // a resting camera is not replaced, so its snapshot stays the same object
+        CameraState camera = isZero(delta) ? interactionHandler.getCameraState()
+                : interactionHandler.moveCamera(delta[EYE_Z], delta[X_POSITION], delta[Y_POSITION],
+                delta[ANGLE_X_AXIS], delta[ANGLE_Y_AXIS]);
+
+        // the motion until the frame is displayed
+        float lead = predictionFrames * frameTime;
+        float leadBlend = blend(lead, pointerSmoothingTime);
+        for (int i = 0; i < COMPONENTS; i++)
+            delta[i] = velocity[i] * lead + pendingMotion[i] * leadBlend;
+        if (lead == 0f || isZero(delta))
+            return camera;
+        return camera.moved(delta[EYE_Z], delta[X_POSITION], delta[Y_POSITION],
+                delta[ANGLE_X_AXIS], delta[ANGLE_Y_AXIS]);
+    }
+
+    /**
+     * Stops all motion, e.g. after the camera was set directly.
+     */
+    public void reset() {
+        lastTime = -1;
+        for (int i = 0; i < COMPONENTS; i++) {
+            velocity[i] = 0f;
+            pendingMotion[i] = 0f;
+        }
+        moving = false;
+    }
+
+    /**
+     * Tells whether the camera will move in the next frame. May be called from any thread.
+     * @param interactionHandler Source of the input
+     * @return True if the camera is still moving or the handler has input not taken by update() yet
+     */
+    public boolean isMoving(InteractionHandler interactionHandler) {
+        return moving || interactionHandler.getHeldKeys() != 0 || interactionHandler.hasPointerMotion();
+    }
+
+    private void setTargetVelocity(InteractionHandler interactionHandler) {
+        int keys = interactionHandler.getHeldKeys();
+        for (int i = 0; i < COMPONENTS; i++)
+            targetVelocity[i] = 0f;
+        // opposite keys cancel each other
+        float horizontal = direction(keys, InteractionHandler.KEY_LEFT, InteractionHandler.KEY_RIGHT);
+        float vertical = direction(keys, InteractionHandler.KEY_UP, InteractionHandler.KEY_DOWN);
+        // same directions as the former key handling: Ctrl and arrows translate, arrows alone rotate
+        if ((keys & InteractionHandler.KEY_CTRL) != 0) {
+            targetVelocity[X_POSITION] = horizontal * interactionHandler.getxPositionInc() * KEY_REPEAT_RATE;
+            targetVelocity[Y_POSITION] = -vertical * interactionHandler.getyPositionInc() * KEY_REPEAT_RATE;
+        } else {
+            targetVelocity[ANGLE_Y_AXIS] = horizontal * interactionHandler.getAngleYaxisInc() * KEY_REPEAT_RATE;
+            targetVelocity[ANGLE_X_AXIS] = vertical * interactionHandler.getAngleXaxisInc() * KEY_REPEAT_RATE;
+        }
+        targetVelocity[EYE_Z] = direction(keys, InteractionHandler.KEY_PLUS, InteractionHandler.KEY_MINUS)
+                * interactionHandler.getEyeZInc() * KEY_REPEAT_RATE;
+    }
+
+    private static float direction(int keys, int positiveKey, int negativeKey) {
+        return ((keys & positiveKey) != 0 ? 1f : 0f) - ((keys & negativeKey) != 0 ? 1f : 0f);
+    }
+
+    /**
+     * @return Fraction of the distance to a target covered in a time step by exponential smoothing
+     */
+    private static float blend(float dt, float smoothingTime) {
+        if (smoothingTime <= 0f)
+            return 1f;
+        return 1f - (float) Math.exp(-dt / smoothingTime);
+    }
+
+    private static boolean isZero(float[] values) {
+        for (float value : values) {
+            if (value != 0f)
+                return false;
+        }
+        return true;
+    }
+
+    public float getVelocitySmoothingTime() {
+        return velocitySmoothingTime;
+    }
+
+    /**
+     * @param velocitySmoothingTime Time constant in seconds for following the held keys, 0 for no smoothing
+     */
+    public void setVelocitySmoothingTime(float velocitySmoothingTime) {
+        this.velocitySmoothingTime = velocitySmoothingTime;
+    }
+
+    public float getPointerSmoothingTime() {
+        return pointerSmoothingTime;
+    }
+
+    /**
+     * @param pointerSmoothingTime Time constant in seconds for adding the mouse motion, 0 for no smoothing
+     */
+    public void setPointerSmoothingTime(float pointerSmoothingTime) {
+        this.pointerSmoothingTime = pointerSmoothingTime;
+    }
+
+    public float getPredictionFrames() {
+        return predictionFrames;
+    }
+
+    /**
+     * @param predictionFrames Number of frame times between the update and the display of a frame, 0 for no prediction
+     */
+    public void setPredictionFrames(float predictionFrames) {
+        this.predictionFrames = predictionFrames;
+    }
+
+    /**
+     * @return The average time between two frames in seconds
+     */
+    public float getFrameTime() {
+        return frameTime;
+    }
+}
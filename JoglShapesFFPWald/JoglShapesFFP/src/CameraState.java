@@ -0,0 +1,91 @@
+/**
+ * Immutable snapshot of the camera controlled by the InteractionHandler: distance of the eye,
+ * translation and rotation of the scene (see ViewTransform.update()).
+ * Every change publishes a new snapshot and the render thread reads the latest one once per frame,
+ * so all values of a frame belong together and no locking is needed.
+ * Also used for the differences between two cameras, e.g. the mouse motion of a frame.
+ */
+public final class CameraState {
+
+    private final float eyeZ;
+    private final float xPosition;
+    private final float yPosition;
+    private final float angleXaxis;
+    private final float angleYaxis;
+
+    public CameraState(float eyeZ, float xPosition, float yPosition, float angleXaxis, float angleYaxis) {
+        this.eyeZ = eyeZ;
+        this.xPosition = xPosition;
+        this.yPosition = yPosition;
+        this.angleXaxis = angleXaxis;
+        this.angleYaxis = angleYaxis;
+    }
+
+    /**
+     * @return A copy moved by the given amounts
+     */
+    public CameraState moved(float eyeZDelta, float xPositionDelta, float yPositionDelta,
+                             float angleXaxisDelta, float angleYaxisDelta) {
+        return new CameraState(eyeZ + eyeZDelta, xPosition + xPositionDelta, yPosition + yPositionDelta,
+                angleXaxis + angleXaxisDelta, angleYaxis + angleYaxisDelta);
+    }
+
+    public CameraState withEyeZ(float eyeZ) {
+        return new CameraState(eyeZ, xPosition, yPosition, angleXaxis, angleYaxis);
+    }
+
+    public CameraState withPosition(float xPosition, float yPosition) {
+        return new CameraState(eyeZ, xPosition, yPosition, angleXaxis, angleYaxis);
+    }
+
+    public CameraState withAngles(float angleXaxis, float angleYaxis) {
+        return new CameraState(eyeZ, xPosition, yPosition, angleXaxis, angleYaxis);
+    }
+
+    public float getEyeZ() {
+        return eyeZ;
+    }
+
+    public float getxPosition() {
+        return xPosition;
+    }
+
+    public float getyPosition() {
+        return yPosition;
+    }
+
+    public float getAngleXaxis() {
+        return angleXaxis;
+    }
+
+    public float getAngleYaxis() {
+        return angleYaxis;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof CameraState))
+            return false;
+        CameraState other = (CameraState) o;
+        return Float.compare(eyeZ, other.eyeZ) == 0 && Float.compare(xPosition, other.xPosition) == 0
+                && Float.compare(yPosition, other.yPosition) == 0 && Float.compare(angleXaxis, other.angleXaxis) == 0
+                && Float.compare(angleYaxis, other.angleYaxis) == 0;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = Float.hashCode(eyeZ);
+        hash = 31 * hash + Float.hashCode(xPosition);
+        hash = 31 * hash + Float.hashCode(yPosition);
+        hash = 31 * hash + Float.hashCode(angleXaxis);
+        return 31 * hash + Float.hashCode(angleYaxis);
+    }
+
+    @Override
+    public String toString() {
+        return "Camera: z = " + eyeZ + ", x-Rot: " + angleXaxis + ", y-Rot: " + angleYaxis
+                + ", x-Translation: " + xPosition + ", y-Translation: " + yPosition;
+    }
+}
@@ -0,0 +1,484 @@
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2ES2;
+import com.jogamp.opengl.GL2ES3;
+import com.jogamp.opengl.GL2GL3;
+import com.jogamp.opengl.GL3;
+
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws the trees with an OpenGL core profile context (3.3 or later, or 3.2 with ARB_instanced_arrays),
+ * without any fixed function state: every mesh lives in a vertex array object with its vertex and index buffer,
+ * the trees are drawn with one instanced draw call per tree part type and level of detail,
+ * and camera, light and materials are held in uniform buffers shared by all draw calls.
+ *
+ * The lighting of the shader matches the fixed function lighting of the FixedFunctionBackend
+ * (GL_LIGHT0 at the same position in eye coordinates, evaluated per vertex), so both backends
+ * produce the same image.
+ *
+ * Trees in the blend band of the impostors are faded out by screen door transparency, complementary
+ * to the fade-in of their impostors (see ImpostorRenderer).
+ *
+ * The placement of a tree (translation and scale) is an instanced vertex attribute read from the copies in the
+ * command list. For a static store (setStaticTrees()) the placement columns are uploaded once into a texture
+ * buffer instead, straight from the store (e.g. from the pages of a mapped SceneFile), and the instanced
+ * attribute is the index of the tree, so every frame uploads 4 instead of 16 bytes per visible tree.
+ */
+public class CoreProfileBackend implements RenderBackend {
+
+    // Fixed attribute locations of the shader program
+    private static final int POSITION_LOCATION = 0;
+    private static final int NORMAL_LOCATION = 1;
+    private static final int INSTANCE_LOCATION = 2;
+    private static final int INSTANCE_STRIDE = InstancedMeshRenderer.FLOATS_PER_INSTANCE * Float.BYTES;
+    // Texture unit of the placement columns of a static store
+    private static final int COLUMN_UNIT = 0;
+
+    // Binding points of the uniform blocks
+    private static final int SCENE_BINDING = 0;
+    private static final int MATERIAL_BINDING = 1;
+    // Layout of the scene block (std140): projection, modelView, light position and colors, light model ambient
+    private static final int PROJECTION_OFFSET = 0;
+    private static final int MODEL_VIEW_OFFSET = 16 * Float.BYTES;
+    private static final int LIGHT_OFFSET = 32 * Float.BYTES;
+    private static final int SCENE_FLOATS = 52;
+    // Layout of the material block (std140): ambient, diffuse, specular, emission, shininess (padded to a vec4)
+    private static final int MATERIAL_FLOATS = 20;
+
+    // Placement from the instanced attribute, or fetched by the index of the tree from the columns (x, y, z, scale
+    // one after the other, uTreeCount values each) of a static store
+    private static final String INSTANCE_ATTRIBUTE =
+            "in vec4 aInstance;\n" +          // translation (xyz) and uniform scale (w)
+            "vec4 getInstance() {\n" +
+            "    return aInstance;\n" +
+            "}\n";
+    private static final String STATIC_INSTANCE =
+            "in int aTree;\n" +
+            "uniform samplerBuffer uColumns;\n" +
+            "uniform int uTreeCount;\n" +
+            "vec4 getInstance() {\n" +
+            "    return vec4(texelFetch(uColumns, aTree).r,\n" +
+            "            texelFetch(uColumns, aTree + uTreeCount).r,\n" +
+            "            texelFetch(uColumns, aTree + 2 * uTreeCount).r,\n" +
+            "            texelFetch(uColumns, aTree + 3 * uTreeCount).r);\n" +
+            "}\n";
+
+    private static final String VERTEX_SHADER_HEADER =
+            "#version 150\n" +
+            "layout(std140) uniform Scene {\n" +
+            "    mat4 projection;\n" +
+            "    mat4 modelView;\n" +
+            "    vec4 lightPosition;\n" +        // in eye coordinates
+            "    vec4 lightAmbient;\n" +
+            "    vec4 lightDiffuse;\n" +
+            "    vec4 lightSpecular;\n" +
+            "    vec4 lightModelAmbient;\n" +
+            "};\n" +
+            "layout(std140) uniform Material {\n" +
+            "    vec4 ambient;\n" +
+            "    vec4 diffuse;\n" +
+            "    vec4 specular;\n" +
+            "    vec4 emission;\n" +
+            "    float shininess;\n" +
+            "} material;\n" +
+            "in vec3 aPosition;\n" +
+            "in vec3 aNormal;\n";
+
+    private static final String VERTEX_SHADER =
+            "uniform vec3 uOffset;\n" +        // offset of the mesh within the model, applied before scaling
+            "uniform vec2 uImpostorFade;\n" + // start and reciprocal width of the blend band into the impostors
+            "const float BOUNDS_CENTER_Z = " + ShapesRenderer.TREE_BOUNDS_CENTER_Z + ";\n" +
+            "out vec4 vColor;\n" +
+            "flat out float vFade;\n" +
+            "void main() {\n" +
+            "    vec4 instance = getInstance();\n" +
+            // the same fade factor as the impostor of the tree, from the distance of its bounding sphere center
+            "    vec4 center = modelView * vec4(instance.xyz + vec3(0.0, 0.0, BOUNDS_CENTER_Z * instance.w), 1.0);\n" +
+            "    vFade = clamp((length(center.xyz) - uImpostorFade.x) * uImpostorFade.y, 0.0, 1.0);\n" +
+            "    vec4 eyePosition = modelView * vec4((aPosition + uOffset) * instance.w + instance.xyz, 1.0);\n" +
+            // the model view matrix is a rotation and translation, the instances are scaled uniformly
+            "    vec3 normal = normalize(mat3(modelView) * aNormal);\n" +
+            "    vec3 lightDirection = normalize(lightPosition.xyz - eyePosition.xyz * lightPosition.w);\n" +
+            "    float diffuseFactor = max(dot(normal, lightDirection), 0.0);\n" +
+            "    float specularFactor = 0.0;\n" +
+            "    if (diffuseFactor > 0.0) {\n" +
+            "        vec3 halfVector = normalize(lightDirection + vec3(0.0, 0.0, 1.0));\n" +
+            "        specularFactor = pow(max(dot(normal, halfVector), 0.0), material.shininess);\n" +
+            "    }\n" +
+            "    vColor = material.emission + material.ambient * lightModelAmbient\n" +
+            "            + material.ambient * lightAmbient + diffuseFactor * material.diffuse * lightDiffuse\n" +
+            "            + specularFactor * material.specular * lightSpecular;\n" +
+            "    vColor.a = material.diffuse.a;\n" +
+            "    gl_Position = projection * eyePosition;\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#version 150\n" +
+            "in vec4 vColor;\n" +
+            "flat in float vFade;\n" +
+            "out vec4 fragColor;\n" +
+            ImpostorRenderer.DITHER_FUNCTION +
+            "void main() {\n" +
+            "    if (vFade > 0.0 && ditherThreshold(gl_FragCoord.xy) < vFade)\n" +
+            "        discard;\n" +
+            "    fragColor = vColor;\n" +
+            "}\n";
+
+    // Vertex array object and buffers of one mesh
+    private static class MeshArrays {
+        final int vertexArray;
+        final int vertexBuffer;
+        final int indexBuffer;
+        final int indexCount;
+        // GL_TRIANGLES or GL_TRIANGLE_STRIP
+        final int mode;
+        final int triangleCount;
+
+        MeshArrays(int vertexArray, int vertexBuffer, int indexBuffer, Mesh mesh) {
+            this.vertexArray = vertexArray;
+            this.vertexBuffer = vertexBuffer;
+            this.indexBuffer = indexBuffer;
+            indexCount = mesh.getIndexCount();
+            mode = mesh.isStrip() ? GL.GL_TRIANGLE_STRIP : GL.GL_TRIANGLES;
+            triangleCount = mesh.getTriangleCount();
+        }
+    }
+
+    private final MaterialRegistry materials;
+    private final int trunkMaterial;
+    private final int[] crownMaterials;
+    private final boolean meshStrips;
+    private boolean staticTrees;
+
+    private final List<MeshArrays> meshes = new ArrayList<>();
+    private LodGeometry trunkLod;
+    private LodGeometry coniferCrownLod;
+    private LodGeometry broadleavedCrownLod;
+
+    private int program;
+    private int offsetLocation;
+    private int impostorFadeLocation;
+    // Placements of the visible trees, or their indices for a static store
+    private int instanceBuffer;
+    // Placement columns of a static store and the texture buffer reading them, 0 for none
+    private int columnBuffer;
+    private int columnTexture;
+    private int sceneBuffer;
+    // One uniform buffer per material of the registry, indexed by material id
+    private int[] materialBuffers;
+    // Staging buffer for the matrices, allocated once
+    private final FloatBuffer matrixData = Buffers.newDirectFloatBuffer(16);
+
+    /**
+     * @param materials The materials of the scene
+     * @param trunkMaterial Material id of the trunks
+     * @param crownMaterials Material id for each crown material of the instance store
+     * @param meshStrips True for drawing the meshes generated by the MeshBuilder as triangle strips
+     */
+    public CoreProfileBackend(MaterialRegistry materials, int trunkMaterial, int[] crownMaterials,
+                              boolean meshStrips) {
+        this.materials = materials;
+        this.trunkMaterial = trunkMaterial;
+        this.crownMaterials = crownMaterials.clone();
+        this.meshStrips = meshStrips;
+    }
+
+    /**
+     * Checks whether a context can be used by this backend.
+     * @param gl The graphics library object.
+     * @return True for a core profile context with instanced vertex attributes
+     */
+    public static boolean isSupported(GL2GL3 gl) {
+        return gl.isGL3core() && gl.isFunctionAvailable("glVertexAttribDivisor");
+    }
+
+    @Override
+    public String getName() {
+        return staticTrees ? "core profile, static trees" : "core profile";
+    }
+
+    /**
+     * Uploads the placements of the trees once in init() and draws from them; the pipeline then only has to
+     * write the indices of the visible trees (FramePipeline.setCopyPlacements(false)).
+     * Only for a store that does not change, e.g. a loaded scene. Takes effect with the next init(),
+     * isStaticTrees() tells afterwards whether the context could hold the columns.
+     * @param staticTrees True for drawing from the placement columns of the store given to init()
+     */
+    public void setStaticTrees(boolean staticTrees) {
+        this.staticTrees = staticTrees;
+    }
+
+    /**
+     * @return True if the trees are drawn from the placement columns uploaded in init()
+     */
+    public boolean isStaticTrees() {
+        return staticTrees;
+    }
+
+    @Override
+    public void init(GL2GL3 gl2gl3, InstanceStore trees, LodSelector lodSelector) {
+        if (!isSupported(gl2gl3))
+            throw new IllegalStateException("The core profile backend needs a core profile context "
+                    + "with instanced vertex attributes (OpenGL 3.3), got " + gl2gl3.glGetString(GL.GL_VERSION));
+        GL3 gl = gl2gl3.getGL3();
+
+        if (staticTrees)
+            staticTrees = initColumns(gl, trees);
+        program = ShaderProgram.link(gl, "core profile",
+                VERTEX_SHADER_HEADER + (staticTrees ? STATIC_INSTANCE : INSTANCE_ATTRIBUTE) + VERTEX_SHADER,
+                FRAGMENT_SHADER, "aPosition", "aNormal", staticTrees ? "aTree" : "aInstance");
+        if (staticTrees) {
+            gl.glUseProgram(program);
+            gl.glUniform1i(gl.glGetUniformLocation(program, "uColumns"), COLUMN_UNIT);
+            gl.glUniform1i(gl.glGetUniformLocation(program, "uTreeCount"), trees.size());
+            gl.glUseProgram(0);
+        }
+        offsetLocation = gl.glGetUniformLocation(program, "uOffset");
+        impostorFadeLocation = gl.glGetUniformLocation(program, "uImpostorFade");
+        gl.glUniformBlockBinding(program, gl.glGetUniformBlockIndex(program, "Scene"), SCENE_BINDING);
+        gl.glUniformBlockBinding(program, gl.glGetUniformBlockIndex(program, "Material"), MATERIAL_BINDING);
+
+        int[] buffers = new int[2];
+        gl.glGenBuffers(2, buffers, 0);
+        instanceBuffer = buffers[0];
+        sceneBuffer = buffers[1];
+        initSceneBuffer(gl);
+        initMaterialBuffers(gl);
+
+        int levels = lodSelector.getLevelCount();
+        trunkLod = ShapesRenderer.createCylinderLod(levels, (slices, stacks) -> addMesh(gl,
+                MeshOptimizer.optimize(ShapesRenderer.createTrunkMesh(slices, stacks), meshStrips)));
+        coniferCrownLod = ShapesRenderer.createCylinderLod(levels, (slices, stacks) -> addMesh(gl,
+                MeshOptimizer.optimize(ShapesRenderer.createConiferCrownMesh(slices, stacks), meshStrips)));
+        broadleavedCrownLod = ShapesRenderer.createSphereLod(levels, (slices, stacks) -> addMesh(gl,
+                MeshOptimizer.optimize(ShapesRenderer.createBroadleavedCrownMesh(slices, stacks), meshStrips)));
+    }
+
+    /**
+     * Uploads the placement columns of a static store into a texture buffer, one column after the other.
+     * The columns are passed to OpenGL as they are, so a mapped file is read by the driver without a copy
+     * on the Java side.
+     * @return False if the columns do not fit into a texture buffer or are not in the native byte order
+     */
+    private boolean initColumns(GL3 gl, InstanceStore trees) {
+        int count = trees.size();
+        FloatBuffer[] columns = {trees.getXColumn(), trees.getYColumn(), trees.getZColumn(), trees.getScaleColumn()};
+        int[] maxSize = new int[1];
+        gl.glGetIntegerv(GL2ES3.GL_MAX_TEXTURE_BUFFER_SIZE, maxSize, 0);
+        if (count == 0 || (long) count * columns.length > maxSize[0]
+                || columns[0].order() != ByteOrder.nativeOrder()) {
+            System.err.println("The placements of " + count + " trees cannot be read from a texture buffer "
+                    + "(at most " + maxSize[0] + " values), they are uploaded every frame");
+            return false;
+        }
+        int[] names = new int[1];
+        gl.glGenBuffers(1, names, 0);
+        columnBuffer = names[0];
+        gl.glBindBuffer(GL2ES3.GL_TEXTURE_BUFFER, columnBuffer);
+        long columnBytes = (long) count * Float.BYTES;
+        gl.glBufferData(GL2ES3.GL_TEXTURE_BUFFER, columns.length * columnBytes, null, GL.GL_STATIC_DRAW);
+        for (int column = 0; column < columns.length; column++)
+            gl.glBufferSubData(GL2ES3.GL_TEXTURE_BUFFER, column * columnBytes, columnBytes, columns[column]);
+        gl.glBindBuffer(GL2ES3.GL_TEXTURE_BUFFER, 0);
+
+        gl.glGenTextures(1, names, 0);
+        columnTexture = names[0];
+        gl.glBindTexture(GL2ES3.GL_TEXTURE_BUFFER, columnTexture);
+        gl.glTexBuffer(GL2ES3.GL_TEXTURE_BUFFER, GL.GL_R32F, columnBuffer);
+        gl.glBindTexture(GL2ES3.GL_TEXTURE_BUFFER, 0);
+        return true;
+    }
+
+    /**
+     * Fills the light of the scene block: the same light as FixedFunctionBackend.setLight()
+     * and the default ambient light of the fixed function light model.
+     */
+    private void initSceneBuffer(GL3 gl) {
+        FloatBuffer scene = Buffers.newDirectFloatBuffer(SCENE_FLOATS);
+        scene.position(LIGHT_OFFSET / Float.BYTES);
+        scene.put(new float[] {0.0f, 2.0f, 6.0f, 1.0f});
+        scene.put(new float[] {1.0f, 1.0f, 1.0f, 1.0f});
+        scene.put(new float[] {1.0f, 1.0f, 1.0f, 1.0f});
+        scene.put(new float[] {1.0f, 1.0f, 1.0f, 1.0f});
+        scene.put(new float[] {0.2f, 0.2f, 0.2f, 1.0f});
+        scene.rewind();
+        gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, sceneBuffer);
+        gl.glBufferData(GL2ES3.GL_UNIFORM_BUFFER, (long) SCENE_FLOATS * Float.BYTES, scene, GL.GL_DYNAMIC_DRAW);
+        gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, 0);
+    }
+
+    /**
+     * Uploads every material of the registry into its own uniform buffer, a material change is a buffer binding.
+     */
+    private void initMaterialBuffers(GL3 gl) {
+        materialBuffers = new int[materials.size()];
+        gl.glGenBuffers(materialBuffers.length, materialBuffers, 0);
+        FloatBuffer data = Buffers.newDirectFloatBuffer(MATERIAL_FLOATS);
+        for (int id = 0; id < materialBuffers.length; id++) {
+            Material material = materials.get(id);
+            data.clear();
+            for (int component = 0; component < 4; component++)
+                data.put(component, material.getAmbient(component));
+            for (int component = 0; component < 4; component++)
+                data.put(4 + component, material.getDiffuse(component));
+            for (int component = 0; component < 4; component++)
+                data.put(8 + component, material.getSpecular(component));
+            for (int component = 0; component < 4; component++)
+                data.put(12 + component, material.getEmission(component));
+            data.put(16, material.getShininess());
+            gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, materialBuffers[id]);
+            gl.glBufferData(GL2ES3.GL_UNIFORM_BUFFER, (long) MATERIAL_FLOATS * Float.BYTES, data, GL.GL_STATIC_DRAW);
+        }
+        gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, 0);
+    }
+
+    /**
+     * Uploads a mesh into a vertex array object with its own vertex and index buffer.
+     * @return Handle of the mesh
+     */
+    private int addMesh(GL3 gl, Mesh mesh) {
+        int[] vertexArray = new int[1];
+        gl.glGenVertexArrays(1, vertexArray, 0);
+        int[] buffers = new int[2];
+        gl.glGenBuffers(2, buffers, 0);
+        gl.glBindVertexArray(vertexArray[0]);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[0]);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) mesh.getVertices().limit() * Float.BYTES,
+                mesh.getVertices(), GL.GL_STATIC_DRAW);
+        gl.glEnableVertexAttribArray(POSITION_LOCATION);
+        gl.glVertexAttribPointer(POSITION_LOCATION, 3, GL.GL_FLOAT, false, Mesh.VERTEX_STRIDE, 0L);
+        gl.glEnableVertexAttribArray(NORMAL_LOCATION);
+        gl.glVertexAttribPointer(NORMAL_LOCATION, 3, GL.GL_FLOAT, false, Mesh.VERTEX_STRIDE, 3L * Float.BYTES);
+        // the instance attribute points into the shared instance buffer, its offset is set per draw call
+        gl.glEnableVertexAttribArray(INSTANCE_LOCATION);
+        gl.glVertexAttribDivisor(INSTANCE_LOCATION, 1);
+        // the index buffer binding is part of the vertex array object
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+        gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long) mesh.getIndexCount() * Integer.BYTES,
+                mesh.getIndices(), GL.GL_STATIC_DRAW);
+        gl.glBindVertexArray(0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+        meshes.add(new MeshArrays(vertexArray[0], buffers[0], buffers[1], mesh));
+        return meshes.size() - 1;
+    }
+
+    @Override
+    public void reshape(GL2GL3 gl, ViewTransform view) {
+        updateMatrix(gl.getGL3(), PROJECTION_OFFSET, view.getProjection());
+    }
+
+    @Override
+    public void drawTrees(GL2GL3 gl2gl3, FrameCommands commands, FrameProfiler profiler) {
+        GL3 gl = gl2gl3.getGL3();
+        profiler.beginSubmit();
+        updateMatrix(gl, MODEL_VIEW_OFFSET, commands.getView().getModelView());
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBuffer);
+        if (staticTrees) {
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) commands.getTrees().limit() * Integer.BYTES,
+                    commands.getTrees(), GL2ES3.GL_STREAM_DRAW);
+            gl.glActiveTexture(GL.GL_TEXTURE0 + COLUMN_UNIT);
+            gl.glBindTexture(GL2ES3.GL_TEXTURE_BUFFER, columnTexture);
+        } else {
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) commands.getInstances().limit() * Float.BYTES,
+                    commands.getInstances(), GL2ES3.GL_STREAM_DRAW);
+        }
+        gl.glUseProgram(program);
+        gl.glUniform2f(impostorFadeLocation, commands.getImpostorFadeStart(), commands.getImpostorFadeScale());
+        gl.glBindBufferBase(GL2ES3.GL_UNIFORM_BUFFER, SCENE_BINDING, sceneBuffer);
+
+        // all trees share the same trunk, the batches of one level are adjacent in the instance buffer
+        bindMaterial(gl, trunkMaterial);
+        int levels = commands.getLevelCount();
+        for (int level = 0; level < levels; level++) {
+            drawInstances(gl, profiler, trunkLod.getHandle(level), 0f,
+                    commands.getLevelOffset(level), commands.getLevelSize(level));
+        }
+
+        for (int material = 0; material < InstanceStore.MATERIAL_COUNT; material++) {
+            bindMaterial(gl, crownMaterials[material]);
+            for (int level = 0; level < levels; level++) {
+                drawInstances(gl, profiler, broadleavedCrownLod.getHandle(level),
+                        ShapesRenderer.TREE_CROWN_OFFSET_Z,
+                        commands.getOffset(level, InstanceStore.SPECIES_BROADLEAVED, material),
+                        commands.getCount(level, InstanceStore.SPECIES_BROADLEAVED, material));
+                drawInstances(gl, profiler, coniferCrownLod.getHandle(level),
+                        ShapesRenderer.TREE_CROWN_OFFSET_Z,
+                        commands.getOffset(level, InstanceStore.SPECIES_CONIFER, material),
+                        commands.getCount(level, InstanceStore.SPECIES_CONIFER, material));
+            }
+        }
+
+        gl.glBindVertexArray(0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        if (staticTrees)
+            gl.glBindTexture(GL2ES3.GL_TEXTURE_BUFFER, 0);
+        gl.glUseProgram(0);
+        profiler.endSubmit();
+    }
+
+    /**
+     * Draws a range of the instance buffer with one instanced draw call and counts it.
+     * The instance buffer has to be bound as array buffer.
+     */
+    private void drawInstances(GL3 gl, FrameProfiler profiler, int mesh, float offsetZ, int first, int count) {
+        if (count <= 0)
+            return;
+        MeshArrays arrays = meshes.get(mesh);
+        gl.glBindVertexArray(arrays.vertexArray);
+        if (staticTrees) {
+            gl.glVertexAttribIPointer(INSTANCE_LOCATION, 1, GL2ES2.GL_INT, Integer.BYTES, (long) first * Integer.BYTES);
+        } else {
+            gl.glVertexAttribPointer(INSTANCE_LOCATION, InstancedMeshRenderer.FLOATS_PER_INSTANCE, GL.GL_FLOAT,
+                    false, INSTANCE_STRIDE, (long) first * INSTANCE_STRIDE);
+        }
+        gl.glUniform3f(offsetLocation, 0f, 0f, offsetZ);
+        gl.glDrawElementsInstanced(arrays.mode, arrays.indexCount, GL.GL_UNSIGNED_INT, 0L, count);
+        profiler.countDraw((long) arrays.triangleCount * count);
+    }
+
+    private void bindMaterial(GL3 gl, int material) {
+        gl.glBindBufferBase(GL2ES3.GL_UNIFORM_BUFFER, MATERIAL_BINDING, materialBuffers[material]);
+    }
+
+    private void updateMatrix(GL3 gl, int offset, float[] matrix) {
+        matrixData.clear();
+        matrixData.put(matrix, 0, 16).flip();
+        gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, sceneBuffer);
+        gl.glBufferSubData(GL2ES3.GL_UNIFORM_BUFFER, offset, 16L * Float.BYTES, matrixData);
+        gl.glBindBuffer(GL2ES3.GL_UNIFORM_BUFFER, 0);
+    }
+
+    @Override
+    public void dispose(GL2GL3 gl2gl3) {
+        GL3 gl = gl2gl3.getGL3();
+        for (MeshArrays arrays : meshes) {
+            gl.glDeleteVertexArrays(1, new int[] {arrays.vertexArray}, 0);
+            gl.glDeleteBuffers(2, new int[] {arrays.vertexBuffer, arrays.indexBuffer}, 0);
+        }
+        meshes.clear();
+        if (materialBuffers != null) {
+            gl.glDeleteBuffers(materialBuffers.length, materialBuffers, 0);
+            materialBuffers = null;
+        }
+        if (instanceBuffer != 0) {
+            gl.glDeleteBuffers(2, new int[] {instanceBuffer, sceneBuffer}, 0);
+            instanceBuffer = 0;
+            sceneBuffer = 0;
+        }
+        if (columnBuffer != 0) {
+            gl.glDeleteTextures(1, new int[] {columnTexture}, 0);
+            gl.glDeleteBuffers(1, new int[] {columnBuffer}, 0);
+            columnTexture = 0;
+            columnBuffer = 0;
+        }
+        if (program != 0) {
+            gl.glDeleteProgram(program);
+            program = 0;
+        }
+    }
+}
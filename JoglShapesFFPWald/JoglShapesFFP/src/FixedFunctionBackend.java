@@ -0,0 +1,321 @@
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GL2GL3;
+import com.jogamp.opengl.fixedfunc.GLLightingFunc;
+
+import java.nio.FloatBuffer;
+
+import static com.jogamp.opengl.GL2GL3.GL_FILL;
+
+/**
+ * Draws the trees with the fixed function pipeline of a compatibility profile context:
+ * fixed function lighting and materials, the tree shapes compiled into display lists and one draw call
+ * per tree part, in the order of the command list (sorted by level of detail, species and material).
+ * Optionally the trees are drawn with instanced rendering instead (one draw call per tree part type
+ * and level of detail, see InstancedMeshRenderer).
+ * Trees in the blend band of the impostors are faded out by screen door transparency like in the
+ * CoreProfileBackend: the display lists of these trees are drawn with a small GLSL 1.20 program doing the
+ * fixed function lighting and discarding the dithered fragments, the instanced path fades in its own shader.
+ * Without shader support (OpenGL 1.x) the trees are drawn unfaded up to the impostor distance.
+ */
+public class FixedFunctionBackend implements RenderBackend {
+
+    // Fixed function transformation and lighting, the fade of the tree is constant for all its vertices
+    private static final String FADE_VERTEX_SHADER =
+            "#version 120\n" +
+            "uniform float uFade;\n" +
+            "varying vec4 vColor;\n" +
+            "varying float vFade;\n" +
+            InstancedMeshRenderer.LIGHTING_FUNCTION +
+            "void main() {\n" +
+            "    vec3 eyePosition = vec3(gl_ModelViewMatrix * gl_Vertex);\n" +
+            // not normalized, like the fixed function pipeline without GL_NORMALIZE draws the display lists
+            "    vColor = fixedFunctionLighting(eyePosition, gl_NormalMatrix * gl_Normal);\n" +
+            "    vFade = uFade;\n" +
+            "    gl_Position = ftransform();\n" +
+            "}\n";
+
+    // Material ids of the trunks and of each crown material of the instance store
+    private final int trunkMaterial;
+    private final int[] crownMaterials;
+    // State tracking (skips redundant state changes)
+    private final GLStateTracker stateTracker;
+
+    // Cache for the tessellated tree shapes (compiled once in init())
+    private final GeometryCache geometryCache = new GeometryCache();
+    private LodGeometry trunkLod;
+    private LodGeometry coniferCrownLod;
+    private LodGeometry broadleavedCrownLod;
+
+    // Instanced rendering of the trees (one draw call per tree part instead of one per tree)
+    private boolean instancedRendering;
+    private final InstancedMeshRenderer instancedRenderer = new InstancedMeshRenderer();
+    private LodGeometry trunkMeshLod;
+    private LodGeometry coniferCrownMeshLod;
+    private LodGeometry broadleavedCrownMeshLod;
+    // Draw the generated meshes as triangle strips instead of triangle lists
+    private final boolean meshStrips;
+
+    private LodSelector lodSelector;
+
+    // Program fading the display lists of the trees in the blend band of the impostors, 0 if unsupported
+    private int fadeProgram;
+    private int fadeLocation;
+
+    /**
+     * @param materials The materials of the scene
+     * @param trunkMaterial Material id of the trunks
+     * @param crownMaterials Material id for each crown material of the instance store
+     * @param instancedRendering True for instanced rendering, falls back to display lists if the
+     *                           context does not support instancing
+     * @param meshStrips True for drawing the meshes generated by the MeshBuilder as triangle strips
+     */
+    public FixedFunctionBackend(MaterialRegistry materials, int trunkMaterial, int[] crownMaterials,
+                                boolean instancedRendering, boolean meshStrips) {
+        stateTracker = new GLStateTracker(materials);
+        this.trunkMaterial = trunkMaterial;
+        this.crownMaterials = crownMaterials.clone();
+        this.instancedRendering = instancedRendering;
+        this.meshStrips = meshStrips;
+    }
+
+    @Override
+    public String getName() {
+        return instancedRendering ? "fixed function, instanced" : "fixed function";
+    }
+
+    @Override
+    public void init(GL2GL3 gl3, InstanceStore trees, LodSelector lodSelector) {
+        GL2 gl = gl3.getGL2();
+        this.lodSelector = lodSelector;
+
+        // the light position is transformed by the identity, i.e. given in eye coordinates
+        gl.glMatrixMode(GL2.GL_MODELVIEW);
+        gl.glLoadIdentity();
+        setLight(gl);
+        gl.glEnable(GL2.GL_LIGHTING);
+        gl.glEnable(GL2.GL_LIGHT0);
+
+        // Tessellate the tree shapes once for every level of detail, they are replayed by handle in drawTrees()
+        // as display lists of the glu shapes (see ShapesRenderer.drawCylinder and drawSphere)
+        int levels = lodSelector.getLevelCount();
+        trunkLod = ShapesRenderer.createCylinderLod(levels,
+                (slices, stacks) -> geometryCache.getCylinder(gl, ShapesRenderer.TREE_TRUNK_RADIUS,
+                        ShapesRenderer.TREE_TRUNK_RADIUS, ShapesRenderer.TREE_TRUNK_HEIGHT, slices, stacks));
+        coniferCrownLod = ShapesRenderer.createCylinderLod(levels,
+                (slices, stacks) -> geometryCache.getCylinder(gl, ShapesRenderer.CONIFER_CROWN_BASE,
+                        ShapesRenderer.CONIFER_CROWN_TOP, ShapesRenderer.CONIFER_CROWN_HEIGHT, slices, stacks));
+        broadleavedCrownLod = ShapesRenderer.createSphereLod(levels,
+                (slices, stacks) -> geometryCache.getSphere(gl, ShapesRenderer.BROADLEAVED_CROWN_RADIUS,
+                        slices, stacks));
+
+        if (gl.isFunctionAvailable("glCreateProgram")) {
+            fadeProgram = ShaderProgram.link(gl, "fade", FADE_VERTEX_SHADER,
+                    InstancedMeshRenderer.FADE_FRAGMENT_SHADER);
+            fadeLocation = gl.glGetUniformLocation(fadeProgram, "uFade");
+        }
+
+        if (instancedRendering && !InstancedMeshRenderer.isSupported(gl)) {
+            System.err.println("Instanced rendering is not supported, using the fixed function pipeline.");
+            instancedRendering = false;
+        }
+        if (instancedRendering)
+            initInstancedTrees(gl);
+    }
+
+    /**
+     * Uploads the tree meshes for instanced rendering.
+     */
+    private void initInstancedTrees(GL2 gl) {
+        instancedRenderer.init(gl);
+        int levels = lodSelector.getLevelCount();
+        trunkMeshLod = ShapesRenderer.createCylinderLod(levels,
+                (slices, stacks) -> instancedRenderer.addMesh(gl, MeshOptimizer.optimize(
+                        ShapesRenderer.createTrunkMesh(slices, stacks), meshStrips)));
+        coniferCrownMeshLod = ShapesRenderer.createCylinderLod(levels,
+                (slices, stacks) -> instancedRenderer.addMesh(gl, MeshOptimizer.optimize(
+                        ShapesRenderer.createConiferCrownMesh(slices, stacks), meshStrips)));
+        broadleavedCrownMeshLod = ShapesRenderer.createSphereLod(levels,
+                (slices, stacks) -> instancedRenderer.addMesh(gl, MeshOptimizer.optimize(
+                        ShapesRenderer.createBroadleavedCrownMesh(slices, stacks), meshStrips)));
+    }
+
+    @Override
+    public void reshape(GL2GL3 gl3, ViewTransform view) {
+        GL2 gl = gl3.getGL2();
+        // same matrix as gluPerspective with the parameters of the view
+        gl.glMatrixMode(GL2.GL_PROJECTION);
+        gl.glLoadMatrixf(view.getProjection(), 0);
+        gl.glMatrixMode(GL2.GL_MODELVIEW);
+        gl.glLoadIdentity();
+    }
+
+    @Override
+    public void drawTrees(GL2GL3 gl3, FrameCommands commands, FrameProfiler profiler) {
+        GL2 gl = gl3.getGL2();
+        profiler.beginSubmit();
+        // the state may have been changed outside of the tracker since the last frame
+        stateTracker.invalidate();
+        // equals gluLookAt(0, 0, eyeZ, 0, 0, 0, 0, 1, 0) followed by the translation and the rotations of the scene
+        gl.glLoadMatrixf(commands.getView().getModelView(), 0);
+        if (instancedRendering)
+            drawInstancedGroupOfTrees(gl, commands, profiler);
+        else
+            drawRandomGroupOfTrees(gl, commands, profiler);
+        profiler.endSubmit();
+    }
+
+    /**
+     * Draws every tree part with its own draw call. The command list is sorted by level, species and crown
+     * material, so the trunks are drawn first (one material) and the crowns batch by batch.
+     */
+    private void drawRandomGroupOfTrees(GL2 gl, FrameCommands commands, FrameProfiler profiler) {
+        stateTracker.setPolygonMode(gl, GL.GL_FRONT, GL_FILL);
+        int levels = commands.getLevelCount();
+
+        setWoodBrownMaterial(gl);
+        for (int level = 0; level < levels; level++) {
+            int first = commands.getLevelOffset(level);
+            drawParts(gl, commands, profiler, trunkLod.getHandle(level), 0f, first,
+                    first + commands.getLevelSize(level));
+        }
+
+        for (int material = 0; material < InstanceStore.MATERIAL_COUNT; material++) {
+            stateTracker.bindMaterial(gl, crownMaterials[material]);
+            for (int level = 0; level < levels; level++) {
+                for (int species = 0; species < InstanceStore.SPECIES_COUNT; species++) {
+                    LodGeometry crown = species == InstanceStore.SPECIES_CONIFER ? coniferCrownLod : broadleavedCrownLod;
+                    int first = commands.getOffset(level, species, material);
+                    drawParts(gl, commands, profiler, crown.getHandle(level),
+                            ShapesRenderer.TREE_CROWN_OFFSET_Z, first,
+                            first + commands.getCount(level, species, material));
+                }
+            }
+        }
+    }
+
+    /**
+     * Draws one part of the trees [from, to) of the command list, placed with the copied instance data.
+     * The trees in the blend band of the impostors are drawn with the fade program, the others with the
+     * fixed function pipeline.
+     */
+    private void drawParts(GL2 gl, FrameCommands commands, FrameProfiler profiler, int geometry, float offsetZ,
+                           int from, int to) {
+        FloatBuffer instances = commands.getInstances();
+        ViewTransform view = commands.getView();
+        float fadeStart = commands.getImpostorFadeStart();
+        float fadeScale = fadeProgram != 0 ? commands.getImpostorFadeScale() : 0f;
+        int triangles = geometryCache.getTriangleCount(geometry);
+        boolean fading = false;
+        for (int k = from; k < to; k++) {
+            int p = k * InstancedMeshRenderer.FLOATS_PER_INSTANCE;
+            float x = instances.get(p);
+            float y = instances.get(p + 1);
+            float z = instances.get(p + 2);
+            float scale = instances.get(p + 3);
+            if (fadeScale > 0f) {
+                // the same fade factor as the impostor of the tree (see FrameCommands.getImpostorFadeScale())
+                float distance = view.getEyeDistance(x, y, z + ShapesRenderer.TREE_BOUNDS_CENTER_Z * scale);
+                float fade = Math.min((distance - fadeStart) * fadeScale, 1f);
+                if (fade > 0f) {
+                    if (!fading)
+                        gl.glUseProgram(fadeProgram);
+                    fading = true;
+                    gl.glUniform1f(fadeLocation, fade);
+                } else if (fading) {
+                    gl.glUseProgram(0);
+                    fading = false;
+                }
+            }
+            // same as translating the tree, scaling it and translating the part within the tree
+            gl.glPushMatrix();
+            gl.glTranslatef(x, y, z + offsetZ * scale);
+            gl.glScalef(scale, scale, scale);
+            geometryCache.draw(gl, geometry);
+            gl.glPopMatrix();
+            profiler.countDraw(triangles);
+        }
+        if (fading)
+            gl.glUseProgram(0);
+    }
+
+    /**
+     * Draws the same group of trees as drawRandomGroupOfTrees() using instanced rendering:
+     * each tree part (trunk, sphere crown, cone crown) is drawn with a single draw call per level of detail.
+     */
+    private void drawInstancedGroupOfTrees(GL2 gl, FrameCommands commands, FrameProfiler profiler) {
+        instancedRenderer.setInstances(gl, commands.getInstances(), GL2.GL_STREAM_DRAW);
+
+        stateTracker.setPolygonMode(gl, GL.GL_FRONT, GL_FILL);
+        instancedRenderer.begin(gl);
+        instancedRenderer.setImpostorFade(gl, commands.getImpostorFadeStart(), commands.getImpostorFadeScale());
+
+        // all trees share the same trunk, the batches of one level are adjacent in the instance buffer
+        setWoodBrownMaterial(gl);
+        int levels = commands.getLevelCount();
+        for (int level = 0; level < levels; level++) {
+            drawInstances(gl, profiler, trunkMeshLod.getHandle(level), 0f,
+                    commands.getLevelOffset(level), commands.getLevelSize(level));
+        }
+
+        for (int material = 0; material < InstanceStore.MATERIAL_COUNT; material++) {
+            stateTracker.bindMaterial(gl, crownMaterials[material]);
+            for (int level = 0; level < levels; level++) {
+                drawInstances(gl, profiler, broadleavedCrownMeshLod.getHandle(level),
+                        ShapesRenderer.TREE_CROWN_OFFSET_Z,
+                        commands.getOffset(level, InstanceStore.SPECIES_BROADLEAVED, material),
+                        commands.getCount(level, InstanceStore.SPECIES_BROADLEAVED, material));
+                drawInstances(gl, profiler, coniferCrownMeshLod.getHandle(level),
+                        ShapesRenderer.TREE_CROWN_OFFSET_Z,
+                        commands.getOffset(level, InstanceStore.SPECIES_CONIFER, material),
+                        commands.getCount(level, InstanceStore.SPECIES_CONIFER, material));
+            }
+        }
+
+        instancedRenderer.end(gl);
+    }
+
+    /**
+     * Draws a range of the instance buffer with one instanced draw call and counts it.
+     */
+    private void drawInstances(GL2 gl, FrameProfiler profiler, int mesh, float offsetZ, int first, int count) {
+        if (count <= 0)
+            return;
+        instancedRenderer.draw(gl, mesh, 0f, 0f, offsetZ, first, count);
+        profiler.countDraw((long) instancedRenderer.getTriangleCount(mesh) * count);
+    }
+
+    //--------Übungsblatt 3 und 4 Aufgabe 5------------
+
+    public void setLight(GL2 gl){
+
+        float lightPosition[] = {0.0f, 2.0f, 6.0f, 1.0f};
+        float lightAmbientCol[] = {1.0f, 1.0f, 1.0f, 1.0f};
+        float lightDiffuseCol[] = {1.0f, 1.0f, 1.0f, 1.0f};
+        float lightSpecularCol[] = {1.0f, 1.0f, 1.0f, 1.0f};
+
+        gl.glLightfv(GL2.GL_LIGHT0, GLLightingFunc.GL_POSITION, lightPosition, 0);
+        gl.glLightfv(GL2.GL_LIGHT0, GLLightingFunc.GL_AMBIENT, lightAmbientCol, 0);
+        gl.glLightfv(GL2.GL_LIGHT0, GLLightingFunc.GL_DIFFUSE, lightDiffuseCol, 0);
+        gl.glLightfv(GL2.GL_LIGHT0, GLLightingFunc.GL_SPECULAR, lightSpecularCol, 0);
+
+    }
+
+    private void setWoodBrownMaterial (GL2 gl){
+
+        stateTracker.bindMaterial(gl, trunkMaterial);
+
+    }
+
+    @Override
+    public void dispose(GL2GL3 gl3) {
+        GL2 gl = gl3.getGL2();
+        // free the display lists of the tessellated shapes
+        geometryCache.dispose(gl);
+        instancedRenderer.dispose(gl);
+        if (fadeProgram != 0) {
+            gl.glDeleteProgram(fadeProgram);
+            fadeProgram = 0;
+        }
+    }
+}
@@ -0,0 +1,319 @@
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Seeded, deterministic generator for forests of broadleaved and conifer trees.
+ * The trees are placed on the ground plane (z = 0) with Poisson disc spacing, i.e. no two trees
+ * are closer than the minimum distance. The forest is a square centered at the origin whose size is
+ * chosen such that the requested number of trees fits in.
+ *
+ * The placement uses dart throwing on a background grid with one possible tree per grid cell.
+ * The grid is divided into tiles which are processed in four phases (checkerboard of 2x2 tiles),
+ * so the tiles of one phase never touch each other and can be filled in parallel (fork-join).
+ * Every tile draws its random numbers from its own seeded generator, therefore the result only
+ * depends on the seed and the parameters - not on the number of threads.
+ *
+ * No objects are allocated per tree; the background grid is reused by subsequent calls.
+ */
+public class ForestGenerator {
+
+    // Expected number of trees per area unit for a minimum distance of 1 (measured for PASSES)
+    private static final float FILL_DENSITY = 0.62f;
+    // Number of dart throwing passes over each tile
+    private static final int PASSES = 6;
+    // Edge length of a tile in grid cells, must be at least 4 (twice the neighborhood of a cell)
+    private static final int TILE_SIZE = 8;
+
+    private long seed = 1;
+    private float minDistance = 2f;
+    private float minScale = 0.7f;
+    private float maxScale = 3f;
+    private float coniferShare = 0.5f;
+    private int parallelThreshold = 20000;
+
+    // Background grid, each cell contains at most one tree (NaN if empty)
+    private float[] cellX = new float[0];
+    private float[] cellY = new float[0];
+    private int gridSize;
+    private float cellSize;
+    private float origin;
+
+    public long getSeed() {
+        return seed;
+    }
+
+    public void setSeed(long seed) {
+        this.seed = seed;
+    }
+
+    public float getMinDistance() {
+        return minDistance;
+    }
+
+    public void setMinDistance(float minDistance) {
+        this.minDistance = minDistance;
+    }
+
+    public float getMinScale() {
+        return minScale;
+    }
+
+    public void setMinScale(float minScale) {
+        this.minScale = minScale;
+    }
+
+    public float getMaxScale() {
+        return maxScale;
+    }
+
+    public void setMaxScale(float maxScale) {
+        this.maxScale = maxScale;
+    }
+
+    public float getConiferShare() {
+        return coniferShare;
+    }
+
+    public void setConiferShare(float coniferShare) {
+        this.coniferShare = coniferShare;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @param parallelThreshold Minimum number of trees for generating in parallel
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Generates a forest into a new store.
+     * @param count Number of trees
+     * @return The store containing the trees
+     */
+    public InstanceStore generate(int count) {
+        InstanceStore store = new InstanceStore(count);
+        generate(store, count);
+        return store;
+    }
+
+    /**
+     * Generates a forest into an existing store, replacing its content.
+     * If the square does not offer enough space (very unlikely) the store receives fewer trees.
+     * @param store Store receiving the trees
+     * @param count Number of trees, at most the capacity of the store
+     * @return Number of generated trees
+     */
+    public int generate(InstanceStore store, int count) {
+        if (count > store.getCapacity())
+            throw new IllegalArgumentException("Store capacity " + store.getCapacity() + " is below " + count);
+        // the square is slightly larger than needed, the surplus is cut off when copying into the store
+        float edgeLength = (float) Math.sqrt(1.05 * count / FILL_DENSITY) * minDistance;
+        prepareGrid(edgeLength);
+
+        int tileCount = (gridSize + TILE_SIZE - 1) / TILE_SIZE;
+        boolean parallel = count >= parallelThreshold;
+        for (int phase = 0; phase < 4; phase++) {
+            int phaseTiles = ((tileCount - (phase & 1) + 1) / 2) * ((tileCount - (phase >> 1) + 1) / 2);
+            TileTask task = new TileTask(phase, tileCount, 0, phaseTiles);
+            if (parallel)
+                ForkJoinPool.commonPool().invoke(task);
+            else
+                task.compute();
+        }
+        return copyToStore(store, count);
+    }
+
+    /**
+     * Generates the trees of one square tile of an endless forest, e.g. for streaming (see StreamingWorld).
+     * Unlike generate() the whole square is filled, nothing is cut off, so adjacent tiles join without gaps.
+     * The minimum distance only holds within a tile, trees at the border of two tiles may come closer.
+     * @param store Store receiving the trees, replacing its content;
+     *              needs a capacity of getMaxTileTreeCount(edgeLength)
+     * @param centerX Center of the tile
+     * @param centerY Center of the tile
+     * @param edgeLength Edge length of the tile
+     * @return Number of generated trees
+     */
+    public int generateTile(InstanceStore store, float centerX, float centerY, float edgeLength) {
+        if (getMaxTileTreeCount(edgeLength) > store.getCapacity())
+            throw new IllegalArgumentException("Store capacity " + store.getCapacity() + " is below "
+                    + getMaxTileTreeCount(edgeLength));
+        prepareGrid(edgeLength);
+        int tileCount = (gridSize + TILE_SIZE - 1) / TILE_SIZE;
+        for (int phase = 0; phase < 4; phase++) {
+            int phaseTiles = ((tileCount - (phase & 1) + 1) / 2) * ((tileCount - (phase >> 1) + 1) / 2);
+            new TileTask(phase, tileCount, 0, phaseTiles).compute();
+        }
+
+        // the grid may be slightly larger than the tile, its surplus border is cut off on all sides
+        float half = edgeLength / 2;
+        int cells = gridSize * gridSize;
+        int written = 0;
+        for (int cell = 0; cell < cells; cell++) {
+            float x = cellX[cell];
+            float y = cellY[cell];
+            if (Float.isNaN(x) || x < -half || x >= half || y < -half || y >= half)
+                continue;
+            long random = mix(seed * 31 + cell);
+            byte species = toUnit(random) < coniferShare
+                    ? InstanceStore.SPECIES_CONIFER : InstanceStore.SPECIES_BROADLEAVED;
+            float scale = minScale + (maxScale - minScale) * toUnit(mix(random));
+            store.set(written, centerX + x, centerY + y, 0f, scale, species, InstanceStore.MATERIAL_LEAF_GREEN);
+            written++;
+        }
+        store.setSize(written);
+        return written;
+    }
+
+    /**
+     * @return Edge length of a square tile holding about count trees, see generateTile()
+     */
+    public float getTileEdgeLength(int count) {
+        return (float) Math.sqrt(count / FILL_DENSITY) * minDistance;
+    }
+
+    /**
+     * @return Upper bound of the number of trees generateTile() places on a tile (one per grid cell)
+     */
+    public int getMaxTileTreeCount(float edgeLength) {
+        int size = Math.max(1, (int) Math.ceil(edgeLength / (minDistance / (float) Math.sqrt(2))));
+        return size * size;
+    }
+
+    private void prepareGrid(float edgeLength) {
+        cellSize = minDistance / (float) Math.sqrt(2);
+        gridSize = Math.max(1, (int) Math.ceil(edgeLength / cellSize));
+        origin = -gridSize * cellSize / 2;
+        int cells = gridSize * gridSize;
+        if (cellX.length < cells) {
+            cellX = new float[cells];
+            cellY = new float[cells];
+        }
+        Arrays.fill(cellX, 0, cells, Float.NaN);
+    }
+
+    /**
+     * Fills the tiles [from, to) of one phase, splitting the range for parallel processing.
+     */
+    private class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int phase;
+        private final int tileCount;
+        private final int from;
+        private final int to;
+
+        TileTask(int phase, int tileCount, int from, int to) {
+            this.phase = phase;
+            this.tileCount = tileCount;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 16 && getPool() != null) {
+                int middle = (from + to) >>> 1;
+                invokeAll(new TileTask(phase, tileCount, from, middle), new TileTask(phase, tileCount, middle, to));
+                return;
+            }
+            // tiles of this phase have the parity (phase & 1, phase >> 1) in (x, y)
+            int tilesPerRow = (tileCount - (phase & 1) + 1) / 2;
+            for (int i = from; i < to; i++) {
+                int tileX = 2 * (i % tilesPerRow) + (phase & 1);
+                int tileY = 2 * (i / tilesPerRow) + (phase >> 1);
+                fillTile(tileX, tileY);
+            }
+        }
+    }
+
+    /**
+     * Throws darts into the empty cells of one tile. Each pass tries one random position per empty cell.
+     */
+    private void fillTile(int tileX, int tileY) {
+        long state = mix(seed ^ (tileY * 0x9E3779B97F4A7C15L + tileX));
+        int startX = tileX * TILE_SIZE;
+        int startY = tileY * TILE_SIZE;
+        int endX = Math.min(startX + TILE_SIZE, gridSize);
+        int endY = Math.min(startY + TILE_SIZE, gridSize);
+        float minDistanceSquared = minDistance * minDistance;
+        for (int pass = 0; pass < PASSES; pass++) {
+            for (int cy = startY; cy < endY; cy++) {
+                for (int cx = startX; cx < endX; cx++) {
+                    int cell = cy * gridSize + cx;
+                    if (!Float.isNaN(cellX[cell]))
+                        continue;
+                    state += 0x9E3779B97F4A7C15L;
+                    float px = origin + (cx + toUnit(mix(state))) * cellSize;
+                    state += 0x9E3779B97F4A7C15L;
+                    float py = origin + (cy + toUnit(mix(state))) * cellSize;
+                    if (isFree(cx, cy, px, py, minDistanceSquared)) {
+                        cellX[cell] = px;
+                        cellY[cell] = py;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Checks the neighborhood of a cell (two cells in each direction) for trees closer than the minimum distance.
+     */
+    private boolean isFree(int cx, int cy, float px, float py, float minDistanceSquared) {
+        int fromX = Math.max(cx - 2, 0);
+        int toX = Math.min(cx + 2, gridSize - 1);
+        int fromY = Math.max(cy - 2, 0);
+        int toY = Math.min(cy + 2, gridSize - 1);
+        for (int y = fromY; y <= toY; y++) {
+            for (int x = fromX; x <= toX; x++) {
+                int cell = y * gridSize + x;
+                float qx = cellX[cell];
+                if (Float.isNaN(qx))
+                    continue;
+                float dx = qx - px;
+                float dy = cellY[cell] - py;
+                if (dx * dx + dy * dy < minDistanceSquared)
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Copies the trees in grid order into the store. Species and scale are derived from the cell index,
+     * so they are deterministic as well.
+     */
+    private int copyToStore(InstanceStore store, int count) {
+        int cells = gridSize * gridSize;
+        int written = 0;
+        for (int cell = 0; cell < cells && written < count; cell++) {
+            if (Float.isNaN(cellX[cell]))
+                continue;
+            long random = mix(seed * 31 + cell);
+            byte species = toUnit(random) < coniferShare
+                    ? InstanceStore.SPECIES_CONIFER : InstanceStore.SPECIES_BROADLEAVED;
+            float scale = minScale + (maxScale - minScale) * toUnit(mix(random));
+            store.set(written, cellX[cell], cellY[cell], 0f, scale, species, InstanceStore.MATERIAL_LEAF_GREEN);
+            written++;
+        }
+        store.setSize(written);
+        return written;
+    }
+
+    // SplitMix64 finalizer, turns a counter into a well distributed random value
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    // Maps a random value to [0, 1)
+    private static float toUnit(long random) {
+        return (random >>> 40) * 0x1.0p-24f;
+    }
+}
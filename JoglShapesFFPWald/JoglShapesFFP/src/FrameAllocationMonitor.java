@@ -0,0 +1,141 @@
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.List;
+
+/**
+ * Measures the heap memory allocated by the rendering thread in every frame,
+ * based on the allocated bytes counter of the JVM (com.sun.management.ThreadMXBean).
+ * In steady state the display loop is expected to allocate nothing, so any non-zero value
+ * points to a regression which sooner or later causes garbage collection stutters.
+ *
+ * Optionally a summary (bytes per frame, garbage collections) is printed every reportInterval frames.
+ * Falls back to doing nothing if the JVM does not support the measurement.
+ */
+public class FrameAllocationMonitor {
+
+    private final com.sun.management.ThreadMXBean threadBean;
+    private final GarbageCollectorMXBean[] collectors;
+
+    private boolean reporting = false;
+    private int reportInterval = 300;
+
+    // Bytes allocated by reading the counter itself (measured once)
+    private long overhead;
+    private long threadId = -1;
+    private long frameStart;
+    private long lastFrameBytes;
+    // Statistics of the current report interval
+    private int frames;
+    private long bytes;
+    private long maxFrameBytes;
+    private int allocatingFrames;
+    private long lastCollectionCount;
+    private long lastCollectionTime;
+
+    public FrameAllocationMonitor() {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        com.sun.management.ThreadMXBean allocationBean = null;
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            allocationBean = (com.sun.management.ThreadMXBean) bean;
+            if (allocationBean.isThreadAllocatedMemorySupported()) {
+                allocationBean.setThreadAllocatedMemoryEnabled(true);
+            } else {
+                allocationBean = null;
+            }
+        }
+        threadBean = allocationBean;
+        List<GarbageCollectorMXBean> beans = ManagementFactory.getGarbageCollectorMXBeans();
+        collectors = beans.toArray(new GarbageCollectorMXBean[0]);
+        for (GarbageCollectorMXBean collector : collectors) {
+            lastCollectionCount += Math.max(0, collector.getCollectionCount());
+            lastCollectionTime += Math.max(0, collector.getCollectionTime());
+        }
+    }
+
+    /**
+     * @return True if the JVM supports measuring the allocated bytes per thread
+     */
+    public boolean isSupported() {
+        return threadBean != null;
+    }
+
+    /**
+     * Switches the periodic summary on System.err on or off.
+     */
+    public void setReporting(boolean reporting) {
+        this.reporting = reporting;
+    }
+
+    public boolean isReporting() {
+        return reporting;
+    }
+
+    /**
+     * @param reportInterval Number of frames per summary
+     */
+    public void setReportInterval(int reportInterval) {
+        this.reportInterval = reportInterval;
+    }
+
+    /**
+     * Has to be called at the very beginning of a frame on the rendering thread.
+     */
+    public void beginFrame() {
+        if (threadBean == null)
+            return;
+        long id = Thread.currentThread().getId();
+        if (id != threadId) {
+            // the rendering thread changed (or first frame): measure the cost of reading the counter
+            threadId = id;
+            long first = threadBean.getThreadAllocatedBytes(id);
+            long second = threadBean.getThreadAllocatedBytes(id);
+            overhead = second - first;
+        }
+        frameStart = threadBean.getThreadAllocatedBytes(threadId);
+    }
+
+    /**
+     * Has to be called at the very end of a frame on the rendering thread.
+     */
+    public void endFrame() {
+        if (threadBean == null || threadId != Thread.currentThread().getId())
+            return;
+        lastFrameBytes = Math.max(0, threadBean.getThreadAllocatedBytes(threadId) - frameStart - overhead);
+        frames++;
+        bytes += lastFrameBytes;
+        maxFrameBytes = Math.max(maxFrameBytes, lastFrameBytes);
+        if (lastFrameBytes > 0)
+            allocatingFrames++;
+        if (frames >= reportInterval) {
+            if (reporting)
+                report();
+            frames = 0;
+            bytes = 0;
+            maxFrameBytes = 0;
+            allocatingFrames = 0;
+        }
+    }
+
+    private void report() {
+        long collectionCount = 0;
+        long collectionTime = 0;
+        for (GarbageCollectorMXBean collector : collectors) {
+            collectionCount += Math.max(0, collector.getCollectionCount());
+            collectionTime += Math.max(0, collector.getCollectionTime());
+        }
+        System.err.println("Allocation per frame: average " + (bytes / frames) + " bytes, maximum "
+                + maxFrameBytes + " bytes, " + allocatingFrames + " of " + frames + " frames allocating, "
+                + (collectionCount - lastCollectionCount) + " garbage collections ("
+                + (collectionTime - lastCollectionTime) + " ms)");
+        lastCollectionCount = collectionCount;
+        lastCollectionTime = collectionTime;
+    }
+
+    /**
+     * @return Bytes allocated in the last completed frame, -1 if not supported
+     */
+    public long getLastFrameBytes() {
+        return threadBean == null ? -1 : lastFrameBytes;
+    }
+}
@@ -0,0 +1,269 @@
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2GL3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reads rendered frames back from the framebuffer and writes them into files.
+ *
+ * The readback is asynchronous: glReadPixels only starts copying the frame into one of a ring of
+ * pixel buffer objects (PBO) and returns immediately. A PBO is mapped when it is reused, pboCount - 1
+ * frames later, when the copy has long finished, so the render thread does not wait for the GPU.
+ * The pixels are copied into one of a fixed number of buffers and encoded by a pool of worker threads.
+ *
+ * If the workers fall behind, capture() waits for a free buffer (backpressure), so no frame is dropped;
+ * the waiting is counted and can be queried with getStalledFrames() and getStallMillis().
+ *
+ * Usage: start() once, capture() after drawing every frame that is to be recorded, finish() at the end.
+ * All three have to be called on the OpenGL thread with the context current.
+ */
+public class FrameCapture {
+
+    private final File directory;
+    private final String prefix;
+    private final FrameEncoder encoder;
+    private final int pboCount;
+    private final int workerCount;
+
+    private final int[] pbos;
+    // Frame number contained in each PBO, -1 if empty
+    private final int[] pboFrames;
+    private int nextPbo;
+    private int width;
+    private int height;
+    private boolean started;
+
+    private BlockingQueue<ByteBuffer> freeBuffers;
+    private ExecutorService workers;
+    private volatile IOException writeError;
+    private final AtomicInteger writtenFrames = new AtomicInteger();
+    private int stalledFrames;
+    private long stallNanos;
+
+    /**
+     * Captures PNG images with three PBOs and one worker per additional processor.
+     * @param directory Directory receiving the images, created if necessary
+     * @param prefix Start of the file names, followed by the frame number
+     */
+    public FrameCapture(File directory, String prefix) {
+        this(directory, prefix, FrameEncoder.PNG, 3, Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+    }
+
+    /**
+     * @param directory Directory receiving the frames, created if necessary
+     * @param prefix Start of the file names, followed by the frame number
+     * @param encoder File format of the frames
+     * @param pboCount Number of PBOs (2 or 3), the readback of a frame has pboCount - 1 frames time to finish
+     * @param workerCount Number of threads encoding frames
+     */
+    public FrameCapture(File directory, String prefix, FrameEncoder encoder, int pboCount, int workerCount) {
+        if (pboCount < 2)
+            throw new IllegalArgumentException("At least two pixel buffer objects are needed");
+        if (workerCount < 1)
+            throw new IllegalArgumentException("At least one worker is needed");
+        this.directory = directory;
+        this.prefix = prefix;
+        this.encoder = encoder;
+        this.pboCount = pboCount;
+        this.workerCount = workerCount;
+        pbos = new int[pboCount];
+        pboFrames = new int[pboCount];
+    }
+
+    /**
+     * Creates the pixel buffer objects and starts the workers.
+     * The counters of written and stalled frames start again at 0.
+     * @param width Width of the captured frames in pixels
+     * @param height Height of the captured frames in pixels
+     */
+    public void start(GL2GL3 gl, int width, int height) throws IOException {
+        if (started)
+            throw new IllegalStateException("Frame capture already started");
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("Cannot create directory " + directory);
+        this.width = width;
+        this.height = height;
+        int frameBytes = width * height * 4;
+        gl.glGenBuffers(pboCount, pbos, 0);
+        for (int i = 0; i < pboCount; i++) {
+            gl.glBindBuffer(GL2GL3.GL_PIXEL_PACK_BUFFER, pbos[i]);
+            gl.glBufferData(GL2GL3.GL_PIXEL_PACK_BUFFER, frameBytes, null, GL2GL3.GL_STREAM_READ);
+            pboFrames[i] = -1;
+        }
+        gl.glBindBuffer(GL2GL3.GL_PIXEL_PACK_BUFFER, 0);
+        nextPbo = 0;
+
+        // two buffers per worker: one being encoded, one waiting
+        int bufferCount = 2 * workerCount;
+        freeBuffers = new ArrayBlockingQueue<>(bufferCount);
+        for (int i = 0; i < bufferCount; i++)
+            freeBuffers.add(ByteBuffer.allocateDirect(frameBytes).order(ByteOrder.LITTLE_ENDIAN));
+        AtomicInteger threadNumber = new AtomicInteger();
+        workers = Executors.newFixedThreadPool(workerCount, runnable -> {
+            Thread thread = new Thread(runnable, "FrameCapture worker " + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        writeError = null;
+        writtenFrames.set(0);
+        stalledFrames = 0;
+        stallNanos = 0;
+        started = true;
+    }
+
+    /**
+     * Starts the readback of the current frame (the color buffer currently read by glReadPixels)
+     * and hands the frame read back pboCount calls earlier to the workers.
+     * Has to be called after the frame has been drawn and before the buffers are swapped.
+     * @param frame Number of the frame, used for the file name
+     */
+    public void capture(GL2GL3 gl, int frame) throws IOException {
+        if (!started)
+            throw new IllegalStateException("Frame capture not started");
+        if (writeError != null)
+            throw writeError;
+        // the PBO to be reused still holds an older frame, which is finished by now
+        if (pboFrames[nextPbo] >= 0)
+            drain(gl, nextPbo);
+        gl.glBindBuffer(GL2GL3.GL_PIXEL_PACK_BUFFER, pbos[nextPbo]);
+        gl.glPixelStorei(GL.GL_PACK_ALIGNMENT, 4);
+        // BGRA matches the native layout of most framebuffers, the copy needs no conversion
+        gl.glReadPixels(0, 0, width, height, GL.GL_BGRA, GL.GL_UNSIGNED_BYTE, 0L);
+        gl.glBindBuffer(GL2GL3.GL_PIXEL_PACK_BUFFER, 0);
+        pboFrames[nextPbo] = frame;
+        nextPbo = (nextPbo + 1) % pboCount;
+    }
+
+    /**
+     * Hands the frames still contained in the PBOs to the workers (oldest first), waits
+     * until all frames are written and frees the PBOs. The capture can be started again afterwards.
+     */
+    public void finish(GL2GL3 gl) throws IOException {
+        if (!started)
+            return;
+        try {
+            for (int i = 0; i < pboCount; i++) {
+                int pbo = (nextPbo + i) % pboCount;
+                if (pboFrames[pbo] >= 0)
+                    drain(gl, pbo);
+            }
+        } finally {
+            stop(gl);
+        }
+        try {
+            workers.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while writing frames", e);
+        }
+        if (writeError != null)
+            throw writeError;
+    }
+
+    /**
+     * Frees the pixel buffer objects without writing the frames still contained in them.
+     * Frames already handed to the workers are still written.
+     */
+    public void dispose(GL2GL3 gl) {
+        if (started)
+            stop(gl);
+    }
+
+    private void stop(GL2GL3 gl) {
+        gl.glDeleteBuffers(pboCount, pbos, 0);
+        workers.shutdown();
+        started = false;
+    }
+
+    public boolean isStarted() {
+        return started;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return Number of frames written so far
+     */
+    public int getWrittenFrames() {
+        return writtenFrames.get();
+    }
+
+    /**
+     * @return Number of captured frames which had to wait for a worker
+     */
+    public int getStalledFrames() {
+        return stalledFrames;
+    }
+
+    /**
+     * @return Total time the render thread waited for the workers, in milliseconds
+     */
+    public long getStallMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(stallNanos);
+    }
+
+    /**
+     * Copies the content of a PBO into a free buffer and passes it to the workers.
+     */
+    private void drain(GL2GL3 gl, int pbo) throws IOException {
+        ByteBuffer pixels = freeBuffers.poll();
+        if (pixels == null) {
+            // backpressure: all buffers are waiting for the workers
+            long waitStart = System.nanoTime();
+            try {
+                pixels = freeBuffers.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for the frame capture workers", e);
+            }
+            stalledFrames++;
+            stallNanos += System.nanoTime() - waitStart;
+        }
+        gl.glBindBuffer(GL2GL3.GL_PIXEL_PACK_BUFFER, pbos[pbo]);
+        ByteBuffer mapped = gl.glMapBuffer(GL2GL3.GL_PIXEL_PACK_BUFFER, GL2GL3.GL_READ_ONLY);
+        if (mapped == null) {
+            gl.glBindBuffer(GL2GL3.GL_PIXEL_PACK_BUFFER, 0);
+            freeBuffers.add(pixels);
+            throw new IOException("Mapping the pixel buffer object failed");
+        }
+        pixels.clear();
+        pixels.put(mapped);
+        pixels.flip();
+        gl.glUnmapBuffer(GL2GL3.GL_PIXEL_PACK_BUFFER);
+        gl.glBindBuffer(GL2GL3.GL_PIXEL_PACK_BUFFER, 0);
+
+        int frame = pboFrames[pbo];
+        pboFrames[pbo] = -1;
+        ByteBuffer framePixels = pixels;
+        int frameWidth = width;
+        int frameHeight = height;
+        BlockingQueue<ByteBuffer> buffers = freeBuffers;
+        workers.execute(() -> write(frame, framePixels, frameWidth, frameHeight, buffers));
+    }
+
+    private void write(int frame, ByteBuffer pixels, int width, int height, BlockingQueue<ByteBuffer> buffers) {
+        try {
+            File file = new File(directory,
+                    String.format(Locale.ROOT, "%s%05d.%s", prefix, frame, encoder.getExtension()));
+            encoder.encode(pixels, width, height, file);
+            writtenFrames.incrementAndGet();
+        } catch (IOException e) {
+            writeError = e;
+        } finally {
+            // returned to the pool of its own capture run (the capture may have been restarted meanwhile)
+            buffers.add(pixels);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Command list of one frame, produced by the CPU stage of the FramePipeline and consumed by a RenderBackend.
+ * Holds the camera of the frame and the visible trees sorted into batches by level of detail, species and
+ * crown material (batch = (level * SPECIES_COUNT + species) * MATERIAL_COUNT + material), so every batch
+ * can be drawn with one state change and, with instancing, one draw call. The batches of a level are adjacent.
+ *
+ * For every visible tree the command list contains its index in the instance store and a copy of its placement
+ * (InstancedMeshRenderer.FLOATS_PER_INSTANCE floats: translation x, y, z and scale), so drawing does not
+ * read the instance store, which may change while the command list is drawn. A backend holding the placements
+ * of a static store in a buffer object only needs the indices, then the copy is left out
+ * (see FramePipeline.setCopyPlacements()).
+ *
+ * Distant trees drawn as impostors (see ImpostorRenderer) are held in a separate list of placements,
+ * batched by species and crown material. Trees within the blend band between geometry and impostor are in both
+ * lists; the fade factor of a tree at a distance d from the camera is
+ * clamp((d - getImpostorFadeStart()) * getImpostorFadeScale(), 0, 1), 0 for pure geometry and 1 for a pure impostor.
+ *
+ * A command list is only written by the pipeline before it is handed out and must not be modified afterwards.
+ * The pipeline keeps two of them and reuses each one every second frame (double buffering).
+ */
+public class FrameCommands {
+
+    private static final int BATCHES_PER_LEVEL = InstanceStore.SPECIES_COUNT * InstanceStore.MATERIAL_COUNT;
+
+    private final ViewTransform view = new ViewTransform();
+    private final int levels;
+    private final IntBuffer trees;
+    private final FloatBuffer instances;
+    // First instance and number of instances of every batch
+    private final int[] offsets;
+    private final int[] counts;
+    private int visibleCount;
+    // Placements and batches of the impostors, allocated when impostors are first enabled
+    private FloatBuffer impostorInstances = Buffers.newDirectFloatBuffer(0);
+    private final int[] impostorOffsets = new int[BATCHES_PER_LEVEL];
+    private final int[] impostorCounts = new int[BATCHES_PER_LEVEL];
+    private int impostorCount;
+    private float impostorFadeStart;
+    private float impostorFadeScale;
+    private long frame;
+
+    /**
+     * @param capacity Maximum number of visible trees
+     * @param levels Number of levels of detail
+     */
+    FrameCommands(int capacity, int levels) {
+        this.levels = levels;
+        trees = Buffers.newDirectIntBuffer(capacity);
+        instances = Buffers.newDirectFloatBuffer(capacity * InstancedMeshRenderer.FLOATS_PER_INSTANCE);
+        offsets = new int[levels * BATCHES_PER_LEVEL];
+        counts = new int[levels * BATCHES_PER_LEVEL];
+    }
+
+    /**
+     * @return Index of a batch
+     */
+    static int batchOf(int level, int species, int material) {
+        return (level * InstanceStore.SPECIES_COUNT + species) * InstanceStore.MATERIAL_COUNT + material;
+    }
+
+    static int getBatchCount(int levels) {
+        return levels * BATCHES_PER_LEVEL;
+    }
+
+    /**
+     * @return Index of an impostor batch
+     */
+    static int impostorBatchOf(int species, int material) {
+        return species * InstanceStore.MATERIAL_COUNT + material;
+    }
+
+    static int getImpostorBatchCount() {
+        return BATCHES_PER_LEVEL;
+    }
+
+    // Writing, only used by the pipeline
+
+    ViewTransform getWritableView() {
+        return view;
+    }
+
+    IntBuffer getWritableTrees() {
+        return trees;
+    }
+
+    FloatBuffer getWritableInstances() {
+        return instances;
+    }
+
+    FloatBuffer getWritableImpostorInstances() {
+        return impostorInstances;
+    }
+
+    /**
+     * Makes room for impostors of up to capacity trees, keeping the buffer if it is large enough.
+     */
+    void ensureImpostorCapacity(int capacity) {
+        if (impostorInstances.capacity() < capacity * InstancedMeshRenderer.FLOATS_PER_INSTANCE)
+            impostorInstances = Buffers.newDirectFloatBuffer(capacity * InstancedMeshRenderer.FLOATS_PER_INSTANCE);
+    }
+
+    void setBatch(int batch, int offset, int count) {
+        offsets[batch] = offset;
+        counts[batch] = count;
+    }
+
+    void setImpostorBatch(int batch, int offset, int count) {
+        impostorOffsets[batch] = offset;
+        impostorCounts[batch] = count;
+    }
+
+    void setImpostorFade(float start, float scale) {
+        impostorFadeStart = start;
+        impostorFadeScale = scale;
+    }
+
+    void finish(long frame, int visibleCount, int impostorCount) {
+        this.frame = frame;
+        this.visibleCount = visibleCount;
+        this.impostorCount = impostorCount;
+        trees.limit(visibleCount);
+        instances.limit(visibleCount * InstancedMeshRenderer.FLOATS_PER_INSTANCE);
+        impostorInstances.limit(impostorCount * InstancedMeshRenderer.FLOATS_PER_INSTANCE);
+    }
+
+    // Reading
+
+    /**
+     * @return Number of the frame, counted by the pipeline
+     */
+    public long getFrame() {
+        return frame;
+    }
+
+    /**
+     * @return Camera and projection the command list was built for. Must not be modified.
+     */
+    public ViewTransform getView() {
+        return view;
+    }
+
+    public int getLevelCount() {
+        return levels;
+    }
+
+    /**
+     * @return Number of trees drawn with geometry, without the trees drawn only as impostors
+     */
+    public int getVisibleCount() {
+        return visibleCount;
+    }
+
+    /**
+     * @param k Position in the command list, 0 .. getVisibleCount() - 1
+     * @return Index of the tree in the instance store
+     */
+    public int getTree(int k) {
+        return trees.get(k);
+    }
+
+    /**
+     * @return Indices of the visible trees in the instance store in the order of the command list,
+     *         from position 0 up to the limit. Must not be modified.
+     */
+    public IntBuffer getTrees() {
+        return trees;
+    }
+
+    /**
+     * @return Placement of the visible trees in the order of the command list, from position 0 up to the limit,
+     *         not filled if the pipeline does not copy the placements. Must not be modified.
+     */
+    public FloatBuffer getInstances() {
+        return instances;
+    }
+
+    /**
+     * @return Position of the first tree of a batch in the command list
+     */
+    public int getOffset(int level, int species, int material) {
+        return offsets[batchOf(level, species, material)];
+    }
+
+    /**
+     * @return Number of trees of a batch
+     */
+    public int getCount(int level, int species, int material) {
+        return counts[batchOf(level, species, material)];
+    }
+
+    /**
+     * @return Position of the first tree of a level of detail in the command list
+     */
+    public int getLevelOffset(int level) {
+        return offsets[level * BATCHES_PER_LEVEL];
+    }
+
+    /**
+     * @return Number of trees of a level of detail (all species and materials)
+     */
+    public int getLevelSize(int level) {
+        int last = (level + 1) * BATCHES_PER_LEVEL - 1;
+        return offsets[last] + counts[last] - offsets[level * BATCHES_PER_LEVEL];
+    }
+
+    /**
+     * @return Number of trees drawn as impostors, including the trees in the blend band
+     */
+    public int getImpostorCount() {
+        return impostorCount;
+    }
+
+    /**
+     * @return Placement of the impostors in the order of their batches, from position 0 up to the limit.
+     *         Must not be modified.
+     */
+    public FloatBuffer getImpostorInstances() {
+        return impostorInstances;
+    }
+
+    /**
+     * @return Position of the first impostor of a batch in the impostor list
+     */
+    public int getImpostorOffset(int species, int material) {
+        return impostorOffsets[impostorBatchOf(species, material)];
+    }
+
+    /**
+     * @return Number of impostors of a batch
+     */
+    public int getImpostorCount(int species, int material) {
+        return impostorCounts[impostorBatchOf(species, material)];
+    }
+
+    /**
+     * @return Distance from the camera where the geometry starts fading into the impostors
+     */
+    public float getImpostorFadeStart() {
+        return impostorFadeStart;
+    }
+
+    /**
+     * @return Reciprocal width of the blend band, 0 without impostors
+     */
+    public float getImpostorFadeScale() {
+        return impostorFadeScale;
+    }
+}
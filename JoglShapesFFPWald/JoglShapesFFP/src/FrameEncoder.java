@@ -0,0 +1,88 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes one captured frame into a file. The pixels are given as read back by OpenGL:
+ * 4 bytes per pixel in the order blue, green, red, alpha, rows from bottom to top.
+ * Encoders are called by several worker threads at the same time and must not keep state.
+ */
+public interface FrameEncoder {
+
+    /**
+     * PNG images, compressed, readable by any image viewer.
+     */
+    FrameEncoder PNG = new FrameEncoder() {
+        @Override
+        public String getExtension() {
+            return "png";
+        }
+
+        @Override
+        public void encode(ByteBuffer pixels, int width, int height, File file) throws IOException {
+            if (!ImageIO.write(toImage(pixels, width, height), "png", file))
+                throw new IOException("No PNG writer available");
+        }
+    };
+
+    /**
+     * Uncompressed BGRA pixels, rows from top to bottom, without header.
+     * Much faster to write than PNG, e.g. for encoding videos afterwards
+     * (ffmpeg -f rawvideo -pixel_format bgra -video_size WxH).
+     */
+    FrameEncoder RAW = new FrameEncoder() {
+        @Override
+        public String getExtension() {
+            return "bgra";
+        }
+
+        @Override
+        public void encode(ByteBuffer pixels, int width, int height, File file) throws IOException {
+            int rowBytes = width * 4;
+            try (RandomAccessFile output = new RandomAccessFile(file, "rw");
+                 FileChannel channel = output.getChannel()) {
+                output.setLength((long) rowBytes * height);
+                ByteBuffer row = pixels.duplicate();
+                for (int y = 0; y < height; y++) {
+                    int start = (height - 1 - y) * rowBytes;
+                    row.limit(start + rowBytes).position(start);
+                    channel.write(row, (long) y * rowBytes);
+                }
+            }
+        }
+    };
+
+    /**
+     * @return File name extension without dot
+     */
+    String getExtension();
+
+    /**
+     * Writes the pixels of one frame into a file.
+     * @param pixels BGRA pixels from bottom to top, position 0, not modified by the encoder
+     */
+    void encode(ByteBuffer pixels, int width, int height, File file) throws IOException;
+
+    /**
+     * Converts BGRA pixels with the origin in the lower left corner (OpenGL) into an image
+     * with the origin in the upper left corner.
+     */
+    static BufferedImage toImage(ByteBuffer pixels, int width, int height) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        int[] data = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        // little endian BGRA bytes read as int are 0xAARRGGBB
+        IntBuffer source = pixels.duplicate().order(ByteOrder.LITTLE_ENDIAN).asIntBuffer();
+        for (int row = 0; row < height; row++) {
+            source.position((height - 1 - row) * width);
+            source.get(data, row * width, width);
+        }
+        return image;
+    }
+}
@@ -0,0 +1,460 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * CPU stage of a frame: view frustum culling, level of detail selection and sorting of the visible trees
+ * into the batches of a FrameCommands list. The stage runs in a fork-join pool, so the thread owning the
+ * OpenGL context can draw the previous command list meanwhile (start() and join()).
+ *
+ * The trees are processed in chunks: with frustum culling a chunk is a range of rows of the grid index,
+ * without culling a range of instances. In the first phase every chunk culls its trees, selects their levels
+ * and counts them per batch; after a prefix sum over the counts of all chunks and batches the second phase
+ * writes the trees of every chunk to their final positions. The result only depends on the input,
+ * not on the number of threads or the order in which the chunks are processed.
+ *
+ * With impostors enabled (setImpostorDistance()) the trees beyond the impostor distance are written to the
+ * impostor batches instead of the level of detail batches, the trees in the blend band before it to both.
+ *
+ * Trees with a species or material id unknown to the InstanceStore (e.g. of a damaged scene file, whose ids
+ * are not checked when it is mapped) are skipped.
+ *
+ * While a stage is running the instance store, the grid index and the level of detail selector must not be
+ * changed. No objects are allocated per frame: the tasks are reused and the command lists are double buffered.
+ */
+public class FramePipeline {
+
+    // Chunks per thread of the pool, more chunks balance the load better
+    private static final int CHUNKS_PER_THREAD = 4;
+    // Smallest width of the blend band between geometry and impostors, avoids dividing by 0
+    private static final float MIN_BLEND_RANGE = 1e-3f;
+
+    // Bounding sphere of a tree of scale 1 (center above the origin of the tree)
+    private final float treeBoundsCenterZ;
+    private final float treeBoundsRadius;
+    private final ForkJoinPool pool;
+    private int parallelThreshold = 10000;
+
+    private InstanceStore trees;
+    private UniformGridIndex index;
+    // Cells of the index skipped as occluded, null for none
+    private byte[] hiddenCells;
+    private LodSelector lodSelector;
+    // Distance from the camera beyond which the trees are drawn as impostors, 0 for none, and width of the
+    // band before it in which the geometry fades into the impostors
+    private float impostorDistance;
+    private float impostorBlendRange;
+    // False if the backend reads the placements of the visible trees from the store, see setCopyPlacements()
+    private boolean copyPlacements = true;
+    // Set when the first tree with an unknown id is skipped
+    private volatile boolean invalidIdsReported;
+    private final FrameCommands[] buffers = new FrameCommands[2];
+    private int nextBuffer;
+    private long frameCount;
+
+    // State of the running stage
+    private final Frustum frustum = new Frustum();
+    private boolean frustumCulling;
+    private FrameCommands target;
+    private boolean running;
+    private final StageTask stage = new StageTask();
+
+    // Work of the chunks: the candidates of chunk c start at chunkOffsets[c], their batches are stored alongside
+    // (-1 for a tree without geometry or without impostor)
+    private int chunkCount;
+    private int batchCount;
+    // Level of detail batches followed by the impostor batches
+    private int batchStride;
+    private int[] candidates = new int[0];
+    private int[] candidateBatches = new int[0];
+    private int[] candidateImpostorBatches = new int[0];
+    private int[] chunkOffsets = new int[0];
+    private int[] chunkSizes = new int[0];
+    // Per chunk and batch: number of trees in the first phase, write position in the second phase
+    private int[] chunkBatches = new int[0];
+    private ChunkTask[] selectTasks = new ChunkTask[0];
+    private ChunkTask[] scatterTasks = new ChunkTask[0];
+
+    /**
+     * Creates a pipeline using the common fork-join pool.
+     * @param treeBoundsCenterZ Height of the bounding sphere center of a tree of scale 1
+     * @param treeBoundsRadius Radius of the bounding sphere of a tree of scale 1
+     */
+    public FramePipeline(float treeBoundsCenterZ, float treeBoundsRadius) {
+        this(treeBoundsCenterZ, treeBoundsRadius, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool Pool running the stages
+     */
+    public FramePipeline(float treeBoundsCenterZ, float treeBoundsRadius, ForkJoinPool pool) {
+        this.treeBoundsCenterZ = treeBoundsCenterZ;
+        this.treeBoundsRadius = treeBoundsRadius;
+        this.pool = pool;
+    }
+
+    public int getParallelThreshold() {
+        return parallelThreshold;
+    }
+
+    /**
+     * @param parallelThreshold Minimum number of trees for splitting the stage into several chunks,
+     *                          takes effect with the next init()
+     */
+    public void setParallelThreshold(int parallelThreshold) {
+        this.parallelThreshold = parallelThreshold;
+    }
+
+    /**
+     * Allocates the command lists and the work of the chunks.
+     * @param trees All trees
+     * @param index Spatial index over the trees, used for frustum culling
+     * @param lodSelector Level of detail selection, keeps the level of every tree
+     */
+    public void init(InstanceStore trees, UniformGridIndex index, LodSelector lodSelector) {
+        if (running)
+            throw new IllegalStateException("Frame pipeline is running");
+        this.trees = trees;
+        this.index = index;
+        this.lodSelector = lodSelector;
+        int capacity = trees.getCapacity();
+        lodSelector.ensureCapacity(capacity);
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = new FrameCommands(capacity, lodSelector.getLevelCount());
+            if (impostorDistance > 0f)
+                buffers[i].ensureImpostorCapacity(capacity);
+        }
+
+        chunkCount = capacity >= parallelThreshold ? pool.getParallelism() * CHUNKS_PER_THREAD : 1;
+        batchCount = FrameCommands.getBatchCount(lodSelector.getLevelCount());
+        batchStride = batchCount + FrameCommands.getImpostorBatchCount();
+        candidates = new int[capacity];
+        candidateBatches = new int[capacity];
+        candidateImpostorBatches = new int[capacity];
+        chunkOffsets = new int[chunkCount];
+        chunkSizes = new int[chunkCount];
+        chunkBatches = new int[chunkCount * batchStride];
+        selectTasks = new ChunkTask[chunkCount];
+        scatterTasks = new ChunkTask[chunkCount];
+        for (int c = 0; c < chunkCount; c++) {
+            selectTasks[c] = new ChunkTask(c, false);
+            scatterTasks[c] = new ChunkTask(c, true);
+        }
+    }
+
+    /**
+     * Replaces the trees and their index without reallocating, e.g. with a new snapshot of a StreamingWorld.
+     * Must not be called while a stage is running.
+     * @param trees All trees, at most the capacity of the store given to init()
+     * @param index Spatial index over the trees
+     */
+    public void setTrees(InstanceStore trees, UniformGridIndex index) {
+        if (running)
+            throw new IllegalStateException("Frame pipeline is running");
+        if (this.trees == null || trees.getCapacity() > candidates.length)
+            throw new IllegalArgumentException("The trees exceed the capacity of the frame pipeline");
+        this.trees = trees;
+        this.index = index;
+    }
+
+    /**
+     * Sets the cells of the index whose trees are skipped by the following stages, see OcclusionCuller.
+     * Only used with frustum culling. The array must not be changed while a stage is running.
+     * @param hiddenCells Non-zero for every hidden cell, null for drawing all cells
+     */
+    public void setHiddenCells(byte[] hiddenCells) {
+        if (running)
+            throw new IllegalStateException("Frame pipeline is running");
+        this.hiddenCells = hiddenCells;
+    }
+
+    /**
+     * Draws the distant trees as impostors. The impostor lists of the command lists are allocated
+     * when impostors are first enabled. Must not be called while a stage is running.
+     * @param impostorDistance Distance from the camera (to the center of the bounding sphere) beyond which
+     *                         the trees are only drawn as impostors, 0 for drawing all trees with geometry
+     * @param impostorBlendRange Width of the band before the impostor distance in which the trees are drawn
+     *                           both ways and fade from the geometry into the impostor
+     */
+    public void setImpostorDistance(float impostorDistance, float impostorBlendRange) {
+        if (running)
+            throw new IllegalStateException("Frame pipeline is running");
+        if (impostorDistance > 0f && trees != null) {
+            for (FrameCommands buffer : buffers)
+                buffer.ensureImpostorCapacity(candidates.length);
+        }
+        this.impostorDistance = Math.max(impostorDistance, 0f);
+        this.impostorBlendRange = Math.max(0f, Math.min(impostorBlendRange, this.impostorDistance));
+    }
+
+    public float getImpostorDistance() {
+        return impostorDistance;
+    }
+
+    public float getImpostorBlendRange() {
+        return impostorBlendRange;
+    }
+
+    /**
+     * Sets whether the placements of the visible trees are copied into the command lists.
+     * A backend that uploaded the placement columns of a static store only needs the indices of the trees.
+     * Must not be called while a stage is running.
+     * @param copyPlacements False for writing only the indices (FrameCommands.getTrees())
+     */
+    public void setCopyPlacements(boolean copyPlacements) {
+        if (running)
+            throw new IllegalStateException("Frame pipeline is running");
+        this.copyPlacements = copyPlacements;
+    }
+
+    public boolean isCopyPlacements() {
+        return copyPlacements;
+    }
+
+    /**
+     * @return Number of chunks the trees are split into
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+
+    /**
+     * Starts the stage for a frame in the pool. Has to be followed by join() before the next start().
+     * @param view Camera and projection of the frame, copied before returning
+     * @param frustumCulling True for culling the trees outside the view frustum
+     */
+    public void start(ViewTransform view, boolean frustumCulling) {
+        if (running)
+            throw new IllegalStateException("Frame pipeline is running");
+        if (trees == null)
+            throw new IllegalStateException("Frame pipeline is not initialized");
+        target = buffers[nextBuffer];
+        nextBuffer = 1 - nextBuffer;
+        target.getWritableView().set(view);
+        // the limit of the last use of the buffer would restrict the writes
+        target.getWritableTrees().clear();
+        target.getWritableInstances().clear();
+        target.getWritableImpostorInstances().clear();
+        if (impostorDistance > 0f) {
+            // a band of width 0 switches at once
+            target.setImpostorFade(impostorDistance - impostorBlendRange,
+                    1f / Math.max(impostorBlendRange, MIN_BLEND_RANGE));
+        } else {
+            target.setImpostorFade(0f, 0f);
+        }
+        this.frustumCulling = frustumCulling;
+        running = true;
+        stage.reinitialize();
+        pool.execute(stage);
+    }
+
+    /**
+     * Waits for the running stage.
+     * @return The command list of the frame, valid until the stage after the next one is started
+     */
+    public FrameCommands join() {
+        if (!running)
+            throw new IllegalStateException("Frame pipeline is not running");
+        try {
+            stage.join();
+        } finally {
+            running = false;
+        }
+        return target;
+    }
+
+    /**
+     * Runs the stage for a frame and waits for it.
+     * @see #start(ViewTransform, boolean)
+     */
+    public FrameCommands prepare(ViewTransform view, boolean frustumCulling) {
+        start(view, frustumCulling);
+        return join();
+    }
+
+    /**
+     * @return True between start() and join()
+     */
+    public boolean isRunning() {
+        return running;
+    }
+
+    /**
+     * Culls the trees of all chunks, sorts them into the batches and writes the command list.
+     */
+    private class StageTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            if (frustumCulling)
+                frustum.update(target.getView());
+            for (ChunkTask task : selectTasks)
+                task.reinitialize();
+            ForkJoinTask.invokeAll(selectTasks);
+
+            // batch by batch, the trees of the chunks follow each other in the order of the chunks
+            int offset = 0;
+            for (int batch = 0; batch < batchCount; batch++) {
+                int batchOffset = offset;
+                offset = sumChunks(batch, offset);
+                target.setBatch(batch, batchOffset, offset - batchOffset);
+            }
+            int visibleCount = offset;
+            // the impostors are written to their own list
+            offset = 0;
+            for (int batch = batchCount; batch < batchStride; batch++) {
+                int batchOffset = offset;
+                offset = sumChunks(batch, offset);
+                target.setImpostorBatch(batch - batchCount, batchOffset, offset - batchOffset);
+            }
+
+            for (ChunkTask task : scatterTasks)
+                task.reinitialize();
+            ForkJoinTask.invokeAll(scatterTasks);
+            target.finish(frameCount++, visibleCount, offset);
+        }
+
+        /**
+         * Replaces the counts of a batch by the write positions of the chunks.
+         * @return Position after the last tree of the batch
+         */
+        private int sumChunks(int batch, int offset) {
+            for (int c = 0; c < chunkCount; c++) {
+                int count = chunkBatches[c * batchStride + batch];
+                chunkBatches[c * batchStride + batch] = offset;
+                offset += count;
+            }
+            return offset;
+        }
+    }
+
+    /**
+     * One phase of the work of one chunk.
+     */
+    private class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int chunk;
+        private final boolean scatter;
+
+        ChunkTask(int chunk, boolean scatter) {
+            this.chunk = chunk;
+            this.scatter = scatter;
+        }
+
+        @Override
+        protected void compute() {
+            if (scatter)
+                scatter(chunk);
+            else
+                select(chunk);
+        }
+    }
+
+    /**
+     * First phase: collects the visible trees of a chunk, selects their levels and counts them per batch.
+     */
+    private void select(int chunk) {
+        int offset;
+        int size;
+        if (frustumCulling) {
+            int rows = index.getRowCount();
+            int fromRow = (int) ((long) chunk * rows / chunkCount);
+            int toRow = (int) ((long) (chunk + 1) * rows / chunkCount);
+            offset = index.getRowStart(fromRow);
+            size = index.query(frustum, fromRow, toRow, candidates, offset, hiddenCells);
+        } else {
+            offset = (int) ((long) chunk * trees.size() / chunkCount);
+            size = (int) ((long) (chunk + 1) * trees.size() / chunkCount) - offset;
+            for (int k = offset; k < offset + size; k++)
+                candidates[k] = k;
+        }
+        chunkOffsets[chunk] = offset;
+        chunkSizes[chunk] = size;
+
+        int first = chunk * batchStride;
+        Arrays.fill(chunkBatches, first, first + batchStride, 0);
+        ViewTransform view = target.getView();
+        boolean impostors = impostorDistance > 0f;
+        float impostorStart = impostorDistance - impostorBlendRange;
+        for (int k = offset; k < offset + size; k++) {
+            int i = candidates[k];
+            if (!trees.hasValidIds(i)) {
+                reportInvalidIds(i);
+                candidateImpostorBatches[k] = -1;
+                candidateBatches[k] = -1;
+                continue;
+            }
+            float scale = trees.getScale(i);
+            float x = trees.getX(i);
+            float y = trees.getY(i);
+            float z = trees.getZ(i) + treeBoundsCenterZ * scale;
+            boolean geometry = true;
+            int impostorBatch = -1;
+            if (impostors) {
+                float distance = view.getEyeDistance(x, y, z);
+                geometry = distance < impostorDistance;
+                if (distance >= impostorStart) {
+                    impostorBatch = batchCount + FrameCommands.impostorBatchOf(trees.getSpecies(i), trees.getMaterial(i));
+                    chunkBatches[first + impostorBatch]++;
+                }
+            }
+            candidateImpostorBatches[k] = impostorBatch;
+            if (geometry) {
+                float projectedSize = view.getProjectedSize(x, y, z, treeBoundsRadius * scale);
+                int level = lodSelector.select(i, projectedSize);
+                int batch = FrameCommands.batchOf(level, trees.getSpecies(i), trees.getMaterial(i));
+                candidateBatches[k] = batch;
+                chunkBatches[first + batch]++;
+            } else {
+                candidateBatches[k] = -1;
+            }
+        }
+    }
+
+    /**
+     * Second phase: writes the visible trees of a chunk to the positions of their batches.
+     */
+    private void scatter(int chunk) {
+        IntBuffer targetTrees = target.getWritableTrees();
+        FloatBuffer instances = target.getWritableInstances();
+        FloatBuffer impostorInstances = target.getWritableImpostorInstances();
+        int first = chunk * batchStride;
+        int offset = chunkOffsets[chunk];
+        for (int k = offset; k < offset + chunkSizes[chunk]; k++) {
+            int i = candidates[k];
+            if (candidateBatches[k] >= 0) {
+                int position = chunkBatches[first + candidateBatches[k]]++;
+                targetTrees.put(position, i);
+                if (copyPlacements)
+                    putInstance(instances, position, i);
+            }
+            if (candidateImpostorBatches[k] >= 0)
+                putInstance(impostorInstances, chunkBatches[first + candidateImpostorBatches[k]]++, i);
+        }
+    }
+
+    /**
+     * Reports the first skipped tree, the others are skipped silently.
+     */
+    private void reportInvalidIds(int i) {
+        if (!invalidIdsReported) {
+            invalidIdsReported = true;
+            System.err.println("Trees with unknown species or material ids are not drawn (the first is tree " + i
+                    + ": species " + trees.getSpecies(i) + ", material " + trees.getMaterial(i) + ")");
+        }
+    }
+
+    private void putInstance(FloatBuffer instances, int position, int i) {
+        int p = position * InstancedMeshRenderer.FLOATS_PER_INSTANCE;
+        instances.put(p, trees.getX(i));
+        instances.put(p + 1, trees.getY(i));
+        instances.put(p + 2, trees.getZ(i));
+        instances.put(p + 3, trees.getScale(i));
+    }
+}
@@ -0,0 +1,320 @@
+import com.jogamp.opengl.GL2ES2;
+import com.jogamp.opengl.GL2GL3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Records timings and counters of every frame:
+ * - the frame time (time between the start of two frames),
+ * - the CPU time of the scene traversal (culling, level of detail, sorting),
+ * - the CPU time of the submission of the OpenGL commands,
+ * - the GPU time of the frame, measured with timer queries (GL_TIME_ELAPSED) if supported,
+ * - the number of draw calls and triangles.
+ * Comparing CPU and GPU time shows whether a slow frame is CPU-bound or GPU-bound.
+ *
+ * The values of the last getCapacity() frames are kept in a ring buffer. It is written by the
+ * rendering thread only and can be read by any thread without locking (see snapshot()).
+ * Results of timer queries are available a few frames later, the GPU time of a frame is filled in then
+ * (-1 until it is known). Recording allocates no memory.
+ */
+public class FrameProfiler {
+
+    // Recorded metrics, index of the first dimension of the samples
+    public static final int FRAME_TIME = 0;
+    public static final int SCENE_TIME = 1;
+    public static final int SUBMIT_TIME = 2;
+    public static final int GPU_TIME = 3;
+    public static final int DRAW_CALLS = 4;
+    public static final int TRIANGLES = 5;
+    public static final int METRIC_COUNT = 6;
+    private static final String[] METRIC_NAMES =
+            {"frame_ns", "scene_ns", "submit_ns", "gpu_ns", "draw_calls", "triangles"};
+
+    // Number of timer queries in flight, the result of a query is read that many frames later
+    private static final int QUERY_COUNT = 4;
+
+    private final int capacity;
+    private final int mask;
+    // samples[metric][frame & mask]
+    private final long[][] samples;
+    // Frame number of every slot of the ring buffer
+    private final long[] slotFrames;
+    // Number of recorded frames, written after the values of a frame (publishes them to other threads)
+    private volatile long frameCount;
+
+    // Values of the current frame
+    private long frame = -1;
+    private long frameStart;
+    private long sceneStart;
+    private long sceneNanos;
+    private long submitStart;
+    private long submitNanos;
+    private long drawCalls;
+    private long triangles;
+
+    // Timer queries
+    private boolean gpuTiming;
+    private final int[] queries = new int[QUERY_COUNT];
+    // Frame measured by each query, -1 if the query is not in flight
+    private final long[] queryFrames = new long[QUERY_COUNT];
+    private int nextQuery;
+    private final int[] queryAvailable = new int[1];
+    private final long[] queryResult = new long[1];
+
+    public FrameProfiler() {
+        this(512);
+    }
+
+    /**
+     * @param capacity Number of frames kept, rounded up to a power of two
+     */
+    public FrameProfiler(int capacity) {
+        this.capacity = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+        mask = this.capacity - 1;
+        samples = new long[METRIC_COUNT][this.capacity];
+        slotFrames = new long[this.capacity];
+        Arrays.fill(slotFrames, -1);
+        Arrays.fill(queryFrames, -1);
+    }
+
+    /**
+     * Creates the timer queries if the context supports them. Without them no GPU time is recorded.
+     * @param gl The graphics library object, compatibility or core profile.
+     */
+    public void init(GL2GL3 gl) {
+        gpuTiming = gl.isFunctionAvailable("glGetQueryObjecti64v")
+                && (gl.isExtensionAvailable("GL_ARB_timer_query") || gl.isExtensionAvailable("GL_EXT_timer_query"));
+        if (gpuTiming)
+            gl.glGenQueries(QUERY_COUNT, queries, 0);
+    }
+
+    public boolean isGpuTiming() {
+        return gpuTiming;
+    }
+
+    /**
+     * Starts a frame, has to be called first in display().
+     */
+    public void beginFrame(GL2GL3 gl) {
+        long now = System.nanoTime();
+        frame++;
+        int slot = (int) (frame & mask);
+        slotFrames[slot] = frame;
+        samples[FRAME_TIME][slot] = frame == 0 ? 0 : now - frameStart;
+        samples[GPU_TIME][slot] = -1;
+        frameStart = now;
+        sceneNanos = 0;
+        submitNanos = 0;
+        drawCalls = 0;
+        triangles = 0;
+
+        if (gpuTiming) {
+            collectQueries(gl, false);
+            // the query to be reused is normally finished since QUERY_COUNT frames
+            if (queryFrames[nextQuery] >= 0)
+                collectQuery(gl, nextQuery, true);
+            gl.glBeginQuery(GL2ES2.GL_TIME_ELAPSED, queries[nextQuery]);
+            queryFrames[nextQuery] = frame;
+        }
+    }
+
+    /**
+     * Ends the frame and publishes its values, has to be called last in display().
+     */
+    public void endFrame(GL2GL3 gl) {
+        if (gpuTiming) {
+            gl.glEndQuery(GL2ES2.GL_TIME_ELAPSED);
+            nextQuery = (nextQuery + 1) % QUERY_COUNT;
+        }
+        int slot = (int) (frame & mask);
+        samples[SCENE_TIME][slot] = sceneNanos;
+        samples[SUBMIT_TIME][slot] = submitNanos;
+        samples[DRAW_CALLS][slot] = drawCalls;
+        samples[TRIANGLES][slot] = triangles;
+        frameCount = frame + 1;
+    }
+
+    /**
+     * Reads the results of the queries in flight.
+     * @param wait True for waiting for results that are not available yet
+     */
+    private void collectQueries(GL2GL3 gl, boolean wait) {
+        for (int i = 0; i < QUERY_COUNT; i++) {
+            if (queryFrames[i] >= 0)
+                collectQuery(gl, i, wait);
+        }
+    }
+
+    private void collectQuery(GL2GL3 gl, int query, boolean wait) {
+        if (!wait) {
+            gl.glGetQueryObjectiv(queries[query], GL2GL3.GL_QUERY_RESULT_AVAILABLE, queryAvailable, 0);
+            if (queryAvailable[0] == 0)
+                return;
+        }
+        gl.glGetQueryObjecti64v(queries[query], GL2GL3.GL_QUERY_RESULT, queryResult, 0);
+        long measuredFrame = queryFrames[query];
+        int slot = (int) (measuredFrame & mask);
+        // the frame may already have left the ring buffer
+        if (slotFrames[slot] == measuredFrame)
+            samples[GPU_TIME][slot] = queryResult[0];
+        queryFrames[query] = -1;
+    }
+
+    // The sections may be entered several times per frame, their times are summed up
+
+    public void beginScene() {
+        sceneStart = System.nanoTime();
+    }
+
+    public void endScene() {
+        sceneNanos += System.nanoTime() - sceneStart;
+    }
+
+    public void beginSubmit() {
+        submitStart = System.nanoTime();
+    }
+
+    public void endSubmit() {
+        submitNanos += System.nanoTime() - submitStart;
+    }
+
+    /**
+     * Counts one draw call.
+     * @param triangleCount Number of triangles drawn by the call
+     */
+    public void countDraw(long triangleCount) {
+        drawCalls++;
+        triangles += triangleCount;
+    }
+
+    /**
+     * @return Number of frames kept in the ring buffer
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return Number of frames recorded so far
+     */
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * Copies the values of one metric of the last frames, oldest first. May be called from any thread.
+     * @param metric One of the metric constants, e.g. FRAME_TIME
+     * @param target Receives the values, at most target.length frames are copied
+     * @return Number of copied values
+     */
+    public int snapshot(int metric, long[] target) {
+        long end = frameCount;
+        long start = Math.max(0, end - Math.min(capacity - 1, target.length));
+        for (long f = start; f < end; f++)
+            target[(int) (f - start)] = samples[metric][(int) (f & mask)];
+        return dropOverwritten(start, end, target);
+    }
+
+    /**
+     * Removes the values of frames whose slots were reused by the rendering thread during a copy.
+     * The frame in progress may reuse one more slot than the published frame count shows.
+     * @return Number of remaining values
+     */
+    private int dropOverwritten(long start, long end, long[]... copies) {
+        long overwritten = frameCount + 1 - capacity;
+        int count = (int) (end - start);
+        if (overwritten <= start)
+            return count;
+        int dropped = (int) Math.min(overwritten - start, count);
+        for (long[] copy : copies)
+            System.arraycopy(copy, dropped, copy, 0, count - dropped);
+        return count - dropped;
+    }
+
+    /**
+     * Computes a percentile of the known (non-negative) values of a metric over the last frames.
+     * @param metric One of the metric constants
+     * @param percentile Percentile between 0 and 100, e.g. 95
+     * @param scratch Working array, its length limits the number of frames considered
+     * @return The percentile, -1 if no value is known
+     */
+    public long getPercentile(int metric, double percentile, long[] scratch) {
+        int count = snapshot(metric, scratch);
+        int known = 0;
+        for (int i = 0; i < count; i++) {
+            if (scratch[i] >= 0)
+                scratch[known++] = scratch[i];
+        }
+        if (known == 0)
+            return -1;
+        Arrays.sort(scratch, 0, known);
+        // nearest rank method
+        int rank = (int) Math.ceil(percentile / 100.0 * known);
+        return scratch[Math.max(0, Math.min(rank, known) - 1)];
+    }
+
+    /**
+     * Writes the kept frames as CSV file (one line per frame, times in nanoseconds, unknown values -1).
+     * May be called from any thread.
+     */
+    public void writeCsv(File file) throws IOException {
+        long[][] values = new long[METRIC_COUNT][capacity];
+        long end = frameCount;
+        long start = Math.max(0, end - (capacity - 1));
+        for (int metric = 0; metric < METRIC_COUNT; metric++) {
+            for (long f = start; f < end; f++)
+                values[metric][(int) (f - start)] = samples[metric][(int) (f & mask)];
+        }
+        int count = dropOverwritten(start, end, values);
+        long first = end - count;
+        try (PrintWriter writer = new PrintWriter(file, StandardCharsets.UTF_8.name())) {
+            writer.print("frame");
+            for (String name : METRIC_NAMES)
+                writer.print("," + name);
+            writer.println();
+            for (int i = 0; i < count; i++) {
+                writer.print(first + i);
+                for (int metric = 0; metric < METRIC_COUNT; metric++)
+                    writer.print("," + values[metric][i]);
+                writer.println();
+            }
+        }
+    }
+
+    /**
+     * Formats the percentiles of the timing metrics in milliseconds, e.g. for printing.
+     */
+    public String getSummary() {
+        long[] scratch = new long[capacity];
+        return formatPercentiles("frame", FRAME_TIME, scratch) + System.lineSeparator()
+                + formatPercentiles("scene", SCENE_TIME, scratch) + System.lineSeparator()
+                + formatPercentiles("submit", SUBMIT_TIME, scratch) + System.lineSeparator()
+                + formatPercentiles("gpu", GPU_TIME, scratch);
+    }
+
+    /**
+     * Formats p50, p95 and p99 of a timing metric in milliseconds as one line.
+     * @param scratch Working array, see getPercentile()
+     */
+    public String formatPercentiles(String name, int metric, long[] scratch) {
+        return String.format(Locale.ROOT, "%-6s p50 %6.2f  p95 %6.2f  p99 %6.2f ms", name,
+                getPercentile(metric, 50, scratch) / 1e6, getPercentile(metric, 95, scratch) / 1e6,
+                getPercentile(metric, 99, scratch) / 1e6);
+    }
+
+    /**
+     * Frees the timer queries.
+     */
+    public void dispose(GL2GL3 gl) {
+        if (gpuTiming) {
+            gl.glDeleteQueries(QUERY_COUNT, queries, 0);
+            Arrays.fill(queryFrames, -1);
+            gpuTiming = false;
+        }
+    }
+}
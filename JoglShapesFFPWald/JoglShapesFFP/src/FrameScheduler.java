@@ -0,0 +1,274 @@
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives the display() of a ShapesRenderer at a target frame rate, in place of an FPSAnimator.
+ *  - Pacing: with ADAPTIVE pacing a frame is only drawn if it would differ from the last one
+ *    (ShapesRenderer.needsFrame()), an unchanged scene costs no GPU time. FIXED pacing draws every period.
+ *    ON_DEMAND pacing draws like ADAPTIVE while something changes, but when nothing changes the thread sleeps
+ *    until the renderer requests a frame (input, resize, change of the scene graph, see requestFrame()).
+ *    A request starts a burst of frames lasting as long as the camera moves (smoothing of the
+ *    CameraController), an idle window costs neither GPU nor CPU time.
+ *  - Scaling: the cost of every drawn frame (the larger of the CPU time of scene and submission and the GPU time,
+ *    see FrameProfiler) is compared with the period. When the smoothed cost exceeds the budget, the quality is
+ *    lowered step by step (render resolution or level of detail bias), when there is plenty of room it is raised
+ *    again. After every change the scheduler waits a few frames, so the change shows in the measurements
+ *    (the GPU times arrive a few frames late) before the next decision. When the scene comes to rest with
+ *    lowered quality, the still image is drawn once more at full quality.
+ *
+ * The frames are drawn on the thread of the scheduler.
+ */
+public class FrameScheduler {
+
+    /**
+     * When frames are drawn.
+     */
+    public enum Pacing {
+        // every period, like an FPSAnimator
+        FIXED,
+        // every period in which something changed
+        ADAPTIVE,
+        // like ADAPTIVE, but sleeping without polling until a frame is requested
+        ON_DEMAND
+    }
+
+    /**
+     * What is lowered when frames take too long.
+     */
+    public enum Scaling {
+        NONE,
+        // resolution of the scene, scaled up to the window
+        RESOLUTION,
+        // level of detail of the trees
+        LEVEL_OF_DETAIL
+    }
+
+    // Fraction of the period a frame may cost before the quality is lowered, and below which it is raised
+    private static final float OVERRUN = 0.9f;
+    private static final float HEADROOM = 0.6f;
+    // Factor between two quality steps
+    private static final float QUALITY_STEP = 0.85f;
+    // Frames after a change of the quality without a new decision
+    private static final int SETTLE_FRAMES = 30;
+    // Weight of a new frame in the smoothed cost
+    private static final float COST_SMOOTHING = 0.1f;
+    // Frames of the profiler read for finding the latest known values
+    private static final int HISTORY = 8;
+
+    private final ShapesRenderer renderer;
+    private final long period;
+    private Pacing pacing = Pacing.ADAPTIVE;
+    private Scaling scaling = Scaling.RESOLUTION;
+    private float minimumQuality = 0.5f;
+
+    private volatile boolean running;
+    private volatile Thread thread;
+    private volatile long drawnFrames;
+    private volatile long skippedFrames;
+    private volatile long wakeups;
+    private volatile float quality = 1f;
+    private float smoothedCost;
+    private int settleFrames;
+    private final long[] sceneTimes = new long[HISTORY];
+    private final long[] submitTimes = new long[HISTORY];
+    private final long[] gpuTimes = new long[HISTORY];
+
+    /**
+     * @param renderer The renderer to drive
+     * @param targetFps Target frame rate
+     */
+    public FrameScheduler(ShapesRenderer renderer, int targetFps) {
+        if (targetFps <= 0)
+            throw new IllegalArgumentException("The target frame rate must be positive");
+        this.renderer = renderer;
+        this.period = 1_000_000_000L / targetFps;
+    }
+
+    public Pacing getPacing() {
+        return pacing;
+    }
+
+    /**
+     * Has to be called before start().
+     */
+    public void setPacing(Pacing pacing) {
+        this.pacing = pacing;
+    }
+
+    public Scaling getScaling() {
+        return scaling;
+    }
+
+    /**
+     * Has to be called before start().
+     */
+    public void setScaling(Scaling scaling) {
+        this.scaling = scaling;
+    }
+
+    public float getMinimumQuality() {
+        return minimumQuality;
+    }
+
+    /**
+     * @param minimumQuality Lowest render scale or detail scale, between 0 and 1. Has to be called before start().
+     */
+    public void setMinimumQuality(float minimumQuality) {
+        this.minimumQuality = minimumQuality;
+    }
+
+    /**
+     * Starts the thread drawing the frames.
+     */
+    public synchronized void start() {
+        if (running)
+            throw new IllegalStateException("Frame scheduler already started");
+        running = true;
+        thread = new Thread(this::run, "FrameScheduler");
+        thread.setDaemon(true);
+        if (pacing == Pacing.ON_DEMAND)
+            renderer.setFrameRequestListener(this::wake);
+        thread.start();
+    }
+
+    /**
+     * Stops drawing and waits for the frame in progress.
+     */
+    public synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        renderer.setFrameRequestListener(null);
+        LockSupport.unpark(thread);
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    public boolean isStarted() {
+        return running;
+    }
+
+    /**
+     * Wakes the sleeping thread in ON_DEMAND pacing. A wakeup before the thread sleeps is not lost,
+     * the thread then does not fall asleep.
+     */
+    private void wake() {
+        Thread sleeping = thread;
+        if (sleeping != null)
+            LockSupport.unpark(sleeping);
+    }
+
+    private void run() {
+        long next = System.nanoTime();
+        while (running) {
+            if (pacing == Pacing.FIXED || renderer.needsFrame()) {
+                renderer.display();
+                drawnFrames++;
+                adaptQuality();
+            } else if (quality < 1f) {
+                // the scene came to rest with lowered quality, the still image is drawn once more at full quality
+                restoreQuality();
+                continue;
+            } else if (pacing == Pacing.ON_DEMAND) {
+                LockSupport.park(this);
+                wakeups++;
+                // the requested frame is drawn at once
+                next = System.nanoTime();
+                continue;
+            } else {
+                skippedFrames++;
+            }
+            next += period;
+            long now = System.nanoTime();
+            // after an overrun the next frame starts at once, lost periods are not caught up
+            if (next < now)
+                next = now;
+            else
+                LockSupport.parkNanos(next - now);
+        }
+    }
+
+    /**
+     * Lowers or raises the quality by the cost of the last drawn frame.
+     */
+    private void adaptQuality() {
+        if (scaling == Scaling.NONE)
+            return;
+        FrameProfiler profiler = renderer.getFrameProfiler();
+        int count = profiler.snapshot(FrameProfiler.SCENE_TIME, sceneTimes);
+        if (profiler.snapshot(FrameProfiler.SUBMIT_TIME, submitTimes) != count || count == 0)
+            return;
+        long cost = sceneTimes[count - 1] + submitTimes[count - 1];
+        // the GPU time of the latest frames is not known yet
+        int gpuCount = profiler.snapshot(FrameProfiler.GPU_TIME, gpuTimes);
+        for (int i = gpuCount - 1; i >= 0; i--) {
+            if (gpuTimes[i] >= 0) {
+                cost = Math.max(cost, gpuTimes[i]);
+                break;
+            }
+        }
+        smoothedCost += (cost - smoothedCost) * COST_SMOOTHING;
+
+        if (settleFrames > 0) {
+            settleFrames--;
+            return;
+        }
+        float newQuality = quality;
+        if (smoothedCost > period * OVERRUN)
+            newQuality = Math.max(minimumQuality, quality * QUALITY_STEP);
+        else if (smoothedCost < period * HEADROOM)
+            newQuality = Math.min(1f, quality / QUALITY_STEP);
+        if (newQuality != quality) {
+            quality = newQuality;
+            settleFrames = SETTLE_FRAMES;
+            if (scaling == Scaling.RESOLUTION)
+                renderer.setRenderScale(newQuality);
+            else
+                renderer.setDetailScale(newQuality);
+        }
+    }
+
+    /**
+     * Sets the full quality and requests a frame showing it.
+     */
+    private void restoreQuality() {
+        quality = 1f;
+        settleFrames = SETTLE_FRAMES;
+        if (scaling == Scaling.RESOLUTION)
+            renderer.setRenderScale(1f);
+        else
+            renderer.setDetailScale(1f);
+        renderer.requestFrame();
+    }
+
+    /**
+     * @return Current render scale or detail scale chosen by the scaling, 1 for full quality
+     */
+    public float getQuality() {
+        return quality;
+    }
+
+    /**
+     * @return Number of frames drawn
+     */
+    public long getDrawnFrames() {
+        return drawnFrames;
+    }
+
+    /**
+     * @return Number of periods without a frame because nothing changed (ADAPTIVE pacing)
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * @return Number of times the sleeping thread was woken (ON_DEMAND pacing)
+     */
+    public long getWakeups() {
+        return wakeups;
+    }
+}
@@ -0,0 +1,123 @@
+/**
+ * View frustum of the camera in world coordinates, described by six planes.
+ * Used for testing bounding volumes against the visible part of the scene.
+ * The planes are derived from the product of projection and camera matrix of a ViewTransform.
+ */
+public class Frustum {
+
+    // Results of the box classification
+    public static final int OUTSIDE = 0;
+    public static final int INTERSECTING = 1;
+    public static final int INSIDE = 2;
+
+    // Planes (a, b, c, d) with a * x + b * y + c * z + d >= 0 for points inside; order: left, right, bottom, top, near, far
+    private final float[] planes = new float[24];
+    // Axis aligned bounding box of the frustum in world coordinates
+    private final float[] bounds = new float[6];
+    private final float[] cameraInverse = new float[16];
+    private final float[] temp = new float[16];
+
+    /**
+     * Updates the planes and the bounding box for the current camera and projection.
+     */
+    public void update(ViewTransform view) {
+        float[] m = view.getViewProjection();
+        // Gribb/Hartmann: the planes are sums and differences of the rows of the matrix
+        for (int i = 0; i < 3; i++) {
+            setPlane(2 * i, m, i, 1f);
+            setPlane(2 * i + 1, m, i, -1f);
+        }
+        updateBounds(view);
+    }
+
+    private void setPlane(int plane, float[] m, int row, float sign) {
+        float a = m[3] + sign * m[row];
+        float b = m[7] + sign * m[4 + row];
+        float c = m[11] + sign * m[8 + row];
+        float d = m[15] + sign * m[12 + row];
+        float length = (float) Math.sqrt(a * a + b * b + c * c);
+        planes[4 * plane] = a / length;
+        planes[4 * plane + 1] = b / length;
+        planes[4 * plane + 2] = c / length;
+        planes[4 * plane + 3] = d / length;
+    }
+
+    /**
+     * Computes the world space bounding box of the eight corners of the frustum.
+     */
+    private void updateBounds(ViewTransform view) {
+        MatrixMath.invertAffine(view.getModelView(), cameraInverse, temp);
+        float tan = (float) Math.tan(Math.toRadians(view.getFovy()) / 2);
+        for (int i = 0; i < 3; i++) {
+            bounds[i] = Float.MAX_VALUE;
+            bounds[3 + i] = -Float.MAX_VALUE;
+        }
+        for (int corner = 0; corner < 8; corner++) {
+            float depth = (corner & 4) == 0 ? view.getZNear() : view.getZFar();
+            float ey = ((corner & 2) == 0 ? -1 : 1) * depth * tan;
+            float ex = ((corner & 1) == 0 ? -1 : 1) * depth * tan * view.getAspect();
+            float ez = -depth;
+            for (int i = 0; i < 3; i++) {
+                float world = cameraInverse[i] * ex + cameraInverse[4 + i] * ey + cameraInverse[8 + i] * ez
+                        + cameraInverse[12 + i];
+                bounds[i] = Math.min(bounds[i], world);
+                bounds[3 + i] = Math.max(bounds[3 + i], world);
+            }
+        }
+    }
+
+    /**
+     * Tests a sphere against the frustum.
+     * @return True if the sphere is at least partially inside
+     */
+    public boolean intersectsSphere(float x, float y, float z, float radius) {
+        for (int p = 0; p < 24; p += 4) {
+            if (planes[p] * x + planes[p + 1] * y + planes[p + 2] * z + planes[p + 3] < -radius)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Classifies an axis aligned box with respect to the frustum.
+     * @return OUTSIDE, INTERSECTING or INSIDE
+     */
+    public int classifyBox(float minX, float minY, float minZ, float maxX, float maxY, float maxZ) {
+        int result = INSIDE;
+        for (int p = 0; p < 24; p += 4) {
+            float a = planes[p], b = planes[p + 1], c = planes[p + 2], d = planes[p + 3];
+            // corner farthest in direction of the plane normal (positive vertex) and the opposite one
+            float positive = a * (a >= 0 ? maxX : minX) + b * (b >= 0 ? maxY : minY) + c * (c >= 0 ? maxZ : minZ) + d;
+            if (positive < 0)
+                return OUTSIDE;
+            float negative = a * (a >= 0 ? minX : maxX) + b * (b >= 0 ? minY : maxY) + c * (c >= 0 ? minZ : maxZ) + d;
+            if (negative < 0)
+                result = INTERSECTING;
+        }
+        return result;
+    }
+
+    public float getMinX() {
+        return bounds[0];
+    }
+
+    public float getMinY() {
+        return bounds[1];
+    }
+
+    public float getMinZ() {
+        return bounds[2];
+    }
+
+    public float getMaxX() {
+        return bounds[3];
+    }
+
+    public float getMaxY() {
+        return bounds[4];
+    }
+
+    public float getMaxZ() {
+        return bounds[5];
+    }
+}
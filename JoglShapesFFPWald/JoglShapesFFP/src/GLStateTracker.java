@@ -0,0 +1,52 @@
+import com.jogamp.opengl.GL2;
+
+/**
+ * Shadows selected OpenGL state on the CPU side and skips calls that would not change it.
+ * The tracker has to be invalidated whenever the state may have been changed without it,
+ * e.g. at the beginning of a frame.
+ */
+public class GLStateTracker {
+
+    private static final int UNKNOWN = -1;
+
+    private final MaterialRegistry materials;
+    private int currentMaterial = UNKNOWN;
+    private int currentPolygonFace = UNKNOWN;
+    private int currentPolygonMode = UNKNOWN;
+
+    public GLStateTracker(MaterialRegistry materials) {
+        this.materials = materials;
+    }
+
+    /**
+     * Forgets the shadowed state, the next requests are passed to OpenGL in any case.
+     */
+    public void invalidate() {
+        currentMaterial = UNKNOWN;
+        currentPolygonFace = UNKNOWN;
+        currentPolygonMode = UNKNOWN;
+    }
+
+    /**
+     * Sets a material unless it is already set.
+     * @param gl The graphics library object, compatibility mode.
+     * @param material Id of the material in the registry
+     */
+    public void bindMaterial(GL2 gl, int material) {
+        if (material == currentMaterial)
+            return;
+        materials.get(material).apply(gl);
+        currentMaterial = material;
+    }
+
+    /**
+     * Sets the polygon mode (see glPolygonMode) unless it is already set.
+     */
+    public void setPolygonMode(GL2 gl, int face, int mode) {
+        if (face == currentPolygonFace && mode == currentPolygonMode)
+            return;
+        gl.glPolygonMode(face, mode);
+        currentPolygonFace = face;
+        currentPolygonMode = mode;
+    }
+}
@@ -0,0 +1,124 @@
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.glu.GLU;
+import com.jogamp.opengl.glu.GLUquadric;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * Cache for tessellated shapes stored as compiled OpenGL display lists.
+ * Each distinct combination of shape type and shape parameters is tessellated
+ * exactly once (usually in init()) and afterwards replayed by its handle.
+ * This avoids creating GLU quadrics and re-tessellating the shapes in every frame.
+ *
+ * All methods have to be called on the thread owning the OpenGL context.
+ */
+public class GeometryCache {
+
+    // Maps the shape key (type and parameters) to the display list handle
+    private final Map<String, Integer> handles = new HashMap<>();
+    // Number of triangles of each display list, indexed by handle
+    private int[] triangleCounts = new int[16];
+    // GLU object and quadric shared by all tessellations of this cache
+    private final GLU glu = new GLU();
+    private GLUquadric quadric;
+
+    /**
+     * Returns the handle of a sphere, tessellating and compiling it on the first request.
+     * @param gl The graphics library object for drawing, compatibility mode.
+     * @param radius Radius of the sphere
+     * @param slices Number of slices for approximating the round shape
+     * @param stacks Number of stacks for approximating the round shape
+     * @return Handle for replaying the sphere by draw()
+     */
+    public int getSphere(GL2 gl, double radius, int slices, int stacks) {
+        return getOrCompile(gl, key("sphere", radius, 0, 0, slices, stacks), 2 * slices * stacks,
+                g -> glu.gluSphere(getQuadric(), radius, slices, stacks));
+    }
+
+    /**
+     * Returns the handle of an open cylinder (barrel only), tessellating and compiling it
+     * on the first request.
+     * @param gl The graphics library object for drawing, compatibility mode.
+     * @param base Radius of the base
+     * @param top Radius of the top
+     * @param height Height of the cylinder
+     * @param slices Number of slices for approximating the circle shape
+     * @param stacks Number of stacks used for drawing the barrel
+     * @return Handle for replaying the cylinder by draw()
+     */
+    public int getCylinder(GL2 gl, double base, double top, double height, int slices, int stacks) {
+        return getOrCompile(gl, key("cylinder", base, top, height, slices, stacks), 2 * slices * stacks,
+                g -> glu.gluCylinder(getQuadric(), base, top, height, slices, stacks));
+    }
+
+    /**
+     * Returns the handle of a shape tessellated by a drawing routine, which is executed once
+     * while compiling the display list. Remembers the number of its triangles for statistics.
+     * @param key Unique key describing the shape and all of its parameters
+     * @param triangles Number of triangles emitted by the routine
+     * @param tessellator Drawing routine emitting the shape in immediate mode
+     */
+    private int getOrCompile(GL2 gl, String key, int triangles, Consumer<GL2> tessellator) {
+        Integer handle = handles.get(key);
+        if (handle != null)
+            return handle;
+        int list = gl.glGenLists(1);
+        if (list == 0)
+            throw new IllegalStateException("Could not allocate a display list for " + key);
+        gl.glNewList(list, GL2.GL_COMPILE);
+        tessellator.accept(gl);
+        gl.glEndList();
+        handles.put(key, list);
+        if (list >= triangleCounts.length)
+            triangleCounts = Arrays.copyOf(triangleCounts, Math.max(list + 1, 2 * triangleCounts.length));
+        triangleCounts[list] = triangles;
+        return list;
+    }
+
+    /**
+     * Replays a cached shape using the current matrix and material state.
+     * @param gl The graphics library object for drawing, compatibility mode.
+     * @param handle Handle returned by one of the get methods
+     */
+    public void draw(GL2 gl, int handle) {
+        gl.glCallList(handle);
+    }
+
+    /**
+     * @return Number of triangles of a cached shape (quads counted as two triangles), 0 if unknown
+     */
+    public int getTriangleCount(int handle) {
+        return handle < triangleCounts.length ? triangleCounts[handle] : 0;
+    }
+
+    /**
+     * Builds a unique key for a shape type and its parameters.
+     * Unused parameters should be passed as 0.
+     */
+    public static String key(String shape, double p0, double p1, double p2, int slices, int stacks) {
+        return shape + ':' + p0 + ':' + p1 + ':' + p2 + ':' + slices + ':' + stacks;
+    }
+
+    /**
+     * Frees all display lists and the shared quadric. Has to be called in dispose().
+     * @param gl The graphics library object for drawing, compatibility mode.
+     */
+    public void dispose(GL2 gl) {
+        for (int list : handles.values())
+            gl.glDeleteLists(list, 1);
+        handles.clear();
+        if (quadric != null) {
+            glu.gluDeleteQuadric(quadric);
+            quadric = null;
+        }
+    }
+
+    private GLUquadric getQuadric() {
+        if (quadric == null)
+            quadric = glu.gluNewQuadric();
+        return quadric;
+    }
+}
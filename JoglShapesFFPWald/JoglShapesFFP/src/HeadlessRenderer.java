@@ -0,0 +1,247 @@
+import com.jogamp.opengl.GLAutoDrawable;
+import com.jogamp.opengl.GLCapabilities;
+import com.jogamp.opengl.GLDrawableFactory;
+import com.jogamp.opengl.GLEventListener;
+import com.jogamp.opengl.GLException;
+import com.jogamp.opengl.GLOffscreenAutoDrawable;
+import com.jogamp.opengl.GLProfile;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Renders the scene of the ShapesRenderer without a window and writes the frames as PNG files,
+ * e.g. for generating thumbnails or reference images on machines without a display.
+ *
+ * The scene is drawn into an offscreen drawable backed by a framebuffer object (FBO), which also
+ * works with software implementations like Mesa (llvmpipe). On Linux an X server is still needed
+ * for creating the OpenGL context, a virtual one (Xvfb) is sufficient.
+ * The frames are read back asynchronously by a FrameCapture and written as PNG or raw BGRA files.
+ *
+ * The camera starts at the position of the interactive window and is rotated about the y-axis
+ * by a fixed angle per frame, so a sequence of frames shows the scene from different directions.
+ *
+ * Without any OpenGL implementation (no GPU, no driver, no display) the frames are drawn by the
+ * SoftwareRenderer instead, when asked for ("-backend=software") or as fallback of "-backend=auto".
+ */
+public class HeadlessRenderer {
+
+    private final ShapesRenderer renderer;
+    private final FrameCapture frameCapture;
+    private final int width;
+    private final int height;
+    private IOException captureError;
+
+    /**
+     * @param renderer The renderer drawing the scene, configured but not yet initialized,
+     *                 the profile of its capabilities is used for the offscreen drawable
+     * @param width Width of the frames in pixels
+     * @param height Height of the frames in pixels
+     * @param outputDirectory Directory receiving the images
+     */
+    public HeadlessRenderer(ShapesRenderer renderer, int width, int height, File outputDirectory) {
+        this(renderer, width, height, new FrameCapture(outputDirectory, "frame_"));
+    }
+
+    /**
+     * @param renderer The renderer drawing the scene, configured but not yet initialized
+     * @param width Width of the frames in pixels
+     * @param height Height of the frames in pixels
+     * @param frameCapture Writes the frames, not yet started
+     */
+    public HeadlessRenderer(ShapesRenderer renderer, int width, int height, FrameCapture frameCapture) {
+        this.renderer = renderer;
+        this.width = width;
+        this.height = height;
+        this.frameCapture = frameCapture;
+    }
+
+    /**
+     * Renders a sequence of frames and waits until all images are written.
+     * @param frames Number of frames
+     * @param angleStep Rotation of the camera about the y-axis between two frames, in degrees
+     */
+    public void render(int frames, float angleStep) throws IOException {
+        // the profile requested by the renderer decides its backend
+        GLProfile profile = renderer.getRequestedGLCapabilities().getGLProfile();
+        GLCapabilities capabilities = new GLCapabilities(profile);
+        capabilities.setOnscreen(false);
+        capabilities.setFBO(true);
+        capabilities.setDepthBits(24);
+        GLOffscreenAutoDrawable drawable = GLDrawableFactory.getFactory(profile)
+                .createOffscreenAutoDrawable(null, capabilities, null, width, height);
+        try {
+            // the listeners are called in the order of registration: draw the scene, then read it back
+            drawable.addGLEventListener(renderer);
+            drawable.addGLEventListener(new CaptureListener());
+
+            InteractionHandler camera = renderer.getInteractionHandler();
+            float startAngle = camera.getAngleYaxis();
+            for (int frame = 0; frame < frames && captureError == null; frame++) {
+                camera.setAngleYaxis(startAngle + frame * angleStep);
+                drawable.display();
+            }
+            // the last frames are still in the pixel buffer objects
+            drawable.invoke(true, glDrawable -> {
+                try {
+                    frameCapture.finish(glDrawable.getGL().getGL2GL3());
+                } catch (IOException e) {
+                    captureError = e;
+                }
+                return true;
+            });
+            if (captureError != null)
+                throw captureError;
+        } finally {
+            drawable.destroy();
+        }
+    }
+
+    /**
+     * Starts the readback of every frame drawn by the renderer.
+     */
+    private class CaptureListener implements GLEventListener {
+
+        private int frame;
+
+        @Override
+        public void init(GLAutoDrawable drawable) {
+            try {
+                frameCapture.start(drawable.getGL().getGL2GL3(), drawable.getSurfaceWidth(), drawable.getSurfaceHeight());
+            } catch (IOException e) {
+                captureError = e;
+            }
+        }
+
+        @Override
+        public void display(GLAutoDrawable drawable) {
+            if (captureError != null)
+                return;
+            try {
+                frameCapture.capture(drawable.getGL().getGL2GL3(), frame++);
+            } catch (IOException e) {
+                captureError = e;
+            }
+        }
+
+        @Override
+        public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
+        }
+
+        @Override
+        public void dispose(GLAutoDrawable drawable) {
+            frameCapture.dispose(drawable.getGL().getGL2GL3());
+        }
+    }
+
+    /**
+     * Renders a sequence of frames without opening a window.
+     * @param args "-frames=n" for the number of frames, "-size=wxh" for the size of the frames,
+     *             "-out=dir" for the output directory, "-step=deg" for the camera rotation per frame,
+     *             "-raw" for writing raw BGRA files instead of PNG images,
+     *             "-profile=file" for writing the timings of the frames as CSV file,
+     *             "-strips" for drawing the generated meshes as triangle strips,
+     *             "-backend=auto|fixed|core|software" for the OpenGL backend or the software rasterizer
+     *             (auto falls back to the software rasterizer if OpenGL is not available),
+     *             "-threads=n" for the threads of the software rasterizer,
+     *             "-instanced", "-trees=n", "-seed=s", "-scene=file", "-impostors[=distance]" and "-blend=width"
+     *             as for ShapesMainWindow (the impostors are not drawn by the software rasterizer)
+     */
+    public static void main(String[] args) {
+        // the renderer is an AWT canvas, which is never shown here
+        System.setProperty("java.awt.headless", "true");
+        int frames = 1;
+        int width = 640;
+        int height = 480;
+        File outputDirectory = new File("frames");
+        float angleStep = 0f;
+        boolean instancedRendering = false;
+        boolean meshStrips = false;
+        int treeCount = 16;
+        long seed = 1;
+        FrameEncoder encoder = FrameEncoder.PNG;
+        File profileFile = null;
+        String backend = RenderBackend.AUTO;
+        File sceneFile = null;
+        float impostorDistance = 0f;
+        float impostorBlendRange = -1f;
+        for (String arg : args) {
+            if (arg.startsWith("-frames="))
+                frames = Integer.parseInt(arg.substring("-frames=".length()));
+            else if (arg.startsWith("-size=")) {
+                String[] size = arg.substring("-size=".length()).split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if (arg.startsWith("-out="))
+                outputDirectory = new File(arg.substring("-out=".length()));
+            else if (arg.startsWith("-step="))
+                angleStep = Float.parseFloat(arg.substring("-step=".length()));
+            else if (arg.startsWith("-profile="))
+                profileFile = new File(arg.substring("-profile=".length()));
+            else if (arg.equals("-raw"))
+                encoder = FrameEncoder.RAW;
+            else if (arg.equals("-strips"))
+                meshStrips = true;
+            else if (arg.startsWith("-backend="))
+                backend = arg.substring("-backend=".length());
+            else if (arg.equals("-instanced"))
+                instancedRendering = true;
+            else if (arg.startsWith("-trees="))
+                treeCount = Integer.parseInt(arg.substring("-trees=".length()));
+            else if (arg.startsWith("-seed="))
+                seed = Long.parseLong(arg.substring("-seed=".length()));
+            else if (arg.startsWith("-scene="))
+                sceneFile = new File(arg.substring("-scene=".length()));
+            else if (arg.equals("-impostors"))
+                impostorDistance = ShapesRenderer.DEFAULT_IMPOSTOR_DISTANCE;
+            else if (arg.startsWith("-impostors="))
+                impostorDistance = Float.parseFloat(arg.substring("-impostors=".length()));
+            else if (arg.startsWith("-blend="))
+                impostorBlendRange = Float.parseFloat(arg.substring("-blend=".length()));
+        }
+        if (backend.equals(RenderBackend.SOFTWARE)
+                || backend.equals(RenderBackend.AUTO) && !isOpenGLAvailable()) {
+            SoftwareRenderer.main(args);
+            return;
+        }
+
+        try {
+            ShapesRenderer renderer = new ShapesRenderer(new GLCapabilities(RenderBackend.selectProfile(backend)));
+            renderer.setInstancedRendering(instancedRendering);
+            renderer.setMeshStrips(meshStrips);
+            renderer.setTreeCount(treeCount);
+            renderer.setImpostorDistance(impostorDistance);
+            if (impostorBlendRange >= 0f)
+                renderer.setImpostorBlendRange(impostorBlendRange);
+            renderer.getForestGenerator().setSeed(seed);
+            if (sceneFile != null)
+                renderer.setLoadedTrees(SceneFile.map(sceneFile));
+            long start = System.nanoTime();
+            FrameCapture frameCapture = new FrameCapture(outputDirectory, "frame_", encoder, 3,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+            new HeadlessRenderer(renderer, width, height, frameCapture).render(frames, angleStep);
+            System.err.printf("%d frames written to %s in %.1f s%n", frames, outputDirectory,
+                    (System.nanoTime() - start) / 1e9);
+            System.err.println(renderer.getFrameProfiler().getSummary());
+            if (profileFile != null)
+                renderer.getFrameProfiler().writeCsv(profileFile);
+        } catch (IOException | GLException | IllegalArgumentException e) {
+            System.err.println("Headless rendering failed: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * @return False if no OpenGL profile can be used, e.g. on a machine without GPU and driver
+     */
+    private static boolean isOpenGLAvailable() {
+        try {
+            RenderBackend.selectProfile(RenderBackend.AUTO);
+            return true;
+        } catch (GLException | LinkageError e) {
+            System.err.println("OpenGL is not available (" + e.getMessage() + "), using the software rasterizer");
+            return false;
+        }
+    }
+}
@@ -0,0 +1,505 @@
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2ES2;
+import com.jogamp.opengl.GL2ES3;
+import com.jogamp.opengl.GL2GL3;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Draws distant trees as impostors: camera facing quads textured with pictures of the tree taken in advance.
+ *
+ * init() renders every species and crown material from several directions into one texture (the impostor atlas):
+ * one row per elevation of the camera, from the side (0 degrees) to straight above (90 degrees), one column per
+ * azimuth around the vertical axis of the tree. The pictures are orthographic views of the bounding sphere of
+ * the tree, lit like the geometry at the distance the impostors start, so the lighting is baked into the atlas.
+ *
+ * draw() draws the impostor lists of a FrameCommands with one instanced draw call per species and material.
+ * The vertex shader picks the picture taken from the direction closest to the direction of the camera and spans
+ * the quad in the plane of that picture, so quad and picture always match. Within the blend band of the command
+ * list the trees are drawn both as geometry and as impostor; the two fade into each other by screen door
+ * transparency: a fragment of the impostor is only drawn where the fragment of the geometry is discarded
+ * (see DITHER_FUNCTION), so no sorting and blending is needed. The geometry is faded by the CoreProfileBackend
+ * and the FixedFunctionBackend (see InstancedMeshRenderer.FADE_FRAGMENT_SHADER).
+ *
+ * Works with compatibility and core profile contexts (GLSL 1.20 or 1.50), needs framebuffer objects, vertex array
+ * objects and instanced vertex attributes (OpenGL 3.3 or the corresponding extensions). Without them the
+ * renderer stays unsupported and all trees are drawn with geometry.
+ */
+public class ImpostorRenderer {
+
+    // Pictures per species and material: azimuths around the tree and elevations from 0 to 90 degrees
+    static final int AZIMUTHS = 8;
+    static final int ELEVATIONS = 4;
+    // Edge length of a picture in the atlas in pixels
+    private static final int CELL_SIZE = 128;
+    // Lowest mipmap level used, smaller levels would mix neighbouring pictures
+    private static final int MAX_MIPMAP_LEVEL = 4;
+
+    // Fixed attribute locations of the programs
+    private static final int POSITION_LOCATION = 0;
+    private static final int NORMAL_LOCATION = 1;
+    private static final int CORNER_LOCATION = 0;
+    private static final int INSTANCE_LOCATION = 1;
+    private static final int INSTANCE_STRIDE = InstancedMeshRenderer.FLOATS_PER_INSTANCE * Float.BYTES;
+
+    /**
+     * Threshold of the screen door transparency per pixel between 0 and 1 (interleaved gradient noise).
+     * A fragment with the fade factor f is discarded from the geometry if the threshold is below f and from
+     * the impostor otherwise, so geometry and impostor of a tree cover complementary pixels.
+     */
+    static final String DITHER_FUNCTION =
+            "float ditherThreshold(vec2 fragCoord) {\n" +
+            "    return fract(52.9829189 * fract(dot(fragCoord, vec2(0.06711056, 0.00583715))));\n" +
+            "}\n";
+
+    // Lighting of CoreProfileBackend and FixedFunctionBackend: light at (0, 2, 6) in eye coordinates,
+    // white light and the default ambient light of the light model
+    private static final String CAPTURE_VERTEX_SHADER =
+            "in vec3 aPosition;\n" +
+            "in vec3 aNormal;\n" +
+            "uniform mat3 uRotation;\n" +          // world to picture: rows right, up and direction to the camera
+            "uniform vec3 uOffset;\n" +            // offset of the mesh within the tree minus the bounds center
+            "uniform float uInverseRadius;\n" +
+            "uniform float uEyeDistance;\n" +      // distance of the camera lighting the picture
+            "uniform vec4 uAmbient;\n" +
+            "uniform vec4 uDiffuse;\n" +
+            "uniform vec4 uSpecular;\n" +
+            "uniform vec4 uEmission;\n" +
+            "uniform float uShininess;\n" +
+            "out vec4 vColor;\n" +
+            "void main() {\n" +
+            "    vec3 viewPosition = uRotation * (aPosition + uOffset);\n" +
+            "    vec3 eyePosition = viewPosition - vec3(0.0, 0.0, uEyeDistance);\n" +
+            "    vec3 normal = normalize(uRotation * aNormal);\n" +
+            "    vec3 lightDirection = normalize(vec3(0.0, 2.0, 6.0) - eyePosition);\n" +
+            "    float diffuseFactor = max(dot(normal, lightDirection), 0.0);\n" +
+            "    float specularFactor = 0.0;\n" +
+            "    if (diffuseFactor > 0.0) {\n" +
+            "        vec3 halfVector = normalize(lightDirection + vec3(0.0, 0.0, 1.0));\n" +
+            "        specularFactor = pow(max(dot(normal, halfVector), 0.0), uShininess);\n" +
+            "    }\n" +
+            "    vColor = uEmission + uAmbient * 0.2 + uAmbient + diffuseFactor * uDiffuse\n" +
+            "            + specularFactor * uSpecular;\n" +
+            // orthographic view of the bounding sphere, nearer points have a smaller depth
+            "    gl_Position = vec4(viewPosition.xy * uInverseRadius, -viewPosition.z * uInverseRadius, 1.0);\n" +
+            "}\n";
+
+    private static final String CAPTURE_FRAGMENT_SHADER =
+            "in vec4 vColor;\n" +
+            "void main() {\n" +
+            "    fragColor = vec4(vColor.rgb, 1.0);\n" +
+            "}\n";
+
+    private static final String VERTEX_SHADER =
+            "in vec2 aCorner;\n" +
+            "in vec4 aInstance;\n" +               // translation (xyz) and uniform scale (w)
+            "uniform mat4 uViewProjection;\n" +
+            "uniform mat4 uModelView;\n" +
+            "uniform vec3 uCamera;\n" +            // position of the camera in world coordinates
+            "uniform float uRow;\n" +              // first atlas row of the species and material
+            "uniform vec2 uFade;\n" +              // start and reciprocal width of the blend band
+            "out vec2 vTexCoord;\n" +
+            "out float vFade;\n" +
+            "void main() {\n" +
+            "    vec3 center = aInstance.xyz + vec3(0.0, 0.0, BOUNDS_CENTER_Z * aInstance.w);\n" +
+            "    vec3 toCamera = normalize(uCamera - center);\n" +
+            // the picture taken from the nearest direction, cameras below the ground see the side view
+            "    float row = floor(asin(clamp(toCamera.z, 0.0, 1.0)) / ELEVATION_STEP + 0.5);\n" +
+            "    float azimuth = abs(toCamera.x) + abs(toCamera.y) > 1e-6 ? atan(toCamera.y, toCamera.x) : 0.0;\n" +
+            "    float column = mod(floor(azimuth / AZIMUTH_STEP + 0.5), AZIMUTHS);\n" +
+            "    float e = row * ELEVATION_STEP;\n" +
+            "    float a = column * AZIMUTH_STEP;\n" +
+            // the quad lies in the picture plane, see ImpostorRenderer.setRotation()
+            "    vec3 right = vec3(-sin(a), cos(a), 0.0);\n" +
+            "    vec3 up = vec3(-sin(e) * cos(a), -sin(e) * sin(a), cos(e));\n" +
+            "    vec3 position = center + (aCorner.x * right + aCorner.y * up) * (BOUNDS_RADIUS * aInstance.w);\n" +
+            "    gl_Position = uViewProjection * vec4(position, 1.0);\n" +
+            "    vTexCoord = (vec2(column, uRow + row) + aCorner * 0.5 + 0.5) * CELL_SCALE;\n" +
+            "    float distance = length((uModelView * vec4(center, 1.0)).xyz);\n" +
+            "    vFade = clamp((distance - uFade.x) * uFade.y, 0.0, 1.0);\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "in vec2 vTexCoord;\n" +
+            "in float vFade;\n" +
+            "uniform sampler2D uAtlas;\n" +
+            DITHER_FUNCTION +
+            "void main() {\n" +
+            "    if (ditherThreshold(gl_FragCoord.xy) >= vFade)\n" +
+            "        discard;\n" +
+            "    vec4 texel = texture(uAtlas, vTexCoord);\n" +
+            "    if (texel.a < 0.5)\n" +
+            "        discard;\n" +
+            // the background of the pictures is transparent black, mipmaps average it into the color
+            "    fragColor = vec4(texel.rgb / texel.a, 1.0);\n" +
+            "}\n";
+
+    // Corners of a quad as triangle strip
+    private static final float[] QUAD_CORNERS = {-1f, -1f, 1f, -1f, -1f, 1f, 1f, 1f};
+
+    // Bounding sphere of a tree of scale 1 (center above the origin of the tree)
+    private final float treeBoundsCenterZ;
+    private final float treeBoundsRadius;
+    private boolean supported;
+
+    private int atlas;
+    private int rows;
+    private int program;
+    private int viewProjectionLocation;
+    private int modelViewLocation;
+    private int cameraLocation;
+    private int rowLocation;
+    private int fadeLocation;
+    private int vertexArray;
+    private int quadBuffer;
+    private int instanceBuffer;
+    // Camera position of the current frame, reused
+    private final float[] camera = new float[3];
+
+    /**
+     * @param treeBoundsCenterZ Height of the bounding sphere center of a tree of scale 1
+     * @param treeBoundsRadius Radius of the bounding sphere of a tree of scale 1
+     */
+    public ImpostorRenderer(float treeBoundsCenterZ, float treeBoundsRadius) {
+        this.treeBoundsCenterZ = treeBoundsCenterZ;
+        this.treeBoundsRadius = treeBoundsRadius;
+    }
+
+    /**
+     * Checks whether a context provides everything needed for the impostors.
+     * @param gl The graphics library object.
+     * @return True with framebuffer objects, vertex array objects and instanced vertex attributes
+     */
+    public static boolean isSupported(GL2GL3 gl) {
+        return gl.isFunctionAvailable("glGenFramebuffers") && gl.isFunctionAvailable("glGenerateMipmap")
+                && gl.isFunctionAvailable("glGenVertexArrays") && gl.isFunctionAvailable("glVertexAttribDivisor")
+                && gl.isFunctionAvailable("glDrawArraysInstanced");
+    }
+
+    /**
+     * Renders the impostor atlas and creates the program and buffers for drawing the impostors.
+     * Without support by the context the renderer stays unsupported and draws nothing.
+     * @param gl The graphics library object, compatibility or core profile.
+     * @param materials The materials of the scene
+     * @param trunkMaterial Material id of the trunks
+     * @param crownMaterials Material id for each crown material of the instance store
+     * @param lightingDistance Distance of the camera the pictures are lit for, normally the impostor distance
+     */
+    public void init(GL2GL3 gl, MaterialRegistry materials, int trunkMaterial, int[] crownMaterials,
+                     float lightingDistance) {
+        supported = isSupported(gl);
+        if (!supported) {
+            System.err.println("Impostors not supported, all trees are drawn with geometry");
+            return;
+        }
+        boolean core = gl.isGL3core();
+        rows = InstanceStore.SPECIES_COUNT * InstanceStore.MATERIAL_COUNT * ELEVATIONS;
+        int[] maxTextureSize = new int[1];
+        gl.glGetIntegerv(GL.GL_MAX_TEXTURE_SIZE, maxTextureSize, 0);
+        int cellSize = Math.min(CELL_SIZE, maxTextureSize[0] / Math.max(rows, AZIMUTHS));
+        createAtlas(gl, core, cellSize, materials, trunkMaterial, crownMaterials, lightingDistance);
+
+        String constants =
+                "const float BOUNDS_CENTER_Z = " + treeBoundsCenterZ + ";\n" +
+                "const float BOUNDS_RADIUS = " + treeBoundsRadius + ";\n" +
+                "const float AZIMUTHS = " + (float) AZIMUTHS + ";\n" +
+                "const float AZIMUTH_STEP = " + getAzimuthStep() + ";\n" +
+                "const float ELEVATION_STEP = " + getElevationStep() + ";\n" +
+                "const vec2 CELL_SCALE = vec2(" + 1f / AZIMUTHS + ", " + 1f / rows + ");\n";
+        program = ShaderProgram.link(gl, "impostor", getVertexHeader(core) + constants + VERTEX_SHADER,
+                getFragmentHeader(core) + FRAGMENT_SHADER, "aCorner", "aInstance");
+        viewProjectionLocation = gl.glGetUniformLocation(program, "uViewProjection");
+        modelViewLocation = gl.glGetUniformLocation(program, "uModelView");
+        cameraLocation = gl.glGetUniformLocation(program, "uCamera");
+        rowLocation = gl.glGetUniformLocation(program, "uRow");
+        fadeLocation = gl.glGetUniformLocation(program, "uFade");
+        gl.glUseProgram(program);
+        gl.glUniform1i(gl.glGetUniformLocation(program, "uAtlas"), 0);
+        gl.glUseProgram(0);
+
+        int[] buffers = new int[2];
+        gl.glGenBuffers(2, buffers, 0);
+        quadBuffer = buffers[0];
+        instanceBuffer = buffers[1];
+        int[] array = new int[1];
+        gl.glGenVertexArrays(1, array, 0);
+        vertexArray = array[0];
+        gl.glBindVertexArray(vertexArray);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, quadBuffer);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) QUAD_CORNERS.length * Float.BYTES,
+                Buffers.newDirectFloatBuffer(QUAD_CORNERS), GL.GL_STATIC_DRAW);
+        gl.glEnableVertexAttribArray(CORNER_LOCATION);
+        gl.glVertexAttribPointer(CORNER_LOCATION, 2, GL.GL_FLOAT, false, 0, 0L);
+        // the instance attribute points into the instance buffer, its offset is set per draw call
+        gl.glEnableVertexAttribArray(INSTANCE_LOCATION);
+        gl.glVertexAttribDivisor(INSTANCE_LOCATION, 1);
+        gl.glBindVertexArray(0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Renders the pictures of all species and materials into the atlas texture, through a temporary framebuffer.
+     */
+    private void createAtlas(GL2GL3 gl, boolean core, int cellSize, MaterialRegistry materials, int trunkMaterial,
+                             int[] crownMaterials, float lightingDistance) {
+        int width = AZIMUTHS * cellSize;
+        int height = rows * cellSize;
+        int[] texture = new int[1];
+        gl.glGenTextures(1, texture, 0);
+        atlas = texture[0];
+        gl.glBindTexture(GL.GL_TEXTURE_2D, atlas);
+        gl.glTexImage2D(GL.GL_TEXTURE_2D, 0, GL.GL_RGBA8, width, height, 0, GL.GL_RGBA, GL.GL_UNSIGNED_BYTE, null);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MIN_FILTER, GL.GL_LINEAR_MIPMAP_LINEAR);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_MAG_FILTER, GL.GL_LINEAR);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_S, GL.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL.GL_TEXTURE_WRAP_T, GL.GL_CLAMP_TO_EDGE);
+        gl.glTexParameteri(GL.GL_TEXTURE_2D, GL2ES3.GL_TEXTURE_MAX_LEVEL, MAX_MIPMAP_LEVEL);
+
+        int[] previousFramebuffer = new int[1];
+        gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, previousFramebuffer, 0);
+        int[] previousViewport = new int[4];
+        gl.glGetIntegerv(GL.GL_VIEWPORT, previousViewport, 0);
+        float[] previousClearColor = new float[4];
+        gl.glGetFloatv(GL.GL_COLOR_CLEAR_VALUE, previousClearColor, 0);
+        int[] framebuffer = new int[1];
+        int[] depthBuffer = new int[1];
+        gl.glGenFramebuffers(1, framebuffer, 0);
+        gl.glGenRenderbuffers(1, depthBuffer, 0);
+        gl.glBindRenderbuffer(GL.GL_RENDERBUFFER, depthBuffer[0]);
+        gl.glRenderbufferStorage(GL.GL_RENDERBUFFER, GL.GL_DEPTH_COMPONENT24, width, height);
+        gl.glBindRenderbuffer(GL.GL_RENDERBUFFER, 0);
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebuffer[0]);
+        gl.glFramebufferTexture2D(GL.GL_FRAMEBUFFER, GL.GL_COLOR_ATTACHMENT0, GL.GL_TEXTURE_2D, atlas, 0);
+        gl.glFramebufferRenderbuffer(GL.GL_FRAMEBUFFER, GL.GL_DEPTH_ATTACHMENT, GL.GL_RENDERBUFFER, depthBuffer[0]);
+        int status = gl.glCheckFramebufferStatus(GL.GL_FRAMEBUFFER);
+        if (status == GL.GL_FRAMEBUFFER_COMPLETE) {
+            gl.glViewport(0, 0, width, height);
+            gl.glClearColor(0f, 0f, 0f, 0f);
+            gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
+            gl.glEnable(GL.GL_DEPTH_TEST);
+            capture(gl, core, cellSize, materials, trunkMaterial, crownMaterials, lightingDistance);
+        } else {
+            System.err.println("Impostor atlas framebuffer incomplete (status 0x" + Integer.toHexString(status)
+                    + "), the impostors stay empty");
+        }
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, previousFramebuffer[0]);
+        gl.glViewport(previousViewport[0], previousViewport[1], previousViewport[2], previousViewport[3]);
+        gl.glClearColor(previousClearColor[0], previousClearColor[1], previousClearColor[2], previousClearColor[3]);
+        gl.glDeleteFramebuffers(1, framebuffer, 0);
+        gl.glDeleteRenderbuffers(1, depthBuffer, 0);
+
+        gl.glBindTexture(GL.GL_TEXTURE_2D, atlas);
+        gl.glGenerateMipmap(GL.GL_TEXTURE_2D);
+        gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+    }
+
+    /**
+     * Draws the tree of every species and material from every direction into its cell of the bound framebuffer.
+     */
+    private void capture(GL2GL3 gl, boolean core, int cellSize, MaterialRegistry materials, int trunkMaterial,
+                         int[] crownMaterials, float lightingDistance) {
+        int captureProgram = ShaderProgram.link(gl, "impostor capture",
+                getVertexHeader(core) + CAPTURE_VERTEX_SHADER, getFragmentHeader(core) + CAPTURE_FRAGMENT_SHADER,
+                "aPosition", "aNormal");
+        int rotationLocation = gl.glGetUniformLocation(captureProgram, "uRotation");
+        int offsetLocation = gl.glGetUniformLocation(captureProgram, "uOffset");
+        gl.glUseProgram(captureProgram);
+        gl.glUniform1f(gl.glGetUniformLocation(captureProgram, "uInverseRadius"), 1f / treeBoundsRadius);
+        gl.glUniform1f(gl.glGetUniformLocation(captureProgram, "uEyeDistance"), lightingDistance);
+
+        // the finest level of detail of the backends
+        Mesh[] meshes = {
+                ShapesRenderer.createTrunkMesh(ShapesRenderer.TREE_SLICES, ShapesRenderer.TREE_CYLINDER_STACKS),
+                ShapesRenderer.createConiferCrownMesh(ShapesRenderer.TREE_SLICES, ShapesRenderer.TREE_CYLINDER_STACKS),
+                ShapesRenderer.createBroadleavedCrownMesh(ShapesRenderer.TREE_SLICES,
+                        ShapesRenderer.TREE_SPHERE_STACKS)};
+        int trunk = 0;
+        int[] crowns = new int[InstanceStore.SPECIES_COUNT];
+        crowns[InstanceStore.SPECIES_CONIFER] = 1;
+        crowns[InstanceStore.SPECIES_BROADLEAVED] = 2;
+        int[] vertexBuffers = new int[meshes.length];
+        int[] indexBuffers = new int[meshes.length];
+        gl.glGenBuffers(meshes.length, vertexBuffers, 0);
+        gl.glGenBuffers(meshes.length, indexBuffers, 0);
+        for (int m = 0; m < meshes.length; m++) {
+            gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBuffers[m]);
+            gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) meshes[m].getVertices().limit() * Float.BYTES,
+                    meshes[m].getVertices(), GL.GL_STATIC_DRAW);
+            gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indexBuffers[m]);
+            gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long) meshes[m].getIndexCount() * Integer.BYTES,
+                    meshes[m].getIndices(), GL.GL_STATIC_DRAW);
+        }
+        int[] array = new int[1];
+        gl.glGenVertexArrays(1, array, 0);
+        gl.glBindVertexArray(array[0]);
+        gl.glEnableVertexAttribArray(POSITION_LOCATION);
+        gl.glEnableVertexAttribArray(NORMAL_LOCATION);
+
+        float[] rotation = new float[9];
+        for (int species = 0; species < InstanceStore.SPECIES_COUNT; species++) {
+            for (int material = 0; material < InstanceStore.MATERIAL_COUNT; material++) {
+                int firstRow = getFirstRow(species, material);
+                for (int row = 0; row < ELEVATIONS; row++) {
+                    for (int column = 0; column < AZIMUTHS; column++) {
+                        gl.glViewport(column * cellSize, (firstRow + row) * cellSize, cellSize, cellSize);
+                        setRotation(row * getElevationStep(), column * getAzimuthStep(), rotation);
+                        gl.glUniformMatrix3fv(rotationLocation, 1, false, rotation, 0);
+                        setMaterial(gl, captureProgram, materials.get(trunkMaterial));
+                        gl.glUniform3f(offsetLocation, 0f, 0f, -treeBoundsCenterZ);
+                        drawMesh(gl, meshes[trunk], vertexBuffers[trunk], indexBuffers[trunk]);
+                        setMaterial(gl, captureProgram, materials.get(crownMaterials[material]));
+                        gl.glUniform3f(offsetLocation, 0f, 0f, ShapesRenderer.TREE_CROWN_OFFSET_Z - treeBoundsCenterZ);
+                        int crown = crowns[species];
+                        drawMesh(gl, meshes[crown], vertexBuffers[crown], indexBuffers[crown]);
+                    }
+                }
+            }
+        }
+
+        gl.glBindVertexArray(0);
+        gl.glDeleteVertexArrays(1, array, 0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+        gl.glDeleteBuffers(meshes.length, vertexBuffers, 0);
+        gl.glDeleteBuffers(meshes.length, indexBuffers, 0);
+        gl.glUseProgram(0);
+        gl.glDeleteProgram(captureProgram);
+    }
+
+    private static void drawMesh(GL2GL3 gl, Mesh mesh, int vertexBuffer, int indexBuffer) {
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBuffer);
+        gl.glVertexAttribPointer(POSITION_LOCATION, 3, GL.GL_FLOAT, false, Mesh.VERTEX_STRIDE, 0L);
+        gl.glVertexAttribPointer(NORMAL_LOCATION, 3, GL.GL_FLOAT, false, Mesh.VERTEX_STRIDE, 3L * Float.BYTES);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, indexBuffer);
+        gl.glDrawElements(mesh.isStrip() ? GL.GL_TRIANGLE_STRIP : GL.GL_TRIANGLES, mesh.getIndexCount(),
+                GL.GL_UNSIGNED_INT, 0L);
+    }
+
+    private static void setMaterial(GL2GL3 gl, int program, Material material) {
+        gl.glUniform4f(gl.glGetUniformLocation(program, "uAmbient"), material.getAmbient(0),
+                material.getAmbient(1), material.getAmbient(2), material.getAmbient(3));
+        gl.glUniform4f(gl.glGetUniformLocation(program, "uDiffuse"), material.getDiffuse(0),
+                material.getDiffuse(1), material.getDiffuse(2), material.getDiffuse(3));
+        gl.glUniform4f(gl.glGetUniformLocation(program, "uSpecular"), material.getSpecular(0),
+                material.getSpecular(1), material.getSpecular(2), material.getSpecular(3));
+        gl.glUniform4f(gl.glGetUniformLocation(program, "uEmission"), material.getEmission(0),
+                material.getEmission(1), material.getEmission(2), material.getEmission(3));
+        gl.glUniform1f(gl.glGetUniformLocation(program, "uShininess"), material.getShininess());
+    }
+
+    /**
+     * Computes the rotation from world into picture coordinates of a camera direction, column-major.
+     * The rows are the right, up and backward (towards the camera) axis of the picture:
+     * right = (-sin a, cos a, 0), up = (-sin e cos a, -sin e sin a, cos e), back = (cos e cos a, cos e sin a, sin e).
+     * @param elevation Angle of the camera above the ground plane in radians
+     * @param azimuth Angle of the camera around the vertical axis in radians, 0 on the x-axis
+     * @param rotation Receives the 3x3 matrix
+     */
+    static void setRotation(float elevation, float azimuth, float[] rotation) {
+        float sinE = (float) Math.sin(elevation);
+        float cosE = (float) Math.cos(elevation);
+        float sinA = (float) Math.sin(azimuth);
+        float cosA = (float) Math.cos(azimuth);
+        rotation[0] = -sinA;
+        rotation[3] = cosA;
+        rotation[6] = 0f;
+        rotation[1] = -sinE * cosA;
+        rotation[4] = -sinE * sinA;
+        rotation[7] = cosE;
+        rotation[2] = cosE * cosA;
+        rotation[5] = cosE * sinA;
+        rotation[8] = sinE;
+    }
+
+    private static float getAzimuthStep() {
+        return (float) (2 * Math.PI / AZIMUTHS);
+    }
+
+    private static float getElevationStep() {
+        return (float) (Math.PI / 2 / (ELEVATIONS - 1));
+    }
+
+    /**
+     * @return First atlas row of the pictures of a species and material
+     */
+    private static int getFirstRow(int species, int material) {
+        return (species * InstanceStore.MATERIAL_COUNT + material) * ELEVATIONS;
+    }
+
+    private static String getVertexHeader(boolean core) {
+        return core ? "#version 150\n" : "#version 120\n#define in attribute\n#define out varying\n";
+    }
+
+    private static String getFragmentHeader(boolean core) {
+        return core ? "#version 150\nout vec4 fragColor;\n"
+                : "#version 120\n#define in varying\n#define fragColor gl_FragColor\n#define texture texture2D\n";
+    }
+
+    /**
+     * @return True if init() found everything needed for the impostors
+     */
+    public boolean isAvailable() {
+        return supported;
+    }
+
+    /**
+     * Draws the impostors of a command list with its camera, after the geometry.
+     * Marks the submission as submit section of the profiler and counts the draw calls.
+     * @param gl The graphics library object.
+     * @param commands Command list of this frame
+     * @param profiler Profiler of the current frame
+     */
+    public void draw(GL2GL3 gl, FrameCommands commands, FrameProfiler profiler) {
+        if (!supported || commands.getImpostorCount() == 0)
+            return;
+        profiler.beginSubmit();
+        ViewTransform view = commands.getView();
+        view.eyeToWorld(0f, 0f, 0f, camera);
+        gl.glUseProgram(program);
+        gl.glUniformMatrix4fv(viewProjectionLocation, 1, false, view.getViewProjection(), 0);
+        gl.glUniformMatrix4fv(modelViewLocation, 1, false, view.getModelView(), 0);
+        gl.glUniform3f(cameraLocation, camera[0], camera[1], camera[2]);
+        gl.glUniform2f(fadeLocation, commands.getImpostorFadeStart(), commands.getImpostorFadeScale());
+        gl.glActiveTexture(GL.GL_TEXTURE0);
+        gl.glBindTexture(GL.GL_TEXTURE_2D, atlas);
+        gl.glBindVertexArray(vertexArray);
+        FloatBuffer instances = commands.getImpostorInstances();
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBuffer);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) instances.limit() * Float.BYTES, instances,
+                GL2ES2.GL_STREAM_DRAW);
+
+        for (int species = 0; species < InstanceStore.SPECIES_COUNT; species++) {
+            for (int material = 0; material < InstanceStore.MATERIAL_COUNT; material++) {
+                int count = commands.getImpostorCount(species, material);
+                if (count == 0)
+                    continue;
+                gl.glVertexAttribPointer(INSTANCE_LOCATION, InstancedMeshRenderer.FLOATS_PER_INSTANCE, GL.GL_FLOAT,
+                        false, INSTANCE_STRIDE, (long) commands.getImpostorOffset(species, material) * INSTANCE_STRIDE);
+                gl.glUniform1f(rowLocation, getFirstRow(species, material));
+                gl.glDrawArraysInstanced(GL.GL_TRIANGLE_STRIP, 0, 4, count);
+                profiler.countDraw(2L * count);
+            }
+        }
+
+        gl.glBindVertexArray(0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        gl.glBindTexture(GL.GL_TEXTURE_2D, 0);
+        gl.glUseProgram(0);
+        profiler.endSubmit();
+    }
+
+    /**
+     * Frees the atlas, the program and the buffers.
+     * @param gl The graphics library object.
+     */
+    public void dispose(GL2GL3 gl) {
+        if (!supported)
+            return;
+        gl.glDeleteTextures(1, new int[] {atlas}, 0);
+        gl.glDeleteVertexArrays(1, new int[] {vertexArray}, 0);
+        gl.glDeleteBuffers(2, new int[] {quadBuffer, instanceBuffer}, 0);
+        gl.glDeleteProgram(program);
+        supported = false;
+    }
+}
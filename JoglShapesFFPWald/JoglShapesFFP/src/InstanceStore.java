@@ -0,0 +1,191 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Packed store for the placement of many tree instances.
+ * The data is held as struct of arrays in direct (off-heap) buffers, one column per attribute:
+ * position (x, y, z), uniform scale, species and crown material.
+ * No objects are allocated per instance, so stores with millions of instances are cheap to fill and read.
+ * A store can also be a read-only view of columns held elsewhere, e.g. of a mapped SceneFile.
+ */
+public class InstanceStore {
+
+    // Species of the trees
+    public static final byte SPECIES_BROADLEAVED = 0;
+    public static final byte SPECIES_CONIFER = 1;
+    public static final int SPECIES_COUNT = 2;
+
+    // Materials of the tree crowns
+    public static final byte MATERIAL_LEAF_GREEN = 0;
+    public static final int MATERIAL_COUNT = 1;
+
+    private final int capacity;
+    private int size;
+
+    private final FloatBuffer x;
+    private final FloatBuffer y;
+    private final FloatBuffer z;
+    private final FloatBuffer scale;
+    private final ByteBuffer species;
+    private final ByteBuffer material;
+
+    /**
+     * Creates an empty store.
+     * @param capacity Maximum number of instances
+     */
+    public InstanceStore(int capacity) {
+        this.capacity = capacity;
+        x = newFloatColumn(capacity);
+        y = newFloatColumn(capacity);
+        z = newFloatColumn(capacity);
+        scale = newFloatColumn(capacity);
+        species = ByteBuffer.allocateDirect(capacity);
+        material = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Creates a store of existing columns without copying them, e.g. views of a mapped file.
+     * The store is read-only if the columns are.
+     * @param size Number of instances, the capacity of every column
+     */
+    InstanceStore(int size, FloatBuffer x, FloatBuffer y, FloatBuffer z, FloatBuffer scale,
+                  ByteBuffer species, ByteBuffer material) {
+        this.capacity = size;
+        this.size = size;
+        this.x = x;
+        this.y = y;
+        this.z = z;
+        this.scale = scale;
+        this.species = species;
+        this.material = material;
+    }
+
+    private static FloatBuffer newFloatColumn(int capacity) {
+        return ByteBuffer.allocateDirect(capacity * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Sets the number of valid instances, e.g. after filling the columns with set().
+     * @param size Number of instances, at most the capacity
+     */
+    public void setSize(int size) {
+        if (size < 0 || size > capacity)
+            throw new IllegalArgumentException("Size " + size + " exceeds the capacity " + capacity);
+        this.size = size;
+    }
+
+    /**
+     * Writes all attributes of one instance.
+     */
+    public void set(int index, float x, float y, float z, float scale, byte species, byte material) {
+        this.x.put(index, x);
+        this.y.put(index, y);
+        this.z.put(index, z);
+        this.scale.put(index, scale);
+        this.species.put(index, species);
+        this.material.put(index, material);
+    }
+
+    /**
+     * Copies a range of instances of another store (bulk copy of every column).
+     * @param source The store to copy from
+     * @param from First instance in the source
+     * @param to First instance in this store
+     * @param count Number of instances
+     */
+    public void copy(InstanceStore source, int from, int to, int count) {
+        copyColumn(source.x, x, from, to, count);
+        copyColumn(source.y, y, from, to, count);
+        copyColumn(source.z, z, from, to, count);
+        copyColumn(source.scale, scale, from, to, count);
+        ByteBuffer speciesSource = source.species.duplicate();
+        speciesSource.limit(from + count).position(from);
+        ByteBuffer speciesTarget = species.duplicate();
+        speciesTarget.position(to);
+        speciesTarget.put(speciesSource);
+        ByteBuffer materialSource = source.material.duplicate();
+        materialSource.limit(from + count).position(from);
+        ByteBuffer materialTarget = material.duplicate();
+        materialTarget.position(to);
+        materialTarget.put(materialSource);
+    }
+
+    private static void copyColumn(FloatBuffer source, FloatBuffer target, int from, int to, int count) {
+        FloatBuffer sourceRange = source.duplicate();
+        sourceRange.limit(from + count).position(from);
+        FloatBuffer targetRange = target.duplicate();
+        targetRange.position(to);
+        targetRange.put(sourceRange);
+    }
+
+    public float getX(int index) {
+        return x.get(index);
+    }
+
+    public float getY(int index) {
+        return y.get(index);
+    }
+
+    public float getZ(int index) {
+        return z.get(index);
+    }
+
+    public float getScale(int index) {
+        return scale.get(index);
+    }
+
+    public byte getSpecies(int index) {
+        return species.get(index);
+    }
+
+    public byte getMaterial(int index) {
+        return material.get(index);
+    }
+
+    /**
+     * Checks the ids of one instance. The columns of a store mapped from a file are not checked when they are
+     * mapped, so the ids are checked where they select a batch.
+     * @return True if species and material are ids of this class
+     */
+    public boolean hasValidIds(int index) {
+        int species = this.species.get(index);
+        int material = this.material.get(index);
+        return species >= 0 && species < SPECIES_COUNT && material >= 0 && material < MATERIAL_COUNT;
+    }
+
+    /**
+     * The placement columns, e.g. for uploading them into a buffer object as they are (without a copy on the
+     * Java side). The returned buffers are read-only views of the columns from index 0 to size(); they share
+     * the memory of the store or of the mapped file, in native (generated) or little endian (mapped) byte order.
+     */
+    public FloatBuffer getXColumn() {
+        return column(x);
+    }
+
+    public FloatBuffer getYColumn() {
+        return column(y);
+    }
+
+    public FloatBuffer getZColumn() {
+        return column(z);
+    }
+
+    public FloatBuffer getScaleColumn() {
+        return column(scale);
+    }
+
+    private FloatBuffer column(FloatBuffer column) {
+        FloatBuffer view = column.asReadOnlyBuffer();
+        view.limit(size).position(0);
+        return view;
+    }
+}
@@ -0,0 +1,260 @@
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Draws many copies (instances) of a mesh with a single instanced draw call.
+ * The meshes are kept in vertex buffer objects, the per instance data is packed into one instance buffer:
+ * translation (x, y, z) and uniform scale (s), i.e. FLOATS_PER_INSTANCE floats per instance.
+ *
+ * A small GLSL 1.20 shader program transforms the instances and evaluates the lighting of GL_LIGHT0
+ * with the current material, so the result matches the fixed function pipeline.
+ * Matrices, light and material are taken from the fixed function state (compatibility profile).
+ * Instances in the blend band of the impostors are faded out by screen door transparency (setImpostorFade()),
+ * like in the CoreProfileBackend.
+ *
+ * All methods have to be called on the thread owning the OpenGL context.
+ */
+public class InstancedMeshRenderer {
+
+    // Number of floats per instance: translation (x, y, z) and uniform scale
+    public static final int FLOATS_PER_INSTANCE = 4;
+    private static final int INSTANCE_STRIDE = FLOATS_PER_INSTANCE * Float.BYTES;
+
+    // Fixed attribute locations of the shader program
+    private static final int POSITION_LOCATION = 0;
+    private static final int NORMAL_LOCATION = 1;
+    private static final int INSTANCE_LOCATION = 2;
+
+    /**
+     * Per vertex lighting of GL_LIGHT0 with the current material as done by the fixed function pipeline
+     * (infinite viewer), for GLSL 1.20 programs of a compatibility profile context.
+     */
+    static final String LIGHTING_FUNCTION =
+            "vec4 fixedFunctionLighting(vec3 eyePosition, vec3 normal) {\n" +
+            "    vec4 light = gl_LightSource[0].position;\n" +
+            "    vec3 lightDirection = normalize(light.xyz - eyePosition * light.w);\n" +
+            "    float diffuse = max(dot(normal, lightDirection), 0.0);\n" +
+            "    float specular = 0.0;\n" +
+            "    if (diffuse > 0.0) {\n" +
+            "        vec3 halfVector = normalize(lightDirection + vec3(0.0, 0.0, 1.0));\n" +
+            "        specular = pow(max(dot(normal, halfVector), 0.0), gl_FrontMaterial.shininess);\n" +
+            "    }\n" +
+            "    vec4 color = gl_FrontLightModelProduct.sceneColor + gl_FrontLightProduct[0].ambient\n" +
+            "            + diffuse * gl_FrontLightProduct[0].diffuse + specular * gl_FrontLightProduct[0].specular;\n" +
+            "    color.a = gl_FrontMaterial.diffuse.a;\n" +
+            "    return color;\n" +
+            "}\n";
+
+    /**
+     * Fragment shader discarding the fragments of geometry faded out by vFade (0 to 1, see ImpostorRenderer).
+     */
+    static final String FADE_FRAGMENT_SHADER =
+            "#version 120\n" +
+            "varying vec4 vColor;\n" +
+            "varying float vFade;\n" +
+            ImpostorRenderer.DITHER_FUNCTION +
+            "void main() {\n" +
+            "    if (vFade > 0.0 && ditherThreshold(gl_FragCoord.xy) < vFade)\n" +
+            "        discard;\n" +
+            "    gl_FragColor = vColor;\n" +
+            "}\n";
+
+    private static final String VERTEX_SHADER =
+            "#version 120\n" +
+            "attribute vec3 aPosition;\n" +
+            "attribute vec3 aNormal;\n" +
+            "attribute vec4 aInstance;\n" + // translation (xyz) and uniform scale (w)
+            "uniform vec3 uOffset;\n" +     // offset of the mesh within the model, applied before scaling
+            "uniform vec2 uImpostorFade;\n" + // start and reciprocal width of the blend band into the impostors
+            "const float BOUNDS_CENTER_Z = " + ShapesRenderer.TREE_BOUNDS_CENTER_Z + ";\n" +
+            "varying vec4 vColor;\n" +
+            "varying float vFade;\n" +
+            LIGHTING_FUNCTION +
+            "void main() {\n" +
+            // the same fade factor as the impostor of the tree, from the distance of its bounding sphere center
+            "    vec4 center = gl_ModelViewMatrix\n" +
+            "            * vec4(aInstance.xyz + vec3(0.0, 0.0, BOUNDS_CENTER_Z * aInstance.w), 1.0);\n" +
+            "    vFade = clamp((length(center.xyz) - uImpostorFade.x) * uImpostorFade.y, 0.0, 1.0);\n" +
+            "    vec4 position = vec4((aPosition + uOffset) * aInstance.w + aInstance.xyz, 1.0);\n" +
+            "    vec3 eyePosition = vec3(gl_ModelViewMatrix * position);\n" +
+            "    vColor = fixedFunctionLighting(eyePosition, normalize(gl_NormalMatrix * aNormal));\n" +
+            "    gl_Position = gl_ModelViewProjectionMatrix * position;\n" +
+            "}\n";
+
+    // Buffer objects of one mesh
+    private static class MeshBuffers {
+        final int vertexBuffer;
+        final int indexBuffer;
+        final int indexCount;
+        // GL_TRIANGLES or GL_TRIANGLE_STRIP
+        final int mode;
+        final int triangleCount;
+
+        MeshBuffers(int vertexBuffer, int indexBuffer, int indexCount, int mode, int triangleCount) {
+            this.vertexBuffer = vertexBuffer;
+            this.indexBuffer = indexBuffer;
+            this.indexCount = indexCount;
+            this.mode = mode;
+            this.triangleCount = triangleCount;
+        }
+    }
+
+    private final List<MeshBuffers> meshes = new ArrayList<>();
+    private int program;
+    private int offsetLocation;
+    private int impostorFadeLocation;
+    private int instanceBuffer;
+
+    /**
+     * Checks whether the current context supports instanced drawing with instance attributes.
+     * @param gl The graphics library object, compatibility mode.
+     * @return True if the instanced path can be used
+     */
+    public static boolean isSupported(GL2 gl) {
+        return gl.isFunctionAvailable("glDrawElementsInstanced")
+                && gl.isFunctionAvailable("glVertexAttribDivisor")
+                && gl.isFunctionAvailable("glCreateProgram");
+    }
+
+    /**
+     * Compiles the shader program and creates the instance buffer.
+     * @param gl The graphics library object, compatibility mode.
+     */
+    public void init(GL2 gl) {
+        // the attribute names in the order of their locations
+        program = ShaderProgram.link(gl, "instancing", VERTEX_SHADER, FADE_FRAGMENT_SHADER,
+                "aPosition", "aNormal", "aInstance");
+        offsetLocation = gl.glGetUniformLocation(program, "uOffset");
+        impostorFadeLocation = gl.glGetUniformLocation(program, "uImpostorFade");
+
+        int[] buffer = new int[1];
+        gl.glGenBuffers(1, buffer, 0);
+        instanceBuffer = buffer[0];
+    }
+
+    /**
+     * Uploads a mesh into buffer objects.
+     * @param gl The graphics library object, compatibility mode.
+     * @param mesh The mesh to upload
+     * @return Handle of the mesh for draw()
+     */
+    public int addMesh(GL2 gl, Mesh mesh) {
+        int[] buffers = new int[2];
+        gl.glGenBuffers(2, buffers, 0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers[0]);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) mesh.getVertices().limit() * Float.BYTES,
+                mesh.getVertices(), GL.GL_STATIC_DRAW);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, buffers[1]);
+        gl.glBufferData(GL.GL_ELEMENT_ARRAY_BUFFER, (long) mesh.getIndexCount() * Integer.BYTES,
+                mesh.getIndices(), GL.GL_STATIC_DRAW);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+        meshes.add(new MeshBuffers(buffers[0], buffers[1], mesh.getIndexCount(),
+                mesh.isStrip() ? GL.GL_TRIANGLE_STRIP : GL.GL_TRIANGLES, mesh.getTriangleCount()));
+        return meshes.size() - 1;
+    }
+
+    /**
+     * Replaces the content of the instance buffer.
+     * @param gl The graphics library object, compatibility mode.
+     * @param instances Packed instance data from position 0 up to the limit
+     * @param usage Expected usage, e.g. GL_STATIC_DRAW for instances that rarely change
+     */
+    public void setInstances(GL2 gl, FloatBuffer instances, int usage) {
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBuffer);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) instances.limit() * Float.BYTES, instances, usage);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+    }
+
+    /**
+     * Activates the shader program and the vertex attributes. Has to be called before draw().
+     * @param gl The graphics library object, compatibility mode.
+     */
+    public void begin(GL2 gl) {
+        gl.glUseProgram(program);
+        gl.glEnableVertexAttribArray(POSITION_LOCATION);
+        gl.glEnableVertexAttribArray(NORMAL_LOCATION);
+        gl.glEnableVertexAttribArray(INSTANCE_LOCATION);
+        gl.glVertexAttribDivisor(INSTANCE_LOCATION, 1);
+    }
+
+    /**
+     * Sets the blend band of the impostors (see FrameCommands.getImpostorFadeStart()), the instances in it are
+     * faded out. Has to be called between begin() and end().
+     * @param gl The graphics library object, compatibility mode.
+     * @param start Distance from the camera at which the band starts
+     * @param scale Reciprocal width of the band, 0 for drawing all instances unfaded
+     */
+    public void setImpostorFade(GL2 gl, float start, float scale) {
+        gl.glUniform2f(impostorFadeLocation, start, scale);
+    }
+
+    /**
+     * Draws a range of instances of a mesh with one draw call, using the current material.
+     * @param gl The graphics library object, compatibility mode.
+     * @param mesh Handle returned by addMesh()
+     * @param offsetX Offset of the mesh within the model in x-direction (before scaling)
+     * @param offsetY Offset of the mesh within the model in y-direction (before scaling)
+     * @param offsetZ Offset of the mesh within the model in z-direction (before scaling)
+     * @param firstInstance Index of the first instance in the instance buffer
+     * @param instanceCount Number of instances to draw
+     */
+    public void draw(GL2 gl, int mesh, float offsetX, float offsetY, float offsetZ,
+                     int firstInstance, int instanceCount) {
+        if (instanceCount <= 0)
+            return;
+        MeshBuffers buffers = meshes.get(mesh);
+        gl.glUniform3f(offsetLocation, offsetX, offsetY, offsetZ);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, buffers.vertexBuffer);
+        gl.glVertexAttribPointer(POSITION_LOCATION, 3, GL.GL_FLOAT, false, Mesh.VERTEX_STRIDE, 0L);
+        gl.glVertexAttribPointer(NORMAL_LOCATION, 3, GL.GL_FLOAT, false, Mesh.VERTEX_STRIDE, 3L * Float.BYTES);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, instanceBuffer);
+        gl.glVertexAttribPointer(INSTANCE_LOCATION, FLOATS_PER_INSTANCE, GL.GL_FLOAT, false, INSTANCE_STRIDE,
+                (long) firstInstance * INSTANCE_STRIDE);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, buffers.indexBuffer);
+        gl.glDrawElementsInstanced(buffers.mode, buffers.indexCount, GL.GL_UNSIGNED_INT, 0L, instanceCount);
+    }
+
+    /**
+     * @return Number of triangles of one instance of a mesh
+     */
+    public int getTriangleCount(int mesh) {
+        return meshes.get(mesh).triangleCount;
+    }
+
+    /**
+     * Restores the fixed function state after drawing.
+     * @param gl The graphics library object, compatibility mode.
+     */
+    public void end(GL2 gl) {
+        gl.glVertexAttribDivisor(INSTANCE_LOCATION, 0);
+        gl.glDisableVertexAttribArray(INSTANCE_LOCATION);
+        gl.glDisableVertexAttribArray(NORMAL_LOCATION);
+        gl.glDisableVertexAttribArray(POSITION_LOCATION);
+        gl.glBindBuffer(GL.GL_ELEMENT_ARRAY_BUFFER, 0);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        gl.glUseProgram(0);
+    }
+
+    /**
+     * Frees the shader program and all buffer objects.
+     * @param gl The graphics library object, compatibility mode.
+     */
+    public void dispose(GL2 gl) {
+        for (MeshBuffers buffers : meshes)
+            gl.glDeleteBuffers(2, new int[] {buffers.vertexBuffer, buffers.indexBuffer}, 0);
+        meshes.clear();
+        if (instanceBuffer != 0) {
+            gl.glDeleteBuffers(1, new int[] {instanceBuffer}, 0);
+            instanceBuffer = 0;
+        }
+        if (program != 0) {
+            gl.glDeleteProgram(program);
+            program = 0;
+        }
+    }
+}
@@ -1,33 +1,54 @@
 import java.awt.*;
 import java.awt.event.*;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Java class for handling the keyboard and mouse interaction.
  * Intented to be used for an OpenGL scene renderer.
+ * The events arrive on the AWT event thread while the renderer draws on its own thread, so the camera
+ * is kept as an immutable CameraState: every change publishes a new snapshot and the renderer reads the
+ * latest one once per frame (getCameraState()), so it never sees the values of different changes mixed up.
+ *
+ * The events only record the input: which keys are held (getHeldKeys()) and the mouse motion since
+ * the last frame (drainPointerMotion()). A CameraController turns them into camera motion over the real
+ * frame time, so the speed does not depend on the key repeat rate of the system or the rate of mouse events.
  * @author Karsten Lehn
  * @version 23.8.2017, 10.9.2017
  */
 
-public class InteractionHandler implements KeyListener, MouseListener, MouseMotionListener, MouseWheelListener{
+public class InteractionHandler implements KeyListener, MouseListener, MouseMotionListener, MouseWheelListener,
+        FocusListener {
+
+    // Bits of the held keys
+    public static final int KEY_LEFT = 1;
+    public static final int KEY_RIGHT = 2;
+    public static final int KEY_UP = 4;
+    public static final int KEY_DOWN = 8;
+    public static final int KEY_MINUS = 16;
+    public static final int KEY_PLUS = 32;
+    public static final int KEY_CTRL = 64;
+
+    private static final CameraState NO_MOTION = new CameraState(0f, 0f, 0f, 0f, 0f);
 
     // Constant for debugging purposes
     private static final boolean VERBOSE = false;
 
+    // Camera distance, scene translation and rotation, replaced as a whole
+    private final AtomicReference<CameraState> camera = new AtomicReference<>(new CameraState(2f, 0f, 0f, 0f, 0f));
     // Variables for camera distance
-    private float eyeZ = 2f;
     private float eyeZInc = 0.01f;
     // Variables for scene rotation
-    private float angleXaxis = 0f;
-    private float angleYaxis = 0f;
     private float angleXaxisInc = 1f;
     private float angleYaxisInc = 1f;
     // Variables for scene translation
-    private float xPosition = 0f;
-    private float yPosition = 0f;
     private float xPositionInc = 0.1f;
     private float yPositionInc= 0.1f;
-    // Variables for keyboard control
-    private boolean ctrlKeyPressed = false;
+    // Variables for keyboard control, only written on the event thread
+    private volatile int heldKeys;
+    // Mouse motion since the last drainPointerMotion(), as differences of the camera values
+    private final AtomicReference<CameraState> pointerMotion = new AtomicReference<>(NO_MOTION);
+    // Informed about every recorded input, e.g. for drawing a frame on demand
+    private volatile Runnable inputListener;
     // Variables for mouse control
     private boolean leftMouseButtonPressed = false;
     private boolean rightMouseButtonPressed = false;
@@ -43,12 +64,73 @@ public class InteractionHandler implements KeyListener, MouseListener, MouseMoti
     public InteractionHandler() {
     }
 
+    /**
+     * @return The latest camera, consistent in all values. Can be called from any thread.
+     */
+    public CameraState getCameraState() {
+        return camera.get();
+    }
+
+    /**
+     * Replaces the camera. Can be called from any thread.
+     */
+    public void setCameraState(CameraState cameraState) {
+        camera.set(cameraState);
+    }
+
+    /**
+     * Publishes the camera moved by the given amounts. Can be called from any thread.
+     * @return The moved camera
+     */
+    public CameraState moveCamera(float eyeZDelta, float xPositionDelta, float yPositionDelta,
+                                  float angleXaxisDelta, float angleYaxisDelta) {
+        return camera.updateAndGet(state -> state.moved(eyeZDelta, xPositionDelta, yPositionDelta,
+                angleXaxisDelta, angleYaxisDelta));
+    }
+
+    /**
+     * Sets the listener informed after every recorded input (key, drag, wheel, loss of focus).
+     * It is called on the event thread and has to return quickly.
+     * @param inputListener The listener, null for none
+     */
+    public void setInputListener(Runnable inputListener) {
+        this.inputListener = inputListener;
+    }
+
+    private void notifyInput() {
+        Runnable listener = inputListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /**
+     * @return The keys held down at the moment, combination of the KEY_ bits
+     */
+    public int getHeldKeys() {
+        return heldKeys;
+    }
+
+    /**
+     * Takes the mouse motion (drags and wheel) since the last call.
+     * @return The motion as differences of the camera values, not yet applied to the camera
+     */
+    public CameraState drainPointerMotion() {
+        return pointerMotion.getAndSet(NO_MOTION);
+    }
+
+    /**
+     * @return True if there is mouse motion not taken by drainPointerMotion() yet
+     */
+    public boolean hasPointerMotion() {
+        return pointerMotion.get() != NO_MOTION;
+    }
+
     public float getEyeZ() {
-        return eyeZ;
+        return camera.get().getEyeZ();
     }
 
     public void setEyeZ(float eyeZ) {
-        this.eyeZ = eyeZ;
+        camera.updateAndGet(state -> state.withEyeZ(eyeZ));
     }
 
     public float getEyeZInc() {
@@ -60,19 +142,19 @@ public class InteractionHandler implements KeyListener, MouseListener, MouseMoti
     }
 
     public float getAngleXaxis() {
-        return angleXaxis;
+        return camera.get().getAngleXaxis();
     }
 
     public void setAngleXaxis(float angleXaxis) {
-        this.angleXaxis = angleXaxis;
+        camera.updateAndGet(state -> state.withAngles(angleXaxis, state.getAngleYaxis()));
     }
 
     public float getAngleYaxis() {
-        return angleYaxis;
+        return camera.get().getAngleYaxis();
     }
 
     public void setAngleYaxis(float angleYaxis) {
-        this.angleYaxis = angleYaxis;
+        camera.updateAndGet(state -> state.withAngles(state.getAngleXaxis(), angleYaxis));
     }
 
     public float getAngleXaxisInc() {
@@ -92,19 +174,19 @@ public class InteractionHandler implements KeyListener, MouseListener, MouseMoti
     }
 
     public float getxPosition() {
-        return xPosition;
+        return camera.get().getxPosition();
     }
 
     public void setxPosition(float xPosition) {
-        this.xPosition = xPosition;
+        camera.updateAndGet(state -> state.withPosition(xPosition, state.getyPosition()));
     }
 
     public float getyPosition() {
-        return yPosition;
+        return camera.get().getyPosition();
     }
 
     public void setyPosition(float yPosition) {
-        this.yPosition = yPosition;
+        camera.updateAndGet(state -> state.withPosition(state.getxPosition(), yPosition));
     }
 
     public float getxPositionInc() {
@@ -141,55 +223,38 @@ public class InteractionHandler implements KeyListener, MouseListener, MouseMoti
      * Handles all key input.
      */
     public void keyPressed(KeyEvent e) {
-        int keyCode = e.getKeyCode();
+        // repeated events of a held key change nothing, the controller moves the camera while the key is held
+        heldKeys |= keyBit(e.getKeyCode());
+        notifyInput();
+    }
+
+    @Override
+    /**
+     * Implements one method of the interface KeyListener
+     */
+    public void keyReleased(KeyEvent e) {
+        heldKeys &= ~keyBit(e.getKeyCode());
+        notifyInput();
+    }
+
+    private static int keyBit(int keyCode) {
         switch (keyCode) {
             case KeyEvent.VK_CONTROL:
-                ctrlKeyPressed = true;
-                break;
+                return KEY_CTRL;
             case KeyEvent.VK_LEFT:
-                if (ctrlKeyPressed) {
-                    xPosition += xPositionInc;
-                } else {
-                    angleYaxis += angleYaxisInc;
-                }
-                break;
+                return KEY_LEFT;
             case KeyEvent.VK_RIGHT:
-                if (ctrlKeyPressed) {
-                    xPosition -= xPositionInc;
-                } else {
-                    angleYaxis -= angleYaxisInc;
-                }
-                break;
+                return KEY_RIGHT;
             case KeyEvent.VK_UP:
-                if (ctrlKeyPressed) {
-                    yPosition -= yPositionInc;
-                } else {
-                    angleXaxis += angleXaxisInc;
-                }
-                break;
+                return KEY_UP;
             case KeyEvent.VK_DOWN:
-                if (ctrlKeyPressed) {
-                    yPosition += yPositionInc;
-                } else {
-                    angleXaxis -= angleXaxisInc;
-                }
-                break;
+                return KEY_DOWN;
             case KeyEvent.VK_MINUS:
-                eyeZ = eyeZ - eyeZInc;
-                break;
+                return KEY_MINUS;
             case KeyEvent.VK_PLUS:
-                eyeZ = eyeZ + eyeZInc;
-                break;
-        }
-    }
-
-    @Override
-    /**
-     * Implements one method of the interface KeyListener
-     */
-    public void keyReleased(KeyEvent e) {
-        if (e.getKeyCode() == KeyEvent.VK_CONTROL) {
-            ctrlKeyPressed = false;
+                return KEY_PLUS;
+            default:
+                return 0;
         }
     }
 
@@ -306,16 +371,21 @@ public class InteractionHandler implements KeyListener, MouseListener, MouseMoti
         double deltaX = currentMouseLocation.getX() - lastMouseLocation.getX();
         double deltaY = currentMouseLocation.getY() - lastMouseLocation.getY();
         lastMouseLocation = currentMouseLocation;
-        // holding the left mouse button rotates the scene
+        // holding the left mouse button rotates the scene, holding the right mouse button translates it
+        float angleXaxisDelta = 0f;
+        float angleYaxisDelta = 0f;
+        float xPositionDelta = 0f;
+        float yPositionDelta = 0f;
         if (leftMouseButtonPressed) {
-            angleYaxis += angleYaxisInc * mouseRotationFactor * -deltaX;
-            angleXaxis += angleXaxisInc * mouseRotationFactor * -deltaY;
+            angleYaxisDelta = (float) (angleYaxisInc * mouseRotationFactor * -deltaX);
+            angleXaxisDelta = (float) (angleXaxisInc * mouseRotationFactor * -deltaY);
         }
-        // holding the right mouse button translates the scene
         if (rightMouseButtonPressed) {
-            xPosition += xPositionInc * mouseTranslationFactor * -deltaX;
-            yPosition += yPositionInc * mouseTranslationFactor * +deltaY;
+            xPositionDelta = (float) (xPositionInc * mouseTranslationFactor * -deltaX);
+            yPositionDelta = (float) (yPositionInc * mouseTranslationFactor * +deltaY);
         }
+        if (leftMouseButtonPressed || rightMouseButtonPressed)
+            addPointerMotion(0f, xPositionDelta, yPositionDelta, angleXaxisDelta, angleYaxisDelta);
     }
 
     /**
@@ -334,6 +404,33 @@ public class InteractionHandler implements KeyListener, MouseListener, MouseMoti
             System.out.print("Mouse wheel moved event.");
             System.out.println(" Wheel rotation: " + e.getPreciseWheelRotation());
         }
-        eyeZ += eyeZInc * mouseWheelScrollFactor * e.getPreciseWheelRotation();
+        addPointerMotion((float) (eyeZInc * mouseWheelScrollFactor * e.getPreciseWheelRotation()), 0f, 0f, 0f, 0f);
+    }
+
+    /**
+     * Adds to the mouse motion of the current frame. Many events between two frames add up to one motion.
+     */
+    private void addPointerMotion(float eyeZDelta, float xPositionDelta, float yPositionDelta,
+                                  float angleXaxisDelta, float angleYaxisDelta) {
+        pointerMotion.updateAndGet(motion -> motion.moved(eyeZDelta, xPositionDelta, yPositionDelta,
+                angleXaxisDelta, angleYaxisDelta));
+        notifyInput();
+    }
+
+    /**
+     * Implements one method of the interface FocusListener
+     */
+    @Override
+    public void focusGained(FocusEvent e) {
+    }
+
+    /**
+     * Implements one method of the interface FocusListener
+     * The release of keys held while the focus is lost is never reported, so they count as released.
+     */
+    @Override
+    public void focusLost(FocusEvent e) {
+        heldKeys = 0;
+        notifyInput();
     }
 }
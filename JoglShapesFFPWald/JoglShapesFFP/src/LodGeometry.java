@@ -0,0 +1,58 @@
+/**
+ * Several tessellation levels of one shape, from the finest (level 0) to the coarsest.
+ * Each level halves the number of slices and stacks of the previous one, down to a minimum.
+ * The handles of the levels are created by a builder, e.g. display lists of the GeometryCache
+ * or meshes of the InstancedMeshRenderer.
+ */
+public class LodGeometry {
+
+    /**
+     * Creates the handle of one tessellation level.
+     */
+    public interface LevelBuilder {
+        int build(int slices, int stacks);
+    }
+
+    private final int[] handles;
+    private final int[] slices;
+    private final int[] stacks;
+
+    /**
+     * Builds all levels of a shape.
+     * @param levels Number of levels
+     * @param slices Number of slices of the finest level
+     * @param stacks Number of stacks of the finest level
+     * @param minSlices Lower bound for the number of slices
+     * @param minStacks Lower bound for the number of stacks
+     * @param builder Creates the handle for a given tessellation
+     */
+    public LodGeometry(int levels, int slices, int stacks, int minSlices, int minStacks, LevelBuilder builder) {
+        handles = new int[levels];
+        this.slices = new int[levels];
+        this.stacks = new int[levels];
+        for (int level = 0; level < levels; level++) {
+            this.slices[level] = Math.max(minSlices, slices >> level);
+            this.stacks[level] = Math.max(minStacks, stacks >> level);
+            handles[level] = builder.build(this.slices[level], this.stacks[level]);
+        }
+    }
+
+    public int getLevelCount() {
+        return handles.length;
+    }
+
+    /**
+     * @return The handle of a level; levels beyond the coarsest one return the coarsest handle
+     */
+    public int getHandle(int level) {
+        return handles[Math.min(level, handles.length - 1)];
+    }
+
+    public int getSlices(int level) {
+        return slices[Math.min(level, slices.length - 1)];
+    }
+
+    public int getStacks(int level) {
+        return stacks[Math.min(level, stacks.length - 1)];
+    }
+}
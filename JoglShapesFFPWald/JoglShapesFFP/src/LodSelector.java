@@ -0,0 +1,132 @@
+import java.util.Arrays;
+
+/**
+ * Selects the level of detail of every instance from its projected size on the screen.
+ * Level 0 is the finest level. An instance stays at level i as long as its projected size (in pixels)
+ * is at least thresholds[i]. The hysteresis widens the thresholds around the current level,
+ * so instances close to a threshold do not switch back and forth between levels (popping).
+ *
+ * The current level of each instance is kept between frames, indexed like the instance store.
+ */
+public class LodSelector {
+
+    // Minimum projected sizes in pixels for the levels 0 .. n-2, descending
+    private float[] thresholds = {120f, 40f};
+    // Relative widening of the thresholds
+    private float hysteresis = 0.15f;
+    // Factor applied to the projected sizes, below 1 for coarser levels (level of detail bias)
+    private float detailScale = 1f;
+    // Current level of every instance
+    private byte[] levels = new byte[0];
+
+    /**
+     * Sets the thresholds. For n thresholds there are n + 1 levels.
+     * @param thresholds Minimum projected sizes in pixels, in descending order
+     */
+    public void setThresholds(float... thresholds) {
+        for (int i = 1; i < thresholds.length; i++) {
+            if (thresholds[i] > thresholds[i - 1])
+                throw new IllegalArgumentException("LOD thresholds must be descending");
+        }
+        this.thresholds = thresholds.clone();
+        Arrays.fill(levels, (byte) 0);
+    }
+
+    public float[] getThresholds() {
+        return thresholds.clone();
+    }
+
+    /**
+     * @param hysteresis Relative widening of the thresholds, e.g. 0.15 for 15 percent
+     */
+    public void setHysteresis(float hysteresis) {
+        this.hysteresis = hysteresis;
+    }
+
+    public float getHysteresis() {
+        return hysteresis;
+    }
+
+    /**
+     * Scales the projected sizes before the selection, e.g. 0.5 selects the levels of trees half as large.
+     * Lowered when frames take too long (see ShapesRenderer.setDetailScale()).
+     * Must not be changed while a FramePipeline stage selects levels.
+     * @param detailScale Factor greater than 0, 1 for no bias
+     */
+    public void setDetailScale(float detailScale) {
+        this.detailScale = detailScale;
+    }
+
+    public float getDetailScale() {
+        return detailScale;
+    }
+
+    /**
+     * @return Number of levels (number of thresholds + 1)
+     */
+    public int getLevelCount() {
+        return thresholds.length + 1;
+    }
+
+    /**
+     * Makes sure that the level of at least count instances can be stored.
+     * Newly added instances start with the finest level.
+     */
+    public void ensureCapacity(int count) {
+        if (levels.length < count)
+            levels = Arrays.copyOf(levels, count);
+    }
+
+    /**
+     * Resets all instances to the finest level, e.g. after the instances have been replaced.
+     */
+    public void reset() {
+        Arrays.fill(levels, (byte) 0);
+    }
+
+    /**
+     * Resets a range of instances to the finest level, e.g. after new instances were written there.
+     * @param from First instance
+     * @param to Instance after the range
+     */
+    public void reset(int from, int to) {
+        Arrays.fill(levels, from, to, (byte) 0);
+    }
+
+    /**
+     * Moves the levels of a range of instances along with the instances, e.g. when a store is compacted.
+     * The ranges may overlap.
+     * @param from First instance of the range before the move
+     * @param to First instance of the range after the move
+     * @param count Number of instances
+     */
+    public void move(int from, int to, int count) {
+        System.arraycopy(levels, from, levels, to, count);
+    }
+
+    /**
+     * Selects the level of an instance for the current frame and remembers it for the next frame.
+     * @param instance Index of the instance
+     * @param projectedSize Projected size of the instance in pixels
+     * @return The selected level
+     */
+    public int select(int instance, float projectedSize) {
+        projectedSize *= detailScale;
+        int level = levels[instance];
+        // refine while the instance is clearly larger than the threshold of the next finer level
+        while (level > 0 && projectedSize >= thresholds[level - 1] * (1f + hysteresis))
+            level--;
+        // coarsen while the instance is clearly smaller than the threshold of its level
+        while (level < thresholds.length && projectedSize < thresholds[level] * (1f - hysteresis))
+            level++;
+        levels[instance] = (byte) level;
+        return level;
+    }
+
+    /**
+     * @return The level selected for an instance in the last frame
+     */
+    public int getLevel(int instance) {
+        return levels[instance];
+    }
+}
@@ -0,0 +1,92 @@
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.fixedfunc.GLLightingFunc;
+
+/**
+ * Immutable material for the lighting of the fixed function pipeline.
+ * The color arrays are copied on construction and never handed out, so a material can be shared
+ * and applied any number of times without allocating new arrays.
+ */
+public final class Material {
+
+    // Materials of the trees, shared by the renderers
+    public static final Material LEAF_GREEN = new Material("leaf green",
+            new float[] {0.0f, 0.1f, 0.0f, 1.0f}, new float[] {0.0f, 0.5f, 0.0f, 1.0f},
+            new float[] {0.3f, 0.3f, 0.3f, 1.0f}, new float[] {0.0f, 0.0f, 0.0f, 1.0f}, 1.0f);
+    public static final Material WOOD_BROWN = new Material("wood brown",
+            new float[] {0f, 0.1f, 0.0f, 0.0f}, new float[] {0.0f, 0.0f, 0.0f, 1.0f},
+            new float[] {0.3f, 0.3f, 0.3f, 1.0f}, new float[] {0.647059f, 0.164706f, 0.164706f, 1.0f}, 0.5f);
+
+    private final String name;
+    private final float[] ambient;
+    private final float[] diffuse;
+    private final float[] specular;
+    private final float[] emission;
+    private final float shininess;
+
+    /**
+     * Creates a material. All colors are RGBA arrays of length 4.
+     */
+    public Material(String name, float[] ambient, float[] diffuse, float[] specular, float[] emission,
+                    float shininess) {
+        this.name = name;
+        this.ambient = ambient.clone();
+        this.diffuse = diffuse.clone();
+        this.specular = specular.clone();
+        this.emission = emission.clone();
+        this.shininess = shininess;
+    }
+
+    /**
+     * Sets the material for front and back faces.
+     * @param gl The graphics library object, compatibility mode.
+     */
+    public void apply(GL2 gl) {
+        gl.glMaterialfv(GL.GL_FRONT_AND_BACK, GLLightingFunc.GL_AMBIENT, ambient, 0);
+        gl.glMaterialfv(GL.GL_FRONT_AND_BACK, GLLightingFunc.GL_DIFFUSE, diffuse, 0);
+        gl.glMaterialfv(GL.GL_FRONT_AND_BACK, GLLightingFunc.GL_SPECULAR, specular, 0);
+        gl.glMaterialfv(GL.GL_FRONT_AND_BACK, GLLightingFunc.GL_EMISSION, emission, 0);
+        gl.glMaterialf(GL.GL_FRONT_AND_BACK, GLLightingFunc.GL_SHININESS, shininess);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return One component (0 = red ... 3 = alpha) of the diffuse color
+     */
+    public float getDiffuse(int component) {
+        return diffuse[component];
+    }
+
+    /**
+     * @return One component (0 = red ... 3 = alpha) of the ambient color
+     */
+    public float getAmbient(int component) {
+        return ambient[component];
+    }
+
+    /**
+     * @return One component (0 = red ... 3 = alpha) of the specular color
+     */
+    public float getSpecular(int component) {
+        return specular[component];
+    }
+
+    /**
+     * @return One component (0 = red ... 3 = alpha) of the emitted color
+     */
+    public float getEmission(int component) {
+        return emission[component];
+    }
+
+    public float getShininess() {
+        return shininess;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
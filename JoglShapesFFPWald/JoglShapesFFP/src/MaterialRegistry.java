@@ -0,0 +1,29 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Registry of all materials of a scene. Materials are referenced by their id (registration order),
+ * which keeps the backends free of object references: they index their per material tables by the id.
+ * The ids do not appear in the command lists, which are batched by the crown materials of the InstanceStore.
+ */
+public class MaterialRegistry {
+
+    private final List<Material> materials = new ArrayList<>();
+
+    /**
+     * Registers a material.
+     * @return The id of the material
+     */
+    public int register(Material material) {
+        materials.add(material);
+        return materials.size() - 1;
+    }
+
+    public Material get(int id) {
+        return materials.get(id);
+    }
+
+    public int size() {
+        return materials.size();
+    }
+}
@@ -0,0 +1,181 @@
+/**
+ * Helper methods for 4x4 matrices as used by OpenGL.
+ * The matrices are stored in column-major order in float arrays of length 16 (like glLoadMatrixf expects).
+ * The methods write into a result array passed by the caller, so no objects are allocated.
+ */
+public class MatrixMath {
+
+    private MatrixMath() {
+    }
+
+    /**
+     * Sets a matrix to the identity.
+     */
+    public static void setIdentity(float[] m) {
+        for (int i = 0; i < 16; i++)
+            m[i] = (i % 5 == 0) ? 1f : 0f;
+    }
+
+    /**
+     * Multiplies two matrices: result = a * b. The result may be one of the operands.
+     * @param temp Scratch array of length 16
+     */
+    public static void multiply(float[] a, float[] b, float[] result, float[] temp) {
+        for (int column = 0; column < 4; column++) {
+            for (int row = 0; row < 4; row++) {
+                temp[column * 4 + row] = a[row] * b[column * 4]
+                        + a[4 + row] * b[column * 4 + 1]
+                        + a[8 + row] * b[column * 4 + 2]
+                        + a[12 + row] * b[column * 4 + 3];
+            }
+        }
+        System.arraycopy(temp, 0, result, 0, 16);
+    }
+
+    /**
+     * Multiplies a matrix with a translation from the right (like glTranslatef).
+     */
+    public static void translate(float[] m, float x, float y, float z) {
+        for (int row = 0; row < 4; row++)
+            m[12 + row] += m[row] * x + m[4 + row] * y + m[8 + row] * z;
+    }
+
+    /**
+     * Multiplies a matrix with a scaling from the right (like glScalef).
+     */
+    public static void scale(float[] m, float x, float y, float z) {
+        for (int row = 0; row < 4; row++) {
+            m[row] *= x;
+            m[4 + row] *= y;
+            m[8 + row] *= z;
+        }
+    }
+
+    /**
+     * Multiplies a matrix with a rotation about the x-axis from the right (like glRotatef(angle, 1, 0, 0)).
+     * @param degrees Rotation angle in degrees
+     */
+    public static void rotateX(float[] m, float degrees) {
+        double radians = Math.toRadians(degrees);
+        float c = (float) Math.cos(radians);
+        float s = (float) Math.sin(radians);
+        for (int row = 0; row < 4; row++) {
+            float y = m[4 + row];
+            float z = m[8 + row];
+            m[4 + row] = y * c + z * s;
+            m[8 + row] = z * c - y * s;
+        }
+    }
+
+    /**
+     * Multiplies a matrix with a rotation about the y-axis from the right (like glRotatef(angle, 0, 1, 0)).
+     * @param degrees Rotation angle in degrees
+     */
+    public static void rotateY(float[] m, float degrees) {
+        double radians = Math.toRadians(degrees);
+        float c = (float) Math.cos(radians);
+        float s = (float) Math.sin(radians);
+        for (int row = 0; row < 4; row++) {
+            float x = m[row];
+            float z = m[8 + row];
+            m[row] = x * c - z * s;
+            m[8 + row] = z * c + x * s;
+        }
+    }
+
+    /**
+     * Sets a matrix to a view transformation like gluLookAt.
+     */
+    public static void setLookAt(float[] m, float eyeX, float eyeY, float eyeZ,
+                                 float centerX, float centerY, float centerZ,
+                                 float upX, float upY, float upZ) {
+        // forward direction
+        float fx = centerX - eyeX;
+        float fy = centerY - eyeY;
+        float fz = centerZ - eyeZ;
+        float length = (float) Math.sqrt(fx * fx + fy * fy + fz * fz);
+        fx /= length;
+        fy /= length;
+        fz /= length;
+        // side = forward x up
+        float sx = fy * upZ - fz * upY;
+        float sy = fz * upX - fx * upZ;
+        float sz = fx * upY - fy * upX;
+        length = (float) Math.sqrt(sx * sx + sy * sy + sz * sz);
+        sx /= length;
+        sy /= length;
+        sz /= length;
+        // recomputed up = side x forward
+        float ux = sy * fz - sz * fy;
+        float uy = sz * fx - sx * fz;
+        float uz = sx * fy - sy * fx;
+
+        m[0] = sx;
+        m[4] = sy;
+        m[8] = sz;
+        m[1] = ux;
+        m[5] = uy;
+        m[9] = uz;
+        m[2] = -fx;
+        m[6] = -fy;
+        m[10] = -fz;
+        m[3] = 0f;
+        m[7] = 0f;
+        m[11] = 0f;
+        m[12] = -(sx * eyeX + sy * eyeY + sz * eyeZ);
+        m[13] = -(ux * eyeX + uy * eyeY + uz * eyeZ);
+        m[14] = fx * eyeX + fy * eyeY + fz * eyeZ;
+        m[15] = 1f;
+    }
+
+    /**
+     * Sets a matrix to a perspective projection like gluPerspective.
+     * @param fovy Field of view in y-direction in degrees
+     */
+    public static void setPerspective(float[] m, float fovy, float aspect, float zNear, float zFar) {
+        float f = (float) (1.0 / Math.tan(Math.toRadians(fovy) / 2));
+        for (int i = 0; i < 16; i++)
+            m[i] = 0f;
+        m[0] = f / aspect;
+        m[5] = f;
+        m[10] = (zFar + zNear) / (zNear - zFar);
+        m[11] = -1f;
+        m[14] = 2 * zFar * zNear / (zNear - zFar);
+    }
+
+    /**
+     * Computes the inverse of an affine transformation (rotation, uniform or non-uniform scaling, translation).
+     * The result may be the same array as the input.
+     * @param temp Scratch array of length 16
+     */
+    public static void invertAffine(float[] m, float[] result, float[] temp) {
+        // inverse of the upper 3x3 part via the adjugate
+        float a = m[0], b = m[4], c = m[8];
+        float d = m[1], e = m[5], f = m[9];
+        float g = m[2], h = m[6], i = m[10];
+        float ca = e * i - f * h;
+        float cb = f * g - d * i;
+        float cc = d * h - e * g;
+        float determinant = a * ca + b * cb + c * cc;
+        float inv = 1f / determinant;
+        temp[0] = ca * inv;
+        temp[1] = cb * inv;
+        temp[2] = cc * inv;
+        temp[4] = (c * h - b * i) * inv;
+        temp[5] = (a * i - c * g) * inv;
+        temp[6] = (b * g - a * h) * inv;
+        temp[8] = (b * f - c * e) * inv;
+        temp[9] = (c * d - a * f) * inv;
+        temp[10] = (a * e - b * d) * inv;
+        temp[3] = 0f;
+        temp[7] = 0f;
+        temp[11] = 0f;
+        // inverse translation
+        float tx = m[12], ty = m[13], tz = m[14];
+        temp[12] = -(temp[0] * tx + temp[4] * ty + temp[8] * tz);
+        temp[13] = -(temp[1] * tx + temp[5] * ty + temp[9] * tz);
+        temp[14] = -(temp[2] * tx + temp[6] * ty + temp[10] * tz);
+        temp[15] = 1f;
+        System.arraycopy(temp, 0, result, 0, 16);
+    }
+}
@@ -0,0 +1,92 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+
+/**
+ * Indexed triangle mesh held in direct buffers, ready for being uploaded into OpenGL buffer objects.
+ * The vertices are interleaved: position (x, y, z) followed by the normal (nx, ny, nz).
+ * The indices describe a list of triangles (GL_TRIANGLES) with counter clockwise front faces,
+ * or a single triangle strip (GL_TRIANGLE_STRIP) joined by degenerate triangles (see MeshOptimizer.stripify()).
+ */
+public class Mesh {
+
+    // Number of floats per vertex: position and normal
+    public static final int FLOATS_PER_VERTEX = 6;
+    // Size of one vertex in bytes
+    public static final int VERTEX_STRIDE = FLOATS_PER_VERTEX * Float.BYTES;
+
+    private final FloatBuffer vertices;
+    private final IntBuffer indices;
+    private final boolean strip;
+    private final int triangleCount;
+
+    /**
+     * Creates a mesh from filled buffers. The buffers are read from position 0 up to their limit.
+     * @param vertices Interleaved positions and normals
+     * @param indices Triangle list indices into the vertices
+     */
+    public Mesh(FloatBuffer vertices, IntBuffer indices) {
+        this(vertices, indices, false);
+    }
+
+    /**
+     * Creates a mesh from filled buffers. The buffers are read from position 0 up to their limit.
+     * @param vertices Interleaved positions and normals
+     * @param indices Indices into the vertices
+     * @param strip True if the indices describe a triangle strip, false for a triangle list
+     */
+    public Mesh(FloatBuffer vertices, IntBuffer indices, boolean strip) {
+        this.vertices = vertices;
+        this.indices = indices;
+        this.strip = strip;
+        if (strip) {
+            // the degenerate triangles joining the parts of the strip are not drawn
+            int count = 0;
+            for (int i = 2; i < indices.limit(); i++) {
+                int a = indices.get(i - 2);
+                int b = indices.get(i - 1);
+                int c = indices.get(i);
+                if (a != b && b != c && a != c)
+                    count++;
+            }
+            triangleCount = count;
+        } else {
+            triangleCount = indices.limit() / 3;
+        }
+    }
+
+    /**
+     * @return Interleaved positions and normals, positioned at 0
+     */
+    public FloatBuffer getVertices() {
+        return vertices;
+    }
+
+    /**
+     * @return Triangle list or strip indices, positioned at 0
+     */
+    public IntBuffer getIndices() {
+        return indices;
+    }
+
+    public int getVertexCount() {
+        return vertices.limit() / FLOATS_PER_VERTEX;
+    }
+
+    public int getIndexCount() {
+        return indices.limit();
+    }
+
+    /**
+     * @return True if the indices describe a triangle strip, false for a triangle list
+     */
+    public boolean isStrip() {
+        return strip;
+    }
+
+    /**
+     * @return Number of drawn triangles, without the degenerate triangles of a strip
+     */
+    public int getTriangleCount() {
+        return triangleCount;
+    }
+}
@@ -0,0 +1,280 @@
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Generates indexed triangle meshes for simple 3D shapes without using OpenGL.
+ * The shapes have the same position, orientation and tessellation as the corresponding glu shapes
+ * and draw methods of the renderer, so they can replace gluSphere, gluCylinder, drawBox, drawFrustum
+ * and drawTriangleFan when the geometry has to live in buffer objects.
+ *
+ * Sine and cosine of the angles around the z-axis are taken from tables computed once per number of slices,
+ * so the generation of a shape needs no trigonometric function per vertex.
+ * All methods are thread safe.
+ */
+public class MeshBuilder {
+
+    // cos and sin of 2 * PI * j / slices for j = 0 .. slices, interleaved, by number of slices
+    private static final Map<Integer, float[]> CIRCLE_TABLES = new ConcurrentHashMap<>();
+
+    // Faces of the box: axis of the normal, sign of the normal, axes u and v with u x v = normal
+    private static final int[][] BOX_FACES = {
+            {0, 1, 1, 2}, {0, -1, 2, 1},
+            {1, 1, 2, 0}, {1, -1, 0, 2},
+            {2, 1, 0, 1}, {2, -1, 1, 0}};
+
+    private MeshBuilder() {
+    }
+
+    /**
+     * Generates a box centered at (0, 0, 0) (like drawBox). Every face has its own four vertices,
+     * so the normals are perpendicular to the faces.
+     * @param width Width of the box (x-direction)
+     * @param height Height of the box (y-direction)
+     * @param depth Depth of the box (z-direction)
+     * @return The box mesh
+     */
+    public static Mesh box(float width, float height, float depth) {
+        float[] halfExtent = {width / 2, height / 2, depth / 2};
+        FloatBuffer vertices = Buffers.newDirectFloatBuffer(6 * 4 * Mesh.FLOATS_PER_VERTEX);
+        IntBuffer indices = Buffers.newDirectIntBuffer(6 * 6);
+        float[] position = new float[3];
+        float[] normal = new float[3];
+        // corners of a face counter clockwise in the (u, v) plane
+        int[] uSigns = {-1, 1, 1, -1};
+        int[] vSigns = {-1, -1, 1, 1};
+        for (int face = 0; face < BOX_FACES.length; face++) {
+            int axis = BOX_FACES[face][0];
+            int sign = BOX_FACES[face][1];
+            int u = BOX_FACES[face][2];
+            int v = BOX_FACES[face][3];
+            normal[0] = normal[1] = normal[2] = 0f;
+            normal[axis] = sign;
+            for (int corner = 0; corner < 4; corner++) {
+                position[axis] = sign * halfExtent[axis];
+                position[u] = uSigns[corner] * halfExtent[u];
+                position[v] = vSigns[corner] * halfExtent[v];
+                putVertex(vertices, position[0], position[1], position[2], normal[0], normal[1], normal[2]);
+            }
+            int first = face * 4;
+            indices.put(first).put(first + 1).put(first + 2);
+            indices.put(first).put(first + 2).put(first + 3);
+        }
+        vertices.flip();
+        indices.flip();
+        return new Mesh(vertices, indices);
+    }
+
+    /**
+     * Generates a sphere centered at (0, 0, 0). The poles are on the z-axis (like gluSphere).
+     * @param radius Radius of the sphere
+     * @param slices Number of slices around the z-axis
+     * @param stacks Number of stacks along the z-axis
+     * @return The sphere mesh
+     */
+    public static Mesh sphere(float radius, int slices, int stacks) {
+        float[] circle = circleTable(slices);
+        FloatBuffer vertices = Buffers.newDirectFloatBuffer((stacks + 1) * (slices + 1) * Mesh.FLOATS_PER_VERTEX);
+        for (int i = 0; i <= stacks; i++) {
+            // polar angle starting at the north pole (+z)
+            double rho = Math.PI * i / stacks;
+            float sinRho = (float) Math.sin(rho);
+            float cosRho = (float) Math.cos(rho);
+            for (int j = 0; j <= slices; j++) {
+                float nx = sinRho * circle[2 * j];
+                float ny = sinRho * circle[2 * j + 1];
+                putVertex(vertices, radius * nx, radius * ny, radius * cosRho, nx, ny, cosRho);
+            }
+        }
+        vertices.flip();
+        IntBuffer indices = Buffers.newDirectIntBuffer(stacks * slices * 6);
+        // rings run from north to south, so the next ring is the lower one
+        putGridIndices(indices, 0, slices, stacks, false);
+        indices.flip();
+        return new Mesh(vertices, indices);
+    }
+
+    /**
+     * Generates an open cylinder (barrel only) along the z-axis from z = 0 to z = height (like gluCylinder).
+     * @param base Radius at z = 0
+     * @param top Radius at z = height
+     * @param height Height of the cylinder
+     * @param slices Number of slices around the z-axis
+     * @param stacks Number of stacks along the z-axis
+     * @return The cylinder mesh
+     * @throws IllegalArgumentException if the height is not positive
+     */
+    public static Mesh cylinder(float base, float top, float height, int slices, int stacks) {
+        checkHeight(height);
+        FloatBuffer vertices = Buffers.newDirectFloatBuffer((stacks + 1) * (slices + 1) * Mesh.FLOATS_PER_VERTEX);
+        putBarrel(vertices, base, top, height, slices, stacks);
+        vertices.flip();
+        IntBuffer indices = Buffers.newDirectIntBuffer(stacks * slices * 6);
+        // rings run from bottom to top, so the next ring is the upper one
+        putGridIndices(indices, 0, slices, stacks, true);
+        indices.flip();
+        return new Mesh(vertices, indices);
+    }
+
+    /**
+     * Generates a closed frustum along the z-axis from z = 0 to z = height (like drawFrustum):
+     * the barrel of a cylinder and discs closing the base and the top. Discs of radius 0 are left out.
+     * @param base Radius at z = 0
+     * @param top Radius at z = height
+     * @param height Height of the frustum
+     * @param slices Number of slices around the z-axis
+     * @param stacks Number of stacks of the barrel
+     * @return The frustum mesh
+     * @throws IllegalArgumentException if the height is not positive
+     */
+    public static Mesh frustum(float base, float top, float height, int slices, int stacks) {
+        checkHeight(height);
+        int barrelVertices = (stacks + 1) * (slices + 1);
+        int discVertices = slices + 2;
+        int discs = (base > 0 ? 1 : 0) + (top > 0 ? 1 : 0);
+        FloatBuffer vertices = Buffers.newDirectFloatBuffer(
+                (barrelVertices + discs * discVertices) * Mesh.FLOATS_PER_VERTEX);
+        IntBuffer indices = Buffers.newDirectIntBuffer((stacks * slices * 2 + discs * slices) * 3);
+
+        putBarrel(vertices, base, top, height, slices, stacks);
+        putGridIndices(indices, 0, slices, stacks, true);
+        int firstVertex = barrelVertices;
+        if (base > 0) {
+            putDisc(vertices, indices, firstVertex, base, 0f, false, slices);
+            firstVertex += discVertices;
+        }
+        if (top > 0)
+            putDisc(vertices, indices, firstVertex, top, height, true, slices);
+        vertices.flip();
+        indices.flip();
+        return new Mesh(vertices, indices);
+    }
+
+    /**
+     * Generates a cone along the z-axis with its base at z = 0 and its apex at z = height,
+     * closed by a disc at the base.
+     * @param radius Radius of the base
+     * @param height Height of the cone
+     * @param slices Number of slices around the z-axis
+     * @param stacks Number of stacks of the barrel
+     * @return The cone mesh
+     * @throws IllegalArgumentException if the height is not positive
+     */
+    public static Mesh cone(float radius, float height, int slices, int stacks) {
+        return frustum(radius, 0f, height, slices, stacks);
+    }
+
+    /**
+     * Generates a disc in the x-y plane centered at (0, 0, 0), facing +z (like drawTriangleFan):
+     * a fan of triangles around the center.
+     * @param radius Radius of the disc
+     * @param slices Number of triangles
+     * @return The disc mesh
+     */
+    public static Mesh fan(float radius, int slices) {
+        FloatBuffer vertices = Buffers.newDirectFloatBuffer((slices + 2) * Mesh.FLOATS_PER_VERTEX);
+        IntBuffer indices = Buffers.newDirectIntBuffer(slices * 3);
+        putDisc(vertices, indices, 0, radius, 0f, true, slices);
+        vertices.flip();
+        indices.flip();
+        return new Mesh(vertices, indices);
+    }
+
+    /**
+     * The normals of a barrel follow from its slope (base - top) / height, which needs a positive height.
+     */
+    private static void checkHeight(float height) {
+        if (!(height > 0f))
+            throw new IllegalArgumentException("The height must be positive, got " + height);
+    }
+
+    /**
+     * Writes the (stacks + 1) rings of (slices + 1) vertices of a cylinder barrel, from bottom to top.
+     */
+    private static void putBarrel(FloatBuffer vertices, float base, float top, float height, int slices, int stacks) {
+        float[] circle = circleTable(slices);
+        // the normals of a cone are tilted by the slope of the barrel
+        float slope = (base - top) / height;
+        float normalLength = (float) Math.sqrt(1 + slope * slope);
+        float nz = slope / normalLength;
+        for (int i = 0; i <= stacks; i++) {
+            float z = height * i / stacks;
+            float radius = base + (top - base) * i / stacks;
+            for (int j = 0; j <= slices; j++) {
+                float cos = circle[2 * j];
+                float sin = circle[2 * j + 1];
+                putVertex(vertices, radius * cos, radius * sin, z, cos / normalLength, sin / normalLength, nz);
+            }
+        }
+    }
+
+    /**
+     * Writes a disc parallel to the x-y plane: the center followed by a ring of slices + 1 vertices.
+     * @param firstVertex Index of the first vertex of the disc within the mesh
+     * @param up True if the disc faces +z, false if it faces -z
+     */
+    private static void putDisc(FloatBuffer vertices, IntBuffer indices, int firstVertex, float radius, float z,
+                                boolean up, int slices) {
+        float[] circle = circleTable(slices);
+        float nz = up ? 1f : -1f;
+        putVertex(vertices, 0f, 0f, z, 0f, 0f, nz);
+        for (int j = 0; j <= slices; j++)
+            putVertex(vertices, radius * circle[2 * j], radius * circle[2 * j + 1], z, 0f, 0f, nz);
+        // the ring runs counter clockwise seen from +z
+        for (int j = 0; j < slices; j++) {
+            int a = firstVertex + 1 + j;
+            if (up)
+                indices.put(firstVertex).put(a).put(a + 1);
+            else
+                indices.put(firstVertex).put(a + 1).put(a);
+        }
+    }
+
+    /**
+     * Writes the triangle indices for a grid of (stacks + 1) rings of (slices + 1) vertices each.
+     * @param firstVertex Index of the first vertex of the grid within the mesh
+     * @param upwards True if the next ring lies above the current one when looking at the outside
+     */
+    private static void putGridIndices(IntBuffer indices, int firstVertex, int slices, int stacks, boolean upwards) {
+        int ringSize = slices + 1;
+        for (int i = 0; i < stacks; i++) {
+            for (int j = 0; j < slices; j++) {
+                int a = firstVertex + i * ringSize + j;
+                int b = a + ringSize;
+                if (upwards) {
+                    indices.put(a).put(a + 1).put(b);
+                    indices.put(a + 1).put(b + 1).put(b);
+                } else {
+                    indices.put(a).put(b).put(a + 1);
+                    indices.put(a + 1).put(b).put(b + 1);
+                }
+            }
+        }
+    }
+
+    private static void putVertex(FloatBuffer vertices, float x, float y, float z, float nx, float ny, float nz) {
+        vertices.put(x).put(y).put(z).put(nx).put(ny).put(nz);
+    }
+
+    /**
+     * Returns cos and sin of the angles 2 * PI * j / slices for j = 0 .. slices, interleaved.
+     * The last entry repeats the first one exactly, so the seam of a closed ring has no gap.
+     * The tables are shared and must not be modified.
+     */
+    static float[] circleTable(int slices) {
+        return CIRCLE_TABLES.computeIfAbsent(slices, count -> {
+            float[] table = new float[2 * (count + 1)];
+            for (int j = 0; j < count; j++) {
+                double theta = 2 * Math.PI * j / count;
+                table[2 * j] = (float) Math.cos(theta);
+                table[2 * j + 1] = (float) Math.sin(theta);
+            }
+            table[2 * count] = table[0];
+            table[2 * count + 1] = table[1];
+            return table;
+        });
+    }
+}
@@ -0,0 +1,495 @@
+import com.jogamp.common.nio.Buffers;
+
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Optimizes indexed triangle meshes (see MeshBuilder) for drawing, without using OpenGL.
+ *
+ * Every vertex the GPU has to transform again costs vertex shader (or fixed function transform) work.
+ * The GPU keeps the results of the most recently used vertices in a small post-transform cache,
+ * so the work per frame depends on the number of distinct vertices and on the order of the triangles:
+ *  - weld() merges duplicate vertices (e.g. the seam and the poles of a sphere) and drops degenerate triangles
+ *  - optimizeVertexCache() reorders the triangles so that neighbouring triangles follow each other
+ *    (Tom Forsyth, "Linear-Speed Vertex Cache Optimisation", 2006) and the vertices in order of first use
+ *  - stripify() converts a triangle list into a single triangle strip
+ * The average cache miss ratio (ACMR, transformed vertices per triangle) measures the result:
+ * 3.0 means every vertex of every triangle is transformed, 0.5 is the optimum of a large regular grid.
+ *
+ * Running the class prints the ACMR of the tree shapes before and after the optimization.
+ */
+public class MeshOptimizer {
+
+    // Size of the simulated FIFO cache used for the ACMR, typical for the hardware of the last decade
+    public static final int DEFAULT_CACHE_SIZE = 16;
+    // Welding grid spacing for positions and normals
+    public static final float DEFAULT_EPSILON = 1e-5f;
+
+    // Parameters of Forsyth's scoring (from the paper); the modelled LRU cache is larger than the FIFO
+    // caches of the hardware, which makes the order good for all of them
+    private static final int FORSYTH_CACHE_SIZE = 32;
+    private static final float CACHE_DECAY_POWER = 1.5f;
+    private static final float LAST_TRIANGLE_SCORE = 0.75f;
+    private static final float VALENCE_BOOST_SCALE = 2.0f;
+    private static final float VALENCE_BOOST_POWER = 0.5f;
+    // Scores by cache position and by number of remaining triangles, precomputed (see vertexScore())
+    private static final float[] CACHE_POSITION_SCORES = new float[FORSYTH_CACHE_SIZE];
+    private static final float[] VALENCE_SCORES = new float[64];
+
+    static {
+        for (int position = 0; position < FORSYTH_CACHE_SIZE; position++) {
+            // the vertices of the last triangle get a fixed score, so the order does not prefer
+            // continuing a strip over a fan
+            CACHE_POSITION_SCORES[position] = position < 3 ? LAST_TRIANGLE_SCORE
+                    : (float) Math.pow(1f - (position - 3) / (float) (FORSYTH_CACHE_SIZE - 3), CACHE_DECAY_POWER);
+        }
+        for (int valence = 1; valence < VALENCE_SCORES.length; valence++)
+            VALENCE_SCORES[valence] = VALENCE_BOOST_SCALE * (float) Math.pow(valence, -VALENCE_BOOST_POWER);
+    }
+
+    private MeshOptimizer() {
+    }
+
+    /**
+     * Welds the vertices and optimizes the triangle and vertex order for the vertex cache.
+     * @param mesh A triangle list mesh
+     * @return The optimized triangle list mesh
+     */
+    public static Mesh optimize(Mesh mesh) {
+        return optimizeVertexCache(weld(mesh, DEFAULT_EPSILON));
+    }
+
+    /**
+     * Welds the vertices, optimizes the order for the vertex cache and optionally converts the result into a strip.
+     * @param mesh A triangle list mesh
+     * @param strip True for a triangle strip, false for a triangle list
+     * @return The optimized mesh
+     */
+    public static Mesh optimize(Mesh mesh, boolean strip) {
+        Mesh optimized = optimize(mesh);
+        return strip ? stripify(optimized) : optimized;
+    }
+
+    /**
+     * Merges vertices whose positions and normals round to the same multiples of epsilon (per component)
+     * and removes degenerate triangles, i.e. triangles with two vertices at the same rounded position
+     * (e.g. at the poles of a sphere or the apex of a cone).
+     * The components are quantized to a grid of spacing epsilon, so vertices closer than epsilon are usually
+     * merged, but two vertices on either side of a rounding boundary stay apart however close they are.
+     * This is exact for the generated meshes, whose duplicates have identical or nearly identical components.
+     * @param mesh A triangle list mesh
+     * @param epsilon Grid spacing for positions and normals
+     * @return The welded triangle list mesh
+     */
+    public static Mesh weld(Mesh mesh, float epsilon) {
+        checkTriangleList(mesh);
+        FloatBuffer vertices = mesh.getVertices();
+        IntBuffer indices = mesh.getIndices();
+        int vertexCount = mesh.getVertexCount();
+
+        // vertices are compared by their components rounded to multiples of epsilon
+        Map<VertexKey, Integer> weldedIndices = new HashMap<>(vertexCount * 2);
+        int[] remap = new int[vertexCount];
+        long[] positions = new long[vertexCount * 3];
+        float[] weldedVertices = new float[vertexCount * Mesh.FLOATS_PER_VERTEX];
+        int weldedCount = 0;
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            int offset = vertex * Mesh.FLOATS_PER_VERTEX;
+            long[] quantized = new long[Mesh.FLOATS_PER_VERTEX];
+            for (int k = 0; k < Mesh.FLOATS_PER_VERTEX; k++)
+                quantized[k] = Math.round(vertices.get(offset + k) / (double) epsilon);
+            System.arraycopy(quantized, 0, positions, vertex * 3, 3);
+            Integer welded = weldedIndices.putIfAbsent(new VertexKey(quantized), weldedCount);
+            if (welded == null) {
+                for (int k = 0; k < Mesh.FLOATS_PER_VERTEX; k++)
+                    weldedVertices[weldedCount * Mesh.FLOATS_PER_VERTEX + k] = vertices.get(offset + k);
+                remap[vertex] = weldedCount++;
+            } else {
+                remap[vertex] = welded;
+            }
+        }
+
+        IntBuffer weldedTriangles = Buffers.newDirectIntBuffer(indices.limit());
+        for (int i = 0; i + 2 < indices.limit(); i += 3) {
+            int a = indices.get(i);
+            int b = indices.get(i + 1);
+            int c = indices.get(i + 2);
+            if (!samePosition(positions, a, b) && !samePosition(positions, b, c) && !samePosition(positions, a, c))
+                weldedTriangles.put(remap[a]).put(remap[b]).put(remap[c]);
+        }
+        weldedTriangles.flip();
+        FloatBuffer weldedBuffer = Buffers.newDirectFloatBuffer(weldedCount * Mesh.FLOATS_PER_VERTEX);
+        weldedBuffer.put(weldedVertices, 0, weldedCount * Mesh.FLOATS_PER_VERTEX).flip();
+        return new Mesh(weldedBuffer, weldedTriangles);
+    }
+
+    /**
+     * Reorders the triangles for the post-transform vertex cache (Forsyth) and then the vertices
+     * in the order of their first use, so the vertex fetches run through memory linearly.
+     * Vertices not used by any triangle are dropped.
+     * @param mesh A triangle list mesh
+     * @return The reordered triangle list mesh
+     */
+    public static Mesh optimizeVertexCache(Mesh mesh) {
+        checkTriangleList(mesh);
+        int[] triangles = new int[mesh.getIndexCount()];
+        mesh.getIndices().duplicate().get(triangles);
+        int[] ordered = orderTriangles(triangles, mesh.getVertexCount());
+        return reorderVertices(mesh.getVertices(), ordered, mesh.getVertexCount());
+    }
+
+    /**
+     * Converts a triangle list into one triangle strip. Neighbouring triangles are appended as long as
+     * the winding allows it, the parts are joined by degenerate triangles. The triangles are taken
+     * in the order of the list, so a list optimized for the vertex cache gives a cache friendly strip.
+     * Whether the strip is smaller than the list depends on the mesh; compare the index counts.
+     * @param mesh A triangle list mesh
+     * @return A mesh with the same vertices and a triangle strip
+     */
+    public static Mesh stripify(Mesh mesh) {
+        checkTriangleList(mesh);
+        int[] triangles = new int[mesh.getIndexCount()];
+        mesh.getIndices().duplicate().get(triangles);
+        int triangleCount = triangles.length / 3;
+        int[] firstTriangle = firstTriangles(triangles, mesh.getVertexCount());
+        int[] vertexTriangles = vertexTriangles(triangles, firstTriangle);
+
+        boolean[] used = new boolean[triangleCount];
+        int[] strip = new int[triangles.length * 2];
+        int length = 0;
+        for (int start = 0; start < triangleCount; start++) {
+            if (used[start])
+                continue;
+            used[start] = true;
+            // begin with the rotation of the triangle that can be continued across its last edge
+            int rotation = 0;
+            for (int k = 0; k < 3; k++) {
+                int b = triangles[3 * start + (k + 1) % 3];
+                int c = triangles[3 * start + (k + 2) % 3];
+                if (unusedTriangle(triangles, firstTriangle, vertexTriangles, used, c, b) >= 0) {
+                    rotation = k;
+                    break;
+                }
+            }
+            int x = triangles[3 * start + rotation];
+            if (length > 0) {
+                // degenerate triangles to the first vertex; the part has to begin at an even position
+                strip[length] = strip[length - 1];
+                strip[length + 1] = x;
+                length += 2;
+                if (length % 2 == 1)
+                    strip[length++] = x;
+            }
+            strip[length++] = x;
+            strip[length++] = triangles[3 * start + (rotation + 1) % 3];
+            strip[length++] = triangles[3 * start + (rotation + 2) % 3];
+
+            while (true) {
+                int a = strip[length - 2];
+                int b = strip[length - 1];
+                // the triangle (a, b, c) is counter clockwise at even positions, (b, a, c) at odd ones
+                boolean even = (length - 2) % 2 == 0;
+                int next = even ? unusedTriangle(triangles, firstTriangle, vertexTriangles, used, a, b) : unusedTriangle(triangles, firstTriangle, vertexTriangles, used, b, a);
+                if (next < 0)
+                    break;
+                used[next] = true;
+                strip[length++] = thirdVertex(triangles, next, a, b);
+            }
+        }
+
+        IntBuffer stripIndices = Buffers.newDirectIntBuffer(length);
+        stripIndices.put(strip, 0, length).flip();
+        return new Mesh(mesh.getVertices(), stripIndices, true);
+    }
+
+    /**
+     * Computes the average cache miss ratio: the number of vertices transformed per triangle
+     * with a FIFO post-transform cache of the given size.
+     * @param mesh A triangle list or strip mesh
+     * @param cacheSize Number of vertices in the cache
+     * @return Transformed vertices per drawn triangle
+     */
+    public static float acmr(Mesh mesh, int cacheSize) {
+        IntBuffer indices = mesh.getIndices();
+        int[] cache = new int[cacheSize];
+        Arrays.fill(cache, -1);
+        int next = 0;
+        int misses = 0;
+        for (int i = 0; i < indices.limit(); i++) {
+            int vertex = indices.get(i);
+            boolean hit = false;
+            for (int entry : cache) {
+                if (entry == vertex) {
+                    hit = true;
+                    break;
+                }
+            }
+            if (!hit) {
+                misses++;
+                cache[next] = vertex;
+                next = (next + 1) % cacheSize;
+            }
+        }
+        return mesh.getTriangleCount() > 0 ? (float) misses / mesh.getTriangleCount() : 0f;
+    }
+
+    /**
+     * Orders the triangles with Forsyth's algorithm: the next triangle is always the one with the highest score,
+     * where vertices score high if they are in the (simulated LRU) cache or have few triangles left.
+     * @return The triangle indices in the new order
+     */
+    private static int[] orderTriangles(int[] triangles, int vertexCount) {
+        int triangleCount = triangles.length / 3;
+        int[] firstTriangle = firstTriangles(triangles, vertexCount);
+        int[] vertexTriangles = vertexTriangles(triangles, firstTriangle);
+        int[] remaining = new int[vertexCount];
+        for (int vertex = 0; vertex < vertexCount; vertex++)
+            remaining[vertex] = firstTriangle[vertex + 1] - firstTriangle[vertex];
+
+        int[] cachePosition = new int[vertexCount];
+        Arrays.fill(cachePosition, -1);
+        float[] vertexScore = new float[vertexCount];
+        for (int vertex = 0; vertex < vertexCount; vertex++)
+            vertexScore[vertex] = vertexScore(-1, remaining[vertex]);
+        float[] triangleScore = new float[triangleCount];
+        for (int t = 0; t < triangleCount; t++)
+            triangleScore[t] = vertexScore[triangles[3 * t]] + vertexScore[triangles[3 * t + 1]]
+                    + vertexScore[triangles[3 * t + 2]];
+
+        boolean[] emitted = new boolean[triangleCount];
+        int[] ordered = new int[triangles.length];
+        // the cache holds up to three vertices more while a triangle is added
+        int[] cache = new int[FORSYTH_CACHE_SIZE + 3];
+        int[] newCache = new int[FORSYTH_CACHE_SIZE + 3];
+        int cacheLength = 0;
+        int scanStart = 0;
+        int best = -1;
+        for (int n = 0; n < triangleCount; n++) {
+            if (best < 0) {
+                // no candidate in the cache (e.g. at the start of a new part): best of all remaining triangles
+                float bestScore = -1f;
+                while (emitted[scanStart])
+                    scanStart++;
+                for (int t = scanStart; t < triangleCount; t++) {
+                    if (!emitted[t] && triangleScore[t] > bestScore) {
+                        bestScore = triangleScore[t];
+                        best = t;
+                    }
+                }
+            }
+            emitted[best] = true;
+            System.arraycopy(triangles, 3 * best, ordered, 3 * n, 3);
+
+            // the vertices of the triangle move to the front of the cache
+            int newLength = 0;
+            for (int k = 0; k < 3; k++) {
+                int vertex = triangles[3 * best + k];
+                newCache[newLength++] = vertex;
+                remaining[vertex]--;
+                // remove the triangle from the list of the vertex
+                int end = firstTriangle[vertex] + remaining[vertex];
+                for (int i = firstTriangle[vertex]; i <= end; i++) {
+                    if (vertexTriangles[i] == best) {
+                        vertexTriangles[i] = vertexTriangles[end];
+                        break;
+                    }
+                }
+            }
+            for (int i = 0; i < cacheLength; i++) {
+                int vertex = cache[i];
+                if (vertex != newCache[0] && vertex != newCache[1] && vertex != newCache[2])
+                    newCache[newLength++] = vertex;
+            }
+            int[] swap = cache;
+            cache = newCache;
+            newCache = swap;
+            cacheLength = newLength;
+
+            // rescore the vertices in the cache and their triangles, vertices pushed out lose their cache bonus
+            for (int i = 0; i < cacheLength; i++) {
+                int vertex = cache[i];
+                cachePosition[vertex] = i < FORSYTH_CACHE_SIZE ? i : -1;
+                vertexScore[vertex] = vertexScore(cachePosition[vertex], remaining[vertex]);
+            }
+            best = -1;
+            float bestScore = -1f;
+            for (int i = 0; i < cacheLength; i++) {
+                int vertex = cache[i];
+                for (int j = firstTriangle[vertex]; j < firstTriangle[vertex] + remaining[vertex]; j++) {
+                    int t = vertexTriangles[j];
+                    float score = vertexScore[triangles[3 * t]] + vertexScore[triangles[3 * t + 1]]
+                            + vertexScore[triangles[3 * t + 2]];
+                    triangleScore[t] = score;
+                    if (score > bestScore) {
+                        bestScore = score;
+                        best = t;
+                    }
+                }
+            }
+            if (cacheLength > FORSYTH_CACHE_SIZE)
+                cacheLength = FORSYTH_CACHE_SIZE;
+        }
+        return ordered;
+    }
+
+    private static float vertexScore(int cachePosition, int remainingTriangles) {
+        if (remainingTriangles == 0)
+            return -1f;
+        float score = cachePosition >= 0 ? CACHE_POSITION_SCORES[cachePosition] : 0f;
+        // vertices with few triangles left are finished first, so they do not remain as lone triangles
+        return score + (remainingTriangles < VALENCE_SCORES.length ? VALENCE_SCORES[remainingTriangles]
+                : VALENCE_BOOST_SCALE * (float) Math.pow(remainingTriangles, -VALENCE_BOOST_POWER));
+    }
+
+    /**
+     * Renumbers the vertices in the order of their first use by the triangles.
+     */
+    private static Mesh reorderVertices(FloatBuffer vertices, int[] triangles, int vertexCount) {
+        int[] remap = new int[vertexCount];
+        Arrays.fill(remap, -1);
+        int used = 0;
+        IntBuffer indices = Buffers.newDirectIntBuffer(triangles.length);
+        for (int index : triangles) {
+            if (remap[index] < 0)
+                remap[index] = used++;
+            indices.put(remap[index]);
+        }
+        indices.flip();
+        FloatBuffer reordered = Buffers.newDirectFloatBuffer(used * Mesh.FLOATS_PER_VERTEX);
+        for (int vertex = 0; vertex < vertexCount; vertex++) {
+            if (remap[vertex] < 0)
+                continue;
+            for (int k = 0; k < Mesh.FLOATS_PER_VERTEX; k++)
+                reordered.put(remap[vertex] * Mesh.FLOATS_PER_VERTEX + k,
+                        vertices.get(vertex * Mesh.FLOATS_PER_VERTEX + k));
+        }
+        reordered.limit(used * Mesh.FLOATS_PER_VERTEX);
+        return new Mesh(reordered, indices);
+    }
+
+    private static boolean samePosition(long[] positions, int a, int b) {
+        return positions[3 * a] == positions[3 * b] && positions[3 * a + 1] == positions[3 * b + 1]
+                && positions[3 * a + 2] == positions[3 * b + 2];
+    }
+
+    private static void checkTriangleList(Mesh mesh) {
+        if (mesh.isStrip())
+            throw new IllegalArgumentException("Mesh is a triangle strip, a triangle list is required");
+    }
+
+    /**
+     * Counts the triangles of each vertex.
+     * @return Start of the triangles of each vertex in the list of vertexTriangles(), followed by the total
+     */
+    private static int[] firstTriangles(int[] triangles, int vertexCount) {
+        int[] firstTriangle = new int[vertexCount + 1];
+        for (int index : triangles)
+            firstTriangle[index + 1]++;
+        for (int vertex = 0; vertex < vertexCount; vertex++)
+            firstTriangle[vertex + 1] += firstTriangle[vertex];
+        return firstTriangle;
+    }
+
+    /**
+     * @return The triangles of all vertices, grouped by vertex (compressed rows, see firstTriangles())
+     */
+    private static int[] vertexTriangles(int[] triangles, int[] firstTriangle) {
+        int[] vertexTriangles = new int[triangles.length];
+        int[] filled = new int[firstTriangle.length - 1];
+        for (int t = 0; t < triangles.length / 3; t++) {
+            for (int k = 0; k < 3; k++) {
+                int vertex = triangles[3 * t + k];
+                vertexTriangles[firstTriangle[vertex] + filled[vertex]++] = t;
+            }
+        }
+        return vertexTriangles;
+    }
+
+    /**
+     * @return An unused triangle containing the directed edge (from, to) in counter clockwise order, otherwise -1
+     */
+    private static int unusedTriangle(int[] triangles, int[] firstTriangle, int[] vertexTriangles, boolean[] used,
+                                      int from, int to) {
+        for (int i = firstTriangle[from]; i < firstTriangle[from + 1]; i++) {
+            int t = vertexTriangles[i];
+            if (used[t])
+                continue;
+            for (int k = 0; k < 3; k++) {
+                if (triangles[3 * t + k] == from && triangles[3 * t + (k + 1) % 3] == to)
+                    return t;
+            }
+        }
+        return -1;
+    }
+
+    private static int thirdVertex(int[] triangles, int triangle, int a, int b) {
+        for (int k = 0; k < 3; k++) {
+            int vertex = triangles[3 * triangle + k];
+            if (vertex != a && vertex != b)
+                return vertex;
+        }
+        throw new IllegalStateException("Triangle " + triangle + " is degenerate");
+    }
+
+    /**
+     * Quantized components of a vertex as key of a hash map.
+     */
+    private static final class VertexKey {
+        private final long[] components;
+        private final int hash;
+
+        VertexKey(long[] components) {
+            this.components = components;
+            hash = Arrays.hashCode(components);
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof VertexKey && Arrays.equals(components, ((VertexKey) other).components);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    /**
+     * Prints vertex count, index count and ACMR of the tree shapes at the tessellations used by the
+     * levels of detail, as generated, optimized and optimized as strip.
+     */
+    public static void main(String[] args) {
+        String[] names = {"trunk", "conifer crown", "broadleaved crown", "frustum"};
+        int[][] tessellations = {{12, 12}, {24, 24}, {48, 48}, {192, 192}};
+        System.out.printf(Locale.ROOT, "%-18s %9s %-10s %9s %9s %7s%n",
+                "mesh", "slices", "variant", "vertices", "indices", "ACMR");
+        for (String name : names) {
+            for (int[] tessellation : tessellations) {
+                int slices = tessellation[0];
+                Mesh generated;
+                if (name.equals("trunk"))
+                    generated = ShapesRenderer.createTrunkMesh(slices, 1);
+                else if (name.equals("conifer crown"))
+                    generated = ShapesRenderer.createConiferCrownMesh(slices, 1);
+                else if (name.equals("broadleaved crown"))
+                    generated = ShapesRenderer.createBroadleavedCrownMesh(slices, tessellation[1]);
+                else
+                    generated = MeshBuilder.frustum(0.05f, 0.15f, 0.2f, slices, 4);
+                Mesh optimized = optimize(generated);
+                Mesh strip = stripify(optimized);
+                print(name, slices, "generated", generated);
+                print(name, slices, "optimized", optimized);
+                print(name, slices, "strip", strip);
+            }
+        }
+    }
+
+    private static void print(String name, int slices, String variant, Mesh mesh) {
+        System.out.printf(Locale.ROOT, "%-18s %9d %-10s %9d %9d %7.3f%n", name, slices, variant,
+                mesh.getVertexCount(), mesh.getIndexCount(), acmr(mesh, DEFAULT_CACHE_SIZE));
+    }
+}
@@ -0,0 +1,377 @@
+import com.jogamp.common.nio.Buffers;
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GL2ES2;
+import com.jogamp.opengl.GL2GL3;
+import com.jogamp.opengl.GL3;
+import com.jogamp.opengl.fixedfunc.GLPointerFunc;
+
+import java.nio.FloatBuffer;
+import java.util.Arrays;
+
+/**
+ * Occlusion culling of the cells of a UniformGridIndex with hardware occlusion queries.
+ * After the trees of a frame are drawn, the bounding box of every cell in the view frustum is drawn without
+ * color and depth writes, each inside its own occlusion query (test()). A cell none of whose box samples
+ * passed the depth test is hidden behind the trees drawn in front of it. The results are read without waiting
+ * at the beginning of a later frame (collect(), normally the next one or the one after) and the trees of the
+ * hidden cells are skipped by the FramePipeline (temporal coherence: the depth of a frame decides about the next).
+ *
+ * Hidden cells are tested every frame as well, so they reappear as soon as their box becomes visible again;
+ * being one or two frames late, a disoccluded cell can show up a frame late during fast camera motion.
+ * Cells whose box reaches in front of the near plane are never hidden (the box would be clipped).
+ *
+ * Works with compatibility profile contexts (fixed function, vertex buffer) and core profile contexts
+ * (a minimal shader program). All methods have to be called on the thread owning the OpenGL context,
+ * except getHiddenCells(), which is read by the FramePipeline stages between collect() calls.
+ */
+public class OcclusionCuller {
+
+    // Batches of queries in flight, one batch per frame
+    private static final int BATCH_COUNT = 3;
+    // A box is drawn as 12 triangles
+    private static final int BOX_VERTICES = 36;
+    private static final int FLOATS_PER_BOX = BOX_VERTICES * 3;
+    // Corners of the triangles, corner bits: 1 = max x, 2 = max y, 4 = max z
+    private static final int[] BOX_CORNERS = {
+            0, 2, 3, 0, 3, 1,   // bottom (min z)
+            4, 5, 7, 4, 7, 6,   // top (max z)
+            0, 1, 5, 0, 5, 4,   // min y
+            2, 6, 7, 2, 7, 3,   // max y
+            0, 4, 6, 0, 6, 2,   // min x
+            1, 3, 7, 1, 7, 5};  // max x
+
+    private static final String VERTEX_SHADER =
+            "#version 150\n" +
+            "in vec3 aPosition;\n" +
+            "uniform mat4 uViewProjection;\n" +
+            "void main() {\n" +
+            "    gl_Position = uViewProjection * vec4(aPosition, 1.0);\n" +
+            "}\n";
+
+    private static final String FRAGMENT_SHADER =
+            "#version 150\n" +
+            "out vec4 fragColor;\n" +
+            "void main() {\n" +
+            "    fragColor = vec4(1.0);\n" +
+            "}\n";
+
+    private boolean supported;
+    private boolean coreProfile;
+    // GL_ANY_SAMPLES_PASSED if available (may stop counting at the first sample), GL_SAMPLES_PASSED otherwise
+    private int queryTarget;
+    private int program;
+    private int viewProjectionLocation;
+    private int vertexArray;
+    private int vertexBuffer;
+    private FloatBuffer boxVertices = Buffers.newDirectFloatBuffer(0);
+    private int maxQueries = 4096;
+
+    // Ring of batches, the pending batches follow each other from oldestBatch on
+    private final int[][] batchQueries = new int[BATCH_COUNT][];
+    private final int[][] batchCells = new int[BATCH_COUNT][];
+    private final int[] batchSizes = new int[BATCH_COUNT];
+    private final long[] batchGenerations = new long[BATCH_COUNT];
+    private final float[][] batchViews = new float[BATCH_COUNT][16];
+    private int oldestBatch;
+    private int pendingBatches;
+    // Incremented when the cells of the index change, results of older batches are dropped
+    private long generation;
+
+    // Result of the last collected batch
+    private byte[] hiddenCells = new byte[0];
+    private int[] hiddenList = new int[0];
+    private int hiddenCount;
+    private final float[] appliedView = new float[16];
+    private boolean appliedChanged;
+    private volatile boolean settled = true;
+    private int testedCount;
+
+    private final Frustum frustum = new Frustum();
+    private final float[] box = new float[6];
+    private final int[] available = new int[1];
+    private final int[] samples = new int[1];
+
+    public OcclusionCuller() {
+        for (int b = 0; b < BATCH_COUNT; b++) {
+            batchQueries[b] = new int[0];
+            batchCells[b] = new int[0];
+        }
+    }
+
+    /**
+     * Creates the vertex buffer and, in a core profile context, the shader program.
+     * Without occlusion queries the culler stays unsupported and hides nothing.
+     * @param gl The graphics library object, compatibility or core profile.
+     */
+    public void init(GL2GL3 gl) {
+        supported = gl.isFunctionAvailable("glBeginQuery") && gl.isFunctionAvailable("glBindBuffer");
+        if (!supported)
+            return;
+        coreProfile = gl.isGL3core();
+        queryTarget = gl.isGL3core() || gl.isExtensionAvailable("GL_ARB_occlusion_query2")
+                ? GL2ES2.GL_ANY_SAMPLES_PASSED : GL2GL3.GL_SAMPLES_PASSED;
+        int[] buffer = new int[1];
+        gl.glGenBuffers(1, buffer, 0);
+        vertexBuffer = buffer[0];
+        if (coreProfile) {
+            GL3 gl3 = gl.getGL3();
+            program = ShaderProgram.link(gl3, "occlusion", VERTEX_SHADER, FRAGMENT_SHADER, "aPosition");
+            viewProjectionLocation = gl3.glGetUniformLocation(program, "uViewProjection");
+            int[] array = new int[1];
+            gl3.glGenVertexArrays(1, array, 0);
+            vertexArray = array[0];
+            gl3.glBindVertexArray(vertexArray);
+            gl3.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBuffer);
+            gl3.glEnableVertexAttribArray(0);
+            gl3.glVertexAttribPointer(0, 3, GL.GL_FLOAT, false, 0, 0L);
+            gl3.glBindVertexArray(0);
+            gl3.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        }
+    }
+
+    public boolean isSupported() {
+        return supported;
+    }
+
+    public int getMaxQueries() {
+        return maxQueries;
+    }
+
+    /**
+     * @param maxQueries Maximum number of cells tested per frame, further cells are never hidden
+     */
+    public void setMaxQueries(int maxQueries) {
+        this.maxQueries = maxQueries;
+    }
+
+    /**
+     * Drops all results, e.g. after the index has been rebuilt and its cells changed. All cells are visible again.
+     */
+    public void invalidate() {
+        generation++;
+        clearHidden();
+        appliedChanged = true;
+        settled = pendingBatches == 0 && !appliedChanged;
+    }
+
+    private void clearHidden() {
+        for (int i = 0; i < hiddenCount; i++)
+            hiddenCells[hiddenList[i]] = 0;
+        hiddenCount = 0;
+    }
+
+    /**
+     * Reads the results of the batches whose queries are finished, without waiting, and updates the hidden cells.
+     * Has to be called while no FramePipeline stage is running.
+     * @param gl The graphics library object.
+     * @param index The index whose cells are tested
+     */
+    public void collect(GL2GL3 gl, UniformGridIndex index) {
+        if (!supported)
+            return;
+        if (hiddenCells.length < index.getCellCount()) {
+            hiddenCells = Arrays.copyOf(hiddenCells, index.getCellCount());
+            hiddenList = Arrays.copyOf(hiddenList, index.getCellCount());
+        }
+        while (pendingBatches > 0) {
+            int batch = oldestBatch;
+            int size = batchSizes[batch];
+            // the queries of a batch finish in the order they were issued, so the last one decides
+            if (size > 0) {
+                gl.glGetQueryObjectiv(batchQueries[batch][size - 1], GL2GL3.GL_QUERY_RESULT_AVAILABLE, available, 0);
+                if (available[0] == 0)
+                    break;
+            }
+            if (batchGenerations[batch] == generation)
+                apply(gl, batch);
+            oldestBatch = (oldestBatch + 1) % BATCH_COUNT;
+            pendingBatches--;
+        }
+        settled = pendingBatches == 0 && !appliedChanged;
+    }
+
+    /**
+     * Replaces the hidden cells by the cells of a batch without passed samples. Untested cells are visible.
+     */
+    private void apply(GL2GL3 gl, int batch) {
+        int previousCount = hiddenCount;
+        clearHidden();
+        int[] cells = batchCells[batch];
+        int[] queries = batchQueries[batch];
+        boolean changed = false;
+        for (int k = 0; k < batchSizes[batch]; k++) {
+            gl.glGetQueryObjectiv(queries[k], GL2ES2.GL_QUERY_RESULT, samples, 0);
+            if (samples[0] == 0) {
+                int cell = cells[k];
+                hiddenCells[cell] = 1;
+                // the list of the previous result is overwritten in order, compare before
+                changed |= hiddenCount >= previousCount || hiddenList[hiddenCount] != cell;
+                hiddenList[hiddenCount++] = cell;
+            }
+        }
+        appliedChanged = changed || hiddenCount != previousCount;
+        System.arraycopy(batchViews[batch], 0, appliedView, 0, 16);
+    }
+
+    /**
+     * Tests the boxes of the cells in the view frustum against the depth buffer of the trees just drawn.
+     * Skipped while all batches are in flight, and when the camera rests and the last result did not change.
+     * @param gl The graphics library object.
+     * @param view Camera and projection the depth buffer was drawn with
+     * @param index The index whose cells are tested, the same as for collect()
+     */
+    public void test(GL2GL3 gl, ViewTransform view, UniformGridIndex index) {
+        if (!supported || pendingBatches == BATCH_COUNT)
+            return;
+        if (!appliedChanged && Arrays.equals(appliedView, view.getViewProjection()))
+            return;
+        int batch = (oldestBatch + pendingBatches) % BATCH_COUNT;
+        if (batchCells[batch].length < index.getCellCount())
+            batchCells[batch] = new int[index.getCellCount()];
+        int[] cells = batchCells[batch];
+        frustum.update(view);
+        int count = index.queryCells(frustum, cells);
+
+        int tested = 0;
+        int maxBoxes = Math.min(count, maxQueries);
+        if (boxVertices.capacity() < maxBoxes * FLOATS_PER_BOX)
+            boxVertices = Buffers.newDirectFloatBuffer(maxBoxes * FLOATS_PER_BOX);
+        boxVertices.clear();
+        for (int k = 0; k < count && tested < maxQueries; k++) {
+            index.getCellBounds(cells[k], box, 0);
+            if (reachesNearPlane(view))
+                continue;
+            cells[tested++] = cells[k];
+            for (int corner : BOX_CORNERS) {
+                boxVertices.put(box[(corner & 1) == 0 ? 0 : 3]);
+                boxVertices.put(box[(corner & 2) == 0 ? 1 : 4]);
+                boxVertices.put(box[(corner & 4) == 0 ? 2 : 5]);
+            }
+        }
+        boxVertices.flip();
+        batchSizes[batch] = tested;
+        batchGenerations[batch] = generation;
+        System.arraycopy(view.getViewProjection(), 0, batchViews[batch], 0, 16);
+        pendingBatches++;
+        settled = false;
+        testedCount = tested;
+        if (tested == 0)
+            return;
+        if (batchQueries[batch].length < tested) {
+            int[] queries = Arrays.copyOf(batchQueries[batch], Math.max(tested, 2 * batchQueries[batch].length));
+            int created = batchQueries[batch].length;
+            gl.glGenQueries(queries.length - created, queries, created);
+            batchQueries[batch] = queries;
+        }
+
+        // only the depth test, nothing is written
+        gl.glColorMask(false, false, false, false);
+        gl.glDepthMask(false);
+        gl.glEnable(GL.GL_DEPTH_TEST);
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, vertexBuffer);
+        gl.glBufferData(GL.GL_ARRAY_BUFFER, (long) boxVertices.limit() * Float.BYTES, boxVertices, GL2ES2.GL_STREAM_DRAW);
+        GL2 gl2 = null;
+        if (coreProfile) {
+            GL3 gl3 = gl.getGL3();
+            gl3.glUseProgram(program);
+            gl3.glUniformMatrix4fv(viewProjectionLocation, 1, false, view.getViewProjection(), 0);
+            gl3.glBindVertexArray(vertexArray);
+        } else {
+            // the matrices of the backend are kept (the projection is only loaded on reshapes)
+            gl2 = gl.getGL2();
+            gl2.glMatrixMode(GL2.GL_PROJECTION);
+            gl2.glPushMatrix();
+            gl2.glLoadMatrixf(view.getProjection(), 0);
+            gl2.glMatrixMode(GL2.GL_MODELVIEW);
+            gl2.glPushMatrix();
+            gl2.glLoadMatrixf(view.getModelView(), 0);
+            gl2.glEnableClientState(GLPointerFunc.GL_VERTEX_ARRAY);
+            gl2.glVertexPointer(3, GL.GL_FLOAT, 0, 0L);
+        }
+        int[] queries = batchQueries[batch];
+        for (int k = 0; k < tested; k++) {
+            gl.glBeginQuery(queryTarget, queries[k]);
+            gl.glDrawArrays(GL.GL_TRIANGLES, k * BOX_VERTICES, BOX_VERTICES);
+            gl.glEndQuery(queryTarget);
+        }
+        if (coreProfile) {
+            gl.getGL3().glBindVertexArray(0);
+            gl.getGL3().glUseProgram(0);
+        } else {
+            gl2.glDisableClientState(GLPointerFunc.GL_VERTEX_ARRAY);
+            gl2.glPopMatrix();
+            gl2.glMatrixMode(GL2.GL_PROJECTION);
+            gl2.glPopMatrix();
+            gl2.glMatrixMode(GL2.GL_MODELVIEW);
+        }
+        gl.glBindBuffer(GL.GL_ARRAY_BUFFER, 0);
+        gl.glDepthMask(true);
+        gl.glColorMask(true, true, true, true);
+    }
+
+    /**
+     * @return True if a corner of the current box lies in front of the near plane (or behind the camera)
+     */
+    private boolean reachesNearPlane(ViewTransform view) {
+        for (int corner = 0; corner < 8; corner++) {
+            float depth = view.getEyeDepth(box[(corner & 1) == 0 ? 0 : 3], box[(corner & 2) == 0 ? 1 : 4],
+                    box[(corner & 4) == 0 ? 2 : 5]);
+            if (depth <= view.getZNear())
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return Non-zero for every hidden cell of the index, indexed by cell. Only changed by collect() and
+     *         invalidate(), the array is replaced when the index gets more cells.
+     */
+    public byte[] getHiddenCells() {
+        return hiddenCells;
+    }
+
+    /**
+     * @return Number of hidden cells
+     */
+    public int getHiddenCellCount() {
+        return hiddenCount;
+    }
+
+    /**
+     * @return Number of cells tested in the last tested frame
+     */
+    public int getTestedCellCount() {
+        return testedCount;
+    }
+
+    /**
+     * Tells whether further frames would change the hidden cells: results are pending or the last result
+     * differed from the one before. May be called from any thread.
+     * @return True if the hidden cells match the current camera
+     */
+    public boolean isSettled() {
+        return settled;
+    }
+
+    /**
+     * Frees the queries, buffers and programs.
+     * @param gl The graphics library object.
+     */
+    public void dispose(GL2GL3 gl) {
+        if (!supported)
+            return;
+        for (int b = 0; b < BATCH_COUNT; b++) {
+            if (batchQueries[b].length > 0)
+                gl.glDeleteQueries(batchQueries[b].length, batchQueries[b], 0);
+            batchQueries[b] = new int[0];
+        }
+        pendingBatches = 0;
+        gl.glDeleteBuffers(1, new int[] {vertexBuffer}, 0);
+        if (coreProfile) {
+            gl.getGL3().glDeleteVertexArrays(1, new int[] {vertexArray}, 0);
+            gl.getGL3().glDeleteProgram(program);
+        }
+        supported = false;
+    }
+}
@@ -0,0 +1,84 @@
+import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.util.awt.TextRenderer;
+
+import java.awt.Font;
+import java.util.Locale;
+
+/**
+ * Draws the statistics of a FrameProfiler as text in the upper left corner of the viewport:
+ * percentiles of frame, CPU and GPU time and the counters of the last frame.
+ * The text is updated a few times per second only, so it stays readable and cheap.
+ *
+ * Has to be drawn at the end of display(), after the scene.
+ */
+public class PerformanceOverlay {
+
+    // Number of frames between two updates of the text
+    private static final int UPDATE_INTERVAL = 20;
+    private static final int LINE_HEIGHT = 16;
+
+    private final FrameProfiler profiler;
+    private final long[] scratch;
+    private final String[] lines = new String[5];
+    private TextRenderer textRenderer;
+    private int framesSinceUpdate = UPDATE_INTERVAL;
+
+    public PerformanceOverlay(FrameProfiler profiler) {
+        this.profiler = profiler;
+        scratch = new long[profiler.getCapacity()];
+    }
+
+    /**
+     * Draws the overlay.
+     * @param gl The graphics library object, compatibility mode.
+     * @param width Width of the viewport in pixels
+     * @param height Height of the viewport in pixels
+     */
+    public void draw(GL2 gl, int width, int height) {
+        if (textRenderer == null)
+            textRenderer = new TextRenderer(new Font(Font.MONOSPACED, Font.BOLD, 12));
+        if (++framesSinceUpdate >= UPDATE_INTERVAL) {
+            updateText();
+            framesSinceUpdate = 0;
+        }
+        // the text is drawn unlit; beginRendering() saves and endRendering() restores the remaining state
+        gl.glDisable(GL2.GL_LIGHTING);
+        textRenderer.beginRendering(width, height);
+        textRenderer.setColor(0f, 0f, 0f, 1f);
+        for (int i = 0; i < lines.length; i++)
+            textRenderer.draw(lines[i], 8, height - (i + 1) * LINE_HEIGHT);
+        textRenderer.endRendering();
+        gl.glEnable(GL2.GL_LIGHTING);
+    }
+
+    private void updateText() {
+        lines[0] = line("frame", FrameProfiler.FRAME_TIME);
+        lines[1] = line("scene", FrameProfiler.SCENE_TIME);
+        lines[2] = line("submit", FrameProfiler.SUBMIT_TIME);
+        lines[3] = profiler.isGpuTiming() ? line("gpu", FrameProfiler.GPU_TIME) : "gpu    no timer queries";
+
+        long gpu = profiler.getPercentile(FrameProfiler.GPU_TIME, 50, scratch);
+        long cpu = profiler.getPercentile(FrameProfiler.SCENE_TIME, 50, scratch)
+                + profiler.getPercentile(FrameProfiler.SUBMIT_TIME, 50, scratch);
+        int count = profiler.snapshot(FrameProfiler.DRAW_CALLS, scratch);
+        long drawCalls = count > 0 ? scratch[count - 1] : 0;
+        count = profiler.snapshot(FrameProfiler.TRIANGLES, scratch);
+        long triangles = count > 0 ? scratch[count - 1] : 0;
+        String bound = gpu < 0 ? "" : gpu > cpu ? "  GPU-bound" : "  CPU-bound";
+        lines[4] = String.format(Locale.ROOT, "draws %d  triangles %d%s", drawCalls, triangles, bound);
+    }
+
+    private String line(String name, int metric) {
+        return profiler.formatPercentiles(name, metric, scratch);
+    }
+
+    /**
+     * Frees the texture of the text renderer.
+     */
+    public void dispose() {
+        if (textRenderer != null) {
+            textRenderer.dispose();
+            textRenderer = null;
+        }
+    }
+}
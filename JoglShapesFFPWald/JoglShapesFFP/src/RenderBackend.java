@@ -0,0 +1,86 @@
+import com.jogamp.opengl.GL2GL3;
+import com.jogamp.opengl.GLProfile;
+
+/**
+ * Draws the trees of the scene with one flavour of OpenGL. The renderer prepares each frame independently
+ * of the backend (camera, culling, level of detail selection and sorting, see FramePipeline) and hands
+ * the resulting command list to the backend.
+ *  - FixedFunctionBackend: compatibility profile, fixed function lighting, display lists or instancing
+ *  - CoreProfileBackend: OpenGL 3.3 core profile, vertex array objects, shaders and uniform buffers
+ * The backend matching the created context is chosen in init(); which context is created
+ * is decided before, from the available profiles (see selectProfile()). The compatibility profile is the default,
+ * only there the performance overlay and the GLU based helpers of the ShapesRenderer are available.
+ *
+ * All methods except selectProfile() have to be called on the thread owning the OpenGL context.
+ */
+public interface RenderBackend {
+
+    // Names of the backends for the command line
+    String AUTO = "auto";
+    String FIXED_FUNCTION = "fixed";
+    String CORE_PROFILE = "core";
+    // Not an OpenGL backend: the frames are drawn by the SoftwareRenderer (HeadlessRenderer only)
+    String SOFTWARE = "software";
+
+    /**
+     * @return Name of the backend for messages
+     */
+    String getName();
+
+    /**
+     * Creates the geometry, programs and state needed for drawing the trees.
+     * @param gl The graphics library object.
+     * @param trees All trees of the scene, defines the maximum number of visible trees
+     * @param lodSelector The level of detail selection, defines the number of levels
+     */
+    void init(GL2GL3 gl, InstanceStore trees, LodSelector lodSelector);
+
+    /**
+     * Adapts the projection to a new viewport. The viewport itself is set by the renderer.
+     * @param gl The graphics library object.
+     * @param view Camera with the new projection
+     */
+    void reshape(GL2GL3 gl, ViewTransform view);
+
+    /**
+     * Draws the trees of a command list with its camera. Only reads the command list, never the instance store,
+     * which may have changed since the command list was built.
+     * Marks the submission as submit section of the profiler and counts the draw calls.
+     * @param gl The graphics library object.
+     * @param commands Command list of this frame
+     * @param profiler Profiler of the current frame
+     */
+    void drawTrees(GL2GL3 gl, FrameCommands commands, FrameProfiler profiler);
+
+    /**
+     * Frees all OpenGL objects of the backend.
+     * @param gl The graphics library object.
+     */
+    void dispose(GL2GL3 gl);
+
+    /**
+     * Selects the OpenGL profile of the context to create.
+     * @param backend AUTO for the fixed function pipeline if the platform provides a compatibility profile
+     *                and the core profile otherwise (e.g. macOS), FIXED_FUNCTION or CORE_PROFILE
+     * @return The profile
+     * @throws IllegalArgumentException if the name is unknown
+     * @throws com.jogamp.opengl.GLException if the requested profile is not available
+     */
+    static GLProfile selectProfile(String backend) {
+        switch (backend) {
+            case AUTO:
+                // the compatibility profile keeps all features, the core profile is used where it is the only one
+                if (GLProfile.isAvailable(GLProfile.GL2))
+                    return GLProfile.get(GLProfile.GL2);
+                return GLProfile.isAvailable(GLProfile.GL4) ? GLProfile.get(GLProfile.GL4)
+                        : GLProfile.get(GLProfile.GL3);
+            case FIXED_FUNCTION:
+                return GLProfile.get(GLProfile.GL2);
+            case CORE_PROFILE:
+                return GLProfile.isAvailable(GLProfile.GL4) ? GLProfile.get(GLProfile.GL4) : GLProfile.get(GLProfile.GL3);
+            default:
+                throw new IllegalArgumentException("Unknown backend " + backend + ", use "
+                        + AUTO + ", " + FIXED_FUNCTION + " or " + CORE_PROFILE);
+        }
+    }
+}
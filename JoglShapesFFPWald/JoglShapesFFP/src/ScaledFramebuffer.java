@@ -0,0 +1,122 @@
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2GL3;
+
+/**
+ * Offscreen framebuffer for drawing a frame at a lower resolution than the window (dynamic resolution).
+ * begin() redirects the drawing into a color and a depth renderbuffer of the scaled size, end() scales
+ * the color up into the framebuffer of the window with linear filtering (glBlitFramebuffer).
+ * The renderbuffers are reallocated only when the scaled size changes.
+ *
+ * Needs framebuffer objects with blitting (OpenGL 3.0 or ARB_framebuffer_object);
+ * without them begin() returns false and the frame is drawn at full resolution.
+ */
+public class ScaledFramebuffer {
+
+    private final int[] framebuffer = new int[1];
+    private final int[] renderbuffers = new int[2];
+    private final int[] previousFramebuffer = new int[1];
+    private boolean created;
+    private boolean supported = true;
+    private int width;
+    private int height;
+
+    /**
+     * Binds the offscreen framebuffer and sets the viewport to its size.
+     * @param gl The graphics library object.
+     * @param targetWidth Width of the window framebuffer in pixels
+     * @param targetHeight Height of the window framebuffer in pixels
+     * @param scale Resolution relative to the window, between 0 and 1
+     * @return False if the drawing stays in the window framebuffer (not supported)
+     */
+    public boolean begin(GL2GL3 gl, int targetWidth, int targetHeight, float scale) {
+        if (!supported)
+            return false;
+        int scaledWidth = Math.max(1, Math.round(targetWidth * scale));
+        int scaledHeight = Math.max(1, Math.round(targetHeight * scale));
+        if (!created || scaledWidth != width || scaledHeight != height) {
+            if (!allocate(gl, scaledWidth, scaledHeight))
+                return false;
+        }
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebuffer[0]);
+        gl.glViewport(0, 0, width, height);
+        return true;
+    }
+
+    /**
+     * Scales the drawn frame up into the window framebuffer and makes it the current framebuffer again.
+     * @param gl The graphics library object.
+     * @param targetFramebuffer The window framebuffer (GL.getDefaultDrawFramebuffer())
+     * @param targetWidth Width of the window framebuffer in pixels
+     * @param targetHeight Height of the window framebuffer in pixels
+     */
+    public void end(GL2GL3 gl, int targetFramebuffer, int targetWidth, int targetHeight) {
+        gl.glBindFramebuffer(GL2GL3.GL_READ_FRAMEBUFFER, framebuffer[0]);
+        gl.glBindFramebuffer(GL2GL3.GL_DRAW_FRAMEBUFFER, targetFramebuffer);
+        gl.glBlitFramebuffer(0, 0, width, height, 0, 0, targetWidth, targetHeight,
+                GL.GL_COLOR_BUFFER_BIT, GL.GL_LINEAR);
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, targetFramebuffer);
+        gl.glViewport(0, 0, targetWidth, targetHeight);
+    }
+
+    private boolean allocate(GL2GL3 gl, int scaledWidth, int scaledHeight) {
+        if (!created) {
+            if (!gl.isFunctionAvailable("glBlitFramebuffer") || !gl.isFunctionAvailable("glGenFramebuffers")) {
+                supported = false;
+                return false;
+            }
+            gl.glGenFramebuffers(1, framebuffer, 0);
+            gl.glGenRenderbuffers(2, renderbuffers, 0);
+            created = true;
+        }
+        gl.glBindRenderbuffer(GL.GL_RENDERBUFFER, renderbuffers[0]);
+        gl.glRenderbufferStorage(GL.GL_RENDERBUFFER, GL.GL_RGBA8, scaledWidth, scaledHeight);
+        gl.glBindRenderbuffer(GL.GL_RENDERBUFFER, renderbuffers[1]);
+        gl.glRenderbufferStorage(GL.GL_RENDERBUFFER, GL.GL_DEPTH_COMPONENT24, scaledWidth, scaledHeight);
+        gl.glBindRenderbuffer(GL.GL_RENDERBUFFER, 0);
+
+        gl.glGetIntegerv(GL.GL_FRAMEBUFFER_BINDING, previousFramebuffer, 0);
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, framebuffer[0]);
+        gl.glFramebufferRenderbuffer(GL.GL_FRAMEBUFFER, GL.GL_COLOR_ATTACHMENT0, GL.GL_RENDERBUFFER, renderbuffers[0]);
+        gl.glFramebufferRenderbuffer(GL.GL_FRAMEBUFFER, GL.GL_DEPTH_ATTACHMENT, GL.GL_RENDERBUFFER, renderbuffers[1]);
+        int status = gl.glCheckFramebufferStatus(GL.GL_FRAMEBUFFER);
+        gl.glBindFramebuffer(GL.GL_FRAMEBUFFER, previousFramebuffer[0]);
+        if (status != GL.GL_FRAMEBUFFER_COMPLETE) {
+            System.err.println("Scaled framebuffer incomplete (status 0x" + Integer.toHexString(status)
+                    + "), drawing at full resolution");
+            dispose(gl);
+            supported = false;
+            return false;
+        }
+        width = scaledWidth;
+        height = scaledHeight;
+        return true;
+    }
+
+    /**
+     * @return Width of the offscreen framebuffer in pixels, 0 before the first use
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * @return Height of the offscreen framebuffer in pixels, 0 before the first use
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Frees the framebuffer and its renderbuffers.
+     * @param gl The graphics library object.
+     */
+    public void dispose(GL2GL3 gl) {
+        if (!created)
+            return;
+        gl.glDeleteFramebuffers(1, framebuffer, 0);
+        gl.glDeleteRenderbuffers(2, renderbuffers, 0);
+        created = false;
+        width = 0;
+        height = 0;
+    }
+}
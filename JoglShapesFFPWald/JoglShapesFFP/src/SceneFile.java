@@ -0,0 +1,261 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Binary scene file holding the trees of an InstanceStore, loaded by mapping the file into memory.
+ * All numbers are little endian.
+ *
+ *   header (HEADER_BYTES):
+ *     int magic ("TREE"), int version, int instance count, int species count, int material count,
+ *     int reserved, 6 x long offset of the columns x, y, z, scale, species, material
+ *   species table, material table: per entry an unsigned short length and the UTF-8 bytes of the name
+ *   columns: instance count floats (x, y, z, scale) or bytes (species, material) each,
+ *     every column starts at a multiple of COLUMN_ALIGNMENT
+ *
+ * The tables name the species and material ids used in the columns, they have to match the ids of the
+ * InstanceStore (e.g. species 1 is "conifer"). Loading does not parse the instances: map() returns an
+ * InstanceStore whose columns are views of the mapped file, so the data is only read from disk when it is used
+ * (page faults), without copying. The ids of the instances are not scanned either, the FramePipeline skips
+ * instances with unknown ids when it batches them; map(file, true) checks all of them up front.
+ *
+ * On little endian platforms the float columns are in the native order and can be handed to OpenGL buffer
+ * uploads as they are (InstanceStore.getXColumn() etc.). The core profile backend does so for a loaded scene,
+ * which does not change: the columns are uploaded once and every frame only uploads the indices of the visible
+ * trees (see CoreProfileBackend.setStaticTrees()). The other backends draw from the placements the FramePipeline
+ * copies for the visible trees of each frame; the copy is the price of culling and batching the trees on the
+ * CPU, it costs 16 bytes per visible tree and frame and only touches the pages of trees near the view.
+ */
+public final class SceneFile {
+
+    public static final int MAGIC = 0x45455254; // "TREE" read as little endian int
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 72;
+    public static final int COLUMN_ALIGNMENT = 64;
+
+    // Names of the ids of the InstanceStore, stored in the tables of a file
+    private static final String[] SPECIES_NAMES = {"broadleaved", "conifer"};
+    private static final String[] MATERIAL_NAMES = {"leaf green"};
+
+    private static final int FLOAT_COLUMNS = 4;
+    private static final int COLUMNS = 6;
+    // Size of the blocks written at once
+    private static final int WRITE_BUFFER_BYTES = 1 << 20;
+
+    private SceneFile() {
+    }
+
+    /**
+     * Writes the instances of a store into a scene file.
+     * @param trees The instances, from index 0 to size() - 1
+     * @param file The file, replaced if it exists
+     */
+    public static void write(InstanceStore trees, File file) throws IOException {
+        int count = trees.size();
+        ByteBuffer tables = encodeTables();
+        long[] offsets = new long[COLUMNS];
+        long offset = align(HEADER_BYTES + tables.remaining());
+        for (int column = 0; column < COLUMNS; column++) {
+            offsets[column] = offset;
+            offset = align(offset + (long) count * (column < FLOAT_COLUMNS ? Float.BYTES : 1));
+        }
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(MAGIC).putInt(VERSION).putInt(count)
+                .putInt(SPECIES_NAMES.length).putInt(MATERIAL_NAMES.length).putInt(0);
+        for (long columnOffset : offsets)
+            header.putLong(columnOffset);
+        header.flip();
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeFully(channel, header, 0);
+            writeFully(channel, tables, HEADER_BYTES);
+            ByteBuffer block = ByteBuffer.allocateDirect(WRITE_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int column = 0; column < COLUMNS; column++) {
+                long position = offsets[column];
+                int bytesPerValue = column < FLOAT_COLUMNS ? Float.BYTES : 1;
+                for (int start = 0; start < count; ) {
+                    int end = Math.min(count, start + WRITE_BUFFER_BYTES / bytesPerValue);
+                    block.clear();
+                    for (int i = start; i < end; i++)
+                        putValue(block, trees, column, i);
+                    block.flip();
+                    position += writeFully(channel, block, position);
+                    start = end;
+                }
+            }
+            // the last column is padded as well, the file size is a multiple of the alignment
+            if (channel.size() < offset)
+                writeFully(channel, ByteBuffer.allocate((int) (offset - channel.size())), channel.size());
+        }
+    }
+
+    private static void putValue(ByteBuffer block, InstanceStore trees, int column, int i) {
+        switch (column) {
+            case 0:
+                block.putFloat(trees.getX(i));
+                break;
+            case 1:
+                block.putFloat(trees.getY(i));
+                break;
+            case 2:
+                block.putFloat(trees.getZ(i));
+                break;
+            case 3:
+                block.putFloat(trees.getScale(i));
+                break;
+            case 4:
+                block.put(trees.getSpecies(i));
+                break;
+            default:
+                block.put(trees.getMaterial(i));
+        }
+    }
+
+    private static ByteBuffer encodeTables() {
+        int size = 0;
+        byte[][] names = new byte[SPECIES_NAMES.length + MATERIAL_NAMES.length][];
+        for (int i = 0; i < names.length; i++) {
+            String name = i < SPECIES_NAMES.length ? SPECIES_NAMES[i] : MATERIAL_NAMES[i - SPECIES_NAMES.length];
+            names[i] = name.getBytes(StandardCharsets.UTF_8);
+            size += Short.BYTES + names[i].length;
+        }
+        ByteBuffer tables = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        for (byte[] name : names)
+            tables.putShort((short) name.length).put(name);
+        tables.flip();
+        return tables;
+    }
+
+    private static long align(long offset) {
+        return (offset + COLUMN_ALIGNMENT - 1) / COLUMN_ALIGNMENT * COLUMN_ALIGNMENT;
+    }
+
+    private static int writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        int written = 0;
+        while (buffer.hasRemaining())
+            written += channel.write(buffer, position + written);
+        return written;
+    }
+
+    /**
+     * Maps a scene file into memory without reading the instances.
+     * @param file The file
+     * @return A read-only store of the instances of the file, its columns are views of the mapped file
+     * @throws IOException if the file cannot be read, is no scene file of a supported version or is damaged
+     */
+    public static InstanceStore map(File file) throws IOException {
+        return map(file, false);
+    }
+
+    /**
+     * Maps a scene file into memory.
+     * @param file The file
+     * @param checkIds True for checking the species and material ids of all instances, which reads the two
+     *                 byte columns completely
+     * @return A read-only store of the instances of the file, its columns are views of the mapped file
+     * @throws IOException if the file cannot be read, is no scene file of a supported version or is damaged
+     */
+    public static InstanceStore map(File file, boolean checkIds) throws IOException {
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES)
+                throw new IOException(file + " is no scene file");
+            // a mapped buffer is addressed with int, stays valid after the channel is closed
+            if (size > Integer.MAX_VALUE)
+                throw new IOException(file + " exceeds the size of a mapped buffer (2 GB)");
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        ByteBuffer data = mapped.order(ByteOrder.LITTLE_ENDIAN);
+        if (data.getInt(0) != MAGIC)
+            throw new IOException(file + " is no scene file");
+        int version = data.getInt(4);
+        if (version != VERSION)
+            throw new IOException(file + " has the unsupported version " + version);
+        int count = data.getInt(8);
+        int speciesCount = data.getInt(12);
+        int materialCount = data.getInt(16);
+        if (count < 0 || speciesCount < 0 || speciesCount > InstanceStore.SPECIES_COUNT
+                || materialCount < 0 || materialCount > InstanceStore.MATERIAL_COUNT)
+            throw new IOException(file + " is damaged (header)");
+
+        int position = HEADER_BYTES;
+        for (int i = 0; i < speciesCount + materialCount; i++) {
+            if (position + Short.BYTES > data.limit())
+                throw new IOException(file + " is damaged (tables)");
+            int length = data.getShort(position) & 0xffff;
+            position += Short.BYTES;
+            if (position + length > data.limit())
+                throw new IOException(file + " is damaged (tables)");
+            byte[] name = new byte[length];
+            data.duplicate().position(position).get(name);
+            position += length;
+            String expected = i < speciesCount ? SPECIES_NAMES[i] : MATERIAL_NAMES[i - speciesCount];
+            String actual = new String(name, StandardCharsets.UTF_8);
+            if (!expected.equals(actual))
+                throw new IOException(file + " uses the unknown " + (i < speciesCount ? "species" : "material")
+                        + " '" + actual + "' for id " + (i < speciesCount ? i : i - speciesCount));
+        }
+
+        ByteBuffer[] columns = new ByteBuffer[COLUMNS];
+        for (int column = 0; column < COLUMNS; column++) {
+            long offset = data.getLong(24 + column * Long.BYTES);
+            long length = (long) count * (column < FLOAT_COLUMNS ? Float.BYTES : 1);
+            if (offset < position || offset % COLUMN_ALIGNMENT != 0 || offset + length > data.limit())
+                throw new IOException(file + " is damaged (column " + column + ")");
+            ByteBuffer slice = data.duplicate();
+            slice.position((int) offset).limit((int) (offset + length));
+            columns[column] = slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+        }
+        if (checkIds) {
+            checkIds(columns[4], speciesCount, file, "species");
+            checkIds(columns[5], materialCount, file, "material");
+        }
+
+        FloatBuffer[] floats = new FloatBuffer[FLOAT_COLUMNS];
+        for (int column = 0; column < FLOAT_COLUMNS; column++)
+            floats[column] = columns[column].asFloatBuffer();
+        return new InstanceStore(count, floats[0], floats[1], floats[2], floats[3], columns[4], columns[5]);
+    }
+
+    private static void checkIds(ByteBuffer column, int idCount, File file, String kind) throws IOException {
+        for (int i = 0; i < column.limit(); i++) {
+            int id = column.get(i);
+            if (id < 0 || id >= idCount)
+                throw new IOException(file + " is damaged (" + kind + " " + id + " of instance " + i + ")");
+        }
+    }
+
+    /**
+     * Generates a forest and writes it into a scene file.
+     * @param args File name, number of trees and optionally the seed
+     */
+    public static void main(String[] args) {
+        if (args.length < 2) {
+            System.err.println("Usage: SceneFile <file> <trees> [seed]");
+            System.exit(2);
+        }
+        try {
+            ForestGenerator generator = new ForestGenerator();
+            if (args.length > 2)
+                generator.setSeed(Long.parseLong(args[2]));
+            long start = System.nanoTime();
+            InstanceStore trees = generator.generate(Integer.parseInt(args[1]));
+            File file = new File(args[0]);
+            write(trees, file);
+            System.err.printf("%d trees written to %s in %.1f s%n", trees.size(), file,
+                    (System.nanoTime() - start) / 1e9);
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Writing the scene failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
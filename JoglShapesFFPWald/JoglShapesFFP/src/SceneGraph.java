@@ -0,0 +1,420 @@
+import java.util.Arrays;
+
+/**
+ * Retained scene graph of the forest. Nodes are groups or trees, each with a local transform relative
+ * to its parent (translation and uniform scale), a cached world transform and a cached world bounding sphere.
+ * The trees are flattened into an InstanceStore (the render list of the backends): every tree node owns
+ * one instance, which receives its world transform.
+ *
+ * Changing a local transform only marks the node dirty and its ancestors as having dirty descendants.
+ * update() descends into marked subtrees only, recomputes the world transforms below dirty nodes,
+ * writes the affected instances and refits the bounds on the path back to the root.
+ * For a static scene update() returns immediately.
+ *
+ * Transforms are restricted to translation and uniform scale, the same as the instances of the InstanceStore.
+ * Like the InstanceStore, the nodes are held in primitive arrays (struct of arrays) and referred to by index,
+ * children are linked as first child / next sibling, so no objects are allocated per node.
+ * Nodes are only added, never removed.
+ */
+public class SceneGraph {
+
+    // Flags of a node
+    private static final byte DIRTY_TRANSFORM = 1;
+    private static final byte DIRTY_DESCENDANT = 2;
+
+    private static final int NONE = -1;
+
+    // Bounding sphere of a tree of scale 1 (center above the origin of the tree)
+    private final float treeBoundsCenterZ;
+    private final float treeBoundsRadius;
+
+    private final InstanceStore instances;
+    private final int root;
+    private int nodeCount;
+
+    // Hierarchy
+    private int[] parent = new int[0];
+    private int[] firstChild = new int[0];
+    private int[] lastChild = new int[0];
+    private int[] nextSibling = new int[0];
+    // Index of the instance of a tree node, NONE for groups
+    private int[] instance = new int[0];
+    private byte[] flags = new byte[0];
+    // Local transform relative to the parent
+    private float[] localX = new float[0];
+    private float[] localY = new float[0];
+    private float[] localZ = new float[0];
+    private float[] localScale = new float[0];
+    // Cached world transform
+    private float[] worldX = new float[0];
+    private float[] worldY = new float[0];
+    private float[] worldZ = new float[0];
+    private float[] worldScale = new float[0];
+    // Cached world bounding sphere of the subtree
+    private float[] boundsX = new float[0];
+    private float[] boundsY = new float[0];
+    private float[] boundsZ = new float[0];
+    private float[] boundsRadius = new float[0];
+
+    // Number of instances written by the last update()
+    private int updatedInstances;
+    // Informed when the graph becomes dirty
+    private Runnable changeListener;
+
+    /**
+     * Creates a graph with an empty root group at the origin.
+     * @param treeCapacity Maximum number of tree nodes (capacity of the instance store)
+     * @param treeBoundsCenterZ Height of the bounding sphere center of a tree of scale 1
+     * @param treeBoundsRadius Radius of the bounding sphere of a tree of scale 1
+     */
+    public SceneGraph(int treeCapacity, float treeBoundsCenterZ, float treeBoundsRadius) {
+        this.treeBoundsCenterZ = treeBoundsCenterZ;
+        this.treeBoundsRadius = treeBoundsRadius;
+        instances = new InstanceStore(treeCapacity);
+        root = addNode(NONE, NONE, 0f, 0f, 0f, 1f);
+    }
+
+    /**
+     * @return The root group
+     */
+    public int getRoot() {
+        return root;
+    }
+
+    public int getNodeCount() {
+        return nodeCount;
+    }
+
+    /**
+     * @return The flattened trees, up to date after update()
+     */
+    public InstanceStore getInstances() {
+        return instances;
+    }
+
+    /**
+     * Adds a group node.
+     * @param parent Parent node
+     * @return The new node
+     */
+    public int addGroup(int parent, float x, float y, float z, float scale) {
+        return addNode(parent, NONE, x, y, z, scale);
+    }
+
+    /**
+     * Adds a tree node, which receives the next instance of the instance store.
+     * @param parent Parent node
+     * @param species Species of the tree (InstanceStore.SPECIES_...)
+     * @param material Crown material of the tree (InstanceStore.MATERIAL_...)
+     * @return The new node
+     * @throws IllegalStateException if the instance store is full
+     */
+    public int addTree(int parent, float x, float y, float z, float scale, byte species, byte material) {
+        int index = instances.size();
+        if (index == instances.getCapacity())
+            throw new IllegalStateException("The scene graph holds at most " + index + " trees");
+        instances.set(index, x, y, z, scale, species, material);
+        instances.setSize(index + 1);
+        return addNode(parent, index, x, y, z, scale);
+    }
+
+    /**
+     * Adds the trees of a store below a parent, grouped by square tiles of the ground plane.
+     * The tile groups are placed at the center of their tiles and the trees relative to them,
+     * so a tile can be moved as a whole and gets tight bounds.
+     * @param parent Parent node of the tile groups
+     * @param trees The trees, e.g. generated by the ForestGenerator
+     * @param tileSize Edge length of the tiles
+     */
+    public void addTrees(int parent, InstanceStore trees, float tileSize) {
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (int i = 0; i < trees.size(); i++) {
+            minX = Math.min(minX, trees.getX(i));
+            minY = Math.min(minY, trees.getY(i));
+            maxX = Math.max(maxX, trees.getX(i));
+            maxY = Math.max(maxY, trees.getY(i));
+        }
+        if (trees.size() == 0)
+            return;
+        int columns = (int) ((maxX - minX) / tileSize) + 1;
+        int rows = (int) ((maxY - minY) / tileSize) + 1;
+        int[] tiles = new int[columns * rows];
+        Arrays.fill(tiles, NONE);
+        ensureCapacity(nodeCount + trees.size() + Math.min(tiles.length, trees.size()));
+        for (int i = 0; i < trees.size(); i++) {
+            int column = (int) ((trees.getX(i) - minX) / tileSize);
+            int row = (int) ((trees.getY(i) - minY) / tileSize);
+            float tileX = minX + (column + 0.5f) * tileSize;
+            float tileY = minY + (row + 0.5f) * tileSize;
+            int tile = row * columns + column;
+            if (tiles[tile] == NONE)
+                tiles[tile] = addGroup(parent, tileX, tileY, 0f, 1f);
+            addTree(tiles[tile], trees.getX(i) - tileX, trees.getY(i) - tileY, trees.getZ(i), trees.getScale(i),
+                    trees.getSpecies(i), trees.getMaterial(i));
+        }
+    }
+
+    private int addNode(int parentNode, int instanceIndex, float x, float y, float z, float scale) {
+        ensureCapacity(nodeCount + 1);
+        int node = nodeCount++;
+        parent[node] = parentNode;
+        firstChild[node] = NONE;
+        lastChild[node] = NONE;
+        nextSibling[node] = NONE;
+        instance[node] = instanceIndex;
+        localX[node] = x;
+        localY[node] = y;
+        localZ[node] = z;
+        localScale[node] = scale;
+        if (parentNode != NONE) {
+            // appended, so the children are traversed in the order of creation
+            if (lastChild[parentNode] == NONE)
+                firstChild[parentNode] = node;
+            else
+                nextSibling[lastChild[parentNode]] = node;
+            lastChild[parentNode] = node;
+        }
+        markDirty(node);
+        return node;
+    }
+
+    private void ensureCapacity(int count) {
+        if (parent.length >= count)
+            return;
+        int capacity = Math.max(count, 2 * parent.length);
+        parent = Arrays.copyOf(parent, capacity);
+        firstChild = Arrays.copyOf(firstChild, capacity);
+        lastChild = Arrays.copyOf(lastChild, capacity);
+        nextSibling = Arrays.copyOf(nextSibling, capacity);
+        instance = Arrays.copyOf(instance, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        localX = Arrays.copyOf(localX, capacity);
+        localY = Arrays.copyOf(localY, capacity);
+        localZ = Arrays.copyOf(localZ, capacity);
+        localScale = Arrays.copyOf(localScale, capacity);
+        worldX = Arrays.copyOf(worldX, capacity);
+        worldY = Arrays.copyOf(worldY, capacity);
+        worldZ = Arrays.copyOf(worldZ, capacity);
+        worldScale = Arrays.copyOf(worldScale, capacity);
+        boundsX = Arrays.copyOf(boundsX, capacity);
+        boundsY = Arrays.copyOf(boundsY, capacity);
+        boundsZ = Arrays.copyOf(boundsZ, capacity);
+        boundsRadius = Arrays.copyOf(boundsRadius, capacity);
+    }
+
+    /**
+     * Sets the translation of a node relative to its parent. Takes effect with the next update().
+     */
+    public void setTranslation(int node, float x, float y, float z) {
+        localX[node] = x;
+        localY[node] = y;
+        localZ[node] = z;
+        markDirty(node);
+    }
+
+    /**
+     * Sets the uniform scale of a node relative to its parent. Takes effect with the next update().
+     */
+    public void setScale(int node, float scale) {
+        localScale[node] = scale;
+        markDirty(node);
+    }
+
+    /**
+     * Marks the transform of a node as changed and its ancestors as having a changed descendant.
+     * Stops at the first ancestor which is marked already.
+     */
+    private void markDirty(int node) {
+        boolean wasDirty = isDirty();
+        flags[node] |= DIRTY_TRANSFORM;
+        for (int ancestor = parent[node]; ancestor != NONE; ancestor = parent[ancestor]) {
+            if ((flags[ancestor] & DIRTY_DESCENDANT) != 0)
+                break;
+            flags[ancestor] |= DIRTY_DESCENDANT;
+        }
+        if (!wasDirty && changeListener != null)
+            changeListener.run();
+    }
+
+    /**
+     * Sets the listener informed when a transform is changed after the last update(), e.g. for drawing a frame
+     * on demand. Called once until the next update(), on the thread changing the graph.
+     * @param changeListener The listener, null for none
+     */
+    public void setChangeListener(Runnable changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * @return True if update() has work to do
+     */
+    public boolean isDirty() {
+        return flags[root] != 0;
+    }
+
+    /**
+     * Recomputes the world transforms and bounds of the changed subtrees and writes the changed trees
+     * into the instance store.
+     * @return Number of written instances, 0 if nothing changed
+     */
+    public int update() {
+        updatedInstances = 0;
+        if (isDirty())
+            update(root, false);
+        return updatedInstances;
+    }
+
+    /**
+     * Updates a node whose ancestors are up to date.
+     * @param parentChanged True if the world transform of the parent has changed
+     */
+    private void update(int node, boolean parentChanged) {
+        boolean changed = parentChanged || (flags[node] & DIRTY_TRANSFORM) != 0;
+        if (!changed && (flags[node] & DIRTY_DESCENDANT) == 0)
+            return;
+        if (changed) {
+            int p = parent[node];
+            if (p == NONE) {
+                worldX[node] = localX[node];
+                worldY[node] = localY[node];
+                worldZ[node] = localZ[node];
+                worldScale[node] = localScale[node];
+            } else {
+                float scale = worldScale[p];
+                worldX[node] = worldX[p] + scale * localX[node];
+                worldY[node] = worldY[p] + scale * localY[node];
+                worldZ[node] = worldZ[p] + scale * localZ[node];
+                worldScale[node] = scale * localScale[node];
+            }
+        }
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child])
+            update(child, changed);
+        flags[node] = 0;
+
+        int index = instance[node];
+        if (index != NONE) {
+            if (changed) {
+                instances.set(index, worldX[node], worldY[node], worldZ[node], worldScale[node],
+                        instances.getSpecies(index), instances.getMaterial(index));
+                updatedInstances++;
+            }
+            setTreeBounds(node);
+        } else {
+            fitBounds(node);
+        }
+    }
+
+    private void setTreeBounds(int node) {
+        float scale = worldScale[node];
+        boundsX[node] = worldX[node];
+        boundsY[node] = worldY[node];
+        boundsZ[node] = worldZ[node] + treeBoundsCenterZ * scale;
+        boundsRadius[node] = treeBoundsRadius * scale;
+    }
+
+    /**
+     * Fits the bounding sphere of a group around the spheres of its children:
+     * centered in the box around the child spheres, with the smallest radius enclosing all of them.
+     * An empty group gets a sphere of radius 0 at its origin.
+     */
+    private void fitBounds(int node) {
+        if (firstChild[node] == NONE) {
+            boundsX[node] = worldX[node];
+            boundsY[node] = worldY[node];
+            boundsZ[node] = worldZ[node];
+            boundsRadius[node] = 0f;
+            return;
+        }
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE, minZ = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE, maxZ = -Float.MAX_VALUE;
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            float r = boundsRadius[child];
+            minX = Math.min(minX, boundsX[child] - r);
+            minY = Math.min(minY, boundsY[child] - r);
+            minZ = Math.min(minZ, boundsZ[child] - r);
+            maxX = Math.max(maxX, boundsX[child] + r);
+            maxY = Math.max(maxY, boundsY[child] + r);
+            maxZ = Math.max(maxZ, boundsZ[child] + r);
+        }
+        float centerX = (minX + maxX) / 2;
+        float centerY = (minY + maxY) / 2;
+        float centerZ = (minZ + maxZ) / 2;
+        float radius = 0f;
+        for (int child = firstChild[node]; child != NONE; child = nextSibling[child]) {
+            float dx = boundsX[child] - centerX;
+            float dy = boundsY[child] - centerY;
+            float dz = boundsZ[child] - centerZ;
+            radius = Math.max(radius, (float) Math.sqrt(dx * dx + dy * dy + dz * dz) + boundsRadius[child]);
+        }
+        boundsX[node] = centerX;
+        boundsY[node] = centerY;
+        boundsZ[node] = centerZ;
+        boundsRadius[node] = radius;
+    }
+
+    public int getParent(int node) {
+        return parent[node];
+    }
+
+    /**
+     * @return Index of the instance of a tree node in the instance store, -1 for a group
+     */
+    public int getInstance(int node) {
+        return instance[node];
+    }
+
+    public float getLocalX(int node) {
+        return localX[node];
+    }
+
+    public float getLocalY(int node) {
+        return localY[node];
+    }
+
+    public float getLocalZ(int node) {
+        return localZ[node];
+    }
+
+    public float getLocalScale(int node) {
+        return localScale[node];
+    }
+
+    /**
+     * @return World position of a node, as of the last update()
+     */
+    public float getWorldX(int node) {
+        return worldX[node];
+    }
+
+    public float getWorldY(int node) {
+        return worldY[node];
+    }
+
+    public float getWorldZ(int node) {
+        return worldZ[node];
+    }
+
+    public float getWorldScale(int node) {
+        return worldScale[node];
+    }
+
+    /**
+     * @return Center of the world bounding sphere of the subtree of a node, as of the last update()
+     */
+    public float getBoundsX(int node) {
+        return boundsX[node];
+    }
+
+    public float getBoundsY(int node) {
+        return boundsY[node];
+    }
+
+    public float getBoundsZ(int node) {
+        return boundsZ[node];
+    }
+
+    public float getBoundsRadius(int node) {
+        return boundsRadius[node];
+    }
+}
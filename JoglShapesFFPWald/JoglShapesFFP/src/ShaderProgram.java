@@ -0,0 +1,70 @@
+import com.jogamp.opengl.GL;
+import com.jogamp.opengl.GL2ES2;
+
+/**
+ * Compiles and links GLSL shader programs. Works with compatibility and core profile contexts.
+ */
+public final class ShaderProgram {
+
+    private ShaderProgram() {
+    }
+
+    /**
+     * Compiles a vertex and a fragment shader and links them into a program.
+     * @param gl The graphics library object.
+     * @param name Name of the program for error messages
+     * @param vertexSource Source of the vertex shader
+     * @param fragmentSource Source of the fragment shader
+     * @param attributes Names of the vertex attributes, bound to the locations 0, 1, ... in this order
+     * @return The program object
+     * @throws IllegalStateException if compiling or linking fails, with the log of the driver
+     */
+    public static int link(GL2ES2 gl, String name, String vertexSource, String fragmentSource, String... attributes) {
+        int vertexShader = compile(gl, name, GL2ES2.GL_VERTEX_SHADER, vertexSource);
+        int fragmentShader = compile(gl, name, GL2ES2.GL_FRAGMENT_SHADER, fragmentSource);
+        int program = gl.glCreateProgram();
+        gl.glAttachShader(program, vertexShader);
+        gl.glAttachShader(program, fragmentShader);
+        for (int location = 0; location < attributes.length; location++)
+            gl.glBindAttribLocation(program, location, attributes[location]);
+        gl.glLinkProgram(program);
+        // the shader objects are not needed anymore after linking
+        gl.glDetachShader(program, vertexShader);
+        gl.glDetachShader(program, fragmentShader);
+        gl.glDeleteShader(vertexShader);
+        gl.glDeleteShader(fragmentShader);
+        int[] status = new int[1];
+        gl.glGetProgramiv(program, GL2ES2.GL_LINK_STATUS, status, 0);
+        if (status[0] == GL.GL_FALSE) {
+            String log = getProgramLog(gl, program);
+            gl.glDeleteProgram(program);
+            throw new IllegalStateException("Linking the " + name + " shader failed: " + log);
+        }
+        return program;
+    }
+
+    private static int compile(GL2ES2 gl, String name, int type, String source) {
+        int shader = gl.glCreateShader(type);
+        gl.glShaderSource(shader, 1, new String[] {source}, new int[] {source.length()}, 0);
+        gl.glCompileShader(shader);
+        int[] status = new int[1];
+        gl.glGetShaderiv(shader, GL2ES2.GL_COMPILE_STATUS, status, 0);
+        if (status[0] == GL.GL_FALSE) {
+            int[] length = new int[1];
+            gl.glGetShaderiv(shader, GL2ES2.GL_INFO_LOG_LENGTH, length, 0);
+            byte[] log = new byte[Math.max(length[0], 1)];
+            gl.glGetShaderInfoLog(shader, log.length, length, 0, log, 0);
+            gl.glDeleteShader(shader);
+            throw new IllegalStateException("Compiling the " + name + " shader failed: " + new String(log, 0, length[0]));
+        }
+        return shader;
+    }
+
+    private static String getProgramLog(GL2ES2 gl, int program) {
+        int[] length = new int[1];
+        gl.glGetProgramiv(program, GL2ES2.GL_INFO_LOG_LENGTH, length, 0);
+        byte[] log = new byte[Math.max(length[0], 1)];
+        gl.glGetProgramInfoLog(program, log.length, length, 0, log, 0);
+        return new String(log, 0, length[0]);
+    }
+}
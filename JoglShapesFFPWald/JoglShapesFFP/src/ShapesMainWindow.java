@@ -28,20 +28,23 @@
 
 
 import java.awt.Dimension;
+import java.awt.event.KeyAdapter;
+import java.awt.event.KeyEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
 
+import java.io.File;
+import java.io.IOException;
+
 import javax.swing.JFrame;
 
 import com.jogamp.opengl.GLCapabilities;
 import com.jogamp.opengl.GLProfile;
-import com.jogamp.opengl.awt.GLCanvas;
-import com.jogamp.opengl.util.FPSAnimator;
 
 /**
  * Top-level class of the application displaying the OpenGL component.
  * Creates Window (JFrame) where the OpenGL Canvas is displayed in.
- * Starts an animation loop and the renderer.
+ * Starts the renderer and a FrameScheduler driving it.
  *
  * Based on a tutorial by Chua Hock-Chuan
  * http://www3.ntu.edu.sg/home/ehchua/programming/opengl/JOGL2.0.html
@@ -60,23 +63,87 @@ public class ShapesMainWindow extends JFrame {
     private static String TITLE = "Start Code Main Window - Fixed Function Pipeline";
     private static final int CANVAS_WIDTH = 640;  // width of the drawable
     private static final int CANVAS_HEIGHT = 480; // height of the drawable
-    private static final int FPS = 60; // animator's target frames per second
+    private static final int FPS = 60; // scheduler's target frames per second
+    private static final String PROFILE_FILE = "frame-profile.csv";
+    private static final int STREAMING_TILE_TREES = 256; // average number of trees per streamed tile
+
+    // Distance of the impostors when they are switched on with the I key
+    private float impostorDistance;
 
     /**
      * Standard constructor generating a Java swing window for displaying an OpenGl canvas.
      */
     public ShapesMainWindow() {
+        this(createCanvas(RenderBackend.AUTO), FrameScheduler.Pacing.ADAPTIVE, FrameScheduler.Scaling.RESOLUTION);
+    }
+
+    /**
+     * Creates the OpenGL canvas with the default settings of the window.
+     * The scene and the drawing options are configured with the setters of the canvas
+     * before it is passed to the constructor.
+     * @param backend Backend drawing the trees (RenderBackend.AUTO, FIXED_FUNCTION or CORE_PROFILE)
+     * @return The canvas
+     */
+    public static ShapesRenderer createCanvas(String backend) {
         // Setup an OpenGL context for the Canvas
-        // Set up OpenGL for using the fixed function pipeline (GL2)
-        GLProfile profile = GLProfile.get(GLProfile.GL2);
+        // The profile decides the backend: fixed function pipeline (GL2) or core profile (GL3, GL4)
+        GLProfile profile = RenderBackend.selectProfile(backend);
         GLCapabilities capabilities = new GLCapabilities(profile);
         // Create the OpenGL rendering canvas
-        GLCanvas canvas = new ShapesRenderer(capabilities);
+        ShapesRenderer canvas = new ShapesRenderer(capabilities);
         canvas.setPreferredSize(new Dimension(CANVAS_WIDTH, CANVAS_HEIGHT));
+        // the camera of a frame lags one frame behind the input, the CPU stage runs beside the submission
+        canvas.setPipelined(true);
+        return canvas;
+    }
+
+    /**
+     * Constructor generating a Java swing window for displaying an OpenGl canvas.
+     * R starts and stops the recording of the frame capture of the canvas, H shows the performance overlay,
+     * P writes the frame profile as CSV file, O toggles the occlusion culling and I the impostors.
+     * @param canvas The canvas to display, see createCanvas()
+     * @param pacing ADAPTIVE for drawing only changed frames, ON_DEMAND for sleeping until a frame is requested,
+     *               FIXED for drawing every frame
+     * @param scaling What is lowered when the frames take longer than the frame period
+     */
+    public ShapesMainWindow(ShapesRenderer canvas, FrameScheduler.Pacing pacing, FrameScheduler.Scaling scaling) {
+        impostorDistance = canvas.getImpostorDistance() > 0f ? canvas.getImpostorDistance()
+                : ShapesRenderer.DEFAULT_IMPOSTOR_DISTANCE;
+        // R: start/stop recording, H: show/hide the performance overlay, P: write the frame profile,
+        // O: switch the occlusion culling on/off, I: switch the impostors on/off
+        canvas.addKeyListener(new KeyAdapter() {
+            @Override
+            public void keyPressed(KeyEvent e) {
+                switch (e.getKeyCode()) {
+                    case KeyEvent.VK_R:
+                        canvas.setRecording(!canvas.isRecording());
+                        break;
+                    case KeyEvent.VK_H:
+                        canvas.setPerformanceOverlay(!canvas.isPerformanceOverlay());
+                        break;
+                    case KeyEvent.VK_P:
+                        writeFrameProfile(canvas.getFrameProfiler());
+                        break;
+                    case KeyEvent.VK_O:
+                        canvas.setOcclusionCulling(!canvas.isOcclusionCulling());
+                        break;
+                    case KeyEvent.VK_I:
+                        if (canvas.getImpostorDistance() > 0f) {
+                            impostorDistance = canvas.getImpostorDistance();
+                            canvas.setImpostorDistance(0f);
+                        } else {
+                            canvas.setImpostorDistance(impostorDistance);
+                        }
+                        break;
+                }
+            }
+        });
 
-        // Create an animator that drives the canvas (display() methode of the renderer)
-        // at the specified frame rate.
-        final FPSAnimator animator = new FPSAnimator(canvas, FPS, true);
+        // Create a scheduler that drives the canvas (display() methode of the renderer)
+        // at the specified frame rate, skipping unchanged frames and scaling the quality down when frames overrun
+        final FrameScheduler scheduler = new FrameScheduler(canvas, FPS);
+        scheduler.setPacing(pacing);
+        scheduler.setScaling(scaling);
 
         // Create the top-level container frame
         this.getContentPane().add(canvas);
@@ -84,11 +151,11 @@ public class ShapesMainWindow extends JFrame {
             @Override
             public void windowClosing(WindowEvent e) {
                 // Use a dedicate thread to run "stop()" to ensure the
-                // animator stops before program exit.
+                // scheduler stops before program exit.
                 new Thread() {
                     @Override
                     public void run() {
-                        if (animator.isStarted()) animator.stop();
+                        scheduler.stop();
                         System.exit(0);
                     }
                 }.start();
@@ -98,17 +165,137 @@ public class ShapesMainWindow extends JFrame {
         this.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
         this.pack();
         this.setVisible(true);
-        animator.start(); // start the animation loop
+        scheduler.start(); // start the animation loop
 
         // OpenGL: request focus for canvas
         canvas.requestFocusInWindow();
     }
 
+    /**
+     * Writes the timings of the last frames into a CSV file in the working directory.
+     */
+    private static void writeFrameProfile(FrameProfiler profiler) {
+        File file = new File(PROFILE_FILE);
+        try {
+            profiler.writeCsv(file);
+            System.err.println("Frame profile written to " + file.getAbsolutePath());
+            System.err.println(profiler.getSummary());
+        } catch (IOException e) {
+            System.err.println("Writing the frame profile failed: " + e.getMessage());
+        }
+    }
+
     /**
      * Creates the main window and starts the program
-     * @param args The arguments are not used
+     * @param args Use "-instanced" for drawing the trees with instanced rendering,
+     *             "-trees=n" for the number of trees and "-seed=s" for the seed of the tree placement,
+     *             "-allocstats" for printing the heap allocation per frame,
+     *             "-capture=dir" for recording frames into a directory (R starts and stops the recording),
+     *             "-raw" for recording raw BGRA files instead of PNG images,
+     *             "-backend=auto|fixed|core" for the OpenGL backend (default auto: fixed function pipeline
+     *             if available, "core" for the core profile),
+     *             "-pacing=adaptive|ondemand|fixed" for skipping unchanged frames, sleeping until a frame is needed
+     *             or drawing every frame (default adaptive),
+     *             "-scaling=resolution|lod|none" for what is lowered when frames overrun (default resolution),
+     *             "-scene=file" for loading the trees from a scene file (see SceneFile) instead of generating them,
+     *             "-stream" for an endless forest loaded in tiles around the camera (see StreamingWorld),
+     *             "-budget=mb" for the memory budget of the streamed trees in megabytes (implies -stream),
+     *             "-occlusion" for skipping the trees hidden behind other trees (see OcclusionCuller),
+     *             "-impostors[=distance]" for drawing the trees beyond the distance (default 30) as impostors
+     *             (see ImpostorRenderer), "-blend=width" for the band in which they fade into the geometry
      */
     public static void main(String[] args) {
-        new ShapesMainWindow();
+        boolean instancedRendering = false;
+        int treeCount = 16;
+        long seed = 1;
+        boolean allocationStatistics = false;
+        File captureDirectory = null;
+        FrameEncoder encoder = FrameEncoder.PNG;
+        String backend = RenderBackend.AUTO;
+        File sceneFile = null;
+        FrameScheduler.Pacing pacing = FrameScheduler.Pacing.ADAPTIVE;
+        FrameScheduler.Scaling scaling = FrameScheduler.Scaling.RESOLUTION;
+        boolean streaming = false;
+        long memoryBudget = 32L << 20;
+        boolean occlusionCulling = false;
+        float impostorDistance = 0f;
+        float impostorBlendRange = -1f;
+        for (String arg : args) {
+            if (arg.equals("-instanced"))
+                instancedRendering = true;
+            else if (arg.startsWith("-trees="))
+                treeCount = Integer.parseInt(arg.substring("-trees=".length()));
+            else if (arg.startsWith("-seed="))
+                seed = Long.parseLong(arg.substring("-seed=".length()));
+            else if (arg.equals("-allocstats"))
+                allocationStatistics = true;
+            else if (arg.startsWith("-capture="))
+                captureDirectory = new File(arg.substring("-capture=".length()));
+            else if (arg.equals("-raw"))
+                encoder = FrameEncoder.RAW;
+            else if (arg.startsWith("-backend="))
+                backend = arg.substring("-backend=".length());
+            else if (arg.equals("-pacing=fixed"))
+                pacing = FrameScheduler.Pacing.FIXED;
+            else if (arg.equals("-pacing=adaptive"))
+                pacing = FrameScheduler.Pacing.ADAPTIVE;
+            else if (arg.equals("-pacing=ondemand"))
+                pacing = FrameScheduler.Pacing.ON_DEMAND;
+            else if (arg.equals("-scaling=none"))
+                scaling = FrameScheduler.Scaling.NONE;
+            else if (arg.equals("-scaling=resolution"))
+                scaling = FrameScheduler.Scaling.RESOLUTION;
+            else if (arg.equals("-scaling=lod"))
+                scaling = FrameScheduler.Scaling.LEVEL_OF_DETAIL;
+            else if (arg.startsWith("-scene="))
+                sceneFile = new File(arg.substring("-scene=".length()));
+            else if (arg.equals("-stream"))
+                streaming = true;
+            else if (arg.startsWith("-budget=")) {
+                streaming = true;
+                memoryBudget = Long.parseLong(arg.substring("-budget=".length())) << 20;
+            } else if (arg.equals("-occlusion"))
+                occlusionCulling = true;
+            else if (arg.equals("-impostors"))
+                impostorDistance = ShapesRenderer.DEFAULT_IMPOSTOR_DISTANCE;
+            else if (arg.startsWith("-impostors="))
+                impostorDistance = Float.parseFloat(arg.substring("-impostors=".length()));
+            else if (arg.startsWith("-blend="))
+                impostorBlendRange = Float.parseFloat(arg.substring("-blend=".length()));
+        }
+        InstanceStore loadedTrees = null;
+        if (sceneFile != null) {
+            try {
+                loadedTrees = SceneFile.map(sceneFile);
+            } catch (IOException e) {
+                System.err.println("Loading the scene failed: " + e.getMessage());
+                System.exit(1);
+            }
+        }
+        StreamingWorld streamingWorld = null;
+        if (streaming) {
+            streamingWorld = new StreamingWorld(new StreamingWorld.ForestTiles(seed, STREAMING_TILE_TREES),
+                    ShapesRenderer.TREE_BOUNDS_CENTER_Z, ShapesRenderer.TREE_BOUNDS_RADIUS);
+            streamingWorld.setMemoryBudget(memoryBudget);
+        }
+        FrameCapture frameCapture = null;
+        if (captureDirectory != null) {
+            // the render thread and the animator keep one processor busy
+            frameCapture = new FrameCapture(captureDirectory, "frame_", encoder, 3,
+                    Math.max(1, Runtime.getRuntime().availableProcessors() - 1));
+        }
+        ShapesRenderer canvas = createCanvas(backend);
+        canvas.setInstancedRendering(instancedRendering);
+        canvas.setTreeCount(treeCount);
+        canvas.setLoadedTrees(loadedTrees);
+        canvas.setStreamingWorld(streamingWorld);
+        canvas.setOcclusionCulling(occlusionCulling);
+        canvas.setImpostorDistance(impostorDistance);
+        if (impostorBlendRange >= 0f)
+            canvas.setImpostorBlendRange(impostorBlendRange);
+        canvas.getForestGenerator().setSeed(seed);
+        canvas.getAllocationMonitor().setReporting(allocationStatistics);
+        canvas.setFrameCapture(frameCapture);
+        new ShapesMainWindow(canvas, pacing, scaling);
     }
 }
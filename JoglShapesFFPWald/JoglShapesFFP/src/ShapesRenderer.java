@@ -28,6 +28,7 @@
 
 import com.jogamp.opengl.GL;
 import com.jogamp.opengl.GL2;
+import com.jogamp.opengl.GL2GL3;
 import com.jogamp.opengl.GLAutoDrawable;
 import com.jogamp.opengl.GLCapabilities;
 import com.jogamp.opengl.GLEventListener;
@@ -35,14 +36,19 @@ import com.jogamp.opengl.awt.GLCanvas;
 import com.jogamp.opengl.glu.GLU;
 import com.jogamp.opengl.glu.GLUquadric;
 
-import static com.jogamp.opengl.GL2GL3.GL_FILL;
-import static com.jogamp.opengl.GL2GL3.GL_LINE;
+import java.awt.event.ComponentAdapter;
+import java.awt.event.ComponentEvent;
+import java.io.IOException;
 
 //import static com.sun.tools.doclint.Entity.alpha;
 
 /**
  * Performs the OpenGL graphics processing.
- * Uses the fixed function pipeline without shaders.
+ * Prepares every frame on the CPU (camera, view frustum culling, level of detail selection) in parallel
+ * with a FramePipeline and leaves the drawing of the resulting command list to a RenderBackend matching
+ * the OpenGL context: the fixed function pipeline without shaders in a compatibility profile context,
+ * shaders and buffer objects in a core profile context. In pipelined mode the CPU stage of the next frame
+ * runs while the current frame is drawn.
  *
  * Starts an animation loop.
  * Zooming, rotation and translation of the camera is included.
@@ -69,8 +75,110 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
 
     private static final long serialVersionUID = 1L;
 
+    // Procedural placement of the trees (seeded, so the scene is the same in every run)
+    private final ForestGenerator forestGenerator = new ForestGenerator();
+    // Retained scene: the trees grouped by tiles of the ground plane, flattened into the instance store
+    private SceneGraph sceneGraph;
+    private InstanceStore trees;
+    private int treeCount = 16;
+    // Trees loaded from a scene file, null for generating the forest
+    private InstanceStore loadedTrees;
+    // Endless world streamed in tiles around the camera, null for a fixed scene
+    private StreamingWorld streamingWorld;
+    // Point of the ground plane the camera looks at, reported to the streaming world
+    private final float[] focus = new float[3];
+
     // Object for handling keyboard and mouse interaction
     private InteractionHandler interactionHandler;
+    // Moves the camera by the input over the frame time
+    private final CameraController cameraController = new CameraController();
+
+    // Bounding sphere of a tree of scale 1 (center above the origin of the tree)
+    static final float TREE_BOUNDS_CENTER_Z = 0.7f;
+    static final float TREE_BOUNDS_RADIUS = 0.72f;
+    // Shape of a tree of scale 1: a trunk along the z-axis with the crown on top of it,
+    // a cone for conifers and a sphere for broadleaved trees
+    static final float TREE_TRUNK_RADIUS = 0.1f;
+    static final float TREE_TRUNK_HEIGHT = 0.8f;
+    static final float TREE_CROWN_OFFSET_Z = TREE_TRUNK_HEIGHT;
+    static final float CONIFER_CROWN_BASE = 0.4f;
+    static final float CONIFER_CROWN_TOP = 0.01f;
+    static final float CONIFER_CROWN_HEIGHT = 0.6f;
+    static final float BROADLEAVED_CROWN_RADIUS = 0.3f;
+    // Tessellation of the finest level of detail of the tree parts
+    static final int TREE_SLICES = 12;
+    static final int TREE_CYLINDER_STACKS = 1;
+    static final int TREE_SPHERE_STACKS = 12;
+    // Edge length of the tile groups of the scene graph
+    private static final float SCENE_TILE_SIZE = 16f;
+
+    // Material ids, shared by all backends
+    private final MaterialRegistry materialRegistry = new MaterialRegistry();
+    private final int leafGreenMaterial = materialRegistry.register(Material.LEAF_GREEN);
+    private final int woodBrownMaterial = materialRegistry.register(Material.WOOD_BROWN);
+    // Material id for each crown material of the instance store
+    private final int[] crownMaterials = {leafGreenMaterial};
+
+    // Draws the trees, chosen in init() from the profile of the context
+    private RenderBackend backend;
+
+    // GLU object and quadric shared by the template draw methods (compatibility profile only,
+    // created once, the quadric is deleted in dispose())
+    private final GLU glu = new GLU();
+    private GLUquadric quadric;
+    // Corners of the box of drawBox(), reused for every call
+    private final float[] boxVertices = new float[24];
+
+    // Measures the heap allocation of every frame
+    private final FrameAllocationMonitor allocationMonitor = new FrameAllocationMonitor();
+
+    // Camera and projection on the CPU side and level of detail selection per tree
+    private final ViewTransform viewTransform = new ViewTransform();
+    private final LodSelector lodSelector = new LodSelector();
+
+    // View frustum culling of the trees using a spatial index over their bounding spheres
+    private boolean frustumCulling = true;
+    private final UniformGridIndex treeIndex = new UniformGridIndex();
+    private int visibleTreeCount;
+    // Occlusion culling of the cells of the index, with the depth buffer of the previous frames
+    private final OcclusionCuller occlusionCuller = new OcclusionCuller();
+    private volatile boolean occlusionCulling = false;
+    // Distant trees drawn as billboards from a pre-rendered atlas, beyond the impostor distance (0 for none)
+    static final float DEFAULT_IMPOSTOR_DISTANCE = 30f;
+    private final ImpostorRenderer impostorRenderer = new ImpostorRenderer(TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+    private volatile float impostorDistance = 0f;
+    private volatile float impostorBlendRange = 5f;
+
+    // CPU stage of the frames (culling, level of detail selection, sorting), optionally one frame ahead
+    private final FramePipeline framePipeline = new FramePipeline(TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+    private boolean pipelined = false;
+    // Cameras of the stage running for the next frame and of the last drawn frame, see needsFrame()
+    private volatile CameraState preparedCamera;
+    private volatile CameraState drawnCamera;
+    private volatile boolean frameRequested = true;
+    // Informed by requestFrame(), e.g. a FrameScheduler drawing on demand
+    private volatile Runnable frameRequestListener;
+
+    // Quality of the frames, lowered by the FrameScheduler when frames take too long:
+    // resolution of the scene relative to the window and level of detail bias
+    private final ScaledFramebuffer scaledFramebuffer = new ScaledFramebuffer();
+    private volatile float renderScale = 1f;
+    private volatile float detailScale = 1f;
+
+    // Instanced rendering of the trees in the fixed function backend (one draw call per tree part type)
+    private boolean instancedRendering = false;
+    // Draw the generated meshes as triangle strips instead of triangle lists
+    private boolean meshStrips = false;
+
+    // Timings and counters of every frame, optionally shown as overlay
+    private final FrameProfiler frameProfiler = new FrameProfiler();
+    private final PerformanceOverlay performanceOverlay = new PerformanceOverlay(frameProfiler);
+    private volatile boolean performanceOverlayVisible;
+
+    // Recording of the displayed frames (started and stopped by setRecording(), executed in display())
+    private FrameCapture frameCapture;
+    private volatile boolean recording;
+    private int recordedFrames;
 
     public ShapesRenderer() {
         // Create the canvas with default capabilities
@@ -100,15 +208,26 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
         // The constructor call of the interaction handler generates meaningful default values
         // Nevertheless the start parameters can be set via setters (see class definition)
         interactionHandler = new InteractionHandler();
+        // set here instead of in init(), so the camera can be positioned before the first frame
+        interactionHandler.setEyeZ(10);
         this.addKeyListener(interactionHandler);
         this.addMouseListener(interactionHandler);
         this.addMouseMotionListener(interactionHandler);
         this.addMouseWheelListener(interactionHandler);
+        this.addFocusListener(interactionHandler);
+        // every input and every resize needs a new frame
+        interactionHandler.setInputListener(this::requestFrame);
+        this.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentResized(ComponentEvent e) {
+                requestFrame();
+            }
+        });
     }
 
     @Override
     public void init(GLAutoDrawable drawable) {
-        GL2 gl = drawable.getGL().getGL2();
+        GL2GL3 gl = drawable.getGL().getGL2GL3();
 
         // Outputs information about the available and chooses profile
         System.err.println("Chosen GLCapabilities: " + drawable.getChosenGLCapabilities());
@@ -117,43 +236,408 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
         System.err.println("GL_RENDERER: " + gl.glGetString(GL.GL_RENDERER));
         System.err.println("GL_VERSION: " + gl.glGetString(GL.GL_VERSION));
 
-        // A subroutine for light definition might be called here
-        //setLight(gl);
         gl.glEnable(GL.GL_DEPTH_TEST);
 
         // Switch on back face culling
        // gl.glEnable(GL.GL_CULL_FACE);
         //gl.glCullFace(GL.GL_BACK);
 
-        // Initialization for the interaction handler might be called here
-        interactionHandler.setEyeZ(10);
+        // GLU quadrics draw with immediate mode, which does not exist in a core profile context
+        if (gl.isGL2())
+            quadric = glu.gluNewQuadric();
+        frameProfiler.init(gl);
+        occlusionCuller.init(gl);
+
+        if (streamingWorld != null) {
+            // the trees are replaced by the snapshots of the streaming world, sized by its memory budget
+            sceneGraph = new SceneGraph(0, TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+            streamingWorld.setChangeListener(this::requestFrame);
+            streamingWorld.start();
+            trees = streamingWorld.getTrees();
+        } else if (loadedTrees != null) {
+            // a loaded scene is static and drawn from the mapped file as it is, it is not part of the scene graph
+            sceneGraph = new SceneGraph(0, TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+            trees = loadedTrees;
+        } else {
+            // Place the trees and build the scene graph, its first update flattens all trees
+            InstanceStore forest = forestGenerator.generate(treeCount);
+            sceneGraph = new SceneGraph(forest.size(), TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+            sceneGraph.addTrees(sceneGraph.getRoot(), forest, SCENE_TILE_SIZE);
+            sceneGraph.update();
+            trees = sceneGraph.getInstances();
+        }
+        sceneGraph.setChangeListener(this::requestFrame);
+        if (streamingWorld != null) {
+            framePipeline.init(trees, streamingWorld.getIndex(), lodSelector);
+        } else {
+            treeIndex.build(trees, TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+            framePipeline.init(trees, treeIndex, lodSelector);
+        }
+
+        boolean staticTrees = false;
+        if (gl.isGL3core()) {
+            CoreProfileBackend coreBackend = new CoreProfileBackend(materialRegistry, woodBrownMaterial,
+                    crownMaterials, meshStrips);
+            // the placements of a loaded scene are uploaded once from the mapped file
+            coreBackend.setStaticTrees(loadedTrees != null && streamingWorld == null);
+            coreBackend.init(gl, trees, lodSelector);
+            staticTrees = coreBackend.isStaticTrees();
+            backend = coreBackend;
+        } else {
+            backend = new FixedFunctionBackend(materialRegistry, woodBrownMaterial, crownMaterials,
+                    instancedRendering, meshStrips);
+            backend.init(gl, trees, lodSelector);
+        }
+        framePipeline.setCopyPlacements(!staticTrees);
+        System.err.println("Render backend: " + backend.getName());
+        // the atlas is lit for the distance the impostors start at
+        impostorRenderer.init(gl, materialRegistry, woodBrownMaterial, crownMaterials,
+                impostorDistance > 0f ? impostorDistance : DEFAULT_IMPOSTOR_DISTANCE);
+    }
+
+    /**
+     * Switches the view frustum culling of the trees on or off.
+     * @param frustumCulling True for drawing only the trees inside the view frustum
+     */
+    public void setFrustumCulling(boolean frustumCulling) {
+        this.frustumCulling = frustumCulling;
+        requestFrame();
+    }
+
+    public boolean isFrustumCulling() {
+        return frustumCulling;
+    }
+
+    /**
+     * Switches the occlusion culling of the trees on or off. Only effective together with the view frustum culling
+     * and if occlusion queries are supported. May be called from any thread.
+     * @param occlusionCulling True for skipping the groups of trees hidden behind other trees
+     */
+    public void setOcclusionCulling(boolean occlusionCulling) {
+        this.occlusionCulling = occlusionCulling;
+        requestFrame();
+    }
+
+    public boolean isOcclusionCulling() {
+        return occlusionCulling;
+    }
+
+    /**
+     * @return The occlusion culler, e.g. for its statistics
+     */
+    public OcclusionCuller getOcclusionCuller() {
+        return occlusionCuller;
+    }
+
+    /**
+     * Draws the trees beyond a distance from the camera as impostors (billboards showing pre-rendered pictures
+     * of the tree, see ImpostorRenderer) instead of geometry. Only effective if the context supports the impostors.
+     * May be called from any thread, takes effect with the next prepared frame.
+     * @param impostorDistance Distance from the camera beyond which the trees are impostors, 0 for none
+     */
+    public void setImpostorDistance(float impostorDistance) {
+        this.impostorDistance = Math.max(impostorDistance, 0f);
+        requestFrame();
+    }
+
+    public float getImpostorDistance() {
+        return impostorDistance;
+    }
+
+    /**
+     * Sets the width of the band before the impostor distance in which the geometry of the trees fades
+     * into their impostors. May be called from any thread.
+     * @param impostorBlendRange Width of the band, 0 for switching at once
+     */
+    public void setImpostorBlendRange(float impostorBlendRange) {
+        this.impostorBlendRange = Math.max(impostorBlendRange, 0f);
+        requestFrame();
+    }
+
+    public float getImpostorBlendRange() {
+        return impostorBlendRange;
+    }
+
+    /**
+     * Switches the overlapping of the CPU stage of the next frame with the drawing of the current frame on or off.
+     * The overlap uses the camera of a frame for the next one, i.e. the image lags one frame behind the input.
+     * @param pipelined True for preparing the next frame while drawing the current one
+     */
+    public void setPipelined(boolean pipelined) {
+        this.pipelined = pipelined;
+        // a pipelined frame is displayed one frame later
+        cameraController.setPredictionFrames(pipelined ? 2f : 1f);
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * Tells whether the next frame would differ from the last drawn one: the camera moves or differs from
+     * the drawn camera, a prepared frame is not drawn yet, the scene changed, frames are recorded
+     * or a frame was requested. May be called from any thread.
+     * @return False if drawing can be skipped
+     */
+    public boolean needsFrame() {
+        CameraState drawn = drawnCamera;
+        return frameRequested || recording || drawn == null
+                || cameraController.isMoving(interactionHandler)
+                || !drawn.equals(interactionHandler.getCameraState())
+                || pipelined && !drawn.equals(preparedCamera)
+                || sceneGraph != null && sceneGraph.isDirty()
+                // the results of the occlusion queries arrive a few frames late
+                || occlusionCulling && !occlusionCuller.isSettled();
+    }
+
+    /**
+     * Makes needsFrame() return true until the next frame is drawn and informs the frame request listener.
+     * Called on input, resizes, changes of the scene graph and of settings. May be called from any thread.
+     */
+    public void requestFrame() {
+        frameRequested = true;
+        Runnable listener = frameRequestListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    /**
+     * Sets the listener informed by every requestFrame(). It is called on the thread requesting the frame
+     * and has to return quickly.
+     * @param frameRequestListener The listener, null for none
+     */
+    public void setFrameRequestListener(Runnable frameRequestListener) {
+        this.frameRequestListener = frameRequestListener;
+    }
+
+    /**
+     * Sets the resolution of the scene relative to the window. Below 1 the scene is drawn into a smaller
+     * offscreen framebuffer and scaled up (if framebuffer objects are supported). May be called from any thread,
+     * takes effect with the next frame.
+     * @param renderScale Factor between 0 and 1
+     */
+    public void setRenderScale(float renderScale) {
+        this.renderScale = Math.max(0.1f, Math.min(renderScale, 1f));
+    }
+
+    public float getRenderScale() {
+        return renderScale;
+    }
+
+    /**
+     * Sets the level of detail bias, see LodSelector.setDetailScale(). May be called from any thread,
+     * takes effect with the next prepared frame.
+     * @param detailScale Factor greater than 0, below 1 for coarser levels
+     */
+    public void setDetailScale(float detailScale) {
+        this.detailScale = detailScale;
+    }
+
+    public float getDetailScale() {
+        return detailScale;
+    }
+
+    /**
+     * @return The CPU stage of the frames, its parallel threshold can be changed before init()
+     */
+    public FramePipeline getFramePipeline() {
+        return framePipeline;
+    }
+
+    /**
+     * @return The camera parameters, changed by keyboard and mouse or directly (e.g. for rendering without a window)
+     */
+    public InteractionHandler getInteractionHandler() {
+        return interactionHandler;
+    }
+
+    /**
+     * @return The controller moving the camera by keyboard and mouse in display()
+     */
+    public CameraController getCameraController() {
+        return cameraController;
+    }
+
+    /**
+     * @return The monitor of the heap allocation per frame
+     */
+    public FrameAllocationMonitor getAllocationMonitor() {
+        return allocationMonitor;
+    }
+
+    /**
+     * @return The scene graph holding the trees, null before init().
+     *         Has to be changed on the thread owning the OpenGL context (e.g. with GLAutoDrawable.invoke()),
+     *         the changes are applied at the beginning of the next frame.
+     */
+    public SceneGraph getSceneGraph() {
+        return sceneGraph;
+    }
+
+    /**
+     * @return The backend drawing the trees, null before init()
+     */
+    public RenderBackend getRenderBackend() {
+        return backend;
+    }
+
+    /**
+     * @return Number of trees drawn in the last frame
+     */
+    public int getVisibleTreeCount() {
+        return visibleTreeCount;
+    }
+
+    /**
+     * @return The level of detail selection, its thresholds have to be set before init()
+     */
+    public LodSelector getLodSelector() {
+        return lodSelector;
+    }
+
+    /**
+     * Selects between the fixed function path (one draw call per tree part) and the
+     * instanced path (one draw call per tree part type). Has to be called before init().
+     * Falls back to the fixed function path if the OpenGL context does not support instancing.
+     * Only used by the fixed function backend, the core profile backend always draws instanced.
+     * @param instancedRendering True for using instanced rendering
+     */
+    public void setInstancedRendering(boolean instancedRendering) {
+        this.instancedRendering = instancedRendering;
+    }
+
+    public boolean isInstancedRendering() {
+        return instancedRendering;
+    }
+
+    /**
+     * Selects triangle strips instead of triangle lists for the meshes generated by the MeshBuilder.
+     * Has to be called before init().
+     * @param meshStrips True for triangle strips
+     */
+    public void setMeshStrips(boolean meshStrips) {
+        this.meshStrips = meshStrips;
+    }
+
+    public boolean isMeshStrips() {
+        return meshStrips;
+    }
+
+    /**
+     * Sets the number of trees of the forest. Has to be called before init().
+     * @param treeCount Number of trees
+     */
+    public void setTreeCount(int treeCount) {
+        this.treeCount = treeCount;
+    }
 
-        setLight(gl);
-        gl.glEnable(gl.GL_LIGHTING);
-        gl.glEnable(gl.GL_LIGHT0);
+    public int getTreeCount() {
+        return treeCount;
+    }
 
+    /**
+     * Sets the trees of the scene instead of generating a forest, e.g. a store mapped by SceneFile.map().
+     * The trees are not copied and not changed. Has to be called before init().
+     * @param loadedTrees The trees, null for generating the forest (see setTreeCount())
+     */
+    public void setLoadedTrees(InstanceStore loadedTrees) {
+        this.loadedTrees = loadedTrees;
+    }
+
+    public InstanceStore getLoadedTrees() {
+        return loadedTrees;
+    }
+
+    /**
+     * Streams the trees in tiles around the camera instead of drawing a fixed scene. The world is started in init()
+     * and stopped in dispose(); its memory budget defines the maximum number of trees of a frame.
+     * Has to be called before init().
+     * @param streamingWorld The world, not started, null for a fixed scene
+     */
+    public void setStreamingWorld(StreamingWorld streamingWorld) {
+        this.streamingWorld = streamingWorld;
+    }
+
+    public StreamingWorld getStreamingWorld() {
+        return streamingWorld;
+    }
+
+    /**
+     * @return The generator placing the trees, its parameters (e.g. the seed) can be changed before init()
+     */
+    public ForestGenerator getForestGenerator() {
+        return forestGenerator;
     }
 
     @Override
     public void display(GLAutoDrawable drawable) {
-        GL2 gl = drawable.getGL().getGL2();
-        gl.glClear(GL2.GL_COLOR_BUFFER_BIT | GL2.GL_DEPTH_BUFFER_BIT);
+        allocationMonitor.beginFrame();
+        GL2GL3 gl = drawable.getGL().getGL2GL3();
+        frameProfiler.beginFrame(gl);
+        frameRequested = false;
+        int width = drawable.getSurfaceWidth();
+        int height = drawable.getSurfaceHeight();
+        // dynamic resolution: the scene is drawn into a smaller framebuffer and scaled up at the end
+        boolean scaled = renderScale < 1f && scaledFramebuffer.begin(gl, width, height, renderScale);
+        gl.glClear(GL.GL_COLOR_BUFFER_BIT | GL.GL_DEPTH_BUFFER_BIT);
 
         // background color of canvas
         gl.glClearColor(1.0f, 1.0f, 1.0f, 1.0f);
 
-        // Reset matrix for geometric transformations
-        gl.glLoadIdentity();
-
         // define view transform (Camera)
-        GLU glu = new GLU();
-
-        glu.gluLookAt(0f, 0f, interactionHandler.getEyeZ(),
-                0f, 0f, 0f,
-                0f, 1.0f, 0f);
-        gl.glTranslatef(interactionHandler.getxPosition(), interactionHandler.getyPosition(), 0f);
-        gl.glRotatef(interactionHandler.getAngleXaxis(), 1f, 0f, 0f);
-        gl.glRotatef(interactionHandler.getAngleYaxis(), 0f, 1f, 0f);
+        // The view transform is computed on the CPU side (used for culling and the level of detail selection
+        // as well) and equals gluLookAt(0, 0, eyeZ, 0, 0, 0, 0, 1, 0) followed by the translation
+        // and the rotations about the x- and y-axis of the scene
+        frameProfiler.beginScene();
+        // the command list of this frame, prepared while the last frame was drawn
+        FrameCommands commands = null;
+        CameraState commandsCamera = null;
+        if (framePipeline.isRunning()) {
+            commands = framePipeline.join();
+            commandsCamera = preparedCamera;
+        }
+        // no CPU stage is running now, so the scene may change; only moved subtrees are recomputed,
+        // a static scene costs nothing here
+        if (sceneGraph.update() > 0) {
+            treeIndex.build(trees, TREE_BOUNDS_CENTER_Z, TREE_BOUNDS_RADIUS);
+            occlusionCuller.invalidate();
+        }
+        // tiles loaded in the background are taken over here, only references are exchanged
+        if (streamingWorld != null && streamingWorld.update(lodSelector)) {
+            trees = streamingWorld.getTrees();
+            framePipeline.setTrees(trees, streamingWorld.getIndex());
+            occlusionCuller.invalidate();
+        }
+        UniformGridIndex index = streamingWorld != null ? streamingWorld.getIndex() : treeIndex;
+        boolean occlusion = occlusionCulling && frustumCulling && occlusionCuller.isSupported();
+        if (occlusion)
+            occlusionCuller.collect(gl, index);
+        else
+            // results of an earlier period with occlusion culling do not match the camera anymore
+            occlusionCuller.invalidate();
+        framePipeline.setHiddenCells(occlusion ? occlusionCuller.getHiddenCells() : null);
+        framePipeline.setImpostorDistance(impostorRenderer.isAvailable() ? impostorDistance : 0f, impostorBlendRange);
+        // one consistent snapshot of the camera per frame, however many input events arrived meanwhile,
+        // moved by the input over the time since the last frame and predicted to the display of this frame
+        CameraState camera = cameraController.update(interactionHandler, System.nanoTime());
+        viewTransform.update(camera);
+        if (streamingWorld != null) {
+            viewTransform.eyeToWorld(0f, 0f, -camera.getEyeZ(), focus);
+            streamingWorld.setFocus(focus[0], focus[1]);
+        }
+        lodSelector.setDetailScale(detailScale);
+        if (commands == null) {
+            commands = framePipeline.prepare(viewTransform, frustumCulling);
+            commandsCamera = camera;
+        }
+        // the next frame is prepared with the current camera while this frame is drawn
+        if (pipelined) {
+            framePipeline.start(viewTransform, frustumCulling);
+            preparedCamera = camera;
+        }
+        drawnCamera = commandsCamera;
+        visibleTreeCount = commands.getVisibleCount();
+        frameProfiler.endScene();
 
 /*        System.out.println("Camera: z = " + interactionHandler.getEyeZ() + ", " +
                 "x-Rot: " + interactionHandler.getAngleXaxis() +
@@ -237,169 +721,150 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
 
         gl.glEnable(GL.GL_DEPTH_TEST);
 
-        drawRandomGroupOfTrees(gl);
-
-
-
+        backend.drawTrees(gl, commands, frameProfiler);
+        impostorRenderer.draw(gl, commands, frameProfiler);
+        // tested against the depth of this frame, the result is used by one of the next frames
+        if (occlusion)
+            occlusionCuller.test(gl, commands.getView(), index);
+        if (scaled)
+            scaledFramebuffer.end(gl, gl.getDefaultDrawFramebuffer(), width, height);
+
+        frameProfiler.endFrame(gl);
+        allocationMonitor.endFrame();
+
+        // after the measurement, the readback hands buffers to other threads
+        updateFrameCapture(gl, width, height);
+        // drawn after the readback, so recorded frames do not contain the overlay
+        // (uses the fixed function pipeline, not available in a core profile context)
+        if (performanceOverlayVisible && gl.isGL2())
+            performanceOverlay.draw(gl.getGL2(), width, height);
     }
 
+    /**
+     * @return The timings and counters of the last frames
+     */
+    public FrameProfiler getFrameProfiler() {
+        return frameProfiler;
+    }
 
-    private void drawRandomGroupOfTrees(GL2 gl){
-
-
-        float [] vtx = {-1.6f, 0.8f, 0.3f, -1.9f, -4f, 2.9f, 5,5f, 3.9f};
-        float [] vty = {2f, -3f, 5f, -0.51f, 0,3f, 5f, 4f,- 3f};
-        float vtz = 0;
-        float [] vsx = {1.6f, 2.8f, 2f, 1.5f, 3f, 2.9f, 0,5f, 1.9f};
-        float [] vsy = {1.6f, 2.8f, 2f, 1.5f, 3f, 2.9f, 0,5f, 1.9f};
-        float [] vsz = {1.6f, 2.8f, 2f, 1.5f, 3f, 2.9f, 0,5f, 1.9f};
-
-        float [] vtxTanne = {3f, -6f, 2.5f, -3.7f, 0.1f, -4.2f, 3.9f, -5f};
-        float [] vtyTanne = {-6f, -0.1f, 4f, -2f, -0.2f, -5f, 5,2f, -1.9f};
-        float vtzTanne = 0;
-        float [] vsxTanne = {2f, 0.8f, 1f, 2.2f, 0.7f, 2f, 1,5f, 1.9f};
-        float [] vsyTanne = {2f, 0.8f, 1f, 2.2f, 0.7f, 2f, 1,5f, 1.9f};
-        float [] vszTanne = {2f, 0.8f, 1f, 2.2f, 0.7f, 2f, 1,5f, 1.9f};
-       //float tx,ty,tz,sx,sy,sz;
-
-
-        for (int i = 0; i<8; i++) {
-
-
-           /* tx = (float) (10 * Math.random());
-            ty = (float) (10 * Math.random());
-            tz = 0f;
-
-            sx = (float) (1 + (Math.random()));
-            sy = (float) (1 + (Math.random()));
-            sz = (float) (1 + (Math.random())); */
-
-            gl.glPushMatrix();
-            gl.glTranslatef(vtx[i],vty[i],vtz);
-            gl.glScalef(vsx[i],vsy[i],vsz[i]);
-            drawBroadleavedTree(gl);
-            gl.glPopMatrix();
-
+    /**
+     * Shows or hides the statistics of the frame profiler in the upper left corner.
+     * Only shown in a compatibility profile context. May be called from any thread.
+     */
+    public void setPerformanceOverlay(boolean visible) {
+        performanceOverlayVisible = visible;
+        requestFrame();
+    }
 
-            gl.glPushMatrix();
-            gl.glTranslatef(vtxTanne[i],vtyTanne[i],vtzTanne);
-            gl.glScalef(vsxTanne[i],vsyTanne[i],vszTanne[i]);
-            drawConiferTree(gl);
-            gl.glPopMatrix();
+    public boolean isPerformanceOverlay() {
+        return performanceOverlayVisible;
+    }
 
+    /**
+     * Starts, continues or finishes the recording of frames, depending on the recording flag.
+     */
+    private void updateFrameCapture(GL2GL3 gl, int width, int height) {
+        if (frameCapture == null)
+            return;
+        try {
+            if (recording) {
+                if (!frameCapture.isStarted()) {
+                    frameCapture.start(gl, width, height);
+                    System.err.println("Recording frames to " + frameCapture.getDirectory());
+                }
+                frameCapture.capture(gl, recordedFrames++);
+            } else if (frameCapture.isStarted()) {
+                finishFrameCapture(gl);
+            }
+        } catch (IOException e) {
+            System.err.println("Recording failed: " + e.getMessage());
+            recording = false;
+            frameCapture.dispose(gl);
         }
-
-
     }
 
-
-    //--------Übungsblatt 3 und 4 Aufgabe 6------------
-
-    private void drawConiferTree(GL2 gl){
-
-        // Baumstumpf
-        gl.glPolygonMode(GL.GL_FRONT,GL_FILL);
-        setWoodBrownMaterial(gl);
-        drawCylinder(gl,0.1,0.1,0.8,12,1);
-
-        // Baumkrone Zylinder
-        gl.glPushMatrix();
-        gl.glTranslatef(0f,0f,0.8f);
-        setLeafGreenMaterial(gl);
-        drawCylinder(gl,0.4,0.01,0.6,12,1);
-        gl.glPopMatrix();
-
+    private void finishFrameCapture(GL2GL3 gl) throws IOException {
+        frameCapture.finish(gl);
+        System.err.println("Recorded " + frameCapture.getWrittenFrames() + " frames, waited for the encoders in "
+                + frameCapture.getStalledFrames() + " frames (" + frameCapture.getStallMillis() + " ms)");
     }
 
-    private void drawBroadleavedTree(GL2 gl){
-
-        // Baumstumpf
-        gl.glPushMatrix();
-        gl.glPolygonMode(GL.GL_FRONT,GL_FILL);
-        setWoodBrownMaterial(gl);
-        drawCylinder(gl,0.1,0.1,0.8,12,1);
-        gl.glPopMatrix();
-
-
-        // Baumkrone Kugel
-        gl.glPushMatrix();
-        gl.glTranslatef(0f,0f,0.8f);
-        setLeafGreenMaterial(gl);
-        drawSphere(gl,0.3,12,12);
-        gl.glPopMatrix();
-
+    /**
+     * Sets the capture used for recording the displayed frames.
+     * @param frameCapture The capture, not started
+     */
+    public void setFrameCapture(FrameCapture frameCapture) {
+        this.frameCapture = frameCapture;
     }
 
-
-    //--------Übungsblatt 3 und 4 Aufgabe 5------------
-
-    public void setLight(GL2 gl){
-
-        float lightPosition[] = {0.0f, 2.0f, 6.0f, 1.0f};
-        float lightAmbientCol[] = {1.0f, 1.0f, 1.0f, 1.0f};
-        float lightDiffuseCol[] = {1.0f, 1.0f, 1.0f, 1.0f};
-        float lightSpecularCol[] = {1.0f, 1.0f, 1.0f, 1.0f};
-
-        gl.glLightfv(gl.GL_LIGHT0, gl.GL_POSITION, lightPosition, 0);
-        gl.glLightfv(gl.GL_LIGHT0, gl.GL_AMBIENT, lightAmbientCol, 0);
-        gl.glLightfv(gl.GL_LIGHT0, gl.GL_DIFFUSE, lightDiffuseCol, 0);
-        gl.glLightfv(gl.GL_LIGHT0, gl.GL_SPECULAR, lightSpecularCol, 0);
-
+    public FrameCapture getFrameCapture() {
+        return frameCapture;
     }
 
-    private void setLeafGreenMaterial (GL2 gl){
-
-
-        float matAmbient[] = {0.0f, 0.1f, 0.0f, 1.0f};
-        float matDiffuse[] = {0.0f, 0.5f, 0.0f, 1.0f};
-        float matSpecular[] = {0.3f, 0.3f, 0.3f, 1.0f};
-        float matEmission[] = {0.0f, 0.0f, 0.0f, 1.0f};
-        float matShininess = 1.0f;
-        gl.glMaterialfv(gl.GL_FRONT_AND_BACK, gl.GL_AMBIENT, matAmbient, 0);
-        gl.glMaterialfv(gl.GL_FRONT_AND_BACK, gl.GL_DIFFUSE, matDiffuse, 0);
-        gl.glMaterialfv(gl.GL_FRONT_AND_BACK, gl.GL_SPECULAR, matSpecular, 0);
-        gl.glMaterialfv(gl.GL_FRONT_AND_BACK, gl.GL_EMISSION, matEmission, 0);
-        gl.glMaterialf(GL.GL_FRONT_AND_BACK, gl.GL_SHININESS, matShininess);
-
-
-        }
-
+    /**
+     * Starts or stops the recording of the displayed frames with the frame capture.
+     * May be called from any thread, the change takes effect with the next displayed frame.
+     */
+    public void setRecording(boolean recording) {
+        this.recording = recording && frameCapture != null;
+        requestFrame();
+    }
 
-    private void setWoodBrownMaterial (GL2 gl){
+    public boolean isRecording() {
+        return recording;
+    }
 
-        float matAmbient [] = {0f,0.1f,0.0f,0.0f};
-        float matDiffuse[] = {0.0f, 0.0f, 0.0f, 1.0f};
-        float matSpecular[] = {0.3f, 0.3f, 0.3f, 1.0f};
-        float matEmission[] = {0.647059f,0.164706f,0.164706f, 1.0f};
-        float matShininess = 0.5f;
+    /**
+     * Creates the levels of detail of a cylinder shaped tree part, the trunk or the cone shaped crown of a conifer.
+     * Shared by all backends, the builder decides which part is tessellated.
+     * @param levels Number of levels
+     * @param builder Creates the handle of a level, e.g. from createTrunkMesh() or createConiferCrownMesh()
+     */
+    static LodGeometry createCylinderLod(int levels, LodGeometry.LevelBuilder builder) {
+        return new LodGeometry(levels, TREE_SLICES, TREE_CYLINDER_STACKS, 4, 1, builder);
+    }
 
-        gl.glMaterialfv(gl.GL_FRONT_AND_BACK, gl.GL_AMBIENT, matAmbient, 0);
-        gl.glMaterialfv(gl.GL_FRONT_AND_BACK, gl.GL_DIFFUSE, matDiffuse, 0);
-        gl.glMaterialfv(gl.GL_FRONT_AND_BACK, gl.GL_SPECULAR, matSpecular, 0);
-        gl.glMaterialfv(gl.GL_FRONT_AND_BACK, gl.GL_EMISSION, matEmission, 0);
-        gl.glMaterialf(GL.GL_FRONT_AND_BACK, gl.GL_SHININESS, matShininess);
+    /**
+     * Creates the levels of detail of the spherical crown of a broadleaved tree.
+     */
+    static LodGeometry createSphereLod(int levels, LodGeometry.LevelBuilder builder) {
+        return new LodGeometry(levels, TREE_SLICES, TREE_SPHERE_STACKS, 4, 3, builder);
+    }
 
+    /**
+     * @return The trunk mesh, an open cylinder from z = 0 to z = TREE_TRUNK_HEIGHT
+     */
+    static Mesh createTrunkMesh(int slices, int stacks) {
+        return MeshBuilder.cylinder(TREE_TRUNK_RADIUS, TREE_TRUNK_RADIUS, TREE_TRUNK_HEIGHT, slices, stacks);
     }
 
+    /**
+     * @return The crown mesh of a conifer, relative to TREE_CROWN_OFFSET_Z
+     */
+    static Mesh createConiferCrownMesh(int slices, int stacks) {
+        return MeshBuilder.cylinder(CONIFER_CROWN_BASE, CONIFER_CROWN_TOP, CONIFER_CROWN_HEIGHT, slices, stacks);
+    }
 
+    /**
+     * @return The crown mesh of a broadleaved tree, relative to TREE_CROWN_OFFSET_Z
+     */
+    static Mesh createBroadleavedCrownMesh(int slices, int stacks) {
+        return MeshBuilder.sphere(BROADLEAVED_CROWN_RADIUS, slices, stacks);
+    }
 
 
     //--------Übungsblatt 3 und 4 Aufgabe 2------------
 
     public void drawSphere (GL2 gl, double radius, int slices, int stacks){
 
-        GLU glu = new GLU();
-        GLUquadric quad = glu.gluNewQuadric();
-        glu.gluSphere(quad,radius,slices,stacks);
+        glu.gluSphere(quadric,radius,slices,stacks);
 
     }
 
 
     public void drawCylinder(GL2 gl, double base, double top, double height, int slices, int stacks){
 
-        GLU glu = new GLU();
-        GLUquadric quad = glu.gluNewQuadric();
-        glu.gluCylinder(quad, base, top, height, slices, stacks);
+        glu.gluCylinder(quadric, base, top, height, slices, stacks);
 
         }
 
@@ -410,23 +875,22 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
             gl.glBegin(GL.GL_TRIANGLE_FAN);
             gl.glColor3f(1f,0f,0f);
 
-            for(int i=0;0<=slices;i++){
+            // the circle is closed by repeating the first vertex (i == slices)
+            for(int i=0;i<=slices;i++){
 
             float x = (float) (radius*Math.cos(i*twoPi / slices));
             float y = (float) (radius* Math.sin(i*twoPi / slices));
             gl.glVertex3f(x,y,0);
 
-            gl.glEnd();
-
         }
 
-    }
+            gl.glEnd();
 
+    }
 
     @Override
     public void reshape(GLAutoDrawable drawable, int x, int y, int width, int height) {
-        GL2 gl = drawable.getGL().getGL2();
-        GLU glu = new GLU();
+        GL2GL3 gl = drawable.getGL().getGL2GL3();
 
         // prevents division by zero
         if (height == 0)
@@ -436,23 +900,50 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
         gl.glViewport(0, 0, width, height);
 
         // Setup perspective projection, with aspect ratio matching the viewport
-        gl.glMatrixMode(gl.GL_PROJECTION);  // choose projection matrix
-        gl.glLoadIdentity();             	// reset projection matrix
-        // Parameters of glu-call
-        // fovy (field of view), aspect,
-        // zNear (near clipping plane), zFar (far clipping plane)
-        glu.gluPerspective(45.0, aspect, 0.1, 100.0);
-        // Enable the model-view transform
-        // Reset matrix
-        gl.glMatrixMode(gl.GL_MODELVIEW);
-        gl.glLoadIdentity(); // reset
+        // Parameters: fovy (field of view), aspect,
+        // zNear (near clipping plane), zFar (far clipping plane), same as gluPerspective()
+        viewTransform.setPerspective(45f, aspect, 0.1f, 100f, height);
+        backend.reshape(gl, viewTransform);
+        // the pixel buffers of a running recording have the old size, it is restarted with the next frame
+        if (frameCapture != null && frameCapture.isStarted()) {
+            try {
+                finishFrameCapture(gl);
+            } catch (IOException e) {
+                System.err.println("Recording failed: " + e.getMessage());
+                recording = false;
+            }
+        }
     }
 
     @Override
     public void dispose(GLAutoDrawable drawable) {
-        GL2 gl = drawable.getGL().getGL2();
+        GL2GL3 gl = drawable.getGL().getGL2GL3();
+        // the command list of a prepared frame is not drawn anymore
+        if (framePipeline.isRunning())
+            framePipeline.join();
+        if (streamingWorld != null)
+            streamingWorld.stop();
         // rarely used when using the fixed function pipeline
         gl.glDisable(GL.GL_CULL_FACE);
+        // free the geometry and programs of the backend
+        if (backend != null)
+            backend.dispose(gl);
+        frameProfiler.dispose(gl);
+        occlusionCuller.dispose(gl);
+        impostorRenderer.dispose(gl);
+        scaledFramebuffer.dispose(gl);
+        performanceOverlay.dispose();
+        if (frameCapture != null && frameCapture.isStarted()) {
+            try {
+                finishFrameCapture(gl);
+            } catch (IOException e) {
+                System.err.println("Recording failed: " + e.getMessage());
+            }
+        }
+        if (quadric != null) {
+            glu.gluDeleteQuadric(quadric);
+            quadric = null;
+        }
     }
 
     /**
@@ -463,21 +954,20 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
      * @param depth Deppth of the box (z-direction)
      */
     public void drawBox(GL2 gl, float width, float height, float depth) {
-        GLU glu = new GLU();
-
         float halfOfWidth = width / 2;
         float halfOfHeight = height / 2;
         float halfOfDepth = depth / 2;
 
-        // Definition of positions of vertices for a box
-        float[] v0 = {-halfOfWidth, +halfOfHeight, +halfOfDepth}; // 0 front
-        float[] v1 = {+halfOfWidth, +halfOfHeight, +halfOfDepth}; // 1
-        float[] v2 = {+halfOfWidth, -halfOfHeight, +halfOfDepth}; // 2
-        float[] v3 = {-halfOfWidth, -halfOfHeight, +halfOfDepth}; // 3
-        float[] v4 = {-halfOfWidth, +halfOfHeight, -halfOfDepth}; // 4 back
-        float[] v5 = {+halfOfWidth, +halfOfHeight, -halfOfDepth}; // 5
-        float[] v6 = {+halfOfWidth, -halfOfHeight, -halfOfDepth}; // 6
-        float[] v7 = {-halfOfWidth, -halfOfHeight, -halfOfDepth}; // 7
+        // Definition of positions of vertices for a box (vertex n starts at index 3 * n)
+        float[] v = boxVertices;
+        setBoxVertex(0, -halfOfWidth, +halfOfHeight, +halfOfDepth); // 0 front
+        setBoxVertex(1, +halfOfWidth, +halfOfHeight, +halfOfDepth); // 1
+        setBoxVertex(2, +halfOfWidth, -halfOfHeight, +halfOfDepth); // 2
+        setBoxVertex(3, -halfOfWidth, -halfOfHeight, +halfOfDepth); // 3
+        setBoxVertex(4, -halfOfWidth, +halfOfHeight, -halfOfDepth); // 4 back
+        setBoxVertex(5, +halfOfWidth, +halfOfHeight, -halfOfDepth); // 5
+        setBoxVertex(6, +halfOfWidth, -halfOfHeight, -halfOfDepth); // 6
+        setBoxVertex(7, -halfOfWidth, -halfOfHeight, -halfOfDepth); // 7
 
         // The box consists of 6 sides and n = 12 triangles
         // The minimum number of vertices needed for drawing is n+2 = 12+2 = 14 (see below)
@@ -485,23 +975,29 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
 
         // Drawing the six surfaces of the box using one triangle strip
         gl.glBegin(GL.GL_TRIANGLE_STRIP);
-            gl.glVertex3fv(v2,0);   // bottom
-            gl.glVertex3fv(v3,0);   // bottom
-            gl.glVertex3fv(v6,0);   // bottom
-            gl.glVertex3fv(v7,0);   // bottom
-            gl.glVertex3fv(v4,0);   // back, bottom left
-            gl.glVertex3fv(v3,0);   // left side
-            gl.glVertex3fv(v0,0);   // left side
-            gl.glVertex3fv(v2,0);   // front side
-            gl.glVertex3fv(v1,0);   // front side
-            gl.glVertex3fv(v6,0);   // right side
-            gl.glVertex3fv(v5,0);   // right side
-            gl.glVertex3fv(v4,0);   // back, top right
-            gl.glVertex3fv(v1,0);   // top
-            gl.glVertex3fv(v0,0);   // top
+            gl.glVertex3fv(v, 6);   // bottom
+            gl.glVertex3fv(v, 9);   // bottom
+            gl.glVertex3fv(v, 18);   // bottom
+            gl.glVertex3fv(v, 21);   // bottom
+            gl.glVertex3fv(v, 12);   // back, bottom left
+            gl.glVertex3fv(v, 9);   // left side
+            gl.glVertex3fv(v, 0);   // left side
+            gl.glVertex3fv(v, 6);   // front side
+            gl.glVertex3fv(v, 3);   // front side
+            gl.glVertex3fv(v, 18);   // right side
+            gl.glVertex3fv(v, 15);   // right side
+            gl.glVertex3fv(v, 12);   // back, top right
+            gl.glVertex3fv(v, 3);   // top
+            gl.glVertex3fv(v, 0);   // top
         gl.glEnd();
     }
 
+    private void setBoxVertex(int vertex, float x, float y, float z) {
+        boxVertices[3 * vertex] = x;
+        boxVertices[3 * vertex + 1] = y;
+        boxVertices[3 * vertex + 2] = z;
+    }
+
     /**
      * Draws a simple sphere shape based on the glu function gluSphere.
      * Only works in the compatibility profile.
@@ -511,9 +1007,7 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
      * @param stacks    Number of stacks for approximating the round shape
      */
     public void drawSphere(GL2 gl, float radius, int slices, int stacks) {
-        GLU glu = new GLU();
-        GLUquadric quad = glu.gluNewQuadric();
-        glu.gluSphere(quad, radius, slices, stacks);
+        glu.gluSphere(quadric, radius, slices, stacks);
     }
 
     /**
@@ -527,10 +1021,8 @@ public class ShapesRenderer extends GLCanvas implements GLEventListener {
      * @param stacks    Number of stacks used for drawing the barrel
      */
     public void drawFrustum(GL2 gl, double base, double top, double height, int slices, int stacks) {
-        GLU glu = new GLU();
         // drawing of the cylinder barrel
-        GLUquadric quad = glu.gluNewQuadric();
-        glu.gluCylinder(quad, base, top, height, slices, stacks);
+        glu.gluCylinder(quadric, base, top, height, slices, stacks);
 
         // drawing a circle on the base of the cylinder (to close the shape)
         float zCoorBase = 0f;
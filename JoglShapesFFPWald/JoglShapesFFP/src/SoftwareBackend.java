@@ -0,0 +1,322 @@
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Draws the trees of a command list with a SoftwareRasterizer, without OpenGL.
+ * Uses the meshes of the CoreProfileBackend (MeshBuilder shapes, same levels of detail) and its lighting:
+ * GL_LIGHT0 at the same position in eye coordinates, the default ambient light of the light model, evaluated
+ * per vertex and interpolated across the triangles. So the images match the ones of the OpenGL backends up to
+ * the rounding of the rasterization.
+ *
+ * The vertex work is split into chunks of the command list, processed in parallel in the pool; every chunk
+ * shades its trees into its own batch of the rasterizer. The trees are only translated and scaled uniformly,
+ * so the positions and normals of the meshes are rotated into eye coordinates once per frame, per vertex
+ * and tree only the scaling, the translation, the projection and the lighting remain.
+ */
+public class SoftwareBackend {
+
+    // Chunks per thread of the pool, more chunks balance the load better
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    // Light of FixedFunctionBackend.setLight() (position in eye coordinates) and ambient light of the light model
+    private static final float[] LIGHT_POSITION = {0.0f, 2.0f, 6.0f, 1.0f};
+    private static final float[] LIGHT_AMBIENT = {1.0f, 1.0f, 1.0f};
+    private static final float[] LIGHT_DIFFUSE = {1.0f, 1.0f, 1.0f};
+    private static final float[] LIGHT_SPECULAR = {1.0f, 1.0f, 1.0f};
+    private static final float[] LIGHT_MODEL_AMBIENT = {0.2f, 0.2f, 0.2f};
+
+    // Mesh as triangle list in arrays, with its positions and normals in eye coordinates of the current frame
+    private static class SoftwareMesh {
+        // Positions including the offset of the part within the tree
+        final float[] positions;
+        final float[] normals;
+        final int[] indices;
+        final float[] eyePositions;
+        final float[] eyeNormals;
+
+        SoftwareMesh(Mesh mesh, float offsetZ) {
+            int vertexCount = mesh.getVertexCount();
+            positions = new float[vertexCount * 3];
+            normals = new float[vertexCount * 3];
+            FloatBuffer vertices = mesh.getVertices();
+            for (int v = 0; v < vertexCount; v++) {
+                int p = v * Mesh.FLOATS_PER_VERTEX;
+                positions[v * 3] = vertices.get(p);
+                positions[v * 3 + 1] = vertices.get(p + 1);
+                positions[v * 3 + 2] = vertices.get(p + 2) + offsetZ;
+                // normalized once, the rotation into eye coordinates keeps the length
+                float normalX = vertices.get(p + 3);
+                float normalY = vertices.get(p + 4);
+                float normalZ = vertices.get(p + 5);
+                float length = (float) Math.sqrt(normalX * normalX + normalY * normalY + normalZ * normalZ);
+                if (length > 0f) {
+                    normals[v * 3] = normalX / length;
+                    normals[v * 3 + 1] = normalY / length;
+                    normals[v * 3 + 2] = normalZ / length;
+                }
+            }
+            IntBuffer meshIndices = mesh.getIndices().duplicate();
+            indices = new int[meshIndices.limit()];
+            meshIndices.get(indices);
+            eyePositions = new float[positions.length];
+            eyeNormals = new float[normals.length];
+        }
+
+        int getVertexCount() {
+            return positions.length / 3;
+        }
+    }
+
+    private final MaterialRegistry materials;
+    private final int trunkMaterial;
+    private final int[] crownMaterials;
+    private final ForkJoinPool pool;
+
+    private final List<SoftwareMesh> meshes = new ArrayList<>();
+    private LodGeometry trunkLod;
+    private LodGeometry coniferCrownLod;
+    private LodGeometry broadleavedCrownLod;
+    // Per material id: color without the light direction, diffuse and specular color times the light, shininess
+    private float[] materialColors;
+    private float[] materialShininess;
+
+    // State of the frame being drawn
+    private FrameCommands commands;
+    private SoftwareRasterizer rasterizer;
+    private ChunkTask[] chunkTasks = new ChunkTask[0];
+    private final GeometryTask geometryTask = new GeometryTask();
+
+    /**
+     * Creates a backend using the common fork-join pool.
+     * @param materials The materials of the scene
+     * @param trunkMaterial Material id of the trunks
+     * @param crownMaterials Material id for each crown material of the instance store
+     */
+    public SoftwareBackend(MaterialRegistry materials, int trunkMaterial, int[] crownMaterials) {
+        this(materials, trunkMaterial, crownMaterials, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param pool Pool running the vertex work
+     */
+    public SoftwareBackend(MaterialRegistry materials, int trunkMaterial, int[] crownMaterials, ForkJoinPool pool) {
+        this.materials = materials;
+        this.trunkMaterial = trunkMaterial;
+        this.crownMaterials = crownMaterials.clone();
+        this.pool = pool;
+    }
+
+    public String getName() {
+        return "software";
+    }
+
+    /**
+     * Creates the meshes of all levels of detail and the lit material colors.
+     * @param lodSelector The level of detail selection, defines the number of levels
+     */
+    public void init(LodSelector lodSelector) {
+        int levels = lodSelector.getLevelCount();
+        trunkLod = ShapesRenderer.createCylinderLod(levels,
+                (slices, stacks) -> addMesh(ShapesRenderer.createTrunkMesh(slices, stacks), 0f));
+        coniferCrownLod = ShapesRenderer.createCylinderLod(levels,
+                (slices, stacks) -> addMesh(ShapesRenderer.createConiferCrownMesh(slices, stacks),
+                        ShapesRenderer.TREE_CROWN_OFFSET_Z));
+        broadleavedCrownLod = ShapesRenderer.createSphereLod(levels,
+                (slices, stacks) -> addMesh(ShapesRenderer.createBroadleavedCrownMesh(slices, stacks),
+                        ShapesRenderer.TREE_CROWN_OFFSET_Z));
+
+        int vertexCount = 0;
+        for (SoftwareMesh mesh : meshes)
+            vertexCount = Math.max(vertexCount, mesh.getVertexCount());
+        int chunkCount = pool.getParallelism() * CHUNKS_PER_THREAD;
+        chunkTasks = new ChunkTask[chunkCount];
+        for (int c = 0; c < chunkCount; c++)
+            chunkTasks[c] = new ChunkTask(c, vertexCount);
+
+        materialColors = new float[materials.size() * 9];
+        materialShininess = new float[materials.size()];
+        for (int id = 0; id < materials.size(); id++) {
+            Material material = materials.get(id);
+            for (int component = 0; component < 3; component++) {
+                materialColors[id * 9 + component] = material.getEmission(component)
+                        + material.getAmbient(component) * (LIGHT_MODEL_AMBIENT[component] + LIGHT_AMBIENT[component]);
+                materialColors[id * 9 + 3 + component] = material.getDiffuse(component) * LIGHT_DIFFUSE[component];
+                materialColors[id * 9 + 6 + component] = material.getSpecular(component) * LIGHT_SPECULAR[component];
+            }
+            materialShininess[id] = material.getShininess();
+        }
+    }
+
+    /**
+     * Keeps a mesh as optimized triangle list.
+     * @return Handle of the mesh
+     */
+    private int addMesh(Mesh mesh, float offsetZ) {
+        meshes.add(new SoftwareMesh(MeshOptimizer.optimize(mesh, false), offsetZ));
+        return meshes.size() - 1;
+    }
+
+    /**
+     * Draws the trees of a command list into the rasterizer: clears it, shades the trees in parallel and
+     * rasterizes them. Waits for the finished image. Only reads the command list, never the instance store.
+     * @param commands Command list of this frame
+     * @param rasterizer Rasterizer receiving the frame, its size should match the aspect ratio of the projection
+     */
+    public void drawTrees(FrameCommands commands, SoftwareRasterizer rasterizer) {
+        float[] modelView = commands.getView().getModelView();
+        for (SoftwareMesh mesh : meshes) {
+            rotate(modelView, mesh.positions, mesh.eyePositions);
+            rotate(modelView, mesh.normals, mesh.eyeNormals);
+        }
+        this.commands = commands;
+        this.rasterizer = rasterizer;
+        rasterizer.beginFrame(chunkTasks.length);
+        geometryTask.reinitialize();
+        pool.invoke(geometryTask);
+        rasterizer.endFrame();
+        this.commands = null;
+        this.rasterizer = null;
+    }
+
+    /**
+     * Applies the rotation of the model view matrix to vectors, 3 floats each.
+     */
+    private static void rotate(float[] m, float[] source, float[] target) {
+        for (int i = 0; i < source.length; i += 3) {
+            float x = source[i];
+            float y = source[i + 1];
+            float z = source[i + 2];
+            target[i] = m[0] * x + m[4] * y + m[8] * z;
+            target[i + 1] = m[1] * x + m[5] * y + m[9] * z;
+            target[i + 2] = m[2] * x + m[6] * y + m[10] * z;
+        }
+    }
+
+    /**
+     * Shades the trees of all chunks.
+     */
+    private class GeometryTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            for (ChunkTask task : chunkTasks)
+                task.reinitialize();
+            ForkJoinTask.invokeAll(chunkTasks);
+        }
+    }
+
+    /**
+     * Shades the trees of one range of the command list into one batch of the rasterizer.
+     */
+    private class ChunkTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int chunk;
+        // Clip coordinates and colors of the vertices of the current tree part
+        private final float[] clip;
+        private final float[] colors;
+
+        ChunkTask(int chunk, int vertexCount) {
+            this.chunk = chunk;
+            clip = new float[vertexCount * 4];
+            colors = new float[vertexCount * 3];
+        }
+
+        @Override
+        protected void compute() {
+            int visible = commands.getVisibleCount();
+            int from = (int) ((long) chunk * visible / chunkTasks.length);
+            int to = (int) ((long) (chunk + 1) * visible / chunkTasks.length);
+            SoftwareRasterizer.Batch batch = rasterizer.getBatch(chunk);
+            FloatBuffer instances = commands.getInstances();
+            // the batches of the command list overlapping the range of the chunk
+            for (int level = 0; level < commands.getLevelCount(); level++) {
+                for (int species = 0; species < InstanceStore.SPECIES_COUNT; species++) {
+                    SoftwareMesh crown = meshes.get((species == InstanceStore.SPECIES_CONIFER
+                            ? coniferCrownLod : broadleavedCrownLod).getHandle(level));
+                    SoftwareMesh trunk = meshes.get(trunkLod.getHandle(level));
+                    for (int material = 0; material < InstanceStore.MATERIAL_COUNT; material++) {
+                        int offset = commands.getOffset(level, species, material);
+                        int first = Math.max(from, offset);
+                        int last = Math.min(to, offset + commands.getCount(level, species, material));
+                        for (int k = first; k < last; k++) {
+                            int p = k * InstancedMeshRenderer.FLOATS_PER_INSTANCE;
+                            float x = instances.get(p);
+                            float y = instances.get(p + 1);
+                            float z = instances.get(p + 2);
+                            float scale = instances.get(p + 3);
+                            drawPart(batch, trunk, trunkMaterial, x, y, z, scale);
+                            drawPart(batch, crown, crownMaterials[material], x, y, z, scale);
+                        }
+                    }
+                }
+            }
+        }
+
+        /**
+         * Transforms and lights the vertices of one tree part and adds its triangles to the batch.
+         */
+        private void drawPart(SoftwareRasterizer.Batch batch, SoftwareMesh mesh, int material,
+                              float x, float y, float z, float scale) {
+            ViewTransform view = commands.getView();
+            float[] m = view.getModelView();
+            float[] p = view.getProjection();
+            // position of the tree in eye coordinates
+            float treeX = m[0] * x + m[4] * y + m[8] * z + m[12];
+            float treeY = m[1] * x + m[5] * y + m[9] * z + m[13];
+            float treeZ = m[2] * x + m[6] * y + m[10] * z + m[14];
+            int colorOffset = material * 9;
+            float shininess = materialShininess[material];
+            float[] eyePositions = mesh.eyePositions;
+            float[] eyeNormals = mesh.eyeNormals;
+            int vertexCount = mesh.getVertexCount();
+            for (int v = 0; v < vertexCount; v++) {
+                float eyeX = eyePositions[v * 3] * scale + treeX;
+                float eyeY = eyePositions[v * 3 + 1] * scale + treeY;
+                float eyeZ = eyePositions[v * 3 + 2] * scale + treeZ;
+                clip[v * 4] = p[0] * eyeX + p[4] * eyeY + p[8] * eyeZ + p[12];
+                clip[v * 4 + 1] = p[1] * eyeX + p[5] * eyeY + p[9] * eyeZ + p[13];
+                clip[v * 4 + 2] = p[2] * eyeX + p[6] * eyeY + p[10] * eyeZ + p[14];
+                clip[v * 4 + 3] = p[3] * eyeX + p[7] * eyeY + p[11] * eyeZ + p[15];
+
+                // same terms as the vertex shader of the CoreProfileBackend
+                float normalX = eyeNormals[v * 3];
+                float normalY = eyeNormals[v * 3 + 1];
+                float normalZ = eyeNormals[v * 3 + 2];
+                float lightX = LIGHT_POSITION[0] - eyeX * LIGHT_POSITION[3];
+                float lightY = LIGHT_POSITION[1] - eyeY * LIGHT_POSITION[3];
+                float lightZ = LIGHT_POSITION[2] - eyeZ * LIGHT_POSITION[3];
+                float lightLength = (float) Math.sqrt(lightX * lightX + lightY * lightY + lightZ * lightZ);
+                lightX /= lightLength;
+                lightY /= lightLength;
+                lightZ /= lightLength;
+                float diffuse = Math.max(normalX * lightX + normalY * lightY + normalZ * lightZ, 0f);
+                float specular = 0f;
+                if (diffuse > 0f) {
+                    // half vector of the light and the viewer direction (0, 0, 1), no local viewer
+                    float halfX = lightX;
+                    float halfY = lightY;
+                    float halfZ = lightZ + 1f;
+                    float halfLength = (float) Math.sqrt(halfX * halfX + halfY * halfY + halfZ * halfZ);
+                    float cosine = (normalX * halfX + normalY * halfY + normalZ * halfZ) / halfLength;
+                    specular = (float) Math.pow(Math.max(cosine, 0f), shininess);
+                }
+                for (int component = 0; component < 3; component++) {
+                    colors[v * 3 + component] = materialColors[colorOffset + component]
+                            + diffuse * materialColors[colorOffset + 3 + component]
+                            + specular * materialColors[colorOffset + 6 + component];
+                }
+            }
+            int[] indices = mesh.indices;
+            for (int i = 0; i + 2 < indices.length; i += 3)
+                batch.addTriangle(clip, colors, indices[i], indices[i + 1], indices[i + 2]);
+        }
+    }
+}
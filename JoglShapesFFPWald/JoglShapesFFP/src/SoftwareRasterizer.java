@@ -0,0 +1,530 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Rasterizes triangles with per vertex colors into an image without OpenGL, on all cores of the machine.
+ * Used by the SoftwareBackend on hosts without a GPU or OpenGL implementation.
+ *
+ * A frame is drawn in two phases (sort middle):
+ *  - Geometry: the triangles are added to batches, one batch per thread of the geometry work (beginFrame(),
+ *    getBatch()). A batch clips its triangles against the view frustum in clip coordinates, projects them onto
+ *    the screen and sorts them into the bins of the tiles (TILE_SIZE x TILE_SIZE pixels) their bounding box
+ *    overlaps. Batches are written by one thread each and need no synchronization.
+ *  - Rasterization: the tiles are cleared and filled in parallel in the pool (endFrame()), every tile by one
+ *    task, so no two threads write the same pixel. A tile draws the triangles of all batches in the order of
+ *    the batches and of their addition, so the image is the same as with a single thread, whatever the number
+ *    of threads.
+ *
+ * Follows the rules of OpenGL where they decide about the image: pixel centers at half integers, the top-left
+ * fill rule on vertices snapped to SUBPIXELS steps (pixels on a shared edge are drawn exactly once), depth test
+ * GL_LESS with window depths from 0 (near) to 1 (far), colors interpolated perspective correctly, no face culling.
+ *
+ * The pixels are held as 0xRRGGBB ints with the rows from top to bottom, in the data buffer of a BufferedImage.
+ * No objects are allocated per frame once the bins have grown to the size of the scene.
+ */
+public class SoftwareRasterizer {
+
+    public static final int TILE_SIZE = 32;
+    // Subpixel steps per pixel of the snapped vertex positions
+    public static final int SUBPIXELS = 16;
+
+    // Per triangle: snapped x and y of the three vertices and the covered pixels (min x, min y, max x, max y)
+    private static final int TRIANGLE_INTS = 10;
+    // Per triangle: 1 / twice the area and for depth, 1 / w, r / w, g / w and b / w the value at vertex 0 and
+    // the differences to the vertices 1 and 2 (interpolated with the barycentric coordinates)
+    private static final int TRIANGLE_FLOATS = 16;
+    // Per vertex of a clipped polygon: clip coordinates x, y, z, w and color r, g, b
+    private static final int POLYGON_FLOATS = 7;
+    // A triangle clipped by the six planes of the frustum has at most nine vertices
+    private static final int MAX_POLYGON_VERTICES = 9;
+    private static final int INITIAL_BIN_SIZE = 16;
+
+    private final ForkJoinPool pool;
+    private final int width;
+    private final int height;
+    private final int tilesX;
+    private final int tilesY;
+    private final BufferedImage image;
+    private final int[] pixels;
+    private final float[] depths;
+    private int clearColor = 0xffffff;
+
+    private Batch[] batches = new Batch[0];
+    private int batchCount;
+    private final TileTask[] tileTasks;
+    private final RasterTask rasterTask = new RasterTask();
+
+    /**
+     * Creates a rasterizer using the common fork-join pool.
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     */
+    public SoftwareRasterizer(int width, int height) {
+        this(width, height, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param width Width of the image in pixels
+     * @param height Height of the image in pixels
+     * @param pool Pool rasterizing the tiles
+     */
+    public SoftwareRasterizer(int width, int height, ForkJoinPool pool) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("The image size must be positive, got " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        this.pool = pool;
+        tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+        tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        depths = new float[width * height];
+        tileTasks = new TileTask[tilesX * tilesY];
+        for (int tile = 0; tile < tileTasks.length; tile++)
+            tileTasks[tile] = new TileTask(tile);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @param red Red of the background, from 0 to 1 (like glClearColor)
+     * @param green Green of the background
+     * @param blue Blue of the background
+     */
+    public void setClearColor(float red, float green, float blue) {
+        clearColor = toRgb(red, green, blue);
+    }
+
+    /**
+     * Starts a frame: empties the batches. The image keeps the last frame until endFrame().
+     * @param batchCount Number of batches filled by the geometry work, e.g. one per task
+     */
+    public void beginFrame(int batchCount) {
+        if (batches.length < batchCount) {
+            int created = batches.length;
+            batches = Arrays.copyOf(batches, batchCount);
+            for (int b = created; b < batchCount; b++)
+                batches[b] = new Batch();
+        }
+        this.batchCount = batchCount;
+        for (int b = 0; b < batchCount; b++)
+            batches[b].reset();
+    }
+
+    /**
+     * @param batch Number of the batch, 0 .. batchCount - 1 of beginFrame()
+     * @return The batch, to be filled by one thread at a time
+     */
+    public Batch getBatch(int batch) {
+        if (batch >= batchCount)
+            throw new IndexOutOfBoundsException("Batch " + batch + " of " + batchCount);
+        return batches[batch];
+    }
+
+    /**
+     * Clears the image and rasterizes the triangles of all batches, the tiles in parallel. Waits for all tiles.
+     */
+    public void endFrame() {
+        rasterTask.reinitialize();
+        pool.invoke(rasterTask);
+    }
+
+    /**
+     * @return The image of the last frame, rows from top to bottom. The same object for every frame.
+     */
+    public BufferedImage getImage() {
+        return image;
+    }
+
+    /**
+     * @return The pixels of the last frame as 0xRRGGBB, rows from top to bottom. A view of the image,
+     *         valid until the next endFrame().
+     */
+    public IntBuffer getPixels() {
+        return IntBuffer.wrap(pixels).asReadOnlyBuffer();
+    }
+
+    /**
+     * @return Number of triangles of the last frame left after clipping, summed over all batches
+     */
+    public int getTriangleCount() {
+        int count = 0;
+        for (int b = 0; b < batchCount; b++)
+            count += batches[b].triangleCount;
+        return count;
+    }
+
+    private static int toRgb(float red, float green, float blue) {
+        return toChannel(red) << 16 | toChannel(green) << 8 | toChannel(blue);
+    }
+
+    private static int toChannel(float value) {
+        // clamped and rounded to the nearest of 256 steps, like the conversion of OpenGL
+        if (value <= 0f)
+            return 0;
+        if (value >= 1f)
+            return 255;
+        return (int) (value * 255f + 0.5f);
+    }
+
+    /**
+     * Triangles added by one thread, clipped, projected and sorted into the tiles.
+     */
+    public final class Batch {
+
+        private int[] triangleInts = new int[64 * TRIANGLE_INTS];
+        private float[] triangleFloats = new float[64 * TRIANGLE_FLOATS];
+        private int triangleCount;
+        // Triangles overlapping each tile, in the order of their addition
+        private final int[][] bins = new int[tilesX * tilesY][INITIAL_BIN_SIZE];
+        private final int[] binSizes = new int[tilesX * tilesY];
+        // Polygons of the clipping, alternately read and written by the planes
+        private float[] polygon = new float[MAX_POLYGON_VERTICES * POLYGON_FLOATS];
+        private float[] clipped = new float[MAX_POLYGON_VERTICES * POLYGON_FLOATS];
+        // Screen vertices of the triangle being added: snapped x and y, depth, 1 / w, r / w, g / w, b / w
+        private final int[] screenX = new int[3];
+        private final int[] screenY = new int[3];
+        private final float[] screenAttributes = new float[3 * 5];
+
+        private Batch() {
+        }
+
+        private void reset() {
+            triangleCount = 0;
+            Arrays.fill(binSizes, 0);
+        }
+
+        /**
+         * Adds a triangle, given by three vertices of a vertex array. Triangles outside the view frustum
+         * are dropped, triangles crossing its planes are clipped.
+         * @param clip Clip coordinates of the vertices (projection * modelView * position), x, y, z, w per vertex
+         * @param colors Colors of the vertices, r, g, b per vertex (clamped to [0, 1] when drawn)
+         * @param a Index of the first vertex
+         * @param b Index of the second vertex
+         * @param c Index of the third vertex
+         */
+        public void addTriangle(float[] clip, float[] colors, int a, int b, int c) {
+            int outsideA = outcode(clip, a * 4);
+            int outsideB = outcode(clip, b * 4);
+            int outsideC = outcode(clip, c * 4);
+            // all vertices outside of the same plane
+            if ((outsideA & outsideB & outsideC) != 0)
+                return;
+            if ((outsideA | outsideB | outsideC) == 0) {
+                project(0, clip, a * 4, colors, a * 3);
+                project(1, clip, b * 4, colors, b * 3);
+                project(2, clip, c * 4, colors, c * 3);
+                addScreenTriangle();
+                return;
+            }
+            // the crossed planes cut the triangle into a convex polygon, which is drawn as a fan
+            copyVertex(clip, a, colors, polygon, 0);
+            copyVertex(clip, b, colors, polygon, 1);
+            copyVertex(clip, c, colors, polygon, 2);
+            int count = 3;
+            int crossed = outsideA | outsideB | outsideC;
+            for (int plane = 0; plane < 6 && count > 0; plane++) {
+                if ((crossed & 1 << plane) != 0)
+                    count = clip(plane, count);
+            }
+            for (int k = 1; k + 1 < count; k++) {
+                project(0, polygon, 0, polygon, 4);
+                project(1, polygon, k * POLYGON_FLOATS, polygon, k * POLYGON_FLOATS + 4);
+                project(2, polygon, (k + 1) * POLYGON_FLOATS, polygon, (k + 1) * POLYGON_FLOATS + 4);
+                addScreenTriangle();
+            }
+        }
+
+        /**
+         * @return One bit per plane of the frustum (-x, +x, -y, +y, -z, +z) the vertex is outside of
+         */
+        private int outcode(float[] clip, int offset) {
+            float x = clip[offset];
+            float y = clip[offset + 1];
+            float z = clip[offset + 2];
+            float w = clip[offset + 3];
+            int code = 0;
+            if (x < -w)
+                code |= 1;
+            if (x > w)
+                code |= 2;
+            if (y < -w)
+                code |= 4;
+            if (y > w)
+                code |= 8;
+            if (z < -w)
+                code |= 16;
+            if (z > w)
+                code |= 32;
+            return code;
+        }
+
+        private void copyVertex(float[] clip, int vertex, float[] colors, float[] target, int k) {
+            System.arraycopy(clip, vertex * 4, target, k * POLYGON_FLOATS, 4);
+            System.arraycopy(colors, vertex * 3, target, k * POLYGON_FLOATS + 4, 3);
+        }
+
+        /**
+         * Clips the polygon against one plane of the frustum (Sutherland-Hodgman).
+         * @return Number of vertices of the clipped polygon, which is the new polygon
+         */
+        private int clip(int plane, int count) {
+            int result = 0;
+            for (int k = 0; k < count; k++) {
+                int current = k * POLYGON_FLOATS;
+                int next = (k + 1) % count * POLYGON_FLOATS;
+                float currentDistance = distance(plane, current);
+                float nextDistance = distance(plane, next);
+                if (currentDistance >= 0f) {
+                    System.arraycopy(polygon, current, clipped, result * POLYGON_FLOATS, POLYGON_FLOATS);
+                    result++;
+                }
+                if (currentDistance >= 0f != nextDistance >= 0f) {
+                    float t = currentDistance / (currentDistance - nextDistance);
+                    int target = result * POLYGON_FLOATS;
+                    for (int i = 0; i < POLYGON_FLOATS; i++)
+                        clipped[target + i] = polygon[current + i] + t * (polygon[next + i] - polygon[current + i]);
+                    result++;
+                }
+            }
+            float[] swap = polygon;
+            polygon = clipped;
+            clipped = swap;
+            return result;
+        }
+
+        /**
+         * @return Signed distance of a polygon vertex to a plane of the frustum, not negative inside
+         */
+        private float distance(int plane, int offset) {
+            float w = polygon[offset + 3];
+            float value = polygon[offset + (plane >> 1)];
+            return (plane & 1) == 0 ? w + value : w - value;
+        }
+
+        /**
+         * Divides a vertex by w and maps it into the image: x to the right, y downwards, snapped to subpixels.
+         */
+        private void project(int k, float[] clip, int clipOffset, float[] colors, int colorOffset) {
+            float inverseW = 1f / clip[clipOffset + 3];
+            float x = (clip[clipOffset] * inverseW * 0.5f + 0.5f) * width;
+            float y = (0.5f - clip[clipOffset + 1] * inverseW * 0.5f) * height;
+            screenX[k] = Math.round(x * SUBPIXELS);
+            screenY[k] = Math.round(y * SUBPIXELS);
+            int attributes = k * 5;
+            screenAttributes[attributes] = clip[clipOffset + 2] * inverseW * 0.5f + 0.5f;
+            screenAttributes[attributes + 1] = inverseW;
+            screenAttributes[attributes + 2] = colors[colorOffset] * inverseW;
+            screenAttributes[attributes + 3] = colors[colorOffset + 1] * inverseW;
+            screenAttributes[attributes + 4] = colors[colorOffset + 2] * inverseW;
+        }
+
+        /**
+         * Stores the projected triangle and adds it to the bins of the tiles it may cover.
+         */
+        private void addScreenTriangle() {
+            long area = (long) (screenX[1] - screenX[0]) * (screenY[2] - screenY[0])
+                    - (long) (screenX[2] - screenX[0]) * (screenY[1] - screenY[0]);
+            if (area == 0)
+                return;
+            // both orientations are drawn, stored clockwise on the screen (positive area)
+            int second = area > 0 ? 1 : 2;
+            int third = area > 0 ? 2 : 1;
+            area = Math.abs(area);
+
+            int minX = Math.min(screenX[0], Math.min(screenX[1], screenX[2]));
+            int maxX = Math.max(screenX[0], Math.max(screenX[1], screenX[2]));
+            int minY = Math.min(screenY[0], Math.min(screenY[1], screenY[2]));
+            int maxY = Math.max(screenY[0], Math.max(screenY[1], screenY[2]));
+            // pixels whose centers lie within the bounding box
+            int fromX = Math.max(0, Math.floorDiv(minX - SUBPIXELS / 2 + SUBPIXELS - 1, SUBPIXELS));
+            int toX = Math.min(width - 1, Math.floorDiv(maxX - SUBPIXELS / 2, SUBPIXELS));
+            int fromY = Math.max(0, Math.floorDiv(minY - SUBPIXELS / 2 + SUBPIXELS - 1, SUBPIXELS));
+            int toY = Math.min(height - 1, Math.floorDiv(maxY - SUBPIXELS / 2, SUBPIXELS));
+            if (fromX > toX || fromY > toY)
+                return;
+
+            int triangle = triangleCount++;
+            if (triangleCount * TRIANGLE_INTS > triangleInts.length) {
+                triangleInts = Arrays.copyOf(triangleInts, 2 * triangleInts.length);
+                triangleFloats = Arrays.copyOf(triangleFloats, 2 * triangleFloats.length);
+            }
+            int ints = triangle * TRIANGLE_INTS;
+            triangleInts[ints] = screenX[0];
+            triangleInts[ints + 1] = screenY[0];
+            triangleInts[ints + 2] = screenX[second];
+            triangleInts[ints + 3] = screenY[second];
+            triangleInts[ints + 4] = screenX[third];
+            triangleInts[ints + 5] = screenY[third];
+            triangleInts[ints + 6] = fromX;
+            triangleInts[ints + 7] = fromY;
+            triangleInts[ints + 8] = toX;
+            triangleInts[ints + 9] = toY;
+            int floats = triangle * TRIANGLE_FLOATS;
+            triangleFloats[floats] = 1f / area;
+            for (int i = 0; i < 5; i++) {
+                float first = screenAttributes[i];
+                triangleFloats[floats + 1 + 3 * i] = first;
+                triangleFloats[floats + 2 + 3 * i] = screenAttributes[second * 5 + i] - first;
+                triangleFloats[floats + 3 + 3 * i] = screenAttributes[third * 5 + i] - first;
+            }
+
+            for (int tileY = fromY / TILE_SIZE; tileY <= toY / TILE_SIZE; tileY++) {
+                for (int tileX = fromX / TILE_SIZE; tileX <= toX / TILE_SIZE; tileX++) {
+                    int tile = tileY * tilesX + tileX;
+                    int size = binSizes[tile];
+                    if (size == bins[tile].length)
+                        bins[tile] = Arrays.copyOf(bins[tile], 2 * size);
+                    bins[tile][size] = triangle;
+                    binSizes[tile] = size + 1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Rasterizes all tiles.
+     */
+    private class RasterTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+            for (TileTask task : tileTasks)
+                task.reinitialize();
+            ForkJoinTask.invokeAll(tileTasks);
+        }
+    }
+
+    /**
+     * Clears and fills one tile.
+     */
+    private class TileTask extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+        private final int tile;
+
+        TileTask(int tile) {
+            this.tile = tile;
+        }
+
+        @Override
+        protected void compute() {
+            int x0 = tile % tilesX * TILE_SIZE;
+            int y0 = tile / tilesX * TILE_SIZE;
+            int x1 = Math.min(x0 + TILE_SIZE, width) - 1;
+            int y1 = Math.min(y0 + TILE_SIZE, height) - 1;
+            for (int y = y0; y <= y1; y++) {
+                Arrays.fill(pixels, y * width + x0, y * width + x1 + 1, clearColor);
+                Arrays.fill(depths, y * width + x0, y * width + x1 + 1, 1f);
+            }
+            for (int b = 0; b < batchCount; b++) {
+                Batch batch = batches[b];
+                int[] bin = batch.bins[tile];
+                for (int k = 0; k < batch.binSizes[tile]; k++)
+                    rasterize(batch, bin[k], x0, y0, x1, y1);
+            }
+        }
+    }
+
+    /**
+     * Draws the pixels of a triangle within a tile that pass the depth test.
+     */
+    private void rasterize(Batch batch, int triangle, int tileX0, int tileY0, int tileX1, int tileY1) {
+        int[] ints = batch.triangleInts;
+        int t = triangle * TRIANGLE_INTS;
+        int fromX = Math.max(ints[t + 6], tileX0);
+        int fromY = Math.max(ints[t + 7], tileY0);
+        int toX = Math.min(ints[t + 8], tileX1);
+        int toY = Math.min(ints[t + 9], tileY1);
+        if (fromX > toX || fromY > toY)
+            return;
+        int ax = ints[t];
+        int ay = ints[t + 1];
+        int bx = ints[t + 2];
+        int by = ints[t + 3];
+        int cx = ints[t + 4];
+        int cy = ints[t + 5];
+
+        // edge functions at the center of the first pixel, positive inside; pixels exactly on an edge
+        // belong to the triangle only if the edge is a top or left edge (biased by -1 otherwise)
+        long sampleX = (long) fromX * SUBPIXELS + SUBPIXELS / 2;
+        long sampleY = (long) fromY * SUBPIXELS + SUBPIXELS / 2;
+        long rowA = edge(bx, by, cx, cy, sampleX, sampleY);
+        long rowB = edge(cx, cy, ax, ay, sampleX, sampleY);
+        long rowC = edge(ax, ay, bx, by, sampleX, sampleY);
+        // steps of the edge functions per pixel
+        long stepXA = (long) (by - cy) * SUBPIXELS;
+        long stepXB = (long) (cy - ay) * SUBPIXELS;
+        long stepXC = (long) (ay - by) * SUBPIXELS;
+        long stepYA = (long) (cx - bx) * SUBPIXELS;
+        long stepYB = (long) (ax - cx) * SUBPIXELS;
+        long stepYC = (long) (bx - ax) * SUBPIXELS;
+        long biasA = isTopLeft(bx, by, cx, cy) ? 0 : -1;
+        long biasB = isTopLeft(cx, cy, ax, ay) ? 0 : -1;
+        long biasC = isTopLeft(ax, ay, bx, by) ? 0 : -1;
+
+        float[] floats = batch.triangleFloats;
+        int f = triangle * TRIANGLE_FLOATS;
+        float inverseArea = floats[f];
+        float depth0 = floats[f + 1], depth1 = floats[f + 2], depth2 = floats[f + 3];
+        float w0 = floats[f + 4], w1 = floats[f + 5], w2 = floats[f + 6];
+        float red0 = floats[f + 7], red1 = floats[f + 8], red2 = floats[f + 9];
+        float green0 = floats[f + 10], green1 = floats[f + 11], green2 = floats[f + 12];
+        float blue0 = floats[f + 13], blue1 = floats[f + 14], blue2 = floats[f + 15];
+
+        for (int y = fromY; y <= toY; y++) {
+            long edgeA = rowA;
+            long edgeB = rowB;
+            long edgeC = rowC;
+            int pixel = y * width + fromX;
+            for (int x = fromX; x <= toX; x++, pixel++) {
+                if ((edgeA + biasA | edgeB + biasB | edgeC + biasC) >= 0) {
+                    // barycentric coordinates of the vertices b and c
+                    float u = edgeB * inverseArea;
+                    float v = edgeC * inverseArea;
+                    float depth = depth0 + u * depth1 + v * depth2;
+                    if (depth < depths[pixel]) {
+                        depths[pixel] = depth;
+                        float w = 1f / (w0 + u * w1 + v * w2);
+                        pixels[pixel] = toRgb((red0 + u * red1 + v * red2) * w,
+                                (green0 + u * green1 + v * green2) * w, (blue0 + u * blue1 + v * blue2) * w);
+                    }
+                }
+                edgeA += stepXA;
+                edgeB += stepXB;
+                edgeC += stepXC;
+            }
+            rowA += stepYA;
+            rowB += stepYB;
+            rowC += stepYC;
+        }
+    }
+
+    /**
+     * @return Edge function of the edge from (x0, y0) to (x1, y1) at a sample, positive on the inner side
+     *         of a clockwise triangle (y downwards)
+     */
+    private static long edge(int x0, int y0, int x1, int y1, long sampleX, long sampleY) {
+        return (sampleY - y0) * (x1 - x0) - (sampleX - x0) * (y1 - y0);
+    }
+
+    /**
+     * @return True for a top edge (horizontal, the triangle below it) or a left edge of a clockwise triangle
+     */
+    private static boolean isTopLeft(int x0, int y0, int x1, int y1) {
+        return y1 == y0 ? x1 > x0 : y1 < y0;
+    }
+}
@@ -0,0 +1,226 @@
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Renders the forest of the ShapesRenderer without OpenGL and writes the frames as PNG files,
+ * for hosts without a GPU or OpenGL driver (render servers, thumbnails, image comparisons in tests).
+ *
+ * The frames are prepared like in the interactive renderer (FramePipeline: view frustum culling, level of detail
+ * selection and sorting) and drawn by the SoftwareBackend into a SoftwareRasterizer, both using all threads
+ * of the pool. No class of this path touches OpenGL, so neither native libraries nor a display are needed.
+ * The images are deterministic: the same scene, camera and size give the same pixels with any number of threads.
+ *
+ * The camera starts at the position of the interactive window and is rotated about the y-axis by a fixed angle
+ * per frame, like in the HeadlessRenderer.
+ */
+public class SoftwareRenderer {
+
+    // Projection of ShapesRenderer.reshape()
+    private static final float FOVY = 45f;
+    private static final float Z_NEAR = 0.1f;
+    private static final float Z_FAR = 100f;
+
+    private final int width;
+    private final int height;
+
+    private final ForestGenerator forestGenerator = new ForestGenerator();
+    private int treeCount = 16;
+    private InstanceStore loadedTrees;
+    private CameraState camera = new CameraState(10f, 0f, 0f, 0f, 0f);
+
+    private final ViewTransform viewTransform = new ViewTransform();
+    private final LodSelector lodSelector = new LodSelector();
+    private final UniformGridIndex treeIndex = new UniformGridIndex();
+    private final FramePipeline framePipeline;
+    private final MaterialRegistry materialRegistry = new MaterialRegistry();
+    private final SoftwareBackend backend;
+    private final SoftwareRasterizer rasterizer;
+    private InstanceStore trees;
+    private int visibleTreeCount;
+
+    /**
+     * Creates a renderer using the common fork-join pool.
+     * @param width Width of the frames in pixels
+     * @param height Height of the frames in pixels
+     */
+    public SoftwareRenderer(int width, int height) {
+        this(width, height, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param width Width of the frames in pixels
+     * @param height Height of the frames in pixels
+     * @param pool Pool preparing, shading and rasterizing the frames
+     */
+    public SoftwareRenderer(int width, int height, ForkJoinPool pool) {
+        this.width = width;
+        this.height = height;
+        int leafGreenMaterial = materialRegistry.register(Material.LEAF_GREEN);
+        int woodBrownMaterial = materialRegistry.register(Material.WOOD_BROWN);
+        framePipeline = new FramePipeline(ShapesRenderer.TREE_BOUNDS_CENTER_Z, ShapesRenderer.TREE_BOUNDS_RADIUS, pool);
+        backend = new SoftwareBackend(materialRegistry, woodBrownMaterial, new int[] {leafGreenMaterial}, pool);
+        rasterizer = new SoftwareRasterizer(width, height, pool);
+        // background color of the canvas
+        rasterizer.setClearColor(1f, 1f, 1f);
+    }
+
+    /**
+     * @param treeCount Number of generated trees. Has to be called before init().
+     */
+    public void setTreeCount(int treeCount) {
+        this.treeCount = treeCount;
+    }
+
+    public int getTreeCount() {
+        return treeCount;
+    }
+
+    /**
+     * Draws the trees of a scene file instead of generating the forest. Has to be called before init().
+     * @param loadedTrees Trees of a scene file (see SceneFile.map()), null for generating the forest
+     */
+    public void setLoadedTrees(InstanceStore loadedTrees) {
+        this.loadedTrees = loadedTrees;
+    }
+
+    /**
+     * @return The generator placing the trees, its parameters (e.g. the seed) can be changed before init()
+     */
+    public ForestGenerator getForestGenerator() {
+        return forestGenerator;
+    }
+
+    public CameraState getCamera() {
+        return camera;
+    }
+
+    /**
+     * @param camera Camera of the following frames
+     */
+    public void setCamera(CameraState camera) {
+        this.camera = camera;
+    }
+
+    /**
+     * Places the trees and prepares the pipeline and the backend.
+     */
+    public void init() {
+        trees = loadedTrees != null ? loadedTrees : forestGenerator.generate(treeCount);
+        treeIndex.build(trees, ShapesRenderer.TREE_BOUNDS_CENTER_Z, ShapesRenderer.TREE_BOUNDS_RADIUS);
+        framePipeline.init(trees, treeIndex, lodSelector);
+        backend.init(lodSelector);
+        viewTransform.setPerspective(FOVY, (float) width / height, Z_NEAR, Z_FAR, height);
+    }
+
+    /**
+     * Draws one frame with the current camera.
+     * @return The image of the frame, the same object for every frame (overwritten by the next one)
+     */
+    public BufferedImage render() {
+        if (trees == null)
+            throw new IllegalStateException("Software renderer is not initialized");
+        viewTransform.update(camera);
+        FrameCommands commands = framePipeline.prepare(viewTransform, true);
+        visibleTreeCount = commands.getVisibleCount();
+        backend.drawTrees(commands, rasterizer);
+        return rasterizer.getImage();
+    }
+
+    /**
+     * Renders a sequence of frames and writes them as PNG images.
+     * @param frames Number of frames
+     * @param angleStep Rotation of the camera about the y-axis between two frames, in degrees
+     * @param outputDirectory Directory receiving the images, created if missing
+     */
+    public void render(int frames, float angleStep, File outputDirectory) throws IOException {
+        if (!outputDirectory.isDirectory() && !outputDirectory.mkdirs())
+            throw new IOException("Cannot create the directory " + outputDirectory);
+        CameraState start = camera;
+        try {
+            for (int frame = 0; frame < frames; frame++) {
+                camera = start.withAngles(start.getAngleXaxis(), start.getAngleYaxis() + frame * angleStep);
+                File file = new File(outputDirectory, String.format(Locale.ROOT, "frame_%05d.png", frame));
+                if (!ImageIO.write(render(), "png", file))
+                    throw new IOException("No PNG writer available");
+            }
+        } finally {
+            camera = start;
+        }
+    }
+
+    /**
+     * @return Number of triangles of the last frame after clipping
+     */
+    public int getTriangleCount() {
+        return rasterizer.getTriangleCount();
+    }
+
+    /**
+     * @return Number of trees drawn in the last frame
+     */
+    public int getVisibleTreeCount() {
+        return visibleTreeCount;
+    }
+
+    /**
+     * Renders a sequence of frames without OpenGL.
+     * @param args "-frames=n" for the number of frames, "-size=wxh" for the size of the frames,
+     *             "-out=dir" for the output directory, "-step=deg" for the camera rotation per frame,
+     *             "-threads=n" for the number of threads (default: all processors),
+     *             "-trees=n", "-seed=s" and "-scene=file" as for ShapesMainWindow
+     */
+    public static void main(String[] args) {
+        System.setProperty("java.awt.headless", "true");
+        int frames = 1;
+        int width = 640;
+        int height = 480;
+        File outputDirectory = new File("frames");
+        float angleStep = 0f;
+        int treeCount = 16;
+        long seed = 1;
+        int threads = 0;
+        File sceneFile = null;
+        for (String arg : args) {
+            if (arg.startsWith("-frames="))
+                frames = Integer.parseInt(arg.substring("-frames=".length()));
+            else if (arg.startsWith("-size=")) {
+                String[] size = arg.substring("-size=".length()).split("x");
+                width = Integer.parseInt(size[0]);
+                height = Integer.parseInt(size[1]);
+            } else if (arg.startsWith("-out="))
+                outputDirectory = new File(arg.substring("-out=".length()));
+            else if (arg.startsWith("-step="))
+                angleStep = Float.parseFloat(arg.substring("-step=".length()));
+            else if (arg.startsWith("-threads="))
+                threads = Integer.parseInt(arg.substring("-threads=".length()));
+            else if (arg.startsWith("-trees="))
+                treeCount = Integer.parseInt(arg.substring("-trees=".length()));
+            else if (arg.startsWith("-seed="))
+                seed = Long.parseLong(arg.substring("-seed=".length()));
+            else if (arg.startsWith("-scene="))
+                sceneFile = new File(arg.substring("-scene=".length()));
+        }
+
+        try {
+            ForkJoinPool pool = threads > 0 ? new ForkJoinPool(threads) : ForkJoinPool.commonPool();
+            SoftwareRenderer renderer = new SoftwareRenderer(width, height, pool);
+            renderer.setTreeCount(treeCount);
+            renderer.getForestGenerator().setSeed(seed);
+            if (sceneFile != null)
+                renderer.setLoadedTrees(SceneFile.map(sceneFile));
+            renderer.init();
+            long start = System.nanoTime();
+            renderer.render(frames, angleStep, outputDirectory);
+            System.err.printf("%d frames written to %s in %.1f s with %d threads (software rasterizer)%n", frames,
+                    outputDirectory, (System.nanoTime() - start) / 1e9, pool.getParallelism());
+        } catch (IOException | IllegalArgumentException e) {
+            System.err.println("Software rendering failed: " + e.getMessage());
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+}
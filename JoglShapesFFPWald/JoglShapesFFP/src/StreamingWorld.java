@@ -0,0 +1,574 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Endless world of trees, split into square tiles of the ground plane which are loaded in the background
+ * as the camera approaches them. Only the tiles around the camera are held in memory:
+ *  - The render thread reports the point the camera looks at once per frame (setFocus()).
+ *  - A loader thread loads the missing tiles within the load radius of that point, nearest first, from a
+ *    TileSource (e.g. generated by a ForestGenerator, or read from files). Loaded tiles are cached; when the
+ *    trees of all cached tiles exceed the memory budget, the least recently used tiles outside the load radius
+ *    are evicted.
+ *  - After a few loaded tiles the loader builds a snapshot for the renderer: the trees of all cached tiles
+ *    copied into one compact InstanceStore, together with its spatial index. The render thread takes the newest
+ *    snapshot at the beginning of a frame (update()), which only exchanges references, so loading, copying and
+ *    indexing never stall a frame.
+ *
+ * There are two snapshots, the one drawn by the renderer and the one built by the loader. A snapshot is only
+ * rebuilt after the renderer has replaced it, and it is replaced only between two frames (no FramePipeline
+ * stage running), so the trees of a frame never change while it is prepared. The tiles keep their order from
+ * snapshot to snapshot (new tiles are appended, evicted ones leave a gap that is closed), so the levels of
+ * detail kept per tree by the LodSelector are moved along with the trees.
+ *
+ * The trees reach the GPU with the command lists of the frames (only the visible ones), so the GPU memory
+ * does not grow with the world; the memory budget covers all buffers held per resident tree.
+ */
+public class StreamingWorld {
+
+    /**
+     * Provides the trees of the tiles. Tile (x, y) covers the square from (x, y) * tileSize
+     * to (x + 1, y + 1) * tileSize of the ground plane.
+     */
+    public interface TileSource {
+
+        /**
+         * @return Edge length of the tiles
+         */
+        float getTileSize();
+
+        /**
+         * Loads the trees of a tile. Only called on the loader thread.
+         * @return The trees in world coordinates
+         * @throws IOException if the tile cannot be read, it then stays empty
+         */
+        InstanceStore load(int tileX, int tileY) throws IOException;
+    }
+
+    /**
+     * Generates the tiles with a ForestGenerator, every tile with its own seed derived from its position,
+     * so a tile looks the same whenever it is loaded again.
+     */
+    public static class ForestTiles implements TileSource {
+
+        private final ForestGenerator generator = new ForestGenerator();
+        private final long seed;
+        private final float tileSize;
+        private final InstanceStore tile;
+
+        /**
+         * @param seed Seed of the world
+         * @param treesPerTile Average number of trees per tile, defines the tile size
+         */
+        public ForestTiles(long seed, int treesPerTile) {
+            this.seed = seed;
+            tileSize = generator.getTileEdgeLength(treesPerTile);
+            tile = new InstanceStore(generator.getMaxTileTreeCount(tileSize));
+        }
+
+        @Override
+        public float getTileSize() {
+            return tileSize;
+        }
+
+        @Override
+        public InstanceStore load(int tileX, int tileY) {
+            generator.setSeed(seed * 0x9E3779B97F4A7C15L + tileKey(tileX, tileY));
+            int count = generator.generateTile(tile, (tileX + 0.5f) * tileSize, (tileY + 0.5f) * tileSize, tileSize);
+            // the tile is cached, so it only takes the memory of its trees
+            InstanceStore trees = new InstanceStore(count);
+            trees.copy(tile, 0, 0, count);
+            trees.setSize(count);
+            return trees;
+        }
+    }
+
+    // Approximate memory per resident tree in bytes: the cached tile (18), the two snapshot stores (36),
+    // their spatial indices (40), the command lists (40), the FramePipeline (8) and the LodSelector (1)
+    public static final int BYTES_PER_TREE = 144;
+    // Time the loader sleeps before looking at the focus again when nothing is to be done
+    private static final long IDLE_NANOS = 50_000_000L;
+
+    // A loaded tile, only used by the loader thread
+    private static class Tile {
+        final int x;
+        final int y;
+        final InstanceStore trees;
+        // First tree in the snapshot, -1 if not yet in a snapshot
+        int start = -1;
+        // Last pass of the loader that found the tile within the load radius
+        long pass;
+        boolean evicted;
+
+        Tile(int x, int y, InstanceStore trees) {
+            this.x = x;
+            this.y = y;
+            this.trees = trees;
+        }
+    }
+
+    /**
+     * Trees of the cached tiles and their index, built by the loader and drawn by the renderer.
+     */
+    private static class Snapshot {
+        final InstanceStore trees;
+        final UniformGridIndex index = new UniformGridIndex();
+        // Per tile in the order of the store: first tree now and in the previous snapshot (-1 for new tiles)
+        int tileCount;
+        int[] starts = new int[0];
+        int[] previousStarts = new int[0];
+        int[] counts = new int[0];
+
+        Snapshot(int capacity) {
+            trees = new InstanceStore(capacity);
+        }
+    }
+
+    private final TileSource source;
+    private final float tileSize;
+    private final float treeBoundsCenterZ;
+    private final float treeBoundsRadius;
+    private long memoryBudget = 32L << 20;
+    private float loadRadius = 100f;
+    private int tilesPerSnapshot = 4;
+    private int capacity;
+
+    // Render thread
+    private Snapshot front;
+    private volatile float focusX;
+    private volatile float focusY;
+    private int focusTileX = Integer.MIN_VALUE;
+    private int focusTileY;
+
+    // Handing the snapshots over between the threads
+    private final AtomicReference<Snapshot> published = new AtomicReference<>();
+    private final AtomicReference<Snapshot> released = new AtomicReference<>();
+    private volatile Runnable changeListener;
+
+    // Loader thread
+    private volatile boolean running;
+    private volatile Thread loader;
+    private Snapshot spare;
+    // Cached tiles by key, in the order of their last use (least recently used first)
+    private final LinkedHashMap<Long, Tile> cache = new LinkedHashMap<>(64, 0.75f, true);
+    // Cached tiles in the order of the last snapshot
+    private final List<Tile> layout = new ArrayList<>();
+    private long cachedTrees;
+    private long pass;
+    private int[] wantedX = new int[0];
+    private int[] wantedY = new int[0];
+    private float[] wantedDistance = new float[0];
+    // Focus tile, load radius and capacity at which the budget last ran out, no loading until one changes
+    private boolean exhausted;
+    private int exhaustedTileX;
+    private int exhaustedTileY;
+    private float exhaustedRadius;
+    private int exhaustedCapacity;
+
+    // Statistics
+    private volatile int residentTiles;
+    private volatile int residentTrees;
+    private volatile long loadedTiles;
+    private volatile long evictedTiles;
+    private volatile long failedTiles;
+    private volatile long snapshots;
+    private volatile boolean budgetExceeded;
+
+    /**
+     * @param source Provides the trees of the tiles
+     * @param treeBoundsCenterZ Height of the bounding sphere center of a tree of scale 1
+     * @param treeBoundsRadius Radius of the bounding sphere of a tree of scale 1
+     */
+    public StreamingWorld(TileSource source, float treeBoundsCenterZ, float treeBoundsRadius) {
+        this.source = source;
+        this.tileSize = source.getTileSize();
+        this.treeBoundsCenterZ = treeBoundsCenterZ;
+        this.treeBoundsRadius = treeBoundsRadius;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @param memoryBudget Memory for the resident trees in bytes (see BYTES_PER_TREE). Has to be set before start().
+     */
+    public void setMemoryBudget(long memoryBudget) {
+        this.memoryBudget = memoryBudget;
+    }
+
+    public float getLoadRadius() {
+        return loadRadius;
+    }
+
+    /**
+     * @param loadRadius Distance from the focus up to which the tiles are loaded, e.g. the far plane of the
+     *                   projection. May be changed at any time, takes effect with the next pass of the loader.
+     */
+    public void setLoadRadius(float loadRadius) {
+        this.loadRadius = loadRadius;
+    }
+
+    public int getTilesPerSnapshot() {
+        return tilesPerSnapshot;
+    }
+
+    /**
+     * @param tilesPerSnapshot Number of tiles loaded before a new snapshot is handed to the renderer,
+     *                         fewer show the nearest tiles sooner, more copy and index less often
+     */
+    public void setTilesPerSnapshot(int tilesPerSnapshot) {
+        this.tilesPerSnapshot = Math.max(1, tilesPerSnapshot);
+    }
+
+    public float getTileSize() {
+        return tileSize;
+    }
+
+    /**
+     * @return Maximum number of resident trees, defined by the memory budget
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * Allocates the snapshots and starts the loader thread. The first snapshot is empty.
+     */
+    public synchronized void start() {
+        if (running)
+            throw new IllegalStateException("Streaming world already started");
+        capacity = (int) Math.min(Integer.MAX_VALUE - 8, memoryBudget / BYTES_PER_TREE);
+        if (front == null) {
+            front = new Snapshot(capacity);
+            front.index.build(front.trees, treeBoundsCenterZ, treeBoundsRadius);
+            spare = new Snapshot(capacity);
+        }
+        running = true;
+        loader = new Thread(this::run, "StreamingWorld loader");
+        loader.setDaemon(true);
+        loader.start();
+    }
+
+    /**
+     * Stops the loader thread and waits for it. The cached tiles are kept.
+     */
+    public synchronized void stop() {
+        if (!running)
+            return;
+        running = false;
+        LockSupport.unpark(loader);
+        try {
+            loader.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        loader = null;
+    }
+
+    /**
+     * Sets the listener informed when a new snapshot is ready, e.g. for requesting a frame.
+     * Called on the loader thread, has to return quickly.
+     * @param changeListener The listener, null for none
+     */
+    public void setChangeListener(Runnable changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    /**
+     * Tells the loader the point of the ground plane the camera looks at. Called by the render thread once per
+     * frame; the loader is only woken when the point enters another tile.
+     */
+    public void setFocus(float x, float y) {
+        focusX = x;
+        focusY = y;
+        int tileX = (int) Math.floor(x / tileSize);
+        int tileY = (int) Math.floor(y / tileSize);
+        if (tileX != focusTileX || tileY != focusTileY) {
+            focusTileX = tileX;
+            focusTileY = tileY;
+            Thread thread = loader;
+            if (thread != null)
+                LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Takes the newest snapshot of the loader, if there is one, and moves the levels of detail of the trees
+     * to their new positions. Only called by the render thread while no FramePipeline stage is running.
+     * @param lodSelector Keeps the levels of the trees, its capacity has to be getCapacity()
+     * @return True if the trees and the index have been replaced (see getTrees() and getIndex())
+     */
+    public boolean update(LodSelector lodSelector) {
+        Snapshot next = published.getAndSet(null);
+        if (next == null)
+            return false;
+        // the tiles keep their order and only move towards the start, so moving them in order is safe
+        for (int t = 0; t < next.tileCount; t++) {
+            int start = next.starts[t];
+            if (next.previousStarts[t] >= 0)
+                lodSelector.move(next.previousStarts[t], start, next.counts[t]);
+            else
+                lodSelector.reset(start, start + next.counts[t]);
+        }
+        Snapshot old = front;
+        front = next;
+        released.set(old);
+        Thread thread = loader;
+        if (thread != null)
+            LockSupport.unpark(thread);
+        return true;
+    }
+
+    /**
+     * @return The trees of the current snapshot of the render thread, valid until update() replaces them
+     */
+    public InstanceStore getTrees() {
+        return front.trees;
+    }
+
+    /**
+     * @return The spatial index of getTrees()
+     */
+    public UniformGridIndex getIndex() {
+        return front.index;
+    }
+
+    private void run() {
+        while (running) {
+            if (spare == null)
+                spare = released.getAndSet(null);
+            // the renderer still draws the other snapshot and has not taken the last one yet
+            if (spare == null) {
+                LockSupport.parkNanos(this, IDLE_NANOS);
+                continue;
+            }
+            if (!loadTiles())
+                LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+    }
+
+    /**
+     * One pass of the loader: loads the missing tiles around the focus, nearest first, evicting the least
+     * recently used tiles outside the load radius, and publishes a snapshot if anything changed.
+     * @return True if a snapshot was published
+     */
+    private boolean loadTiles() {
+        float x = focusX;
+        float y = focusY;
+        int tileX = (int) Math.floor(x / tileSize);
+        int tileY = (int) Math.floor(y / tileSize);
+        // loading again would only generate the tile that did not fit before
+        if (exhausted && tileX == exhaustedTileX && tileY == exhaustedTileY && loadRadius == exhaustedRadius
+                && capacity == exhaustedCapacity)
+            return false;
+        exhausted = false;
+        pass++;
+        int wanted = collectWantedTiles(x, y);
+        // touched from the farthest to the nearest tile, so the nearest are used most recently
+        for (int w = wanted - 1; w >= 0; w--) {
+            Tile tile = cache.get(tileKey(wantedX[w], wantedY[w]));
+            if (tile != null)
+                tile.pass = pass;
+        }
+        long evictedBefore = evictedTiles;
+        boolean changed = false;
+        int loaded = 0;
+        for (int w = 0; w < wanted && loaded < tilesPerSnapshot && running; w++) {
+            long key = tileKey(wantedX[w], wantedY[w]);
+            if (cache.containsKey(key))
+                continue;
+            InstanceStore trees;
+            try {
+                trees = source.load(wantedX[w], wantedY[w]);
+            } catch (IOException e) {
+                System.err.println("Loading tile " + wantedX[w] + ", " + wantedY[w] + " failed: " + e.getMessage());
+                failedTiles++;
+                trees = new InstanceStore(0);
+            }
+            if (!makeRoom(trees.size())) {
+                // the tiles within the load radius need more memory than the budget
+                if (!budgetExceeded) {
+                    System.err.println("The tiles within the load radius exceed the memory budget of "
+                            + (memoryBudget >> 20) + " MB, the farthest tiles are not loaded");
+                }
+                budgetExceeded = true;
+                exhausted = true;
+                exhaustedTileX = tileX;
+                exhaustedTileY = tileY;
+                exhaustedRadius = loadRadius;
+                exhaustedCapacity = capacity;
+                break;
+            }
+            Tile tile = new Tile(wantedX[w], wantedY[w], trees);
+            tile.pass = pass;
+            cache.put(key, tile);
+            cachedTrees += trees.size();
+            loadedTiles++;
+            loaded++;
+            changed = true;
+        }
+        changed |= evictedTiles != evictedBefore;
+        if (!changed)
+            return false;
+        publish();
+        return true;
+    }
+
+    /**
+     * Evicts least recently used tiles outside the load radius until the trees of another tile fit.
+     * @return False if they do not fit
+     */
+    private boolean makeRoom(int trees) {
+        Iterator<Tile> leastRecentlyUsed = cache.values().iterator();
+        while (cachedTrees + trees > capacity && leastRecentlyUsed.hasNext()) {
+            Tile tile = leastRecentlyUsed.next();
+            if (tile.pass == pass)
+                return false;
+            leastRecentlyUsed.remove();
+            tile.evicted = true;
+            cachedTrees -= tile.trees.size();
+            evictedTiles++;
+        }
+        return cachedTrees + trees <= capacity;
+    }
+
+    /**
+     * Collects the tiles overlapping the circle of the load radius around the focus, sorted by distance.
+     * @return Number of tiles
+     */
+    private int collectWantedTiles(float x, float y) {
+        float radius = loadRadius;
+        int fromX = (int) Math.floor((x - radius) / tileSize);
+        int toX = (int) Math.floor((x + radius) / tileSize);
+        int fromY = (int) Math.floor((y - radius) / tileSize);
+        int toY = (int) Math.floor((y + radius) / tileSize);
+        int maxCount = (toX - fromX + 1) * (toY - fromY + 1);
+        if (wantedX.length < maxCount) {
+            wantedX = new int[maxCount];
+            wantedY = new int[maxCount];
+            wantedDistance = new float[maxCount];
+        }
+        int count = 0;
+        for (int tileY = fromY; tileY <= toY; tileY++) {
+            for (int tileX = fromX; tileX <= toX; tileX++) {
+                // distance from the focus to the nearest point of the tile
+                float dx = Math.max(0f, Math.max(tileX * tileSize - x, x - (tileX + 1) * tileSize));
+                float dy = Math.max(0f, Math.max(tileY * tileSize - y, y - (tileY + 1) * tileSize));
+                float distance = (float) Math.sqrt(dx * dx + dy * dy);
+                if (distance > radius)
+                    continue;
+                // insertion sort, the nearest tile first
+                int k = count++;
+                for (; k > 0 && wantedDistance[k - 1] > distance; k--) {
+                    wantedX[k] = wantedX[k - 1];
+                    wantedY[k] = wantedY[k - 1];
+                    wantedDistance[k] = wantedDistance[k - 1];
+                }
+                wantedX[k] = tileX;
+                wantedY[k] = tileY;
+                wantedDistance[k] = distance;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Builds a snapshot of all cached tiles into the spare snapshot and hands it to the render thread.
+     * The tiles of the last snapshot keep their order, new tiles are appended.
+     */
+    private void publish() {
+        Snapshot snapshot = spare;
+        spare = null;
+        // the cache is in the order of use, the layout in the order of the stores
+        layout.removeIf(tile -> tile.evicted);
+        for (Tile tile : cache.values()) {
+            if (tile.start < 0)
+                layout.add(tile);
+        }
+        int tileCount = layout.size();
+        if (snapshot.starts.length < tileCount) {
+            snapshot.starts = new int[tileCount * 2];
+            snapshot.previousStarts = new int[tileCount * 2];
+            snapshot.counts = new int[tileCount * 2];
+        }
+        int size = 0;
+        for (int t = 0; t < tileCount; t++) {
+            Tile tile = layout.get(t);
+            int count = tile.trees.size();
+            snapshot.previousStarts[t] = tile.start;
+            snapshot.starts[t] = size;
+            snapshot.counts[t] = count;
+            snapshot.trees.copy(tile.trees, 0, size, count);
+            tile.start = size;
+            size += count;
+        }
+        snapshot.tileCount = tileCount;
+        snapshot.trees.setSize(size);
+        snapshot.index.build(snapshot.trees, treeBoundsCenterZ, treeBoundsRadius);
+        residentTiles = tileCount;
+        residentTrees = size;
+        snapshots++;
+        published.set(snapshot);
+        Runnable listener = changeListener;
+        if (listener != null)
+            listener.run();
+    }
+
+    private static long tileKey(int tileX, int tileY) {
+        return (long) tileX << 32 | (tileY & 0xffffffffL);
+    }
+
+    /**
+     * @return Number of tiles in the last snapshot
+     */
+    public int getResidentTiles() {
+        return residentTiles;
+    }
+
+    /**
+     * @return Number of trees in the last snapshot
+     */
+    public int getResidentTrees() {
+        return residentTrees;
+    }
+
+    /**
+     * @return Number of tiles loaded so far, including reloaded ones
+     */
+    public long getLoadedTiles() {
+        return loadedTiles;
+    }
+
+    /**
+     * @return Number of tiles evicted so far to stay within the memory budget
+     */
+    public long getEvictedTiles() {
+        return evictedTiles;
+    }
+
+    /**
+     * @return Number of tiles whose loading failed
+     */
+    public long getFailedTiles() {
+        return failedTiles;
+    }
+
+    /**
+     * @return Number of snapshots built so far
+     */
+    public long getSnapshots() {
+        return snapshots;
+    }
+
+    /**
+     * @return True if the tiles within the load radius did not fit into the memory budget at some time
+     */
+    public boolean isBudgetExceeded() {
+        return budgetExceeded;
+    }
+}
@@ -0,0 +1,257 @@
+import java.util.Arrays;
+
+/**
+ * Spatial index over the bounding spheres of the instances of an InstanceStore.
+ * The instances are sorted into a uniform grid in the x-y plane (the ground plane of the scene).
+ * Every cell knows the bounding box of its instances, so a frustum query rejects or accepts
+ * whole cells and only tests the single spheres of cells crossing the border of the frustum.
+ *
+ * The cells are stored in compressed form (start offset per cell into one index array),
+ * queries do not allocate any objects.
+ */
+public class UniformGridIndex {
+
+    // Average number of instances per cell
+    private static final int INSTANCES_PER_CELL = 16;
+
+    // Bounding spheres of the instances
+    private float[] centerX = new float[0];
+    private float[] centerY = new float[0];
+    private float[] centerZ = new float[0];
+    private float[] radius = new float[0];
+    private int size;
+    private float maxRadius;
+
+    // Grid layout
+    private float originX;
+    private float originY;
+    private float cellSize = 1f;
+    private int columns;
+    private int rows;
+    // Instances of cell c are items[cellStart[c] .. cellStart[c + 1])
+    private int[] cellStart = new int[1];
+    private int[] items = new int[0];
+    // Bounding box per cell: minX, minY, minZ, maxX, maxY, maxZ
+    private float[] cellBounds = new float[0];
+
+    /**
+     * Builds the index for all instances of a store. The bounding sphere of an instance of scale 1
+     * is centered centerOffsetZ above its position; sphere offset and radius are multiplied by the scale.
+     * @param store The instances
+     * @param centerOffsetZ Height of the sphere center above the instance position (for scale 1)
+     * @param boundingRadius Radius of the bounding sphere (for scale 1)
+     */
+    public void build(InstanceStore store, float centerOffsetZ, float boundingRadius) {
+        size = store.size();
+        if (centerX.length < size) {
+            centerX = new float[size];
+            centerY = new float[size];
+            centerZ = new float[size];
+            radius = new float[size];
+            items = new int[size];
+        }
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        maxRadius = 0f;
+        for (int i = 0; i < size; i++) {
+            float scale = store.getScale(i);
+            centerX[i] = store.getX(i);
+            centerY[i] = store.getY(i);
+            centerZ[i] = store.getZ(i) + centerOffsetZ * scale;
+            radius[i] = boundingRadius * scale;
+            maxRadius = Math.max(maxRadius, radius[i]);
+            minX = Math.min(minX, centerX[i]);
+            minY = Math.min(minY, centerY[i]);
+            maxX = Math.max(maxX, centerX[i]);
+            maxY = Math.max(maxY, centerY[i]);
+        }
+        if (size == 0) {
+            minX = minY = maxX = maxY = 0f;
+        }
+
+        // cell size chosen for a fixed average number of instances per cell
+        float width = Math.max(maxX - minX, 1e-3f);
+        float height = Math.max(maxY - minY, 1e-3f);
+        cellSize = (float) Math.sqrt(width * height * INSTANCES_PER_CELL / Math.max(size, 1));
+        originX = minX;
+        originY = minY;
+        columns = Math.max(1, (int) (width / cellSize) + 1);
+        rows = Math.max(1, (int) (height / cellSize) + 1);
+        int cells = columns * rows;
+
+        // counting sort of the instances into the cells
+        if (cellStart.length < cells + 1) {
+            cellStart = new int[cells + 1];
+            cellBounds = new float[cells * 6];
+        }
+        Arrays.fill(cellStart, 0, cells + 1, 0);
+        for (int i = 0; i < size; i++)
+            cellStart[cellOf(i) + 1]++;
+        for (int c = 0; c < cells; c++)
+            cellStart[c + 1] += cellStart[c];
+        int[] cursor = Arrays.copyOf(cellStart, cells);
+        for (int i = 0; i < size; i++)
+            items[cursor[cellOf(i)]++] = i;
+
+        // bounding boxes of the cells
+        for (int c = 0; c < cells; c++) {
+            int b = c * 6;
+            cellBounds[b] = cellBounds[b + 1] = cellBounds[b + 2] = Float.MAX_VALUE;
+            cellBounds[b + 3] = cellBounds[b + 4] = cellBounds[b + 5] = -Float.MAX_VALUE;
+            for (int k = cellStart[c]; k < cellStart[c + 1]; k++) {
+                int i = items[k];
+                float r = radius[i];
+                cellBounds[b] = Math.min(cellBounds[b], centerX[i] - r);
+                cellBounds[b + 1] = Math.min(cellBounds[b + 1], centerY[i] - r);
+                cellBounds[b + 2] = Math.min(cellBounds[b + 2], centerZ[i] - r);
+                cellBounds[b + 3] = Math.max(cellBounds[b + 3], centerX[i] + r);
+                cellBounds[b + 4] = Math.max(cellBounds[b + 4], centerY[i] + r);
+                cellBounds[b + 5] = Math.max(cellBounds[b + 5], centerZ[i] + r);
+            }
+        }
+    }
+
+    private int cellOf(int instance) {
+        int column = Math.min((int) ((centerX[instance] - originX) / cellSize), columns - 1);
+        int row = Math.min((int) ((centerY[instance] - originY) / cellSize), rows - 1);
+        return row * columns + column;
+    }
+
+    /**
+     * Collects the indices of all instances whose bounding sphere intersects the frustum.
+     * Only the cells overlapping the bounding box of the frustum are visited.
+     * @param frustum The current view frustum
+     * @param result Receives the indices of the visible instances, needs room for size() entries
+     * @return Number of visible instances
+     */
+    public int query(Frustum frustum, int[] result) {
+        return query(frustum, 0, rows, result, 0);
+    }
+
+    /**
+     * Collects the visible instances of a range of grid rows. Queries of disjoint row ranges only read the index,
+     * so they can run in parallel, each writing to its own part of the result (see getRowStart()).
+     * @param frustum The current view frustum
+     * @param fromRow First row of the range
+     * @param toRow Row after the range
+     * @param result Receives the indices of the visible instances from the offset on,
+     *               needs room for getRowStart(toRow) - getRowStart(fromRow) entries
+     * @param offset Index of the first entry written to the result
+     * @return Number of visible instances in the row range
+     */
+    public int query(Frustum frustum, int fromRow, int toRow, int[] result, int offset) {
+        return query(frustum, fromRow, toRow, result, offset, null);
+    }
+
+    /**
+     * Collects the visible instances of a range of grid rows, skipping the cells found hidden by occlusion culling.
+     * @param hiddenCells Non-zero for every cell whose instances are skipped (see OcclusionCuller), null for none
+     * @see #query(Frustum, int, int, int[], int)
+     */
+    public int query(Frustum frustum, int fromRow, int toRow, int[] result, int offset, byte[] hiddenCells) {
+        if (size == 0 || fromRow >= toRow)
+            return 0;
+        // the instances reach beyond their cell by their bounding radius, therefore the range is widened
+        int margin = (int) Math.ceil(maxRadius / cellSize);
+        int fromColumn = clamp((int) Math.floor((frustum.getMinX() - originX) / cellSize) - margin, columns);
+        int toColumn = clamp((int) Math.floor((frustum.getMaxX() - originX) / cellSize) + margin, columns);
+        fromRow = Math.max(fromRow, clamp((int) Math.floor((frustum.getMinY() - originY) / cellSize) - margin, rows));
+        toRow = Math.min(toRow - 1, clamp((int) Math.floor((frustum.getMaxY() - originY) / cellSize) + margin, rows));
+
+        int count = offset;
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int column = fromColumn; column <= toColumn; column++) {
+                int c = row * columns + column;
+                int start = cellStart[c];
+                int end = cellStart[c + 1];
+                if (start == end || hiddenCells != null && hiddenCells[c] != 0)
+                    continue;
+                int b = c * 6;
+                int classification = frustum.classifyBox(cellBounds[b], cellBounds[b + 1], cellBounds[b + 2],
+                        cellBounds[b + 3], cellBounds[b + 4], cellBounds[b + 5]);
+                if (classification == Frustum.INSIDE) {
+                    System.arraycopy(items, start, result, count, end - start);
+                    count += end - start;
+                } else if (classification == Frustum.INTERSECTING) {
+                    for (int k = start; k < end; k++) {
+                        int i = items[k];
+                        if (frustum.intersectsSphere(centerX[i], centerY[i], centerZ[i], radius[i]))
+                            result[count++] = i;
+                    }
+                }
+            }
+        }
+        return count - offset;
+    }
+
+    /**
+     * Collects the non-empty cells whose bounding box is inside the frustum or intersects it,
+     * e.g. for testing them for occlusion.
+     * @param frustum The current view frustum
+     * @param cells Receives the indices of the cells, needs room for getCellCount() entries
+     * @return Number of cells
+     */
+    public int queryCells(Frustum frustum, int[] cells) {
+        if (size == 0)
+            return 0;
+        int margin = (int) Math.ceil(maxRadius / cellSize);
+        int fromColumn = clamp((int) Math.floor((frustum.getMinX() - originX) / cellSize) - margin, columns);
+        int toColumn = clamp((int) Math.floor((frustum.getMaxX() - originX) / cellSize) + margin, columns);
+        int fromRow = clamp((int) Math.floor((frustum.getMinY() - originY) / cellSize) - margin, rows);
+        int toRow = clamp((int) Math.floor((frustum.getMaxY() - originY) / cellSize) + margin, rows);
+        int count = 0;
+        for (int row = fromRow; row <= toRow; row++) {
+            for (int column = fromColumn; column <= toColumn; column++) {
+                int c = row * columns + column;
+                if (cellStart[c] == cellStart[c + 1])
+                    continue;
+                int b = c * 6;
+                if (frustum.classifyBox(cellBounds[b], cellBounds[b + 1], cellBounds[b + 2],
+                        cellBounds[b + 3], cellBounds[b + 4], cellBounds[b + 5]) != Frustum.OUTSIDE)
+                    cells[count++] = c;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return Number of cells of the grid
+     */
+    public int getCellCount() {
+        return columns * rows;
+    }
+
+    /**
+     * Copies the bounding box of the instances of a cell.
+     * @param box Receives minX, minY, minZ, maxX, maxY, maxZ from the offset on
+     */
+    public void getCellBounds(int cell, float[] box, int offset) {
+        System.arraycopy(cellBounds, cell * 6, box, offset, 6);
+    }
+
+    /**
+     * @return Number of rows of the grid
+     */
+    public int getRowCount() {
+        return rows;
+    }
+
+    /**
+     * @param row Index of a row, getRowCount() for the end of the last row
+     * @return Number of instances in the rows before
+     */
+    public int getRowStart(int row) {
+        return cellStart[row * columns];
+    }
+
+    private static int clamp(int value, int count) {
+        return Math.max(0, Math.min(value, count - 1));
+    }
+
+    /**
+     * @return Number of indexed instances
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * CPU side copy of the camera and projection used by the renderer.
+ * Mirrors the transformations of display() (gluLookAt, glTranslatef, glRotatef) and
+ * reshape() (gluPerspective), so the renderer can reason about the scene without reading back OpenGL state,
+ * e.g. for computing the distance or the projected size of an object.
+ */
+public class ViewTransform {
+
+    // Parameters of the perspective projection
+    private float fovy = 45f;
+    private float aspect = 1f;
+    private float zNear = 0.1f;
+    private float zFar = 100f;
+    private int viewportHeight = 1;
+
+    // Column-major matrices
+    private final float[] modelView = new float[16];
+    private final float[] projection = new float[16];
+    private final float[] viewProjection = new float[16];
+    private final float[] temp = new float[16];
+
+    public ViewTransform() {
+        MatrixMath.setIdentity(modelView);
+        updateProjection();
+    }
+
+    /**
+     * Sets the perspective projection (see gluPerspective) and the height of the viewport in pixels.
+     */
+    public void setPerspective(float fovy, float aspect, float zNear, float zFar, int viewportHeight) {
+        this.fovy = fovy;
+        this.aspect = aspect;
+        this.zNear = zNear;
+        this.zFar = zFar;
+        this.viewportHeight = Math.max(viewportHeight, 1);
+        updateProjection();
+    }
+
+    /**
+     * Computes the camera transformation from the interaction state, in the same order as display():
+     * camera at (0, 0, eyeZ) looking at the origin, followed by translation and rotation of the scene.
+     */
+    public void update(float eyeZ, float xPosition, float yPosition, float angleXaxis, float angleYaxis) {
+        // gluLookAt is undefined if the eye coincides with the center
+        if (eyeZ == 0f)
+            eyeZ = 1e-4f;
+        MatrixMath.setLookAt(modelView, 0f, 0f, eyeZ, 0f, 0f, 0f, 0f, 1f, 0f);
+        MatrixMath.translate(modelView, xPosition, yPosition, 0f);
+        MatrixMath.rotateX(modelView, angleXaxis);
+        MatrixMath.rotateY(modelView, angleYaxis);
+        MatrixMath.multiply(projection, modelView, viewProjection, temp);
+    }
+
+    /**
+     * Computes the camera transformation from a camera snapshot, e.g. InteractionHandler.getCameraState().
+     */
+    public void update(CameraState camera) {
+        update(camera.getEyeZ(), camera.getxPosition(), camera.getyPosition(),
+                camera.getAngleXaxis(), camera.getAngleYaxis());
+    }
+
+    /**
+     * Copies projection and camera of another view transform, e.g. for handing a snapshot to another thread.
+     */
+    public void set(ViewTransform other) {
+        fovy = other.fovy;
+        aspect = other.aspect;
+        zNear = other.zNear;
+        zFar = other.zFar;
+        viewportHeight = other.viewportHeight;
+        System.arraycopy(other.modelView, 0, modelView, 0, 16);
+        System.arraycopy(other.projection, 0, projection, 0, 16);
+        System.arraycopy(other.viewProjection, 0, viewProjection, 0, 16);
+    }
+
+    private void updateProjection() {
+        MatrixMath.setPerspective(projection, fovy, aspect, zNear, zFar);
+        MatrixMath.multiply(projection, modelView, viewProjection, temp);
+    }
+
+    /**
+     * Returns the distance of a world space point in front of the camera along the viewing direction.
+     * Negative values are behind the camera.
+     */
+    public float getEyeDepth(float x, float y, float z) {
+        return -(modelView[2] * x + modelView[6] * y + modelView[10] * z + modelView[14]);
+    }
+
+    /**
+     * Returns the distance of a world space point from the camera, unlike the eye depth independent of the
+     * direction the camera looks into.
+     */
+    public float getEyeDistance(float x, float y, float z) {
+        float eyeX = modelView[0] * x + modelView[4] * y + modelView[8] * z + modelView[12];
+        float eyeY = modelView[1] * x + modelView[5] * y + modelView[9] * z + modelView[13];
+        float eyeZ = modelView[2] * x + modelView[6] * y + modelView[10] * z + modelView[14];
+        return (float) Math.sqrt(eyeX * eyeX + eyeY * eyeY + eyeZ * eyeZ);
+    }
+
+    /**
+     * Transforms a point from eye coordinates back into world coordinates, e.g. (0, 0, -eyeZ) gives the point
+     * the camera looks at. The camera matrix only rotates and translates, so its inverse rotation is the transpose.
+     * @param result Receives x, y and z in world coordinates
+     */
+    public void eyeToWorld(float x, float y, float z, float[] result) {
+        float dx = x - modelView[12];
+        float dy = y - modelView[13];
+        float dz = z - modelView[14];
+        result[0] = modelView[0] * dx + modelView[1] * dy + modelView[2] * dz;
+        result[1] = modelView[4] * dx + modelView[5] * dy + modelView[6] * dz;
+        result[2] = modelView[8] * dx + modelView[9] * dy + modelView[10] * dz;
+    }
+
+    /**
+     * Returns the size in pixels of one world unit at a given eye depth.
+     */
+    public float getPixelsPerUnit(float eyeDepth) {
+        return viewportHeight / (2f * (float) Math.tan(Math.toRadians(fovy) / 2) * eyeDepth);
+    }
+
+    /**
+     * Returns the approximate projected diameter in pixels of a sphere.
+     * Spheres reaching behind the near plane are treated as very large.
+     */
+    public float getProjectedSize(float x, float y, float z, float radius) {
+        float depth = getEyeDepth(x, y, z);
+        if (depth - radius <= zNear)
+            return Float.MAX_VALUE;
+        return 2f * radius * getPixelsPerUnit(depth);
+    }
+
+    /**
+     * @return The camera (model view) matrix, column-major. Must not be modified.
+     */
+    public float[] getModelView() {
+        return modelView;
+    }
+
+    /**
+     * @return The projection matrix, column-major. Must not be modified.
+     */
+    public float[] getProjection() {
+        return projection;
+    }
+
+    /**
+     * @return The product of projection and camera matrix, column-major. Must not be modified.
+     */
+    public float[] getViewProjection() {
+        return viewProjection;
+    }
+
+    public float getFovy() {
+        return fovy;
+    }
+
+    public float getAspect() {
+        return aspect;
+    }
+
+    public float getZNear() {
+        return zNear;
+    }
+
+    public float getZFar() {
+        return zFar;
+    }
+
+    public int getViewportHeight() {
+        return viewportHeight;
+    }
+}